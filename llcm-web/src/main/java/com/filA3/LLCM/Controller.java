@@ -0,0 +1,405 @@
+package com.filA3.LLCM;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import com.filA3.prm.HCHRiskStratificationPRMScoreCalculator;
+import com.filA3.prm.PRMAlerts;
+import com.filA3.prm.PRMAuditJournal;
+import com.filA3.prm.PRMCalculator;
+import com.filA3.prm.PRMCodeMapping;
+import com.filA3.prm.PRMDriftMonitor;
+import com.filA3.prm.PRMEvents;
+import com.filA3.prm.PRMCounterfactualSearch;
+import com.filA3.prm.PRMLabThresholds;
+import com.filA3.prm.PRMLocalServer;
+import com.filA3.prm.PRMMissingDataMarginalizer;
+import com.filA3.prm.PRMModelCalculator;
+import com.filA3.prm.PRMPostcodeDeciles;
+import com.filA3.prm.PRMReferencePopulation;
+import com.filA3.prm.PRMScoreStore;
+import com.filA3.prm.PRMShadowScorer;
+import com.filA3.prm.PRMWarmUp;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.json.simple.JSONObject;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class Controller {
+
+  private final HCHRiskStratificationPRMScoreCalculator scorer;
+
+  private final PRMCounterfactualSearch counterfactualSearch;
+
+  private final PRMMissingDataMarginalizer marginalizer;
+
+  private final String postcodesFile;
+
+  private final PRMAlerts alerts;
+
+  private final PRMScoreStore scores;
+
+  private final String referenceFile;
+
+  private final double[] tierBands;
+
+  private final PRMWarmUp warmUp;
+
+  private final PRMLocalServer localServer;
+
+  private final PRMShadowScorer shadow;
+
+  private final PRMAuditJournal journal;
+
+  private final PRMDriftMonitor drift;
+
+  public Controller(PRMProperties properties, ObjectMapper objectMapper) throws IOException {
+        if (!properties.getCodeMapping().isEmpty()) {
+            try (Reader reader = new FileReader(properties.getCodeMapping())) {
+                PRMCodeMapping.setInstance(PRMCodeMapping.read(reader));
+            }
+        }
+        this.postcodesFile = properties.getPostcodes();
+        if (!postcodesFile.isEmpty()) {
+            reloadPostcodes();
+        }
+        if (properties.getModel().isEmpty()) {
+            scorer = HCHRiskStratificationPRMScoreCalculator.getInstance();
+        } else {
+            try (Reader reader = new FileReader(properties.getModel())) {
+                scorer = PRMModelCalculator.read(reader);
+            }
+        }
+        PRMProperties.Shadow shadowProperties = properties.getShadow();
+        if (shadowProperties.getFraction() == 0) {
+            shadow = null;
+        } else if (shadowProperties.getModel().isEmpty()) {
+            shadow = new PRMShadowScorer(new PRMModelCalculator(
+                HCHRiskStratificationPRMScoreCalculator.getInstance().getModel()), shadowProperties.getFraction(), shadowProperties.getTolerance());
+        } else {
+            try (Reader reader = new FileReader(shadowProperties.getModel())) {
+                shadow = new PRMShadowScorer(PRMModelCalculator.read(reader), shadowProperties.getFraction(), shadowProperties.getTolerance());
+            }
+        }
+        PRMProperties.Audit audit = properties.getAudit();
+        journal = audit.getDir().isEmpty() ? null
+            : new PRMAuditJournal(Paths.get(audit.getDir())).setSync(audit.getSync(), audit.getSyncMillis()).setLog(System.err).start();
+        PRMProperties.Drift driftProperties = properties.getDrift();
+        drift = new PRMDriftMonitor(TimeUnit.SECONDS.toMillis(driftProperties.getWindowSeconds())).setThreshold(driftProperties.getThreshold());
+        if (!driftProperties.getReference().isEmpty()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(driftProperties.getReference()))) {
+                drift.setReference(PRMDriftMonitor.Distribution.read(in));
+            }
+        }
+        drift.start();
+        counterfactualSearch = new PRMCounterfactualSearch(scorer);
+        if (!properties.getCounterfactual().getCosts().isEmpty()) {
+            try (Reader reader = new FileReader(properties.getCounterfactual().getCosts())) {
+                counterfactualSearch.loadCosts(reader);
+            }
+        }
+        if (!properties.getLabThresholds().isEmpty()) {
+            try (Reader reader = new FileReader(properties.getLabThresholds())) {
+                PRMLabThresholds.setInstance(PRMLabThresholds.read(reader));
+            }
+        }
+        if (properties.getPrevalences().isEmpty()) {
+            marginalizer = null;
+        } else {
+            marginalizer = new PRMMissingDataMarginalizer(scorer);
+            try (Reader reader = new FileReader(properties.getPrevalences())) {
+                marginalizer.loadPrevalences(reader);
+            }
+        }
+        PRMProperties.Alerts alertsProperties = properties.getAlerts();
+        alerts = alertsProperties.getCutOffs().length == 0 || alertsProperties.getSink().isEmpty() ? null
+            : new PRMAlerts(PRMAlerts.sink(alertsProperties.getSink()), alertsProperties.getCutOffs())
+                .setMaxPatients(alertsProperties.getMaxPatients());
+        if (properties.getScores().getFile().isEmpty()) {
+            scores = new PRMScoreStore();
+        } else {
+            Path path = Paths.get(properties.getScores().getFile());
+            scores = Files.exists(path) ? PRMScoreStore.read(path) : new PRMScoreStore();
+            scores.snapshotEvery(path, properties.getScores().getSnapshotSeconds(), TimeUnit.SECONDS, System.err);
+        }
+        if (alerts != null) {
+            alerts.setScores(scores);
+        }
+        this.referenceFile = properties.getReference().getFile();
+        this.tierBands = properties.getReference().getTiers();
+        if (!referenceFile.isEmpty()) {
+            reloadReference();
+        }
+        warmUp = new PRMWarmUp(json -> calculate(objectMapper.readValue(json, JSONObject.class), true))
+            .setProfiles(properties.getWarmUp().getProfiles());
+        String localSocket = properties.getLocal().getSocket();
+        localServer = localSocket.isEmpty() ? null : new PRMLocalServer(scorer, localSocket).setLog(System.err);
+    }
+
+  /**
+   * Starts the warm-up, which scores through this controller, and the local
+   * server once the application is ready rather than during construction.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() throws IOException {
+        warmUp.start(System.err);
+        if (localServer != null) {
+            localServer.start();
+        }
+    }
+
+  @PreDestroy
+  public void close() {
+        if (alerts != null) {
+            alerts.close();
+        }
+        scores.close();
+        if (localServer != null) {
+            localServer.close();
+        }
+        if (shadow != null) {
+            shadow.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        drift.close();
+    }
+
+  @GetMapping("/ready")
+  public ResponseEntity<JSONObject> ready() {
+        return ResponseEntity.status(warmUp.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+            .body(warmUp.toJSON());
+    }
+
+  @GetMapping("/scores/{patientId}")
+  public ResponseEntity<JSONObject> score(@PathVariable("patientId") long patientId) {
+        PRMScoreStore.Entry entry = scores.get(patientId);
+        return entry == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(entry.toJSON());
+    }
+
+  @GetMapping("/shadow")
+  public ResponseEntity<Map<String, Object>> shadow() {
+        if (shadow == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("Fraction", shadow.getFraction());
+        report.put("Tolerance", shadow.getTolerance());
+        report.put("Compared", shadow.getCompared());
+        report.put("Divergences", shadow.getDivergences());
+        report.put("Dropped", shadow.getDropped());
+        Map<String, Object> primary = new LinkedHashMap<>();
+        Map<String, Object> candidate = new LinkedHashMap<>();
+        String[] names = {"P50", "P90", "P99", "P99.9"};
+        double[] levels = {0.5, 0.9, 0.99, 0.999};
+        for (int i = 0; i < levels.length; i++) {
+            primary.put(names[i], number(shadow.getPrimaryLatency(levels[i])));
+            candidate.put(names[i], number(shadow.getCandidateLatency(levels[i])));
+        }
+        report.put("PrimaryMicros", primary);
+        report.put("CandidateMicros", candidate);
+        List<Map<String, Object>> recent = new ArrayList<>();
+        for (PRMShadowScorer.Divergence divergence : shadow.getRecentDivergences()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("Time", divergence.getTime());
+            entry.put("Profile", divergence.getProfileHex());
+            entry.put("Primary", number(divergence.getPrimary()));
+            entry.put("Candidate", number(divergence.getCandidate()));
+            recent.add(entry);
+        }
+        report.put("RecentDivergences", recent);
+        return ResponseEntity.ok(report);
+    }
+
+  @GetMapping("/audit")
+  public ResponseEntity<Map<String, Object>> audit() {
+        if (journal == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("Appended", journal.getAppended());
+        report.put("Written", journal.getWritten());
+        report.put("Dropped", journal.getDropped());
+        report.put("Stalls", journal.getStalls());
+        report.put("Failure", journal.getFailure() == null ? null : journal.getFailure().toString());
+        return ResponseEntity.ok(report);
+    }
+
+  @GetMapping("/drift")
+  public ResponseEntity<Map<String, Object>> drift() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("WindowSeconds", TimeUnit.MILLISECONDS.toSeconds(drift.getWindowMillis()));
+        report.put("Threshold", number(drift.getThreshold()));
+        report.put("Reference", drift.hasReference() ? "file" : "history");
+        report.put("Profiles", drift.getTotal().getProfiles());
+        PRMDriftMonitor.Distribution window = drift.getLastWindow();
+        PRMDriftMonitor.Distribution reference = drift.getReference();
+        report.put("WindowStart", window == null ? null : window.getStart());
+        report.put("WindowEnd", window == null ? null : window.getEnd());
+        report.put("WindowProfiles", window == null ? 0 : window.getProfiles());
+        report.put("ReferenceProfiles", reference == null ? 0 : reference.getProfiles());
+        List<String> drifted = new ArrayList<>();
+        Map<String, Object> dimensions = new LinkedHashMap<>();
+        for (PRMDriftMonitor.Drift dimension : drift.getDrifts()) {
+            if (dimension.isDrifted()) {
+                drifted.add(dimension.getDimension());
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("PSI", number(dimension.getPsi()));
+            entry.put("KL", number(dimension.getKl()));
+            entry.put("Value", dimension.getValue());
+            entry.put("Share", number(dimension.getShare()));
+            entry.put("ReferenceShare", number(dimension.getReferenceShare()));
+            dimensions.put(dimension.getDimension(), entry);
+        }
+        report.put("Drifted", drifted);
+        report.put("Dimensions", dimensions);
+        return ResponseEntity.ok(report);
+    }
+
+  /**
+   * Returns a value for a JSON report, null if it is not finite.
+   */
+  private static Double number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+    }
+
+  @PostMapping("/postcodes/reload")
+  public ResponseEntity<Integer> reloadPostcodes() throws IOException {
+        if (postcodesFile.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        try (Reader reader = new FileReader(postcodesFile)) {
+            PRMPostcodeDeciles.setInstance(PRMPostcodeDeciles.read(reader));
+        }
+        return ResponseEntity.ok(PRMPostcodeDeciles.getInstance().size());
+    }
+
+  @PostMapping("/reference/reload")
+  public ResponseEntity<Long> reloadReference() throws IOException {
+        if (referenceFile.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(referenceFile))) {
+            PRMReferencePopulation.setInstance(PRMReferencePopulation.read(in).withBands(tierBands));
+        }
+        return ResponseEntity.ok(PRMReferencePopulation.getInstance().getPopulationSize());
+    }
+
+  @GetMapping("/codes/unmapped")
+  public ResponseEntity<Map<String, Object>> unmappedCodes() {
+        PRMCodeMapping mapping = PRMCodeMapping.getInstance();
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("mapped", mapping.getMapped());
+        counts.put("unmapped", mapping.getUnmapped());
+        counts.put("codes", mapping.getUnmappedCodes());
+        return ResponseEntity.ok(counts);
+    }
+
+  @PostMapping("/calculate")
+  public ResponseEntity<?> calculate(@RequestBody  JSONObject jsonObject,
+        @RequestParam(value = "percentile", defaultValue = "false") boolean percentile){
+        Object event = PRMEvents.begin(PRMEvents.Phase.REQUEST);
+        boolean success = false;
+        try {
+            ResponseEntity<?> response = score(jsonObject, percentile);
+            success = true;
+            return response;
+        } finally {
+            PRMEvents.end(event, jsonObject.size(), success);
+        }
+    }
+
+  @SuppressWarnings("unchecked")
+  private ResponseEntity<?> score(JSONObject jsonObject, boolean percentile) {
+        PRMCalculator calculator = new PRMCalculator(jsonObject);
+        calculator.parse();
+        long start = System.nanoTime();
+        double probability = scorer.calculatePRMScore(calculator.getData());
+        long elapsed = System.nanoTime() - start;
+        if (warmUp.isReady()) {
+            drift.record(calculator.getData(), probability);
+        }
+        if (shadow != null && warmUp.isReady()) {
+            shadow.offer(calculator.getData(), probability, elapsed);
+        }
+        if (journal != null && warmUp.isReady()) {
+            journal.append(calculator.getPatientId(), calculator.getData(), probability, scorer.getModel().getVersion());
+        }
+        if (calculator.getPatientId() != null) {
+            long now = System.currentTimeMillis();
+            if (alerts != null) {
+                alerts.scored(calculator.getPatientId(), probability, now);
+            }
+            scores.put(calculator.getPatientId(), probability, scorer.getModel().getVersion(), now);
+        }
+        if (!percentile) {
+            return ResponseEntity.ok(probability);
+        }
+        PRMReferencePopulation reference = PRMReferencePopulation.getInstance();
+        double rank = reference.getPercentile(probability);
+        JSONObject response = new JSONObject();
+        response.put("Probability", probability);
+        response.put("Percentile", Double.isNaN(rank) ? null : rank);
+        response.put("Tier", Double.isNaN(rank) ? null : reference.getTier(rank));
+        return ResponseEntity.ok(response);
+    }
+
+  @PostMapping("/calculate/marginal")
+  public ResponseEntity<PRMMissingDataMarginalizer.MarginalRisk> calculateMarginal(@RequestBody JSONObject jsonObject){
+        if (marginalizer == null) {
+            return ResponseEntity.notFound().build();
+        }
+        PRMCalculator calculator = new PRMCalculator(jsonObject);
+        calculator.parse();
+        return ResponseEntity.ok(marginalizer.calculate(calculator.getData()));
+    }
+
+  @PostMapping("/counterfactual")
+  public ResponseEntity<?> counterfactual(@RequestBody JSONObject jsonObject,
+        @RequestParam("target") double target, @RequestParam(value = "max", defaultValue = "5") int max,
+        @RequestParam(value = "cost", required = false) List<String> costs){
+        PRMCounterfactualSearch search = counterfactualSearch;
+        if (costs != null && !costs.isEmpty()) {
+            search = new PRMCounterfactualSearch(counterfactualSearch);
+            try {
+                for (String cost : costs) {
+                    int colon = cost.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("Expected NAME:COST");
+                    }
+                    search.setCost(cost.substring(0, colon), cost.substring(colon + 1));
+                }
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body("Invalid cost: " + e.getMessage());
+            }
+        }
+        PRMCalculator calculator = new PRMCalculator(jsonObject);
+        calculator.parse();
+        return ResponseEntity.ok(search.search(calculator.getData(), target, max));
+    }
+}
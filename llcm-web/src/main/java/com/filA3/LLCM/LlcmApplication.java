@@ -2,8 +2,10 @@ package com.filA3.LLCM;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 
 @SpringBootApplication
+@EnableConfigurationProperties(PRMProperties.class)
 public class LlcmApplication {
 	public static void main(String[] args) {
 		SpringApplication.run(LlcmApplication.class, args);
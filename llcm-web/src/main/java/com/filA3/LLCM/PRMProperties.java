@@ -0,0 +1,352 @@
+package com.filA3.LLCM;
+
+import com.filA3.prm.PRMAlerts;
+import com.filA3.prm.PRMAuditJournal;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The "prm." settings of the application, e.g. prm.scores.file or
+ * prm.shadow.fraction. File settings are empty when not set.
+ */
+@ConfigurationProperties("prm")
+public class PRMProperties {
+
+    /** Prevalence weights of field values, enabling /calculate/marginal. */
+    private String prevalences = "";
+
+    /** Coefficient model file, instead of the national coefficients. */
+    private String model = "";
+
+    /** Cut-points of raw pathology values. */
+    private String labThresholds = "";
+
+    /** Postcode deciles, reloaded by POST /postcodes/reload. */
+    private String postcodes = "";
+
+    /** Rules mapping clinical codes. */
+    private String codeMapping = "";
+
+    private final Alerts alerts = new Alerts();
+
+    private final Scores scores = new Scores();
+
+    private final Reference reference = new Reference();
+
+    private final WarmUp warmUp = new WarmUp();
+
+    private final Local local = new Local();
+
+    private final Shadow shadow = new Shadow();
+
+    private final Audit audit = new Audit();
+
+    private final Drift drift = new Drift();
+
+    private final Counterfactual counterfactual = new Counterfactual();
+
+    public String getPrevalences() {
+        return prevalences;
+    }
+
+    public void setPrevalences(String prevalences) {
+        this.prevalences = prevalences;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public void setModel(String model) {
+        this.model = model;
+    }
+
+    public String getLabThresholds() {
+        return labThresholds;
+    }
+
+    public void setLabThresholds(String labThresholds) {
+        this.labThresholds = labThresholds;
+    }
+
+    public String getPostcodes() {
+        return postcodes;
+    }
+
+    public void setPostcodes(String postcodes) {
+        this.postcodes = postcodes;
+    }
+
+    public String getCodeMapping() {
+        return codeMapping;
+    }
+
+    public void setCodeMapping(String codeMapping) {
+        this.codeMapping = codeMapping;
+    }
+
+    public Alerts getAlerts() {
+        return alerts;
+    }
+
+    public Scores getScores() {
+        return scores;
+    }
+
+    public Reference getReference() {
+        return reference;
+    }
+
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    public Local getLocal() {
+        return local;
+    }
+
+    public Shadow getShadow() {
+        return shadow;
+    }
+
+    public Audit getAudit() {
+        return audit;
+    }
+
+    public Drift getDrift() {
+        return drift;
+    }
+
+    public Counterfactual getCounterfactual() {
+        return counterfactual;
+    }
+
+    public static class Alerts {
+
+        /** Probability cut-offs whose crossing raises an alert, none by default. */
+        private double[] cutOffs = {};
+
+        /** File or http: URL the alerts are sent to. */
+        private String sink = "";
+
+        /** Patients whose last tiers are kept, the least recently scored evicted. */
+        private int maxPatients = PRMAlerts.DEFAULT_MAX_PATIENTS;
+
+        public double[] getCutOffs() {
+            return cutOffs;
+        }
+
+        public void setCutOffs(double[] cutOffs) {
+            this.cutOffs = cutOffs;
+        }
+
+        public String getSink() {
+            return sink;
+        }
+
+        public void setSink(String sink) {
+            this.sink = sink;
+        }
+
+        public int getMaxPatients() {
+            return maxPatients;
+        }
+
+        public void setMaxPatients(int maxPatients) {
+            this.maxPatients = maxPatients;
+        }
+    }
+
+    public static class Scores {
+
+        /** Score store file, loaded at start and written periodically. */
+        private String file = "";
+
+        private long snapshotSeconds = 60;
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public long getSnapshotSeconds() {
+            return snapshotSeconds;
+        }
+
+        public void setSnapshotSeconds(long snapshotSeconds) {
+            this.snapshotSeconds = snapshotSeconds;
+        }
+    }
+
+    public static class Reference {
+
+        /** Reference population file, reloaded by POST /reference/reload. */
+        private String file = "";
+
+        /** Percentile bands between risk tiers. */
+        private double[] tiers = {50, 80, 95};
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public double[] getTiers() {
+            return tiers;
+        }
+
+        public void setTiers(double[] tiers) {
+            this.tiers = tiers;
+        }
+    }
+
+    public static class WarmUp {
+
+        /** Synthetic profiles scored before /ready answers 200. */
+        private int profiles = 10000;
+
+        public int getProfiles() {
+            return profiles;
+        }
+
+        public void setProfiles(int profiles) {
+            this.profiles = profiles;
+        }
+    }
+
+    public static class Local {
+
+        /** Unix socket path, or tcp:PORT, of the binary protocol. */
+        private String socket = "";
+
+        public String getSocket() {
+            return socket;
+        }
+
+        public void setSocket(String socket) {
+            this.socket = socket;
+        }
+    }
+
+    public static class Shadow {
+
+        /** Share of the requests also scored by the candidate, 0 for none. */
+        private double fraction = 0;
+
+        private double tolerance = 1e-8;
+
+        /** Candidate model file, by default the national coefficients. */
+        private String model = "";
+
+        public double getFraction() {
+            return fraction;
+        }
+
+        public void setFraction(double fraction) {
+            this.fraction = fraction;
+        }
+
+        public double getTolerance() {
+            return tolerance;
+        }
+
+        public void setTolerance(double tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public void setModel(String model) {
+            this.model = model;
+        }
+    }
+
+    public static class Audit {
+
+        /** Directory of the audit journal, none by default. */
+        private String dir = "";
+
+        private PRMAuditJournal.Sync sync = PRMAuditJournal.Sync.BATCH;
+
+        private long syncMillis = 1000;
+
+        public String getDir() {
+            return dir;
+        }
+
+        public void setDir(String dir) {
+            this.dir = dir;
+        }
+
+        public PRMAuditJournal.Sync getSync() {
+            return sync;
+        }
+
+        public void setSync(PRMAuditJournal.Sync sync) {
+            this.sync = sync;
+        }
+
+        public long getSyncMillis() {
+            return syncMillis;
+        }
+
+        public void setSyncMillis(long syncMillis) {
+            this.syncMillis = syncMillis;
+        }
+    }
+
+    public static class Drift {
+
+        private long windowSeconds = 300;
+
+        private double threshold = 0.25;
+
+        /** Reference distribution file, by default the earlier requests. */
+        private String reference = "";
+
+        public long getWindowSeconds() {
+            return windowSeconds;
+        }
+
+        public void setWindowSeconds(long windowSeconds) {
+            this.windowSeconds = windowSeconds;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(double threshold) {
+            this.threshold = threshold;
+        }
+
+        public String getReference() {
+            return reference;
+        }
+
+        public void setReference(String reference) {
+            this.reference = reference;
+        }
+    }
+
+    public static class Counterfactual {
+
+        /** Costs and fixed fields of /counterfactual. */
+        private String costs = "";
+
+        public String getCosts() {
+            return costs;
+        }
+
+        public void setCosts(String costs) {
+            this.costs = costs;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.filA3.LLCM;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.filA3.prm.PRMAuditJournal;
+import java.util.Map;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+
+@SpringBootTest(properties = {"prm.warm-up.profiles=50", "prm.reference.tiers=40,90",
+        "prm.scores.snapshot-seconds=7", "prm.audit.sync=NONE", "prm.drift.window-seconds=60"})
+class ControllerTests {
+
+    @Autowired
+    private PRMProperties properties;
+
+    @Autowired
+    private Controller controller;
+
+    @Test
+    void bindsProperties() {
+        assertEquals(50, properties.getWarmUp().getProfiles());
+        assertArrayEquals(new double[] {40, 90}, properties.getReference().getTiers());
+        assertEquals(7, properties.getScores().getSnapshotSeconds());
+        assertEquals(PRMAuditJournal.Sync.NONE, properties.getAudit().getSync());
+        assertEquals(60, properties.getDrift().getWindowSeconds());
+        assertEquals(0.25, properties.getDrift().getThreshold());
+        assertEquals("", properties.getScores().getFile());
+    }
+
+    @Test
+    void warmsUpOnceReady() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (controller.ready().getStatusCode() != HttpStatus.OK && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(HttpStatus.OK, controller.ready().getStatusCode());
+    }
+
+    @Test
+    void reportsDriftWithPascalCaseKeys() {
+        Map<String, Object> report = controller.drift().getBody();
+        assertEquals(60L, report.get("WindowSeconds"));
+        assertEquals(0.25, report.get("Threshold"));
+        assertEquals("history", report.get("Reference"));
+        // No window has ended within the test
+        assertNull(report.get("WindowStart"));
+        assertEquals(0L, report.get("ReferenceProfiles"));
+        assertTrue(((Map<?, ?>) report.get("Dimensions")).isEmpty());
+    }
+
+    @Test
+    void marginalNeedsPrevalences() {
+        assertEquals(HttpStatus.NOT_FOUND, controller.calculateMarginal(new JSONObject()).getStatusCode());
+    }
+}
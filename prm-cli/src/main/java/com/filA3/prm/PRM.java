@@ -0,0 +1,1396 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.DefaultParser;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+
+/**
+  * Main class for calculating Health Care Homes hospitalisation probability.
+  *
+  * Users should call the main method with appropriate arguments.
+  * <pre>
+  *
+  * usage: prm -d &lt;FILE&gt; [-a &lt;CUT-OFFS&gt;] [-A &lt;FILE|URL&gt;] [-b]
+  *        [-c &lt;FILE&gt;] [-e &lt;THRESHOLDS&gt;] [-f &lt;FILE&gt;] [-g &lt;PROBABILITY&gt;]
+  *        [-G &lt;FILE&gt;] [-h] [-i] [-l &lt;FILE&gt;] [-m] [-M &lt;FILE&gt;]
+  *        [-o &lt;FILE&gt;] [-p &lt;FILE&gt;] [-r &lt;FILE&gt;] [-R &lt;FILE&gt;]
+  *        [-S &lt;FILE&gt;] [-t &lt;N&gt;] [-T &lt;PERCENTILES&gt;] [-v] [-w]
+  *        [-y &lt;YEARS&gt;] [-z &lt;FILE&gt;]
+  *
+  * Calculates Health Care Homes hospitalisation probability.
+  *
+  * Options:
+  * -a,--alerts &lt;CUT-OFFS&gt;
+  *                    Raises an alert for each patient whose
+  *                    probability moves across the given comma
+  *                    separated cut-offs, see {@link PRMAlerts}; not
+  *                    with --years, --compare, --fit or --evaluate. Alerts are per run, unless
+  *                    --scores gives the last probabilities of earlier
+  *                    runs.
+  * -A,--alert-sink &lt;FILE|URL&gt;
+  *                    With --alerts, the file to append alerts to, one
+  *                    JSON object per line, or the http: URL to post
+  *                    them to; required with --alerts.
+  * -b,--batch         The data file holds one JSON data object per line;
+  *                    one probability is displayed per line.
+  * -c,--codes &lt;FILE&gt;  Rules mapping clinical codes to diseases and
+  *                    medication groups, instead of the bundled
+  *                    defaults, see {@link PRMCodeMapping}. With
+  *                    --verbose, batches report unmapped codes.
+  * -C,--compare &lt;FILES&gt;
+  *                    With --batch, also scores each patient under the
+  *                    given comma separated candidate model files, in
+  *                    the same pass, see {@link PRMModelSet}. One CSV
+  *                    line of probabilities is output per patient,
+  *                    followed by a JSON report of the differences and
+  *                    rank changes against the current model, see
+  *                    {@link PRMModelComparison} (on the standard error
+  *                    unless --output is given).
+  * -d,--data &lt;FILE&gt;   Data input file.
+  * -D,--drift-reference &lt;FILE&gt;
+  *                    With --batch, writes the distribution of the
+  *                    batch profiles and probabilities to the given
+  *                    file, as the reference of a
+  *                    {@link PRMDriftMonitor}.
+  * -e,--evaluate &lt;THRESHOLDS&gt;
+  *                    The data file holds one JSON data object per line,
+  *                    each with a "Hospitalised" outcome of true or
+  *                    false; outputs a JSON report of the AUC, Brier
+  *                    score, calibration in the large, and precision
+  *                    and recall at the given comma separated
+  *                    probability thresholds, see {@link PRMEvaluation}.
+  * -f,--fit &lt;FILE&gt;    The data file holds one JSON data object per line,
+  *                    each with a "Hospitalised" outcome of true or
+  *                    false; refits the coefficients to it, see
+  *                    {@link PRMModelFitter}, and writes the model to
+  *                    the given file, versioned with its name.
+  * -g,--goal &lt;PROBABILITY&gt;
+  *                    Also displays the cheapest sets of changes to the
+  *                    data object that bring its probability to at most
+  *                    the given one, see {@link PRMCounterfactualSearch};
+  *                    not with --batch or --incremental.
+  * -G,--change-costs &lt;FILE&gt;
+  *                    With --goal, the cost weights of the changes and
+  *                    the fields and medications that may not change,
+  *                    instead of equal weights for all.
+  * -h,--help          Print this help message.
+  * -k,--worker &lt;HOST:PORT&gt;
+  *                    With --batch, scores the splits of the data file
+  *                    handed out by the coordinator at the given
+  *                    address, see {@link PRMWorker}, instead of the
+  *                    whole file; the data file must be at the same path
+  *                    as on the coordinator, and PRM_WORKER_TOKEN set
+  *                    to its token.
+  * -i,--incremental   The data file, or each file of the data directory,
+  *                    holds one JSON patient event per line, see
+  *                    {@link PRMPatientStates}; outputs one JSON line
+  *                    each time a patient's probability changes.
+  * -l,--lab-thresholds &lt;FILE&gt;
+  *                    Cut-points for raw PathologyValues, instead of the
+  *                    bundled defaults, see {@link PRMLabThresholds}.
+  * -m,--marginalize   Also displays the probability distribution when
+  *                    missing fields take their population prevalence
+  *                    values, given by --prevalences; not with
+  *                    --incremental. In batches, each line holds the
+  *                    probability, any percentile and tier, then the
+  *                    mean, the 5, 25, 50, 75 and 95% quantiles and
+  *                    the ends of the 90% interval, see
+  *                    {@link PRMMarginalBatch}.
+  * -M,--model &lt;FILE&gt;  Coefficient model file to calculate with, e.g. one
+  *                    written by --fit, instead of the national
+  *                    coefficients. With --fit, the starting point.
+  * -P,--port &lt;[HOST:]PORT&gt;
+  *                    With --batch, coordinates workers as --workers
+  *                    does, accepting them on the given port of the
+  *                    given interface, default the loopback one, so
+  *                    that workers started with --worker can join, e.g.
+  *                    0.0.0.0:PORT for other hosts. Workers must present
+  *                    the token in PRM_WORKER_TOKEN, which must be set
+  *                    unless the interface is the loopback one.
+  * -p,--prevalences &lt;FILE&gt;
+  *                    Prevalence weights of field values, see
+  *                    {@link PRMMissingDataMarginalizer}, required by
+  *                    --marginalize.
+  * -o,--output &lt;FILE&gt; Batch output file, instead of the standard output.
+  * -r,--reference &lt;FILE&gt;
+  *                    Reference population written by
+  *                    --build-reference, see
+  *                    {@link PRMReferencePopulation}; the percentile
+  *                    rank and risk tier of each probability are also
+  *                    displayed, comma separated in batches.
+  * -R,--build-reference &lt;FILE&gt;
+  *                    With --batch, writes the distribution of the
+  *                    batch probabilities to the given file, as a
+  *                    reference population.
+  * -S,--scores &lt;FILE&gt; Stores the latest probability of each numeric
+  *                    PatientId in the given score store file, see
+  *                    {@link PRMScoreStore}, adding to any scores it
+  *                    holds; not with --years, --compare, --fit or
+  *                    --evaluate. With --watch, the file is
+  *                    written every minute.
+  * -t,--threads &lt;N&gt;   Number of batch threads, default all processors.
+  * -T,--tiers &lt;PERCENTILES&gt;
+  *                    With --reference, the comma separated percentile
+  *                    bands between risk tiers, default 50,80,95.
+  * -v,--verbose       Displays summary information about inputs.
+  * -W,--workers &lt;N&gt;   With --batch, cuts the data file into byte range
+  *                    splits scored by the given number of worker
+  *                    processes started on this host, see
+  *                    {@link PRMCoordinator}, and merges their output
+  *                    and aggregates; the output is the same as without.
+  *                    Workers are given the model, codes, cut-points,
+  *                    postcodes and reference options, and --threads,
+  *                    by default all processors shared between them.
+  *                    Progress is reported on the standard error.
+  * -w,--watch         With --incremental, keeps following the data for
+  *                    new events until interrupted.
+  * -x,--export &lt;FILE&gt; With --batch, writes the patient identifier,
+  *                    probability, linear predictor and model version
+  *                    of each patient to the given Parquet file instead,
+  *                    see {@link PRMParquetWriter}.
+  * -X,--export-features
+  *                    With --export, also writes the features of each
+  *                    profile.
+  * -y,--years &lt;YEARS&gt; With --batch, projects the probabilities the given
+  *                    comma separated numbers of years ahead, see
+  *                    {@link PRMAgeProjection}. One CSV line is output
+  *                    per patient, followed by a summary per horizon
+  *                    (on the standard error unless --output is given).
+  * -z,--postcodes &lt;FILE&gt;
+  *                    CSV file of postcode and IRSAD decile pairs, used
+  *                    for data objects with a Postcode.
+  * </pre>
+  * The data file should be a file in JSON format, that looks as follows:
+  * <pre>
+  *
+  * {
+  *    "Age": "44",
+  *    "IsFemale": "true",
+  *    "Ethnicity": "NON_ATSI",
+  *    "BMICategory": "BMI_7_TO_25",
+  *    "SmokingStatus": "NON_SMOKER",
+  *    "AlcoholStatus": "NON_DRINKER",
+  *    "IRSADDecile": "TEN",
+  *    "MedicationGroups": [
+  *        "STATINS",
+  *        "ANTI_COAGULANTS",
+  *        "ANTI_DEPRESSANTS",
+  *        "ANTI_PSYCHOTICS",
+  *        "ANTI_INFLAMMATORY",
+  *        "STEROIDS"
+  *    ],
+  *    "Diseases": [
+  *        "ASTHMA",
+  *        "COPD",
+  *        "CHRONIC_KIDNEY",
+  *        "CORONARY_HEART",
+  *        "STROKE",
+  *        "TRANSIENT_ISCHAEMIC_ATTACK",
+  *        "ATRIAL_FIBR",
+  *        "CONG_HEART_FAILURE",
+  *        "DIABETES_TYPE_1",
+  *        "DIABETES_TYPE_2",
+  *        "VENOUS_THROMBO",
+  *        "OSTEOARTHRITIS",
+  *        "DEPRESSION",
+  *        "ANXIETY",
+  *        "BIPOLAR",
+  *        "SCHIZOPHRENIA",
+  *        "CANCER",
+  *        "DEMENTIA",
+  *        "EPILEPSY",
+  *        "CROHNS",
+  *        "ULCER_COLITIS",
+  *        "COELIAC",
+  *        "STEATORRHEA",
+  *        "MALABSORP_SYNDR",
+  *        "CHRONIC_LIVER",
+  *        "PANCREATITIS",
+  *        "HYPERTENSION",
+  *        "OSTEOPOROSIS",
+  *        "RHEUMATOID",
+  *        "HYPERLIPIDAEMIA",
+  *        "HYPERCHOLESTEROLAEMIA",
+  *        "HYPERTRIGLYCERIDAEMIA",
+  *        "RHEUMATIC_HEART"
+  *    ],
+  *    "Pathology": {
+  *        "HaemoglobinCategory": "LOW",
+  *        "PlateletsCategory": "LOW",
+  *        "AlanineAminotransferaseCategory": "LOW",
+  *        "GammaGTCategory": "LOW",
+  *        "HbA1cCategory": "LOW",
+  *        "BilirubinCategory": "LOW",
+  *        "CholesterolCategory": "MED",
+  *        "CreatinineCategory": "LOW",
+  *        "TriglyceridesCategory": "LOW",
+  *        "AlbuminCreatinineRatioCategory": "NO_TEST_HISTORY",
+  *        "LDLCategory": "HIGH",
+  *        "EGFRCategory": "LOW",
+  *        "BloodPressureCategory": "LOW"
+  *    }
+  * }
+  * </pre>
+  * In batch files, each line holds such an object on a single line, which
+  * may also have a <code>PatientId</code>.
+  * <p>
+  * <code>Age</code> should be a floating point number &gt; 0.
+  * <p>
+  * <code>IsFemale</code> should true or false.
+  * <p>
+  * <code>Ehnicity</code> should be one of the
+  *           values in {@link com.filA3.prm.HCHRiskStratificationPRMData.Ethnicity}.
+  * <p>
+  * <code>BMICategory</code> should be one of the
+  *           values in {@link com.filA3.prm.HCHRiskStratificationPRMData.BMICategory}.
+  * <p>
+  * <code>SmokingStatus</code> should be one of the
+  *           values in {@link com.filA3.prm.HCHRiskStratificationPRMData.SmokingStatus}.
+  * <p>
+  * <code>AlcoholStatus</code> should be one of the
+  *           values in {@link com.filA3.prm.HCHRiskStratificationPRMData.AlcoholStatus}.
+  * <p>
+  * <code>IRSADDecile</code> should be one of the
+  *           values in {@link com.filA3.prm.HCHRiskStratificationPRMData.IRSADDecile}.
+  * <p>
+  * <code>MedicationGroups</code> should be an array of the
+  *         values in {@link com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup}.
+  * The array may be empty.
+  * <p>
+  * <code>Diseases</code> should be an array of the
+  *           values in {@link com.filA3.prm.HCHRiskStratificationPRMData.Disease}.
+  * The array may be empty.
+  * <p>
+  * <code>Pathology</code> should be a list of type/category pairs. The type
+  * is one of the values in:
+  * <pre>
+  * HaemoglobinCategory,
+  * PlateletsCategory,
+  * AlanineAminotransferaseCategory,
+  * GammaGTCategory,
+  * HbA1cCategory",
+  * BilirubinCategory,
+  * CholesterolCategory,
+  * CreatinineCategory,
+  * TriglyceridesCategory,
+  * AlbuminCreatinineRatioCategory,
+  * LDLCategory,
+  * EGFRCategory,
+  * BloodPressureCategory</pre>
+  * And the category is one of the
+  *     values in {@link com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory}.
+  * <p>
+  * Instead, or as well, <code>PathologyValues</code> may hold raw results,
+  * e.g. <code>{"Haemoglobin": 128, "SystolicBP": 145}</code>, which are
+  * binned into categories with the cut-points of
+  * {@link PRMLabThresholds}, and take precedence over
+  * <code>Pathology</code>.
+  * <p>
+  * <code>DiagnosisCodes</code> and <code>MedicationCodes</code> may hold
+  * lists of ICD-10, SNOMED or ATC codes, which are mapped to diseases and
+  * medication groups with the rules of {@link PRMCodeMapping}, in
+  * addition to any given by name.
+  * <p>
+  * Instead of <code>IRSADDecile</code>, a <code>Postcode</code> may be
+  * given, which is mapped to the decile with the table given with
+  * --postcodes, see {@link PRMPostcodeDeciles}.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRM
+{
+    /**
+      * A scored patient of a batch.
+      */
+    private static final class Scored
+    {
+	/** The patient identifier */
+	private final String patientId;
+	/** The data */
+	private final HCHRiskStratificationPRMData data;
+	/** The probability */
+	private final double probability;
+	/** The linear predictor */
+	private final double linearPredictor;
+
+	/**
+	  * Constructor.
+	  */
+	private Scored(String patientId, HCHRiskStratificationPRMData data,
+		double probability, double linearPredictor)
+	{
+	    this.patientId = patientId;
+	    this.data = data;
+	    this.probability = probability;
+	    this.linearPredictor = linearPredictor;
+	}
+    }
+
+    // Constants
+    private static final String PROGRAM_NAME = "prm";
+    private static final String PROGRAM_DESC
+	= "Calculates Health Care Homes hospitalisation probability.";
+
+    // Variables
+    private static String filename = null;
+    private static boolean verbose = false;
+    private static boolean marginalize = false;
+    private static String prevalencesFilename = null;
+    private static Double goal = null;
+    private static String costsFilename = null;
+    private static boolean batch = false;
+    private static boolean incremental = false;
+    private static boolean watch = false;
+    private static String outputFilename = null;
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static double[] years = null;
+    private static PRMModelSet models = null;
+    private static String exportFilename = null;
+    private static boolean exportFeatures = false;
+    private static String fitFilename = null;
+    private static double[] evaluationThresholds = null;
+    private static double[] alertCutOffs = null;
+    private static String alertSink = null;
+    private static PRMAlerts alerts = null;
+    private static String scoresFilename = null;
+    private static PRMScoreStore scores = null;
+    private static String referenceFilename = null;
+    private static String driftFilename = null;
+    private static int workers = 0;
+    private static String coordinatorHost = null;
+    private static int coordinatorPort = -1;
+    private static String coordinatorAddress = null;
+    private static List<String> workerArguments = new ArrayList<>();
+    private static PRMReferencePopulation reference = null;
+    private static HCHRiskStratificationPRMScoreCalculator scorer
+	= HCHRiskStratificationPRMScoreCalculator.getInstance();
+    private static Options options = null;
+
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRM()
+    {
+    }
+
+    /**
+      * Convenience function for help without error text.
+      *
+      * Takes an exitValue, so after displaying help, exits with that value.
+      *
+      * @param exitValue value to exit with
+      */
+    private static void help(int exitValue)
+    {
+	help(exitValue, null);
+    }
+
+    /**
+      * Displays command line help. If errorText is not null, errorText
+      * is shown before the help.
+      *
+      * @param exitValue value to exit with
+      * @param errorText error text to display before help.
+      *                  Use null if no error text
+      *
+      */
+    private static void help(int exitValue, String errorText)
+    {
+	HelpFormatter formatter = new HelpFormatter();
+	if (errorText != null) {
+	    formatter.setSyntaxPrefix(errorText + "\n"
+		    + formatter.getSyntaxPrefix());
+	}
+	formatter.printHelp(PROGRAM_NAME, "\n" + PROGRAM_DESC + "\n\n"
+	    + "Options:", options, "", true);
+	System.exit(exitValue);
+    }
+
+    // Main entry point
+    /**
+      * The main entry point.
+      * Command line options are required.  See class description.
+      * <p>
+      * Displays the calculated value.
+      *
+      * @param args command line arguments
+      */
+    public static void main(String[] args)
+    {
+	// Create the command line parser
+	CommandLineParser parser = new DefaultParser();
+
+	// Create the Options
+	options = new Options();
+	// Help
+	options.addOption( "h", "help", false, "Print this help message.");
+	// Verbose
+	options.addOption( "v", "verbose", false,
+			    "Displays summary information about inputs.");
+	// Marginalize over missing fields
+	options.addOption( "m", "marginalize", false,
+		"Also displays the probability distribution when missing"
+		+ " fields take their population prevalence values, given by"
+		+ " --prevalences.");
+	// Counterfactual changes
+	Option goalProbability = new Option("g", "goal", true,
+		"Also displays the cheapest sets of changes that bring the"
+		+ " probability to at most the given one.");
+	goalProbability.setArgName("PROBABILITY");
+	options.addOption(goalProbability);
+	Option costsFile = new Option("G", "change-costs", true,
+		"Cost weights of the changes, and fields and medications"
+		+ " that may not change, for --goal.");
+	costsFile.setArgName("FILE");
+	options.addOption(costsFile);
+	// Prevalences of field values
+	Option prevalencesFile = new Option("p", "prevalences", true,
+		"Prevalence weights of field values.");
+	prevalencesFile.setArgName("FILE");
+	options.addOption(prevalencesFile);
+	// Batch
+	options.addOption( "b", "batch", false,
+		"The data file holds one JSON data object per line.");
+	// Incremental events
+	options.addOption( "i", "incremental", false,
+		"The data file or directory holds one JSON patient event per"
+		+ " line; outputs each change of probability.");
+	options.addOption( "w", "watch", false,
+		"Keeps following the incremental data for new events.");
+	// Batch output
+	Option outputFile = new Option("o", "output", true,
+		"Batch output file.");
+	outputFile.setArgName("FILE");
+	options.addOption(outputFile);
+	// Batch threads
+	Option threadCount = new Option("t", "threads", true,
+		"Number of batch threads.");
+	threadCount.setArgName("N");
+	options.addOption(threadCount);
+	// Distributed batches
+	Option workerCount = new Option("W", "workers", true,
+		"Scores the batch with the given number of worker processes.");
+	workerCount.setArgName("N");
+	options.addOption(workerCount);
+	Option port = new Option("P", "port", true,
+		"Interface and port on which to accept batch workers.");
+	port.setArgName("[HOST:]PORT");
+	options.addOption(port);
+	Option worker = new Option("k", "worker", true,
+		"Scores batch splits for the coordinator at the given address.");
+	worker.setArgName("HOST:PORT");
+	options.addOption(worker);
+	// Age projection
+	Option projectionYears = new Option("y", "years", true,
+		"Projects batch probabilities the given comma separated"
+		+ " numbers of years ahead.");
+	projectionYears.setArgName("YEARS");
+	options.addOption(projectionYears);
+	// Columnar export
+	Option exportFile = new Option("x", "export", true,
+		"Writes the batch results to the given Parquet file.");
+	exportFile.setArgName("FILE");
+	options.addOption(exportFile);
+	options.addOption("X", "export-features", false,
+		"Also exports the features of each profile.");
+	// Evaluate against outcomes
+	Option evaluate = new Option("e", "evaluate", true,
+		"Evaluates against labelled batch data, with precision and"
+		+ " recall at the given comma separated thresholds.");
+	evaluate.setArgName("THRESHOLDS");
+	options.addOption(evaluate);
+	// Alerts on crossing cut-offs
+	Option alertCutOffsList = new Option("a", "alerts", true,
+		"Raises an alert for each patient whose probability moves"
+		+ " across the given comma separated cut-offs.");
+	alertCutOffsList.setArgName("CUT-OFFS");
+	options.addOption(alertCutOffsList);
+	Option alertSinkName = new Option("A", "alert-sink", true,
+		"File to append alerts to, or http: URL to post them to.");
+	alertSinkName.setArgName("FILE|URL");
+	options.addOption(alertSinkName);
+	// Reference population
+	Option referenceFile = new Option("r", "reference", true,
+		"Reference population, to display percentile ranks and risk"
+		+ " tiers.");
+	referenceFile.setArgName("FILE");
+	options.addOption(referenceFile);
+	Option buildReferenceFile = new Option("R", "build-reference", true,
+		"Writes the distribution of the batch probabilities as a"
+		+ " reference population.");
+	buildReferenceFile.setArgName("FILE");
+	options.addOption(buildReferenceFile);
+	Option driftFile = new Option("D", "drift-reference", true,
+		"Writes the distribution of the batch profiles and"
+		+ " probabilities as a drift reference.");
+	driftFile.setArgName("FILE");
+	options.addOption(driftFile);
+	Option tierBands = new Option("T", "tiers", true,
+		"Comma separated percentile bands between risk tiers.");
+	tierBands.setArgName("PERCENTILES");
+	options.addOption(tierBands);
+	// Score store
+	Option scoresFile = new Option("S", "scores", true,
+		"Score store file of the latest probability of each patient.");
+	scoresFile.setArgName("FILE");
+	options.addOption(scoresFile);
+	// Cut-points of raw pathology values
+	Option labThresholdsFile = new Option("l", "lab-thresholds", true,
+		"Cut-points for raw pathology values.");
+	labThresholdsFile.setArgName("FILE");
+	options.addOption(labThresholdsFile);
+	// Clinical code mapping
+	Option codesFile = new Option("c", "codes", true,
+		"Rules mapping clinical codes to diseases and medication"
+		+ " groups.");
+	codesFile.setArgName("FILE");
+	options.addOption(codesFile);
+	// Postcode deciles
+	Option postcodesFile = new Option("z", "postcodes", true,
+		"CSV file of postcode and IRSAD decile pairs.");
+	postcodesFile.setArgName("FILE");
+	options.addOption(postcodesFile);
+	// Refit the coefficients
+	Option fitFile = new Option("f", "fit", true,
+		"Refits the coefficients to labelled batch data and writes"
+		+ " the model to the given file.");
+	fitFile.setArgName("FILE");
+	options.addOption(fitFile);
+	// Coefficient model
+	Option modelFile = new Option("M", "model", true,
+		"Coefficient model file, instead of the national"
+		+ " coefficients.");
+	modelFile.setArgName("FILE");
+	options.addOption(modelFile);
+	// Candidate models
+	Option compareFiles = new Option("C", "compare", true,
+		"Also scores batch data under the given comma separated"
+		+ " model files, and compares their rankings.");
+	compareFiles.setArgName("FILES");
+	options.addOption(compareFiles);
+	// Main data file (required)
+	Option inputFile = new Option("d", "data", true, "Data input file.");
+	inputFile.setRequired(true);
+	inputFile.setArgName("FILE");
+	options.addOption(inputFile);
+
+	// Parse the command line
+	try {
+	    CommandLine line = parser.parse(options, args);
+	    if (line.hasOption("h")) { // Show help
+		help(0);
+	    }
+	    if (line.hasOption("v")) { //Verbose info display
+		verbose = true;
+	    }
+	    if (line.hasOption("m")) { // Marginalize over missing fields
+		marginalize = true;
+	    }
+	    if (line.hasOption("g")) { // Counterfactual changes
+		goal = Double.parseDouble(line.getOptionValue("g"));
+		costsFilename = line.getOptionValue("G");
+	    }
+	    if (line.hasOption("p")) { // Prevalences of field values
+		prevalencesFilename = line.getOptionValue("p");
+	    }
+	    if (line.hasOption("b")) { // Batch
+		batch = true;
+	    }
+	    if (line.hasOption("i")) { // Incremental events
+		incremental = true;
+	    }
+	    if (line.hasOption("w")) { // Follow new events
+		watch = true;
+	    }
+	    if (line.hasOption("o")) { // Batch output
+		outputFilename = line.getOptionValue("o");
+	    }
+	    if (line.hasOption("t")) { // Batch threads
+		threads = Integer.parseInt(line.getOptionValue("t"));
+	    }
+	    if (line.hasOption("W") || line.hasOption("P")) { // Coordinator
+		workers = line.hasOption("W")
+		    ? Integer.parseInt(line.getOptionValue("W")) : 0;
+		String listen = line.getOptionValue("P", "0");
+		int colon = listen.lastIndexOf(':');
+		coordinatorHost = colon < 0 ? null : listen.substring(0, colon);
+		coordinatorPort = Integer.parseInt(listen.substring(colon + 1));
+		workerArguments.add("-b");
+		workerArguments.add("-d");
+		workerArguments.add(line.getOptionValue("d"));
+		for (String name : new String[] {"M", "c", "l", "z", "r", "T"}) {
+		    if (line.hasOption(name)) {
+			workerArguments.add("-" + name);
+			workerArguments.add(line.getOptionValue(name));
+		    }
+		}
+		workerArguments.add("-t");
+		workerArguments.add(Integer.toString(line.hasOption("t") ? threads
+			    : Math.max(1, threads / Math.max(1, workers))));
+	    }
+	    if (line.hasOption("k")) { // Worker
+		coordinatorAddress = line.getOptionValue("k");
+	    }
+	    if (line.hasOption("y")) { // Age projection
+		years = numbers(line.getOptionValue("y"));
+	    }
+	    if (line.hasOption("x")) { // Columnar export
+		exportFilename = line.getOptionValue("x");
+		exportFeatures = line.hasOption("X");
+	    }
+	    if (line.hasOption("e")) { // Evaluate against outcomes
+		evaluationThresholds = numbers(line.getOptionValue("e"));
+	    }
+	    if (line.hasOption("a")) { // Alerts on crossing cut-offs
+		alertCutOffs = numbers(line.getOptionValue("a"));
+		alertSink = line.getOptionValue("A");
+		if (alertSink == null) {
+		    help(1, "--alerts requires --alert-sink.");
+		}
+	    }
+	    if (line.hasOption("r")) { // Reference population
+		String referenceName = line.getOptionValue("r");
+		try (InputStream in = new BufferedInputStream(
+			    new FileInputStream(referenceName))) {
+		    reference = PRMReferencePopulation.read(in);
+		    if (line.hasOption("T")) {
+			reference = reference.withBands(
+				numbers(line.getOptionValue("T")));
+		    }
+		} catch (IOException | IllegalArgumentException e) {
+		    help(1, "Invalid reference file '" + referenceName + "': "
+			    + e);
+		}
+	    }
+	    if (line.hasOption("R")) { // Build a reference population
+		referenceFilename = line.getOptionValue("R");
+	    }
+	    if (line.hasOption("D")) { // Build a drift reference
+		driftFilename = line.getOptionValue("D");
+	    }
+	    if (line.hasOption("S")) { // Score store
+		scoresFilename = line.getOptionValue("S");
+	    }
+	    if (line.hasOption("f")) { // Refit the coefficients
+		fitFilename = line.getOptionValue("f");
+	    }
+	    if (line.hasOption("l")) { // Cut-points of raw pathology values
+		String labThresholdsFilename = line.getOptionValue("l");
+		try (FileReader reader = new FileReader(labThresholdsFilename)) {
+		    PRMLabThresholds.setInstance(PRMLabThresholds.read(reader));
+		} catch (Exception e) {
+		    help(1, "Invalid cut-points file '" + labThresholdsFilename
+			    + "': " + e);
+		}
+	    }
+	    if (line.hasOption("c")) { // Clinical code mapping
+		String codesFilename = line.getOptionValue("c");
+		try (FileReader reader = new FileReader(codesFilename)) {
+		    PRMCodeMapping.setInstance(PRMCodeMapping.read(reader));
+		} catch (Exception e) {
+		    help(1, "Invalid codes file '" + codesFilename + "': " + e);
+		}
+	    }
+	    if (line.hasOption("z")) { // Postcode deciles
+		String postcodesFilename = line.getOptionValue("z");
+		try (FileReader reader = new FileReader(postcodesFilename)) {
+		    PRMPostcodeDeciles.setInstance(
+			    PRMPostcodeDeciles.read(reader));
+		} catch (Exception e) {
+		    help(1, "Invalid postcodes file '" + postcodesFilename
+			    + "': " + e);
+		}
+	    }
+	    if (line.hasOption("M")) { // Coefficient model
+		String modelFilename = line.getOptionValue("M");
+		try (FileReader reader = new FileReader(modelFilename)) {
+		    scorer = PRMModelCalculator.read(reader);
+		} catch (Exception e) {
+		    help(1, "Invalid model file '" + modelFilename + "': " + e);
+		}
+	    }
+	    if (line.hasOption("C")) { // Candidate models
+		List<PRMModel> candidates = new ArrayList<>();
+		candidates.add(scorer.getModel());
+		for (String modelFilename
+			 : line.getOptionValue("C").split(",")) {
+		    try (FileReader reader = new FileReader(modelFilename)) {
+			candidates.add(PRMModel.read(reader));
+		    } catch (Exception e) {
+			help(1, "Invalid model file '" + modelFilename + "': "
+				+ e);
+		    }
+		}
+		models = new PRMModelSet(
+			candidates.toArray(new PRMModel[0]));
+	    }
+	    if (line.hasOption("d")) { // Main data file (required)
+		filename = line.getOptionValue("d");
+	    }
+	}
+	catch (ParseException | NumberFormatException exp) // Show help
+	{
+	    help(1);
+	}
+
+	if (alertCutOffs != null) {
+	    try {
+		alerts = new PRMAlerts(PRMAlerts.sink(alertSink),
+			alertCutOffs);
+	    } catch (Exception e) {
+		help(1, "Invalid alerts: " + e);
+	    }
+	}
+
+	if (marginalize && (incremental || years != null || models != null)) {
+	    help(1, "--marginalize only applies to a single data object or"
+		    + " a batch, without --incremental, --years or --compare.");
+	}
+
+	if ((alertCutOffs != null || scoresFilename != null)
+		&& (years != null || models != null || fitFilename != null
+		    || evaluationThresholds != null)) {
+	    help(1, "--alerts and --scores only record current"
+		    + " probabilities, without --years, --compare, --fit or"
+		    + " --evaluate.");
+	}
+
+	if (goal != null && (batch || incremental)) {
+	    help(1, "--goal only applies to a single data object,"
+		    + " without --batch or --incremental.");
+	}
+
+	if (marginalize && prevalencesFilename == null) {
+	    help(1, "--marginalize needs the population prevalences of the"
+		    + " field values, see --prevalences.");
+	}
+
+	if ((workers > 0 || coordinatorPort >= 0 || coordinatorAddress != null)
+		&& (years != null || models != null || exportFilename != null
+		    || alertCutOffs != null || scoresFilename != null
+		    || marginalize)) {
+	    help(1, "Workers only score plain batches, without --years,"
+		    + " --compare, --export, --alerts, --scores or"
+		    + " --marginalize.");
+	}
+
+	if (exportFilename != null && (years != null || models != null
+		    || referenceFilename != null || driftFilename != null
+		    || marginalize)) {
+	    help(1, "--export only writes the scores, without --years,"
+		    + " --compare, --build-reference, --drift-reference or"
+		    + " --marginalize.");
+	}
+
+	if (scoresFilename != null) {
+	    try {
+		Path path = Paths.get(scoresFilename);
+		scores = Files.exists(path) ? PRMScoreStore.read(path)
+		    : new PRMScoreStore();
+	    } catch (Exception e) {
+		help(1, "Invalid scores file '" + scoresFilename + "': " + e);
+	    }
+	    if (alerts != null) {
+		alerts.setScores(scores);
+	    }
+	}
+
+	// Now do the calculation
+	if (filename != null && (fitFilename != null
+		    || evaluationThresholds != null)) {
+	    try {
+		if (fitFilename != null) {
+		    fit();
+		} else {
+		    evaluate();
+		}
+	    } catch (FileNotFoundException e) { // File not found
+		help(1, "File '" + filename + "' not found.");
+	    } catch (Exception e) { // Some error so display and exit
+		System.err.println("Error: " + e);
+		System.exit(1);
+	    }
+	} else if (filename != null && incremental) {
+	    try {
+		events();
+	    } catch (Exception e) { // Some error so display and exit
+		System.err.println("Error: " + e);
+		System.exit(1);
+	    }
+	} else if (filename != null && batch && coordinatorAddress != null) {
+	    try {
+		String token = System.getenv(PRMCoordinator.TOKEN_VARIABLE);
+		if (token == null || token.isEmpty()) {
+		    throw new IOException(PRMCoordinator.TOKEN_VARIABLE
+			    + " is not set to the token of the coordinator");
+		}
+		new PRMWorker(scorer, reference, threads).run(Paths.get(filename),
+			coordinatorAddress, token);
+	    } catch (Exception e) { // Some error so display and exit
+		System.err.println("Error: " + e);
+		System.exit(1);
+	    }
+	} else if (filename != null && batch) {
+	    try {
+		batch();
+	    } catch (FileNotFoundException e) { // File not found
+		help(1, "File '" + filename + "' not found.");
+	    } catch (Exception e) { // Some error so display and exit
+		System.err.println("Error: " + e);
+		System.exit(1);
+	    }
+	} else if (filename != null) {
+	    try { // Parse the JSON file
+		JSONParser jsonparser = new JSONParser();
+		Object obj;
+		try (FileReader reader = new FileReader(filename)) {
+		    obj = jsonparser.parse(reader);
+		}
+		JSONObject jsonObject = (JSONObject) obj;
+		PRMCalculator calculator = new PRMCalculator(jsonObject);
+		calculator.parse();
+		double score = score(calculator);
+		if (verbose) { // Additional info before calculation
+		    System.out.println(calculator.displayData());
+		}
+		System.out.println(score);
+		if (reference != null) { // Rank in the reference population
+		    double percentile = reference.getPercentile(score);
+		    System.out.println("Percentile: " + percentile
+			    + ", tier: " + reference.getTier(percentile));
+		}
+		if (marginalize) { // Distribution over missing fields
+		    System.out.println(marginalizer().calculate(
+				calculator.getData()));
+		}
+		if (goal != null) { // Changes that reach the goal
+		    PRMCounterfactualSearch search
+			= new PRMCounterfactualSearch(scorer);
+		    if (costsFilename != null) {
+			try (FileReader costs = new FileReader(costsFilename)) {
+			    search.loadCosts(costs);
+			} catch (FileNotFoundException e) {
+			    help(1, "File '" + costsFilename + "' not found.");
+			}
+		    }
+		    List<PRMCounterfactualSearch.ChangeSet> results
+			= search.search(calculator.getData(), goal, 5);
+		    if (results.isEmpty()) {
+			System.out.println("No changes reach " + goal);
+		    }
+		    for (PRMCounterfactualSearch.ChangeSet changes : results) {
+			System.out.println(changes);
+		    }
+		}
+		closeAlerts();
+		closeScores();
+	    } catch (FileNotFoundException e) { // File not found
+		help(1, "File '" + filename + "' not found.");
+	    } catch (Exception e) { // Some error so display and exit
+		System.err.println("Error: " + e);
+		System.exit(1);
+	    }
+	}
+    }
+
+    /**
+      * Calculates all the data objects of a batch file, and displays one
+      * probability per line, or one projection per line when years are
+      * given.
+      *
+      * @throws Exception if the calculation fails
+      */
+    private static void batch() throws Exception
+    {
+	PrintStream out = outputFilename != null
+	    ? new PrintStream(new BufferedOutputStream(
+			new FileOutputStream(outputFilename)), false, "UTF-8")
+	    : System.out;
+	try (BufferedReader reader = new BufferedReader(
+		    new FileReader(filename))) {
+	    if (years != null) { // Age projection
+		PRMAgeProjection projection
+		    = new PRMAgeProjection(scorer, years);
+		PRMAgeProjection.Summary summary = projection.newSummary();
+		projection.projectCohort(reader, out, summary, threads);
+		out.flush();
+		summary.write(out == System.out ? System.err : System.out);
+	    } else if (models != null) { // Candidate models
+		PRMModelComparison comparison
+		    = PRMModelComparison.compare(reader, models, threads, out);
+		out.flush();
+		(out == System.out ? System.err : System.out).println(
+			comparison.toJSON().toJSONString());
+	    } else if (exportFilename != null) { // Columnar export
+		export(reader);
+	    } else if (workers > 0 || coordinatorPort >= 0) { // Distributed
+		distribute(out);
+	    } else if (marginalize) { // Distributions over missing fields
+		marginalizeBatch(reader, out);
+	    } else {
+		PRMReferencePopulation.Builder cohort
+		    = referenceFilename != null
+			? new PRMReferencePopulation.Builder() : null;
+		PRMDriftMonitor drift = driftFilename != null
+		    ? new PRMDriftMonitor(PRMDriftMonitor.DEFAULT_WINDOW_MILLIS)
+		    : null;
+		new PRMBatch(threads).process(reader,
+			(lineNumber, line) -> {
+			    PRMCalculator parsed = PRMBatch.parseLine(line);
+			    double probability = score(parsed);
+			    if (drift != null) {
+				drift.record(parsed.getData(), probability);
+			    }
+			    return probability;
+			},
+			probability -> {
+			    if (cohort != null) {
+				cohort.add(probability);
+			    }
+			    if (reference == null) {
+				out.println(probability);
+				return;
+			    }
+			    double percentile
+				= reference.getPercentile(probability);
+			    out.println(probability + "," + percentile + ","
+				    + reference.getTier(percentile));
+			});
+		if (cohort != null) {
+		    try (OutputStream file = new BufferedOutputStream(
+				new FileOutputStream(referenceFilename))) {
+			cohort.build().write(file);
+		    }
+		}
+		if (drift != null) {
+		    try (OutputStream file = new BufferedOutputStream(
+				new FileOutputStream(driftFilename))) {
+			drift.getTotal().write(file);
+		    }
+		}
+	    }
+	    if (verbose) { // Codes that no rule maps
+		PRMCodeMapping mapping = PRMCodeMapping.getInstance();
+		System.err.println("Mapped codes: " + mapping.getMapped()
+			+ ", unmapped codes: " + mapping.getUnmapped() + " "
+			+ mapping.getUnmappedCodes());
+	    }
+	} finally {
+	    out.flush();
+	    if (out != System.out) {
+		out.close();
+	    }
+	    closeAlerts();
+	    closeScores();
+	}
+    }
+
+    /**
+      * Marginalizes the batch file over the missing fields of each
+      * patient, see {@link PRMMarginalBatch}, and writes one CSV line per
+      * patient, and the reference population and drift reference if
+      * requested.
+      *
+      * @param reader the batch file
+      * @param out where to write the output lines
+      *
+      * @throws Exception if the batch fails
+      */
+    private static void marginalizeBatch(BufferedReader reader,
+	    PrintStream out) throws Exception
+    {
+	PRMReferencePopulation.Builder cohort = referenceFilename != null
+	    ? new PRMReferencePopulation.Builder() : null;
+	PRMDriftMonitor drift = driftFilename != null
+	    ? new PRMDriftMonitor(PRMDriftMonitor.DEFAULT_WINDOW_MILLIS) : null;
+	PRMMarginalBatch.process(reader, marginalizer(), threads, patient -> {
+		double probability = scored(patient.getCalculator(),
+			patient.getProbability());
+		if (cohort != null) {
+		    cohort.add(probability);
+		}
+		if (drift != null) {
+		    drift.record(patient.getCalculator().getData(), probability);
+		}
+		String line = patient.toString();
+		if (reference != null) {
+		    double percentile = reference.getPercentile(probability);
+		    int comma = line.indexOf(',');
+		    line = line.substring(0, comma) + "," + percentile + ","
+			+ reference.getTier(percentile) + line.substring(comma);
+		}
+		out.println(line);
+	    });
+	if (cohort != null) {
+	    try (OutputStream file = new BufferedOutputStream(
+			new FileOutputStream(referenceFilename))) {
+		cohort.build().write(file);
+	    }
+	}
+	if (drift != null) {
+	    try (OutputStream file = new BufferedOutputStream(
+			new FileOutputStream(driftFilename))) {
+		drift.getTotal().write(file);
+	    }
+	}
+    }
+
+    /**
+      * Returns a marginalizer with the prevalences of --prevalences.
+      *
+      * @return the marginalizer
+      *
+      * @throws IOException if reading the prevalences fails
+      */
+    private static PRMMissingDataMarginalizer marginalizer()
+	throws IOException
+    {
+	PRMMissingDataMarginalizer marginalizer
+	    = new PRMMissingDataMarginalizer(scorer);
+	try (FileReader prevalences = new FileReader(prevalencesFilename)) {
+	    marginalizer.loadPrevalences(prevalences);
+	} catch (FileNotFoundException e) {
+	    help(1, "File '" + prevalencesFilename + "' not found.");
+	}
+	return marginalizer;
+    }
+
+    /**
+      * Scores the batch file with worker processes, see
+      * {@link PRMCoordinator}, and writes their merged output, the
+      * reference population and drift reference if requested, and a
+      * summary on the standard error.
+      *
+      * @param out where to write the output lines
+      *
+      * @throws Exception if the batch fails
+      */
+    private static void distribute(PrintStream out) throws Exception
+    {
+	long start = System.nanoTime();
+	InetAddress host = coordinatorHost == null
+	    ? InetAddress.getLoopbackAddress()
+	    : InetAddress.getByName(coordinatorHost);
+	String token = System.getenv(PRMCoordinator.TOKEN_VARIABLE);
+	if (token == null || token.isEmpty()) {
+	    if (!host.isLoopbackAddress()) {
+		throw new IOException(PRMCoordinator.TOKEN_VARIABLE
+			+ " must be set to a secret shared with the workers"
+			+ " to accept them on " + host.getHostAddress());
+	    }
+	    token = PRMCoordinator.newToken();
+	}
+	InetSocketAddress address = new InetSocketAddress(host,
+		Math.max(0, coordinatorPort));
+	// At least four splits per local worker, so that they finish together
+	long splitSize = Math.min(PRMCoordinator.DEFAULT_SPLIT_SIZE,
+		Math.max(1 << 20,
+		    Files.size(Paths.get(filename)) / (4 * Math.max(1, workers))));
+	try (PRMCoordinator coordinator = new PRMCoordinator(
+		    Paths.get(filename), splitSize, address, token)) {
+	    System.err.println("Coordinating " + coordinator.getSplits()
+		    + " splits on port " + coordinator.getPort());
+	    coordinator.spawn(workers, workerArguments);
+	    coordinator.await();
+	    PRMReferencePopulation.Builder cohort = referenceFilename != null
+		? new PRMReferencePopulation.Builder() : null;
+	    coordinator.merge(out, cohort);
+	    if (cohort != null) {
+		try (OutputStream file = new BufferedOutputStream(
+			    new FileOutputStream(referenceFilename))) {
+		    cohort.build().write(file);
+		}
+	    }
+	    if (driftFilename != null && coordinator.getDistribution() != null) {
+		try (OutputStream file = new BufferedOutputStream(
+			    new FileOutputStream(driftFilename))) {
+		    coordinator.getDistribution().write(file);
+		}
+	    }
+	    System.err.println("Scored " + coordinator.getLines()
+		    + " lines in " + coordinator.getSplits() + " splits with "
+		    + coordinator.getWorkers() + " workers, "
+		    + coordinator.getRetries() + " retries, mean probability "
+		    + coordinator.getMeanProbability() + ", "
+		    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+		    + " ms");
+	}
+    }
+
+    /**
+      * Calculates the probability of a parsed data object, and records it
+      * for alerts and in the score store when the line has a PatientId.
+      *
+      * @param calculator the parsed line
+      *
+      * @return the probability
+      */
+    private static double score(PRMCalculator calculator)
+    {
+	return scored(calculator,
+		scorer.calculatePRMScore(calculator.getData()));
+    }
+
+    /**
+      * Records the probability of a parsed data object for alerts and in
+      * the score store, as {@link #score} does.
+      *
+      * @param calculator the parsed data object
+      * @param probability its probability
+      *
+      * @return the probability
+      */
+    private static double scored(PRMCalculator calculator,
+	    double probability)
+    {
+	String patientId = calculator.getPatientId();
+	if (patientId != null && (alerts != null || scores != null)) {
+	    long now = System.currentTimeMillis();
+	    if (alerts != null) {
+		alerts.scored(patientId, probability, now);
+	    }
+	    if (scores != null) {
+		scores.put(patientId, probability,
+			scorer.getModel().getVersion(), now);
+	    }
+	}
+	return probability;
+    }
+
+    /**
+      * Delivers any waiting alerts, and displays the alert counts when
+      * verbose.
+      */
+    private static void closeAlerts()
+    {
+	if (alerts == null) {
+	    return;
+	}
+	alerts.close();
+	if (verbose) {
+	    System.err.println("Alerts raised: " + alerts.getRaised()
+		    + ", delivered: " + alerts.getDelivered()
+		    + ", dropped: " + alerts.getDropped()
+		    + ", failed: " + alerts.getFailed());
+	}
+    }
+
+    /**
+      * Writes and closes the score store, if any.
+      *
+      * @throws IOException if writing fails
+      */
+    private static void closeScores() throws IOException
+    {
+	if (scores == null) {
+	    return;
+	}
+	scores.close();
+	scores.snapshot(Paths.get(scoresFilename));
+	if (verbose) {
+	    System.err.println("Stored scores: " + scores.size());
+	}
+    }
+
+    /**
+      * Applies the events of the data file or directory, and outputs one
+      * JSON line for each change of a patient's probability.
+      *
+      * @throws Exception if reading fails
+      */
+    private static void events() throws Exception
+    {
+	PrintStream out = outputFilename != null
+	    ? new PrintStream(new BufferedOutputStream(
+			new FileOutputStream(outputFilename)), false, "UTF-8")
+	    : System.out;
+	PRMPatientStates states = new PRMPatientStates(scorer);
+	PRMEventStream stream = new PRMEventStream(states, update -> {
+		out.println(update.toJSON().toJSONString());
+		if (alerts != null) {
+		    alerts.scored(update.getPatientId(),
+			    update.getProbability(), update.getTimestamp());
+		}
+		if (scores != null) {
+		    scores.put(update.getPatientId(), update.getProbability(),
+			    update.getModelVersion(), update.getTimestamp());
+		}
+		if (watch) {
+		    out.flush();
+		}
+	    });
+	if (scores != null && watch) {
+	    scores.snapshotEvery(Paths.get(scoresFilename), 1,
+		    TimeUnit.MINUTES, System.err);
+	}
+	try {
+	    stream.process(Paths.get(filename), watch);
+	    if (verbose) {
+		System.err.println("Events: " + stream.getEvents()
+			+ ", invalid events: " + stream.getErrors()
+			+ ", patients: " + states.size());
+	    }
+	} finally {
+	    out.flush();
+	    if (out != System.out) {
+		out.close();
+	    }
+	    closeAlerts();
+	    closeScores();
+	}
+    }
+
+    /**
+      * Scores the batch file and writes the results to the export file.
+      * Patients without a "PatientId" are identified by line number.
+      *
+      * @param reader the batch file
+      *
+      * @throws Exception if reading, a calculation or writing fails
+      */
+    private static void export(BufferedReader reader) throws Exception
+    {
+	String version = scorer.getModel().getVersion();
+	try (PRMParquetWriter writer = new PRMParquetWriter(
+		    new BufferedOutputStream(
+			new FileOutputStream(exportFilename), 1 << 16),
+		    exportFeatures)) {
+	    new PRMBatch(threads).process(reader,
+		    (lineNumber, line) -> {
+			PRMCalculator parsed = PRMBatch.parseLine(line);
+			String id = parsed.getPatientId() != null
+			    ? parsed.getPatientId() : Long.toString(lineNumber);
+			double linearPredictor
+			    = scorer.calculatePRMLinearPredictor(
+				    parsed.getData());
+			return new Scored(id, parsed.getData(),
+				scored(parsed,
+				    scorer.calculatePRMScore(linearPredictor)),
+				linearPredictor);
+		    },
+		    row -> {
+			try {
+			    writer.write(row.patientId, row.probability,
+				    row.linearPredictor, version, row.data);
+			} catch (IOException e) {
+			    throw new UncheckedIOException(e);
+			}
+		    });
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	}
+    }
+
+    /**
+      * Refits the coefficients to the labelled batch file, and writes the
+      * model, versioned with the name of its file.
+      *
+      * @throws Exception if reading, fitting or writing fails
+      */
+    private static void fit() throws Exception
+    {
+	String version = new File(fitFilename).getName()
+	    .replaceFirst("\\.[^.]*$", "");
+	PRMModel model;
+	try (BufferedReader reader = new BufferedReader(
+		    new FileReader(filename))) {
+	    model = new PRMModelFitter().setThreads(threads)
+		.setLog(verbose ? System.err : null)
+		.fit(reader, scorer.getModel(), version);
+	}
+	try (Writer writer = new FileWriter(fitFilename)) {
+	    model.write(writer);
+	}
+    }
+
+    /**
+      * Evaluates the labelled batch file, and outputs the JSON report.
+      *
+      * @throws Exception if reading fails, or a line is invalid
+      */
+    private static void evaluate() throws Exception
+    {
+	PRMEvaluation evaluation;
+	try (BufferedReader reader = new BufferedReader(
+		    new FileReader(filename))) {
+	    evaluation = PRMEvaluation.evaluate(reader, scorer, threads,
+		    evaluationThresholds);
+	}
+	String report
+	    = evaluation.toJSON(scorer.getModel().getVersion()).toJSONString();
+	if (outputFilename != null) {
+	    try (Writer writer = new FileWriter(outputFilename)) {
+		writer.write(report);
+		writer.write(System.lineSeparator());
+	    }
+	} else {
+	    System.out.println(report);
+	}
+    }
+
+    /**
+      * Parses comma separated numbers.
+      *
+      * @param list the list
+      *
+      * @return the numbers
+      *
+      * @throws NumberFormatException if a number is invalid
+      */
+    private static double[] numbers(String list)
+    {
+	String[] values = list.split(",");
+	double[] numbers = new double[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    numbers[i] = Double.parseDouble(values[i].trim());
+	}
+	return numbers;
+    }
+}
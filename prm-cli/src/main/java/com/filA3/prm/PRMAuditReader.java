@@ -0,0 +1,104 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Scans an audit journal written by {@link PRMAuditJournal}, the
+  * directory of its segments or a single segment, and writes its score
+  * records as CSV lines: the time, the patient identifier, the model
+  * version, the probability and the profile encoded with
+  * {@link PRMDataCodec}, in hexadecimal. The records may be restricted to
+  * one patient. Usage:
+  * <pre>
+  * java -cp ... com.filA3.prm.PRMAuditReader &lt;DIR|FILE&gt; [PATIENT-ID]
+  * </pre>
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMAuditReader
+{
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRMAuditReader()
+    {
+    }
+
+    /**
+      * Writes the records of a journal.
+      *
+      * @param path the directory of the journal, or a single segment
+      * @param patientId the patient whose records are written, or null
+      *                  for all
+      * @param out where to write
+      *
+      * @return the number of records written
+      *
+      * @throws IOException if reading fails
+      */
+    public static long dump(@Nonnull Path path, String patientId,
+	    @Nonnull PrintStream out)
+	throws IOException
+    {
+	out.println("Time,PatientId,ModelVersion,Probability,Profile");
+	long[] count = new long[1];
+	PRMAuditJournal.read(path, record -> {
+		if (patientId != null
+			&& !patientId.equals(record.getPatientId())) {
+		    return;
+		}
+		String line = record.toString();
+		out.print(Instant.ofEpochMilli(record.getTime()));
+		out.println(line.substring(line.indexOf(',')));
+		count[0]++;
+	    });
+	return count[0];
+    }
+
+    /**
+      * The main entry point. See class description.
+      *
+      * @param args command line arguments
+      */
+    public static void main(String[] args)
+    {
+	if (args.length < 1 || args.length > 2) {
+	    System.err.println(
+		    "usage: PRMAuditReader <DIR|FILE> [PATIENT-ID]");
+	    System.exit(1);
+	}
+	PrintStream out = new PrintStream(
+		new BufferedOutputStream(System.out), false);
+	try {
+	    dump(Paths.get(args[0]), args.length > 1 ? args[1] : null, out);
+	    out.flush();
+	} catch (IOException e) {
+	    out.flush();
+	    System.err.println("Error: " + e);
+	    System.exit(1);
+	}
+    }
+}
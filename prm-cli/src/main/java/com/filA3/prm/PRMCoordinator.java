@@ -0,0 +1,806 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Coordinates a batch scored by several worker processes, see
+  * {@link PRMWorker}, on this host or on others, for cohorts that a
+  * single JVM can not score in time.
+  * <p>
+  * The batch file is cut at line boundaries into splits of about
+  * {@link #DEFAULT_SPLIT_SIZE} bytes, and each worker reads the byte
+  * range of its split from the file directly, which must therefore be at
+  * the same path on every host. Workers connect to the coordinator over
+  * TCP and are handed one split at a time, so that faster workers take
+  * more of them. A worker streams back the output lines of its split, in
+  * input order, then the aggregates of the split: the number of
+  * profiles, the sum of their probabilities and their
+  * {@link PRMDriftMonitor} distribution. The output of each split is
+  * spooled to a temporary file and, once every split is done, the files
+  * are concatenated in split order, so that the output is the same as
+  * that of a single JVM.
+  * <p>
+  * A split whose worker reports a failure, disconnects or is silent for
+  * longer than the timeout is handed again to the next free worker, up to
+  * {@link #MAX_ATTEMPTS} times in all, after which the batch fails.
+  * <p>
+  * The protocol is framed with {@link DataOutputStream}. A worker opens
+  * with {@link #HELLO}, the {@link #MAGIC} number, the {@link #VERSION},
+  * the shared token and its name; a worker without the token of the
+  * coordinator is refused, since workers are handed paths of the file
+  * and their output is trusted. The token is passed to worker processes
+  * in the {@link #TOKEN_VARIABLE} environment variable, which must be
+  * set to the same secret on every host when workers join from others. The coordinator then sends {@link #TASK} frames, with
+  * the split number, the attempt number and the start and end offsets,
+  * and a {@link #STOP} frame once no split is left. The worker answers a
+  * task with {@link #OUTPUT} frames, the split number, a length and that
+  * many bytes of output, and {@link #PROGRESS} frames, the split number
+  * and the number of lines scored, at least every second; it ends the
+  * task with {@link #DONE}, the split number, the number of lines, the
+  * sum of the probabilities and the length and bytes of the written
+  * distribution, or with {@link #FAILED}, the split number and a message.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMCoordinator implements Closeable
+{
+    /** The default size of a split, in bytes */
+    public static final long DEFAULT_SPLIT_SIZE = 64L << 20;
+    /** The number of times a split is handed to a worker before failing */
+    public static final int MAX_ATTEMPTS = 3;
+    /** The default time a worker may be silent, in milliseconds */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 60000;
+    /** The environment variable holding the token shared with workers */
+    public static final String TOKEN_VARIABLE = "PRM_WORKER_TOKEN";
+
+    /** The protocol magic number, "PRMW" */
+    static final int MAGIC = 0x50524d57;
+    /** The protocol version */
+    static final int VERSION = 2;
+    /** The largest output frame */
+    static final int MAX_OUTPUT = 1 << 20;
+
+    // Frames of the coordinator
+    static final byte TASK = 1;
+    static final byte STOP = 2;
+    // Frames of a worker
+    static final byte HELLO = 3;
+    static final byte OUTPUT = 4;
+    static final byte PROGRESS = 5;
+    static final byte DONE = 6;
+    static final byte FAILED = 7;
+
+    /** The interval between progress reports, in milliseconds */
+    private static final long REPORT_MILLIS = 5000;
+    /** The time spawned workers have to exit once stopped, in seconds */
+    private static final long EXIT_SECONDS = 5;
+
+    /**
+      * A byte range of the batch file.
+      */
+    private static final class Split
+    {
+	/** The number of the split */
+	private final int index;
+	/** The offset of its first line */
+	private final long start;
+	/** The offset after its last line */
+	private final long end;
+	/** The number of times it was handed to a worker and failed */
+	private int attempts;
+
+	/**
+	  * Constructor.
+	  */
+	private Split(int index, long start, long end)
+	{
+	    this.index = index;
+	    this.start = start;
+	    this.end = end;
+	}
+    }
+
+    /** The batch file */
+    private final Path file;
+    /** The splits */
+    private final Split[] splits;
+    /** The token workers must present, in UTF-8 */
+    private final byte[] token;
+    /** The socket workers connect to */
+    private final ServerSocket server;
+    /** The directory of the split outputs */
+    private final Path spool;
+    /** The splits waiting for a worker */
+    private final Deque<Split> pending = new ArrayDeque<>();
+    /** The output file of each split done */
+    private final Path[] outputs;
+    /** The number of lines of each split done */
+    private final long[] lines;
+    /** The sum of the probabilities of each split done */
+    private final double[] sums;
+    /** The distribution of each split done */
+    private final PRMDriftMonitor.Distribution[] distributions;
+    /** The connected workers */
+    private final Set<Connection> connections = new HashSet<>();
+    /** The worker processes started */
+    private final List<Process> processes = new ArrayList<>();
+    /** Where progress and worker output is written */
+    private PrintStream log = System.err;
+    /** The time a worker may be silent, in milliseconds */
+    private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    /** The number of splits done */
+    private int done;
+    /** The number of splits handed again */
+    private int retries;
+    /** The number of workers that connected */
+    private int workers;
+    /** Why the batch failed, or null */
+    private String failure;
+
+    /**
+      * Constructor, which cuts the batch file into splits and listens
+      * for workers.
+      *
+      * @param file the batch file
+      * @param splitSize the approximate size of a split, in bytes
+      * @param address the address to listen on, e.g. the loopback
+      *                interface and port 0 for workers on this host only
+      * @param token the token workers must present, e.g. from
+      *              {@link #newToken()} for worker processes started by
+      *              {@link #spawn(int, List)} only
+      *
+      * @throws IOException if the file can not be read or the address
+      *                     can not be bound
+      * @throws IllegalArgumentException if the split size is not positive
+      *                                  or the token is empty
+      */
+    public PRMCoordinator(@Nonnull Path file, long splitSize,
+	    @Nonnull InetSocketAddress address, @Nonnull String token)
+	throws IOException
+    {
+	if (splitSize <= 0) {
+	    throw new IllegalArgumentException(
+		    "The split size must be positive: " + splitSize);
+	}
+	if (token.isEmpty()) {
+	    throw new IllegalArgumentException("The token must not be empty");
+	}
+	this.file = file;
+	this.token = token.getBytes(StandardCharsets.UTF_8);
+	List<Split> cuts = new ArrayList<>();
+	try (FileChannel channel = FileChannel.open(file,
+		    StandardOpenOption.READ)) {
+	    long size = channel.size();
+	    long start = 0;
+	    while (start < size) {
+		long end = lineStart(channel, Math.min(size, start + splitSize));
+		cuts.add(new Split(cuts.size(), start, end));
+		start = end;
+	    }
+	}
+	splits = cuts.toArray(new Split[0]);
+	pending.addAll(cuts);
+	outputs = new Path[splits.length];
+	lines = new long[splits.length];
+	sums = new double[splits.length];
+	distributions = new PRMDriftMonitor.Distribution[splits.length];
+	spool = Files.createTempDirectory("prm-splits");
+	server = new ServerSocket();
+	server.bind(address);
+	Thread acceptor = new Thread(this::accept, "prm-coordinator");
+	acceptor.setDaemon(true);
+	acceptor.start();
+    }
+
+    /**
+      * Returns a random token, of 128 bits in hexadecimal.
+      *
+      * @return the token
+      */
+    public static String newToken()
+    {
+	byte[] bytes = new byte[16];
+	new SecureRandom().nextBytes(bytes);
+	StringBuilder token = new StringBuilder();
+	for (byte b : bytes) {
+	    token.append(String.format("%02x", b & 0xff));
+	}
+	return token.toString();
+    }
+
+    /**
+      * Returns the offset of the first line starting at or after a
+      * position of a file.
+      */
+    private static long lineStart(FileChannel channel, long position)
+	throws IOException
+    {
+	long size = channel.size();
+	if (position == 0 || position >= size) {
+	    return position;
+	}
+	ByteBuffer buffer = ByteBuffer.allocate(8192);
+	long offset = position - 1;
+	while (offset < size) {
+	    ((Buffer) buffer).clear();
+	    int read = channel.read(buffer, offset);
+	    if (read < 0) {
+		break;
+	    }
+	    for (int i = 0; i < read; i++) {
+		if (buffer.get(i) == '\n') {
+		    return offset + i + 1;
+		}
+	    }
+	    offset += read;
+	}
+	return size;
+    }
+
+    /**
+      * Sets where progress and the output of worker processes are
+      * written.
+      *
+      * @param log where to write, default the standard error
+      *
+      * @return this coordinator
+      */
+    public PRMCoordinator setLog(@Nonnull PrintStream log)
+    {
+	this.log = log;
+	return this;
+    }
+
+    /**
+      * Sets the time a worker may be silent before its split is handed
+      * to another.
+      *
+      * @param timeoutMillis the time, in milliseconds, default
+      *                      {@link #DEFAULT_TIMEOUT_MILLIS}
+      *
+      * @return this coordinator
+      */
+    public PRMCoordinator setTimeout(int timeoutMillis)
+    {
+	this.timeoutMillis = timeoutMillis;
+	return this;
+    }
+
+    /**
+      * Returns the port workers connect to.
+      *
+      * @return the port
+      */
+    public int getPort()
+    {
+	return server.getLocalPort();
+    }
+
+    /**
+      * Returns the number of splits.
+      *
+      * @return the number of splits
+      */
+    public int getSplits()
+    {
+	return splits.length;
+    }
+
+    /**
+      * Starts worker processes on this host, running {@link PRM} with the
+      * given arguments and the address of this coordinator, with the
+      * same JVM and class path, and the token in their environment.
+      * Their output is copied to the log.
+      *
+      * @param count the number of workers
+      * @param arguments the arguments of each worker, other than the
+      *                  address
+      *
+      * @throws IOException if a process can not be started
+      */
+    public synchronized void spawn(int count, @Nonnull List<String> arguments)
+	throws IOException
+    {
+	List<String> command = new ArrayList<>();
+	command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+		.toString());
+	command.add("-cp");
+	command.add(System.getProperty("java.class.path"));
+	command.add(PRM.class.getName());
+	command.addAll(arguments);
+	InetAddress host = server.getInetAddress().isAnyLocalAddress()
+	    ? InetAddress.getLoopbackAddress() : server.getInetAddress();
+	command.add("-k");
+	command.add(host.getHostAddress() + ":" + getPort());
+	for (int i = 0; i < count; i++) {
+	    ProcessBuilder builder = new ProcessBuilder(command)
+		.redirectErrorStream(true);
+	    builder.environment().put(TOKEN_VARIABLE,
+		    new String(token, StandardCharsets.UTF_8));
+	    Process process = builder.start();
+	    processes.add(process);
+	    String prefix = "Worker " + processes.size() + ": ";
+	    Thread copier = new Thread(() -> {
+		    try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream(),
+				    StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+			    log.println(prefix + line);
+			}
+		    } catch (IOException e) {
+			// The process is gone
+		    }
+		}, "prm-worker-output-" + processes.size());
+	    copier.setDaemon(true);
+	    copier.start();
+	}
+    }
+
+    /**
+      * Waits until every split is done, reporting progress to the log.
+      * When worker processes were started and the coordinator only
+      * listens on the loopback interface, the batch fails if they all
+      * exit first.
+      *
+      * @throws IOException if a split failed too many times, or no
+      *                     worker is left
+      * @throws InterruptedException if interrupted while waiting
+      */
+    public synchronized void await() throws IOException, InterruptedException
+    {
+	long start = System.currentTimeMillis();
+	long report = start + REPORT_MILLIS;
+	while (done < splits.length && failure == null) {
+	    wait(1000);
+	    if (connections.isEmpty() && !processes.isEmpty()
+		    && server.getInetAddress().isLoopbackAddress()
+		    && processes.stream().noneMatch(Process::isAlive)) {
+		failure = "All the worker processes exited";
+	    }
+	    long now = System.currentTimeMillis();
+	    if (now >= report && done < splits.length && failure == null) {
+		long scored = 0;
+		for (int i = 0; i < splits.length; i++) {
+		    scored += lines[i];
+		}
+		for (Connection connection : connections) {
+		    scored += connection.progress;
+		}
+		log.println("Splits done: " + done + "/" + splits.length
+			+ ", lines: " + scored + ", workers: "
+			+ connections.size() + ", retries: " + retries
+			+ ", seconds: " + (now - start) / 1000);
+		report = now + REPORT_MILLIS;
+	    }
+	}
+	if (failure != null) {
+	    throw new IOException(failure);
+	}
+    }
+
+    /**
+      * Writes the output of every split, in split order, once all are
+      * done, and deletes their spooled output.
+      *
+      * @param out where to write
+      * @param cohort if not null, receives the probability of each line
+      *
+      * @throws IOException if writing fails
+      */
+    public synchronized void merge(@Nonnull OutputStream out,
+	    PRMReferencePopulation.Builder cohort)
+	throws IOException
+    {
+	if (done < splits.length) {
+	    throw new IllegalStateException("Splits are not all done");
+	}
+	for (int i = 0; i < outputs.length; i++) {
+	    if (cohort == null) {
+		Files.copy(outputs[i], out);
+	    } else {
+		try (BufferedReader reader
+			= Files.newBufferedReader(outputs[i])) {
+		    String line;
+		    while ((line = reader.readLine()) != null) {
+			int comma = line.indexOf(',');
+			cohort.add(Double.parseDouble(comma < 0 ? line
+				    : line.substring(0, comma)));
+			out.write(line.getBytes(StandardCharsets.UTF_8));
+			out.write('\n');
+		    }
+		}
+	    }
+	    Files.delete(outputs[i]);
+	}
+	out.flush();
+    }
+
+    /**
+      * Returns the number of lines scored by the splits done.
+      *
+      * @return the number of lines
+      */
+    public synchronized long getLines()
+    {
+	long total = 0;
+	for (long count : lines) {
+	    total += count;
+	}
+	return total;
+    }
+
+    /**
+      * Returns the mean probability of the splits done.
+      *
+      * @return the mean, or NaN without lines
+      */
+    public synchronized double getMeanProbability()
+    {
+	double total = 0;
+	for (double sum : sums) {
+	    total += sum;
+	}
+	return total / getLines();
+    }
+
+    /**
+      * Returns the merged distribution of the profiles and probabilities
+      * of the splits done.
+      *
+      * @return the distribution, or null if no split is done
+      */
+    public synchronized PRMDriftMonitor.Distribution getDistribution()
+    {
+	PRMDriftMonitor.Distribution merged = null;
+	for (PRMDriftMonitor.Distribution distribution : distributions) {
+	    if (distribution != null) {
+		merged = merged == null ? distribution
+		    : merged.merge(distribution);
+	    }
+	}
+	return merged;
+    }
+
+    /**
+      * Returns the number of times a split was handed again to a worker.
+      *
+      * @return the number of retries
+      */
+    public synchronized int getRetries()
+    {
+	return retries;
+    }
+
+    /**
+      * Returns the number of workers that connected.
+      *
+      * @return the number of workers
+      */
+    public synchronized int getWorkers()
+    {
+	return workers;
+    }
+
+    /**
+      * Stops accepting workers, disconnects those still connected, waits
+      * a few seconds for the worker processes to exit before destroying
+      * them, and deletes any spooled output.
+      */
+    @Override
+    public void close()
+    {
+	List<Connection> open;
+	synchronized (this) {
+	    if (failure == null && done < splits.length) {
+		failure = "Closed";
+	    }
+	    notifyAll();
+	    open = new ArrayList<>(connections);
+	}
+	try {
+	    server.close();
+	} catch (IOException e) {
+	    // Closing anyway
+	}
+	long deadline = System.nanoTime()
+	    + TimeUnit.SECONDS.toNanos(EXIT_SECONDS);
+	for (Process process : processes) {
+	    try {
+		long left = deadline - System.nanoTime();
+		if (!process.waitFor(Math.max(0, left), TimeUnit.NANOSECONDS)) {
+		    process.destroyForcibly();
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		process.destroyForcibly();
+	    }
+	}
+	for (Connection connection : open) {
+	    connection.close();
+	}
+	File[] left = spool.toFile().listFiles();
+	if (left != null) {
+	    for (File output : left) {
+		output.delete();
+	    }
+	}
+	spool.toFile().delete();
+    }
+
+    /**
+      * Accepts workers until the socket is closed.
+      */
+    private void accept()
+    {
+	while (!server.isClosed()) {
+	    try {
+		Socket socket = server.accept();
+		Connection connection = new Connection(socket);
+		Thread thread = new Thread(connection,
+			"prm-coordinator-" + socket.getRemoteSocketAddress());
+		thread.setDaemon(true);
+		thread.start();
+	    } catch (IOException e) {
+		// Closed
+	    }
+	}
+    }
+
+    /**
+      * Returns the next split for a worker, waiting while all the splits
+      * left are being scored, since one may fail.
+      *
+      * @return the split, or null once all are done or the batch failed
+      */
+    private synchronized Split next()
+    {
+	while (pending.isEmpty() && done < splits.length && failure == null) {
+	    try {
+		wait();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return null;
+	    }
+	}
+	return failure == null ? pending.poll() : null;
+    }
+
+    /**
+      * Records a split done.
+      */
+    private synchronized void complete(Split split, Path output, long count,
+	    double sum, PRMDriftMonitor.Distribution distribution)
+    {
+	outputs[split.index] = output;
+	lines[split.index] = count;
+	sums[split.index] = sum;
+	distributions[split.index] = distribution;
+	done++;
+	notifyAll();
+    }
+
+    /**
+      * Hands a split that failed to the next free worker, or fails the
+      * batch after too many attempts.
+      */
+    private synchronized void retry(Split split, String reason)
+    {
+	split.attempts++;
+	if (split.attempts >= MAX_ATTEMPTS) {
+	    failure = "Split " + split.index + " (bytes " + split.start + "-"
+		+ split.end + ") failed " + split.attempts + " times, last: "
+		+ reason;
+	} else {
+	    log.println("Retrying split " + split.index + ": " + reason);
+	    retries++;
+	    pending.addFirst(split);
+	}
+	notifyAll();
+    }
+
+    /**
+      * The connection of a worker.
+      */
+    private final class Connection implements Runnable
+    {
+	/** The socket */
+	private final Socket socket;
+	/** The name of the worker */
+	private String name;
+	/** The number of lines scored of the current split */
+	private volatile long progress;
+
+	/**
+	  * Constructor.
+	  */
+	private Connection(Socket socket)
+	{
+	    this.socket = socket;
+	}
+
+	@Override
+	public void run()
+	{
+	    name = socket.getRemoteSocketAddress().toString();
+	    boolean registered = false;
+	    try {
+		socket.setSoTimeout(timeoutMillis);
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(socket.getInputStream(),
+			    1 << 16));
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(socket.getOutputStream()));
+		if (in.readByte() != HELLO || in.readInt() != MAGIC
+			|| in.readInt() != VERSION) {
+		    log.println("Refused worker " + name
+			    + ": not a worker, or another version");
+		    return;
+		}
+		if (!MessageDigest.isEqual(token,
+			    in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+		    log.println("Refused worker " + name + ": invalid token");
+		    return;
+		}
+		name = in.readUTF();
+		synchronized (PRMCoordinator.this) {
+		    connections.add(this);
+		    workers++;
+		    registered = true;
+		}
+		Split split;
+		while ((split = next()) != null) {
+		    Path output = spool.resolve(String.format(
+				"split-%06d-%d", split.index, split.attempts));
+		    try { // The split is retried if the worker is lost
+			out.writeByte(TASK);
+			out.writeInt(split.index);
+			out.writeInt(split.attempts);
+			out.writeLong(split.start);
+			out.writeLong(split.end);
+			out.flush();
+			receive(split, in, output);
+		    } catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(output);
+			retry(split, name + ": " + e);
+			return;
+		    } finally {
+			progress = 0;
+		    }
+		}
+		out.writeByte(STOP);
+		out.flush();
+	    } catch (IOException e) {
+		if (!registered) {
+		    log.println("Lost worker " + name + ": " + e);
+		}
+	    } finally {
+		close();
+		synchronized (PRMCoordinator.this) {
+		    connections.remove(this);
+		    PRMCoordinator.this.notifyAll();
+		}
+	    }
+	}
+
+	/**
+	  * Receives the frames of a split, until it is done or failed.
+	  */
+	private void receive(Split split, DataInputStream in, Path output)
+	    throws IOException
+	{
+	    byte[] buffer = new byte[8192];
+	    String failed;
+	    try (OutputStream file = new BufferedOutputStream(
+			Files.newOutputStream(output), 1 << 16)) {
+		while (true) {
+		    byte frame = in.readByte();
+		    int index = in.readInt();
+		    if (index != split.index) {
+			throw new IOException("Frame of split " + index
+				+ " during split " + split.index);
+		    }
+		    if (frame == OUTPUT) {
+			int length = in.readInt();
+			if (length < 0 || length > MAX_OUTPUT) {
+			    throw new IOException(
+				    "Invalid output length " + length);
+			}
+			if (length > buffer.length) {
+			    buffer = new byte[length];
+			}
+			in.readFully(buffer, 0, length);
+			file.write(buffer, 0, length);
+		    } else if (frame == PROGRESS) {
+			progress = in.readLong();
+		    } else if (frame == DONE) {
+			long count = in.readLong();
+			double sum = in.readDouble();
+			int length = in.readInt();
+			if (length < 0 || length > MAX_OUTPUT) {
+			    throw new IOException(
+				    "Invalid distribution length " + length);
+			}
+			byte[] written = new byte[length];
+			in.readFully(written);
+			file.close();
+			complete(split, output, count, sum,
+				PRMDriftMonitor.Distribution.read(
+				    new ByteArrayInputStream(written)));
+			return;
+		    } else if (frame == FAILED) {
+			failed = in.readUTF();
+			break;
+		    } else {
+			throw new IOException("Invalid frame " + frame);
+		    }
+		}
+	    }
+	    Files.deleteIfExists(output);
+	    retry(split, name + ": " + failed);
+	}
+
+	/**
+	  * Closes the socket.
+	  */
+	private void close()
+	{
+	    try {
+		socket.close();
+	    } catch (IOException e) {
+		// Closing anyway
+	    }
+	}
+    }
+}
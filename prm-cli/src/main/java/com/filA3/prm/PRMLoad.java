@@ -0,0 +1,655 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+  * A load generator for POST /calculate of the web application or of
+  * {@link PRMServer}, reporting the latency distribution and throughput,
+  * and optionally failing when the errors or the 99th percentile regress
+  * against a stored baseline.
+  * <p>
+  * Requests are sent at a fixed rate whatever the response times, an
+  * open model: request i is due at i / rate seconds after the start, and
+  * its latency is measured from when it was due rather than from when it
+  * was sent. A slow response therefore counts against the requests queued
+  * behind it, as it would with independent callers, instead of silently
+  * slowing the load down (coordinated omission). Requests are spread over
+  * a number of keep-alive connections, each with its own thread; the rate
+  * can only be reached while the connections are enough to cover the
+  * response times. The request bodies are the lines of a replay file,
+  * e.g. recorded requests, or synthetic profiles of {@link PRMWarmUp},
+  * taken in turn.
+  * <p>
+  * The first seconds of a run warm the service up and are not measured.
+  * The report is written as a JSON object, with latencies in microseconds
+  * from a {@link PRMLatencyHistogram}, and can be saved as the baseline of
+  * later runs.
+  * <p>
+  * The generator is started from the command line with:
+  * <pre>
+  * usage: prm-load [-b &lt;FILE&gt;] [-c &lt;N&gt;] [-d &lt;SECONDS&gt;] [-h] [-H &lt;HOST&gt;]
+  *        [-i] [-p &lt;PORT&gt;] [-P &lt;PATH&gt;] -r &lt;N&gt; [-R &lt;FILE&gt;] [-s &lt;FILE&gt;]
+  *        [-T &lt;PERCENT&gt;] [-w &lt;SECONDS&gt;]
+  *
+  * -b,--baseline &lt;FILE&gt;     Report of a previous run; exits with status 2
+  *                          if no request succeeded, if the error rate is
+  *                          higher than its own, or if the 99th
+  *                          percentile latency is higher than its own by
+  *                          more than the tolerance.
+  * -c,--connections &lt;N&gt;     Number of connections, default 16.
+  * -d,--duration &lt;SECONDS&gt;  Measured duration, default 30.
+  * -h,--help                Print this help message.
+  * -H,--host &lt;HOST&gt;         Host of the service, default localhost.
+  * -i,--in-process          Starts a {@link PRMServer} in this JVM, on a
+  *                          free port, instead of using --host and
+  *                          --port.
+  * -p,--port &lt;PORT&gt;         Port of the service, default 8080.
+  * -P,--path &lt;PATH&gt;         Path of the requests, default /calculate.
+  * -r,--rate &lt;N&gt;            Requests per second (required).
+  * -R,--replay &lt;FILE&gt;       File of request bodies, one per line, instead
+  *                          of synthetic profiles.
+  * -s,--save &lt;FILE&gt;         File to write the report to, e.g. as a
+  *                          baseline, besides the standard output.
+  * -T,--tolerance &lt;PERCENT&gt; Regression of the 99th percentile allowed by
+  *                          --baseline, default 10.
+  * -w,--warm-up &lt;SECONDS&gt;   Unmeasured duration before, default 5.
+  * </pre>
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMLoad
+{
+    /** The default number of connections */
+    public static final int DEFAULT_CONNECTIONS = 16;
+    /** The number of synthetic profiles cycled through */
+    private static final int SYNTHETIC_PROFILES = 10000;
+    /** The quantiles reported */
+    private static final double[] LEVELS = {0.5, 0.9, 0.99, 0.999, 0.9999};
+    /** The names of the quantiles reported */
+    private static final String[] LEVEL_NAMES
+	= {"P50", "P90", "P99", "P99.9", "P99.99"};
+
+    /**
+      * A keep-alive HTTP/1.1 connection, reconnecting when the server
+      * closes it.
+      */
+    private static final class Connection implements Closeable
+    {
+	/** The host */
+	private final String host;
+	/** The port */
+	private final int port;
+	/** The request line and fixed headers */
+	private final byte[] header;
+	/** The socket, null when closed */
+	private Socket socket;
+	/** The socket output */
+	private OutputStream out;
+	/** The socket input */
+	private InputStream in;
+
+	/**
+	  * Constructor.
+	  */
+	private Connection(String host, int port, String path)
+	{
+	    this.host = host;
+	    this.port = port;
+	    header = ("POST " + path + " HTTP/1.1\r\nHost: " + host + "\r\n"
+		    + "Content-Type: application/json\r\nContent-Length: ")
+		.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	  * Sends a request and reads its response.
+	  *
+	  * @return true if the status is 200
+	  */
+	private boolean post(byte[] body) throws IOException
+	{
+	    for (int attempt = 0;; attempt++) {
+		if (socket == null) {
+		    socket = new Socket(host, port);
+		    socket.setTcpNoDelay(true);
+		    out = new BufferedOutputStream(socket.getOutputStream());
+		    in = new BufferedInputStream(socket.getInputStream());
+		}
+		try {
+		    out.write(header);
+		    out.write((body.length + "\r\n\r\n")
+			    .getBytes(StandardCharsets.US_ASCII));
+		    out.write(body);
+		    out.flush();
+		    return response();
+		} catch (IOException e) {
+		    // Closed by the server, e.g. at its keep-alive limit
+		    close();
+		    if (attempt > 0) {
+			throw e;
+		    }
+		}
+	    }
+	}
+
+	/**
+	  * Reads a response, its body being discarded.
+	  */
+	private boolean response() throws IOException
+	{
+	    String status = line();
+	    long length = 0;
+	    boolean chunked = false;
+	    boolean closing = false;
+	    String line;
+	    while (!(line = line()).isEmpty()) {
+		String name = line.substring(0, Math.max(0, line.indexOf(':')))
+		    .trim();
+		String value = line.substring(line.indexOf(':') + 1).trim();
+		if (name.equalsIgnoreCase("Content-Length")) {
+		    length = Long.parseLong(value);
+		} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+		    chunked = value.equalsIgnoreCase("chunked");
+		} else if (name.equalsIgnoreCase("Connection")) {
+		    closing = value.equalsIgnoreCase("close");
+		}
+	    }
+	    if (chunked) {
+		long size;
+		while ((size = Long.parseLong(line().split(";")[0].trim(), 16))
+			> 0) {
+		    skip(size);
+		    line();
+		}
+		while (!line().isEmpty()) {
+		    // Trailers
+		}
+	    } else {
+		skip(length);
+	    }
+	    if (closing) {
+		close();
+	    }
+	    return status.startsWith("HTTP/1.1 200")
+		|| status.startsWith("HTTP/1.0 200");
+	}
+
+	/**
+	  * Reads a line, without its end.
+	  */
+	private String line() throws IOException
+	{
+	    StringBuilder sb = new StringBuilder();
+	    int c;
+	    while ((c = in.read()) != '\n') {
+		if (c < 0) {
+		    throw new EOFException();
+		}
+		if (c != '\r') {
+		    sb.append((char) c);
+		}
+	    }
+	    return sb.toString();
+	}
+
+	/**
+	  * Skips bytes of the input.
+	  */
+	private void skip(long bytes) throws IOException
+	{
+	    while (bytes > 0) {
+		long skipped = in.skip(bytes);
+		if (skipped <= 0) {
+		    if (in.read() < 0) {
+			throw new EOFException();
+		    }
+		    skipped = 1;
+		}
+		bytes -= skipped;
+	    }
+	}
+
+	@Override
+	public void close()
+	{
+	    if (socket != null) {
+		try {
+		    socket.close();
+		} catch (IOException e) {
+		    // Already closed
+		}
+		socket = null;
+	    }
+	}
+    }
+
+    /** The host */
+    private final String host;
+    /** The port */
+    private final int port;
+    /** The request bodies */
+    private final List<byte[]> bodies;
+    /** The path */
+    private String path = "/calculate";
+    /** The number of connections */
+    private int connections = DEFAULT_CONNECTIONS;
+
+    /**
+      * Constructor.
+      *
+      * @param host the host of the service
+      * @param port the port of the service
+      * @param bodies the request bodies, taken in turn
+      */
+    public PRMLoad(@Nonnull String host, int port,
+	    @Nonnull List<byte[]> bodies)
+    {
+	if (bodies.isEmpty()) {
+	    throw new IllegalArgumentException("No request bodies");
+	}
+	this.host = host;
+	this.port = port;
+	this.bodies = bodies;
+    }
+
+    /**
+      * Sets the path of the requests.
+      *
+      * @param path the path, default /calculate
+      *
+      * @return this generator
+      */
+    public PRMLoad setPath(@Nonnull String path)
+    {
+	this.path = path;
+	return this;
+    }
+
+    /**
+      * Sets the number of connections.
+      *
+      * @param connections the number of connections, &gt;= 1
+      *
+      * @return this generator
+      */
+    public PRMLoad setConnections(int connections)
+    {
+	if (connections < 1) {
+	    throw new IllegalArgumentException("connections must be >= 1");
+	}
+	this.connections = connections;
+	return this;
+    }
+
+    /**
+      * Returns synthetic request bodies.
+      *
+      * @param count the number of bodies
+      *
+      * @return the JSON data objects of {@link PRMWarmUp#profile}
+      */
+    public static List<byte[]> synthetic(int count)
+    {
+	List<byte[]> bodies = new ArrayList<>(count);
+	for (int i = 0; i < count; i++) {
+	    bodies.add(PRMWarmUp.profile(i).toJSONString()
+		    .getBytes(StandardCharsets.UTF_8));
+	}
+	return bodies;
+    }
+
+    /**
+      * Reads request bodies, one per non blank line.
+      *
+      * @param reader the bodies
+      *
+      * @return the bodies
+      *
+      * @throws IOException if reading fails
+      */
+    public static List<byte[]> read(@Nonnull BufferedReader reader)
+	throws IOException
+    {
+	List<byte[]> bodies = new ArrayList<>();
+	String line;
+	while ((line = reader.readLine()) != null) {
+	    if (!line.trim().isEmpty()) {
+		bodies.add(line.getBytes(StandardCharsets.UTF_8));
+	    }
+	}
+	return bodies;
+    }
+
+    /**
+      * Runs the load.
+      *
+      * @param rate the number of requests per second
+      * @param warmUpSeconds the unmeasured duration before
+      * @param seconds the measured duration
+      *
+      * @return the report
+      *
+      * @throws InterruptedException if interrupted
+      */
+    @SuppressWarnings("unchecked")
+    public JSONObject run(double rate, double warmUpSeconds, double seconds)
+	throws InterruptedException
+    {
+	if (!(rate > 0) || !(warmUpSeconds >= 0) || !(seconds > 0)) {
+	    throw new IllegalArgumentException("Invalid rate or duration");
+	}
+	double period = 1e9 / rate;
+	long warmed = (long) Math.ceil(warmUpSeconds * rate);
+	long total = warmed + (long) Math.ceil(seconds * rate);
+	AtomicLong next = new AtomicLong();
+	AtomicLong errors = new AtomicLong();
+	PRMLatencyHistogram[] histograms
+	    = new PRMLatencyHistogram[connections];
+	Thread[] threads = new Thread[connections];
+	long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+	for (int t = 0; t < connections; t++) {
+	    PRMLatencyHistogram histogram = new PRMLatencyHistogram();
+	    histograms[t] = histogram;
+	    threads[t] = new Thread(() -> {
+		try (Connection connection
+			 = new Connection(host, port, path)) {
+		    long i;
+		    while ((i = next.getAndIncrement()) < total) {
+			long due = start + (long) (i * period);
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+			    LockSupport.parkNanos(wait);
+			}
+			boolean ok;
+			try {
+			    ok = connection.post(bodies.get(
+					(int) (i % bodies.size())));
+			} catch (IOException e) {
+			    ok = false;
+			}
+			long latency = System.nanoTime() - due;
+			if (i >= warmed) {
+			    if (ok) {
+				histogram.add(latency);
+			    } else {
+				errors.incrementAndGet();
+			    }
+			}
+		    }
+		}
+	    }, "prm-load-" + t);
+	    threads[t].start();
+	}
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	long elapsed = System.nanoTime() - start;
+	PRMLatencyHistogram latencies = new PRMLatencyHistogram();
+	for (PRMLatencyHistogram histogram : histograms) {
+	    latencies.merge(histogram);
+	}
+	double measuredSeconds = elapsed / 1e9 - warmed / rate;
+
+	JSONObject report = new JSONObject();
+	report.put("Target", host + ":" + port + path);
+	report.put("Rate", rate);
+	report.put("Seconds", seconds);
+	report.put("Connections", connections);
+	report.put("Requests", latencies.getCount());
+	report.put("Errors", errors.get());
+	report.put("Throughput", latencies.getCount() / measuredSeconds);
+	JSONObject micros = new JSONObject();
+	micros.put("Mean", micros(latencies.getMean()));
+	for (int i = 0; i < LEVELS.length; i++) {
+	    micros.put(LEVEL_NAMES[i],
+		    micros(latencies.getQuantile(LEVELS[i])));
+	}
+	micros.put("Max", latencies.getCount() == 0 ? null
+		: latencies.getMax() / 1000.0);
+	report.put("LatencyMicros", micros);
+	return report;
+    }
+
+    /**
+      * Returns a latency in nanoseconds in microseconds, or null for NaN,
+      * which JSON can not hold.
+      */
+    private static Double micros(double nanos)
+    {
+	return Double.isNaN(nanos) ? null : nanos / 1000;
+    }
+
+    /**
+      * Compares a report with a baseline: the run regressed if no
+      * request succeeded, if its error rate is above the baseline's, or
+      * if its 99th percentile latency is above the baseline's by more
+      * than the tolerance.
+      *
+      * @param report the report
+      * @param baseline the report of the baseline
+      * @param tolerance the latency regression allowed, in percent
+      *
+      * @return a description of the regression, or null if there is none
+      *
+      * @throws IllegalArgumentException if the baseline has no successful
+      *                                  request
+      */
+    public static String regression(@Nonnull JSONObject report,
+	    @Nonnull JSONObject baseline, double tolerance)
+    {
+	if (count(baseline, "Requests") == 0) {
+	    throw new IllegalArgumentException(
+		    "The baseline has no successful request");
+	}
+	if (count(report, "Requests") == 0) {
+	    return "no request succeeded, " + count(report, "Errors")
+		+ " errors";
+	}
+	double errorRate = errorRate(report);
+	if (errorRate > errorRate(baseline)) {
+	    return String.format("error rate %.3f%% is above the baseline's"
+		    + " %.3f%%", 100 * errorRate, 100 * errorRate(baseline));
+	}
+	double p99 = p99(report);
+	double allowed = p99(baseline) * (1 + tolerance / 100);
+	if (p99 <= allowed) {
+	    return null;
+	}
+	return String.format("p99 latency %.1fus is above %.1fus, the"
+		+ " baseline's %.1fus plus %s%%", p99, allowed, p99(baseline),
+		tolerance);
+    }
+
+    /**
+      * Returns a count of a report, 0 if missing.
+      */
+    private static long count(JSONObject report, String name)
+    {
+	Number count = (Number) report.get(name);
+	return count == null ? 0 : count.longValue();
+    }
+
+    /**
+      * Returns the share of the requests of a report that failed.
+      */
+    private static double errorRate(JSONObject report)
+    {
+	long errors = count(report, "Errors");
+	return (double) errors / (errors + count(report, "Requests"));
+    }
+
+    /**
+      * Returns the 99th percentile latency of a report.
+      */
+    private static double p99(JSONObject report)
+    {
+	return ((Number) ((JSONObject) report.get("LatencyMicros"))
+		.get("P99")).doubleValue();
+    }
+
+    /**
+      * The main entry point. See class description.
+      *
+      * @param args command line arguments
+      */
+    public static void main(String[] args)
+    {
+	Options options = new Options();
+	options.addOption("h", "help", false, "Print this help message.");
+	options.addOption(argument("r", "rate", "N",
+		    "Requests per second (required)."));
+	options.addOption(argument("d", "duration", "SECONDS",
+		    "Measured duration, default 30."));
+	options.addOption(argument("w", "warm-up", "SECONDS",
+		    "Unmeasured duration before, default 5."));
+	options.addOption(argument("c", "connections", "N",
+		    "Number of connections, default 16."));
+	options.addOption(argument("H", "host", "HOST",
+		    "Host of the service, default localhost."));
+	options.addOption(argument("p", "port", "PORT",
+		    "Port of the service, default 8080."));
+	options.addOption(argument("P", "path", "PATH",
+		    "Path of the requests, default /calculate."));
+	options.addOption("i", "in-process", false,
+		"Starts a server in this JVM instead of using --host and"
+		+ " --port.");
+	options.addOption(argument("R", "replay", "FILE",
+		    "File of request bodies, one per line, instead of"
+		    + " synthetic profiles."));
+	options.addOption(argument("s", "save", "FILE",
+		    "File to write the report to, e.g. as a baseline."));
+	options.addOption(argument("b", "baseline", "FILE",
+		    "Report of a previous run; fails if the errors or the p99"
+		    + " latency regressed."));
+	options.addOption(argument("T", "tolerance", "PERCENT",
+		    "Regression of the p99 latency allowed, default 10."));
+	String regression = null;
+	try {
+	    CommandLine line = new DefaultParser().parse(options, args);
+	    if (line.hasOption("h")) {
+		new HelpFormatter().printHelp("prm-load", options, true);
+		return;
+	    }
+	    if (!line.hasOption("r")) {
+		throw new ParseException("Missing required option: r");
+	    }
+	    List<byte[]> bodies;
+	    if (line.hasOption("R")) {
+		try (BufferedReader reader = new BufferedReader(
+			    new FileReader(line.getOptionValue("R")))) {
+		    bodies = read(reader);
+		}
+	    } else {
+		bodies = synthetic(SYNTHETIC_PROFILES);
+	    }
+	    String host = line.getOptionValue("H", "localhost");
+	    int port = Integer.parseInt(line.getOptionValue("p", "8080"));
+	    PRMServer server = null;
+	    if (line.hasOption("i")) {
+		server = new PRMServer(
+			HCHRiskStratificationPRMScoreCalculator.getInstance())
+		    .setPort(0).setWarmUpProfiles(0).start();
+		host = InetAddress.getLoopbackAddress().getHostAddress();
+		port = server.getPort();
+	    }
+	    JSONObject report;
+	    try {
+		PRMLoad load = new PRMLoad(host, port, bodies)
+		    .setPath(line.getOptionValue("P", "/calculate"));
+		if (line.hasOption("c")) {
+		    load.setConnections(Integer.parseInt(
+				line.getOptionValue("c")));
+		}
+		report = load.run(Double.parseDouble(line.getOptionValue("r")),
+			Double.parseDouble(line.getOptionValue("w", "5")),
+			Double.parseDouble(line.getOptionValue("d", "30")));
+	    } finally {
+		if (server != null) {
+		    server.close();
+		}
+	    }
+	    System.out.println(report.toJSONString());
+	    if (line.hasOption("s")) {
+		try (Writer writer = new FileWriter(line.getOptionValue("s"))) {
+		    writer.write(report.toJSONString());
+		    writer.write(System.lineSeparator());
+		}
+	    }
+	    if (line.hasOption("b")) {
+		JSONObject baseline;
+		try (Reader reader = new FileReader(line.getOptionValue("b"))) {
+		    baseline = (JSONObject) new JSONParser().parse(reader);
+		}
+		regression = regression(report, baseline,
+			Double.parseDouble(line.getOptionValue("T", "10")));
+	    }
+	} catch (ParseException | IllegalArgumentException e) {
+	    System.err.println("Error: " + e.getMessage());
+	    new HelpFormatter().printHelp("prm-load", options, true);
+	    System.exit(1);
+	} catch (Exception e) {
+	    System.err.println("Error: " + e);
+	    System.exit(1);
+	}
+	if (regression != null) {
+	    System.err.println("Regression: " + regression);
+	    System.exit(2);
+	}
+    }
+
+    /**
+      * Returns an option with an argument.
+      */
+    private static Option argument(String name, String longName,
+	    String argName, String description)
+    {
+	Option option = new Option(name, longName, true, description);
+	option.setArgName(argName);
+	return option;
+    }
+}
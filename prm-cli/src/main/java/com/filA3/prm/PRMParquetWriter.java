@@ -0,0 +1,839 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Writes scored profiles as an Apache Parquet file, the columnar format
+  * that analytics warehouses load directly, without any library.
+  * <p>
+  * The columns are "PatientId", "Probability", "LinearPredictor" and
+  * "ModelVersion", optionally followed by features of the profile:
+  * "Age", "IsFemale", one column per {@link PRMField} holding the value
+  * name, "DiseaseCount" and "MedicationGroupCount". All columns are
+  * required, strings are UTF-8.
+  * <p>
+  * Rows are buffered column by column until a row group is complete,
+  * then each column is written as a single compressed data page, so that
+  * memory is bounded by the row group size however many rows are
+  * written. Values are PLAIN encoded, except those of the field columns,
+  * which are dictionary encoded: a dictionary page of the value names,
+  * then the value ordinals bit packed, a few bits per row. Numeric
+  * columns carry their minimum and maximum, so that readers can skip row
+  * groups. The file is complete once closed. The writer is not thread safe: rows are written in
+  * order, e.g. from the sink of {@link PRMBatch}.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMParquetWriter implements Closeable
+{
+    /** The default number of rows of a row group */
+    public static final int DEFAULT_ROW_GROUP_SIZE = 1 << 17;
+
+    /** The magic number starting and ending the file, "PAR1" */
+    private static final byte[] MAGIC
+	= "PAR1".getBytes(StandardCharsets.US_ASCII);
+
+    // Parquet physical types
+    private static final int BOOLEAN = 0;
+    private static final int INT32 = 1;
+    private static final int DOUBLE = 5;
+    private static final int BYTE_ARRAY = 6;
+    // Parquet repetition, converted type, encodings and page type
+    private static final int REQUIRED = 0;
+    private static final int UTF8 = 0;
+    private static final int PLAIN = 0;
+    private static final int PLAIN_DICTIONARY = 2;
+    private static final int RLE = 3;
+    private static final int DATA_PAGE = 0;
+    private static final int DICTIONARY_PAGE = 2;
+
+    /**
+      * The compression of pages.
+      */
+    public enum Compression
+    {
+	/** No compression */
+	UNCOMPRESSED(0),
+	/** Gzip, at its fastest level */
+	GZIP(2);
+
+	/** The Parquet codec */
+	private final int codec;
+
+	/**
+	  * Constructor.
+	  */
+	Compression(int codec)
+	{
+	    this.codec = codec;
+	}
+    }
+
+    /**
+      * The values of a column in the current row group.
+      */
+    private static final class Column
+    {
+	/** The name */
+	private final String name;
+	/** The physical type */
+	private final int type;
+	/** The values of a dictionary encoded column, else null */
+	private final byte[][] dictionary;
+	/** The encoded values, or the ordinals of dictionary values */
+	private ByteBuffer values
+	    = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+	/** The number of values */
+	private int count;
+	/** The smallest numeric value of the row group */
+	private double min;
+	/** The largest numeric value of the row group */
+	private double max;
+	/** The metadata of the chunks written, for the footer */
+	private final List<byte[]> chunks = new ArrayList<>();
+
+	/**
+	  * Constructor.
+	  */
+	private Column(String name, int type, byte[][] dictionary)
+	{
+	    this.name = name;
+	    this.type = type;
+	    this.dictionary = dictionary;
+	}
+
+	/**
+	  * Adds the ordinal of a dictionary value.
+	  */
+	private void addOrdinal(int ordinal)
+	{
+	    ensure(1);
+	    values.put((byte) ordinal);
+	    count++;
+	}
+
+	/**
+	  * Makes room for more bytes.
+	  */
+	private void ensure(int bytes)
+	{
+	    if (values.remaining() < bytes) {
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(
+			    2 * values.capacity(), values.position() + bytes))
+		    .order(ByteOrder.LITTLE_ENDIAN);
+		((Buffer) values).flip();
+		larger.put(values);
+		values = larger;
+	    }
+	}
+
+	/**
+	  * Tracks the range of a numeric value.
+	  */
+	private void range(double value)
+	{
+	    min = count == 0 ? value : Math.min(min, value);
+	    max = count == 0 ? value : Math.max(max, value);
+	}
+
+	/**
+	  * Adds a double value.
+	  */
+	private void add(double value)
+	{
+	    ensure(8);
+	    range(value);
+	    values.putDouble(value);
+	    count++;
+	}
+
+	/**
+	  * Adds an int value.
+	  */
+	private void add(int value)
+	{
+	    ensure(4);
+	    range(value);
+	    values.putInt(value);
+	    count++;
+	}
+
+	/**
+	  * Adds a boolean value, bit packed from the least significant bit.
+	  */
+	private void add(boolean value)
+	{
+	    if (count % 8 == 0) {
+		ensure(1);
+		values.put((byte) 0);
+	    }
+	    if (value) {
+		int last = values.position() - 1;
+		values.put(last, (byte) (values.get(last) | 1 << (count % 8)));
+	    }
+	    count++;
+	}
+
+	/**
+	  * Adds a string value, as a length and UTF-8 bytes.
+	  */
+	private void add(byte[] value)
+	{
+	    ensure(4 + value.length);
+	    values.putInt(value.length);
+	    values.put(value);
+	    count++;
+	}
+    }
+
+    /** The file */
+    private final OutputStream out;
+    /** If the feature columns are written */
+    private final boolean features;
+    /** The columns */
+    private final List<Column> columns = new ArrayList<>();
+    /** The number of rows of a row group */
+    private int rowGroupSize = DEFAULT_ROW_GROUP_SIZE;
+    /** The compression */
+    private Compression compression = Compression.GZIP;
+    /** The compressor */
+    private final Deflater deflater
+	= new Deflater(Deflater.BEST_SPEED, true);
+    /** The compressed page */
+    private byte[] compressed = new byte[1024];
+    /** The metadata of the row groups written, for the footer */
+    private final List<byte[]> rowGroups = new ArrayList<>();
+    /** The number of rows in the current row group */
+    private int rows;
+    /** The number of rows written */
+    private long totalRows;
+    /** The position in the file */
+    private long position;
+    /** If the writer is closed */
+    private boolean closed;
+
+    /**
+      * Constructor.
+      *
+      * @param out the file, which is closed with the writer
+      * @param features if the feature columns are written
+      *
+      * @throws IOException if writing fails
+      */
+    public PRMParquetWriter(@Nonnull OutputStream out, boolean features)
+	throws IOException
+    {
+	this.out = out;
+	this.features = features;
+	columns.add(new Column("PatientId", BYTE_ARRAY, null));
+	columns.add(new Column("Probability", DOUBLE, null));
+	columns.add(new Column("LinearPredictor", DOUBLE, null));
+	columns.add(new Column("ModelVersion", BYTE_ARRAY, null));
+	if (features) {
+	    columns.add(new Column("Age", DOUBLE, null));
+	    columns.add(new Column("IsFemale", BOOLEAN, null));
+	    for (PRMField field : PRMField.values()) {
+		Enum<?>[] values = field.getValues();
+		byte[][] names = new byte[values.length][];
+		for (Enum<?> value : values) {
+		    names[value.ordinal()]
+			= value.name().getBytes(StandardCharsets.UTF_8);
+		}
+		columns.add(new Column(field.getJsonName(), BYTE_ARRAY, names));
+	    }
+	    columns.add(new Column("DiseaseCount", INT32, null));
+	    columns.add(new Column("MedicationGroupCount", INT32, null));
+	}
+	write(MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+      * Sets the number of rows of a row group.
+      *
+      * @param rowGroupSize the number of rows, &gt;= 1
+      *
+      * @return this writer
+      */
+    public PRMParquetWriter setRowGroupSize(int rowGroupSize)
+    {
+	if (rowGroupSize < 1) {
+	    throw new IllegalArgumentException("rowGroupSize must be >= 1");
+	}
+	this.rowGroupSize = rowGroupSize;
+	return this;
+    }
+
+    /**
+      * Sets the compression of pages.
+      *
+      * @param compression the compression, default GZIP
+      *
+      * @return this writer
+      */
+    public PRMParquetWriter setCompression(@Nonnull Compression compression)
+    {
+	this.compression = compression;
+	return this;
+    }
+
+    /**
+      * Writes a row, and the row group when it is complete.
+      *
+      * @param patientId the patient identifier
+      * @param probability the probability
+      * @param linearPredictor the linear predictor
+      * @param modelVersion the version of the model
+      * @param data the profile, for the feature columns
+      *
+      * @throws IOException if writing fails
+      */
+    public void write(@Nonnull String patientId, double probability,
+	    double linearPredictor, @Nonnull String modelVersion,
+	    @Nonnull HCHRiskStratificationPRMData data)
+	throws IOException
+    {
+	if (closed) {
+	    throw new IOException("Writer closed");
+	}
+	int c = 0;
+	columns.get(c++).add(patientId.getBytes(StandardCharsets.UTF_8));
+	columns.get(c++).add(probability);
+	columns.get(c++).add(linearPredictor);
+	columns.get(c++).add(modelVersion.getBytes(StandardCharsets.UTF_8));
+	if (features) {
+	    columns.get(c++).add(data.getAge());
+	    columns.get(c++).add(data.getIsFemale());
+	    for (PRMField field : PRMField.values()) {
+		columns.get(c++).addOrdinal(field.get(data).ordinal());
+	    }
+	    columns.get(c++).add(data.getDiseases().size());
+	    columns.get(c++).add(data.getMedicationGroups().size());
+	}
+	if (++rows == rowGroupSize) {
+	    writeRowGroup();
+	}
+    }
+
+    /**
+      * Returns the number of rows written.
+      *
+      * @return the number of rows
+      */
+    public long getRows()
+    {
+	return totalRows + rows;
+    }
+
+    /**
+      * Writes the last row group and the footer, and closes the file.
+      *
+      * @throws IOException if writing fails
+      */
+    @Override
+    public void close() throws IOException
+    {
+	if (closed) {
+	    return;
+	}
+	try {
+	    if (rows > 0) {
+		writeRowGroup();
+	    }
+	    Thrift footer = new Thrift();
+	    footer.i32(1, 1);
+	    footer.list(2, Thrift.STRUCT, columns.size() + 1);
+	    footer.beginStruct();
+	    footer.string(4, "schema");
+	    footer.i32(5, columns.size());
+	    footer.endStruct();
+	    for (Column column : columns) {
+		footer.beginStruct();
+		footer.i32(1, column.type);
+		footer.i32(3, REQUIRED);
+		footer.string(4, column.name);
+		if (column.type == BYTE_ARRAY) {
+		    footer.i32(6, UTF8);
+		}
+		footer.endStruct();
+	    }
+	    footer.i64(3, totalRows);
+	    footer.list(4, Thrift.STRUCT, rowGroups.size());
+	    for (byte[] rowGroup : rowGroups) {
+		footer.raw(rowGroup);
+	    }
+	    footer.string(6, "PRMParquetWriter");
+	    footer.stop();
+	    write(footer.bytes, 0, footer.length);
+	    byte[] length = new byte[4];
+	    ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN)
+		.putInt(footer.length);
+	    write(length, 0, 4);
+	    write(MAGIC, 0, MAGIC.length);
+	} finally {
+	    closed = true;
+	    deflater.end();
+	    out.close();
+	}
+    }
+
+    /**
+      * Writes the buffered rows as a row group.
+      */
+    private void writeRowGroup() throws IOException
+    {
+	long uncompressedTotal = 0;
+	long start = position;
+	for (Column column : columns) {
+	    long offset = position;
+	    long uncompressed = 0;
+	    if (column.dictionary != null) {
+		uncompressed += writeDictionary(column);
+	    }
+	    long dataOffset = position;
+	    ByteBuffer values = column.dictionary != null
+		? bitPack(column) : column.values;
+	    uncompressed += writePage(values.array(), values.position(),
+		    column.count, column.dictionary != null);
+	    uncompressedTotal += uncompressed;
+
+	    Thrift chunk = new Thrift();
+	    chunk.beginStruct();
+	    chunk.i64(2, offset);
+	    chunk.beginStruct(3);
+	    chunk.i32(1, column.type);
+	    if (column.dictionary != null) {
+		chunk.list(2, Thrift.I32, 2);
+		chunk.listI32(PLAIN_DICTIONARY);
+		chunk.listI32(RLE);
+	    } else {
+		chunk.list(2, Thrift.I32, 2);
+		chunk.listI32(PLAIN);
+		chunk.listI32(RLE);
+	    }
+	    chunk.list(3, Thrift.BINARY, 1);
+	    chunk.listString(column.name);
+	    chunk.i32(4, compression.codec);
+	    chunk.i64(5, column.count);
+	    chunk.i64(6, uncompressed);
+	    chunk.i64(7, position - offset);
+	    chunk.i64(9, dataOffset);
+	    if (column.dictionary != null) {
+		chunk.i64(11, offset);
+	    }
+	    if (column.type == DOUBLE || column.type == INT32) {
+		chunk.beginStruct(12);
+		chunk.i64(3, 0);
+		chunk.binary(5, plain(column.type, column.max));
+		chunk.binary(6, plain(column.type, column.min));
+		chunk.endStruct();
+	    }
+	    chunk.endStruct();
+	    chunk.endStruct();
+	    column.chunks.add(Arrays.copyOf(chunk.bytes, chunk.length));
+
+	    ((Buffer) column.values).clear();
+	    column.count = 0;
+	}
+	Thrift rowGroup = new Thrift();
+	rowGroup.beginStruct();
+	rowGroup.list(1, Thrift.STRUCT, columns.size());
+	for (Column column : columns) {
+	    rowGroup.raw(column.chunks.remove(column.chunks.size() - 1));
+	}
+	rowGroup.i64(2, uncompressedTotal);
+	rowGroup.i64(3, rows);
+	rowGroup.i64(5, start);
+	rowGroup.i64(6, position - start);
+	rowGroup.endStruct();
+	rowGroups.add(Arrays.copyOf(rowGroup.bytes, rowGroup.length));
+	totalRows += rows;
+	rows = 0;
+    }
+
+    /**
+      * Writes the dictionary page of a column.
+      *
+      * @return the uncompressed size of the page and its header
+      */
+    private long writeDictionary(Column column) throws IOException
+    {
+	int size = 0;
+	for (byte[] value : column.dictionary) {
+	    size += 4 + value.length;
+	}
+	ByteBuffer page = ByteBuffer.allocate(size)
+	    .order(ByteOrder.LITTLE_ENDIAN);
+	for (byte[] value : column.dictionary) {
+	    page.putInt(value.length);
+	    page.put(value);
+	}
+	int pageSize = compress(page.array(), size);
+	Thrift header = new Thrift();
+	header.i32(1, DICTIONARY_PAGE);
+	header.i32(2, size);
+	header.i32(3, pageSize);
+	header.beginStruct(7);
+	header.i32(1, column.dictionary.length);
+	header.i32(2, PLAIN_DICTIONARY);
+	header.endStruct();
+	header.stop();
+	write(header.bytes, 0, header.length);
+	write(compression == Compression.GZIP ? compressed : page.array(), 0,
+		pageSize);
+	return header.length + size;
+    }
+
+    /**
+      * Writes a data page.
+      *
+      * @return the uncompressed size of the page and its header
+      */
+    private long writePage(byte[] page, int size, int count,
+	    boolean dictionary)
+	throws IOException
+    {
+	int pageSize = compress(page, size);
+	Thrift header = new Thrift();
+	header.i32(1, DATA_PAGE);
+	header.i32(2, size);
+	header.i32(3, pageSize);
+	header.beginStruct(5);
+	header.i32(1, count);
+	header.i32(2, dictionary ? PLAIN_DICTIONARY : PLAIN);
+	header.i32(3, RLE);
+	header.i32(4, RLE);
+	header.endStruct();
+	header.stop();
+	write(header.bytes, 0, header.length);
+	write(compression == Compression.GZIP ? compressed : page, 0,
+		pageSize);
+	return header.length + size;
+    }
+
+    /**
+      * Returns the dictionary ordinals of a column as the values of a
+      * dictionary encoded page: the bit width, then a single bit packed
+      * run of the RLE / bit packing hybrid, padded to groups of eight.
+      */
+    private static ByteBuffer bitPack(Column column)
+    {
+	int width = Math.max(1,
+		32 - Integer.numberOfLeadingZeros(column.dictionary.length - 1));
+	int groups = (column.count + 7) / 8;
+	ByteBuffer packed = ByteBuffer.allocate(1 + 5 + groups * width);
+	packed.put((byte) width);
+	long header = (long) groups << 1 | 1;
+	while ((header & ~0x7fL) != 0) {
+	    packed.put((byte) (header & 0x7f | 0x80));
+	    header >>>= 7;
+	}
+	packed.put((byte) header);
+	byte[] ordinals = column.values.array();
+	long bits = 0;
+	int pending = 0;
+	for (int i = 0; i < groups * 8; i++) {
+	    bits |= (long) (i < column.count ? ordinals[i] : 0) << pending;
+	    pending += width;
+	    while (pending >= 8) {
+		packed.put((byte) bits);
+		bits >>>= 8;
+		pending -= 8;
+	    }
+	}
+	return packed;
+    }
+
+    /**
+      * Compresses a page into {@link #compressed}, if pages are.
+      *
+      * @return the size of the page as written
+      */
+    private int compress(byte[] page, int size)
+    {
+	return compression == Compression.GZIP ? gzip(page, size) : size;
+    }
+
+    /**
+      * Compresses a page into {@link #compressed} in gzip format.
+      *
+      * @return the compressed size
+      */
+    private int gzip(byte[] page, int size)
+    {
+	int bound = size + size / 1000 + 64;
+	if (compressed.length < bound) {
+	    compressed = new byte[bound];
+	}
+	// Header: magic, deflate, no flags, no time, fastest, unknown OS
+	byte[] header = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 4, (byte) 255};
+	System.arraycopy(header, 0, compressed, 0, header.length);
+	int length = header.length;
+	deflater.reset();
+	deflater.setInput(page, 0, size);
+	deflater.finish();
+	while (!deflater.finished()) {
+	    if (length == compressed.length) {
+		compressed = Arrays.copyOf(compressed, 2 * length);
+	    }
+	    length += deflater.deflate(compressed, length,
+		    compressed.length - length);
+	}
+	CRC32 crc = new CRC32();
+	crc.update(page, 0, size);
+	if (compressed.length < length + 8) {
+	    compressed = Arrays.copyOf(compressed, length + 8);
+	}
+	ByteBuffer trailer = ByteBuffer.wrap(compressed, length, 8)
+	    .order(ByteOrder.LITTLE_ENDIAN);
+	trailer.putInt((int) crc.getValue());
+	trailer.putInt(size);
+	return length + 8;
+    }
+
+    /**
+      * Returns the PLAIN encoding of a numeric value.
+      */
+    private static byte[] plain(int type, double value)
+    {
+	ByteBuffer buffer = ByteBuffer.allocate(type == DOUBLE ? 8 : 4)
+	    .order(ByteOrder.LITTLE_ENDIAN);
+	if (type == DOUBLE) {
+	    buffer.putDouble(value);
+	} else {
+	    buffer.putInt((int) value);
+	}
+	return buffer.array();
+    }
+
+    /**
+      * Writes bytes to the file.
+      */
+    private void write(byte[] bytes, int offset, int length)
+	throws IOException
+    {
+	out.write(bytes, offset, length);
+	position += length;
+    }
+
+    /**
+      * The Thrift compact protocol, as much of it as Parquet metadata
+      * needs.
+      */
+    private static final class Thrift
+    {
+	/** The compact type of i32 values */
+	private static final int I32 = 5;
+	/** The compact type of i64 values */
+	private static final int I64 = 6;
+	/** The compact type of binary values */
+	private static final int BINARY = 8;
+	/** The compact type of lists */
+	private static final int LIST = 9;
+	/** The compact type of structs */
+	private static final int STRUCT = 12;
+
+	/** The encoded bytes */
+	private byte[] bytes = new byte[256];
+	/** The number of encoded bytes */
+	private int length;
+	/** The last field identifier of the current struct */
+	private int lastField;
+	/** The last field identifiers of the enclosing structs */
+	private final int[] enclosing = new int[8];
+	/** The depth of structs */
+	private int depth;
+
+	/**
+	  * Writes a field header.
+	  */
+	private void field(int id, int type)
+	{
+	    int delta = id - lastField;
+	    if (delta > 0 && delta <= 15) {
+		put(delta << 4 | type);
+	    } else {
+		put(type);
+		varint(zigzag(id));
+	    }
+	    lastField = id;
+	}
+
+	/**
+	  * Writes an i32 field.
+	  */
+	private void i32(int id, int value)
+	{
+	    field(id, I32);
+	    varint(zigzag(value));
+	}
+
+	/**
+	  * Writes an i64 field.
+	  */
+	private void i64(int id, long value)
+	{
+	    field(id, I64);
+	    varint((value << 1) ^ (value >> 63));
+	}
+
+	/**
+	  * Writes a binary field.
+	  */
+	private void binary(int id, byte[] value)
+	{
+	    field(id, BINARY);
+	    varint(value.length);
+	    for (byte b : value) {
+		put(b);
+	    }
+	}
+
+	/**
+	  * Writes a string field.
+	  */
+	private void string(int id, String value)
+	{
+	    binary(id, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	  * Writes the header of a list field.
+	  */
+	private void list(int id, int elementType, int size)
+	{
+	    field(id, LIST);
+	    if (size < 15) {
+		put(size << 4 | elementType);
+	    } else {
+		put(0xf0 | elementType);
+		varint(size);
+	    }
+	}
+
+	/**
+	  * Writes an i32 list element.
+	  */
+	private void listI32(int value)
+	{
+	    varint(zigzag(value));
+	}
+
+	/**
+	  * Writes a string list element.
+	  */
+	private void listString(String value)
+	{
+	    byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+	    varint(utf8.length);
+	    for (byte b : utf8) {
+		put(b);
+	    }
+	}
+
+	/**
+	  * Begins a struct field.
+	  */
+	private void beginStruct(int id)
+	{
+	    field(id, STRUCT);
+	    beginStruct();
+	}
+
+	/**
+	  * Begins a struct, as a list element or a field.
+	  */
+	private void beginStruct()
+	{
+	    enclosing[depth++] = lastField;
+	    lastField = 0;
+	}
+
+	/**
+	  * Ends a struct.
+	  */
+	private void endStruct()
+	{
+	    stop();
+	    lastField = enclosing[--depth];
+	}
+
+	/**
+	  * Writes the end of the fields of a struct.
+	  */
+	private void stop()
+	{
+	    put(0);
+	}
+
+	/**
+	  * Writes already encoded bytes, e.g. a struct list element.
+	  */
+	private void raw(byte[] encoded)
+	{
+	    for (byte b : encoded) {
+		put(b);
+	    }
+	}
+
+	/**
+	  * Returns the zigzag encoding of an i32, as an unsigned 32 bit
+	  * value, so that it is not sign extended into a ten byte varint.
+	  */
+	private static long zigzag(int value)
+	{
+	    return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+	}
+
+	/**
+	  * Writes an unsigned varint.
+	  */
+	private void varint(long value)
+	{
+	    while ((value & ~0x7fL) != 0) {
+		put((int) (value & 0x7f) | 0x80);
+		value >>>= 7;
+	    }
+	    put((int) value);
+	}
+
+	/**
+	  * Writes a byte.
+	  */
+	private void put(int b)
+	{
+	    if (length == bytes.length) {
+		bytes = Arrays.copyOf(bytes, 2 * length);
+	    }
+	    bytes[length++] = (byte) b;
+	}
+    }
+}
@@ -0,0 +1,849 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+  * A small HTTP server for the scoring engine, for sidecar deployments
+  * where the Spring Boot application is too heavy. It serves:
+  * <pre>
+  * POST /calculate[?percentile=true]        one JSON data object
+  * POST /calculate/batch[?percentile=true]  one JSON data object per line
+  * GET  /ready                              the warm-up, see PRMWarmUp
+  * </pre>
+  * /calculate answers the probability as a JSON number, or with
+  * percentile=true an object with "Probability", "Percentile" and
+  * "Tier", as the web application does. /calculate/batch answers a JSON
+  * array of the same, in input order.
+  * <p>
+  * One thread accepts connections and reads and writes them without
+  * blocking; complete requests are handled by a fixed pool of worker
+  * threads. Each connection takes an input and an output buffer from a
+  * pool allocated at start, so the number of connections and the size of
+  * requests and responses are bounded, and serving allocates little more
+  * than the parsed JSON. Connections are kept alive, and pipelined
+  * requests are handled in turn. Requests larger than a buffer are
+  * refused with 413.
+  * <p>
+  * The server is started from the command line with:
+  * <pre>
+  * usage: prm-server [-B &lt;KB&gt;] [-c &lt;N&gt;] [-h] [-J &lt;DIR&gt;]
+  *        [-L &lt;PATH|tcp:PORT&gt;] [-M &lt;FILE&gt;] [-p &lt;PORT&gt;] [-r &lt;FILE&gt;]
+  *        [-t &lt;N&gt;] [-W &lt;N&gt;]
+  *
+  * -B,--buffer-size &lt;KB&gt;   Size of the request and response buffers of
+  *                          each connection, default 64.
+  * -c,--connections &lt;N&gt;    Maximum number of open connections, default
+  *                          64.
+  * -h,--help                Print this help message.
+  * -J,--journal &lt;DIR&gt;       Appends every score served to an audit
+  *                          journal in the given directory, see
+  *                          {@link PRMAuditJournal}.
+  * -L,--local &lt;PATH|tcp:PORT&gt;
+  *                          Also serves the binary protocol of
+  *                          {@link PRMLocalServer} on the given Unix
+  *                          domain socket, or loopback TCP port.
+  * -M,--model &lt;FILE&gt;        Coefficient model file, instead of the
+  *                          national coefficients.
+  * -p,--port &lt;PORT&gt;         Port to listen on, default 8080.
+  * -r,--reference &lt;FILE&gt;    Reference population, for percentiles.
+  * -t,--threads &lt;N&gt;         Number of worker threads, default all
+  *                          processors.
+  * -W,--warm-up &lt;N&gt;         Number of warm-up profiles, default 10000.
+  * </pre>
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMServer implements Closeable
+{
+    /** The default port */
+    public static final int DEFAULT_PORT = 8080;
+    /** The default maximum number of connections */
+    public static final int DEFAULT_CONNECTIONS = 64;
+    /** The default buffer size */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** The end of the request headers */
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    /**
+      * An open connection, with its buffers.
+      */
+    private static final class Connection
+    {
+	/** The received bytes, in write mode */
+	private final ByteBuffer in;
+	/** The response, in read mode while being written */
+	private final ByteBuffer out;
+	/** The channel */
+	private SocketChannel channel;
+	/** The key of the channel */
+	private SelectionKey key;
+	/** The offset of the body of the current request */
+	private int bodyStart;
+	/** The end of the current request */
+	private int requestEnd;
+	/** If the connection is closed after the response */
+	private boolean close;
+
+	/**
+	  * Constructor.
+	  */
+	private Connection(int bufferSize)
+	{
+	    in = ByteBuffer.allocate(bufferSize);
+	    out = ByteBuffer.allocate(bufferSize);
+	}
+    }
+
+    /**
+      * A response.
+      */
+    private static final class Response
+    {
+	/** The status line, e.g. "200 OK" */
+	private final String status;
+	/** The JSON body */
+	private final String body;
+
+	/**
+	  * Constructor.
+	  */
+	private Response(String status, String body)
+	{
+	    this.status = status;
+	    this.body = body;
+	}
+    }
+
+    /** The calculator */
+    private final HCHRiskStratificationPRMScoreCalculator scorer;
+    /** The port */
+    private int port = DEFAULT_PORT;
+    /** The number of worker threads */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /** The maximum number of connections */
+    private int connections = DEFAULT_CONNECTIONS;
+    /** The size of each buffer */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    /** The warm-up */
+    private final PRMWarmUp warmUp;
+    /** The audit journal, if any */
+    private PRMAuditJournal journal;
+    /** Where the warm-up and a failure of the server are reported */
+    private PrintStream log;
+
+    /** The listening channel */
+    private ServerSocketChannel server;
+    /** The selector */
+    private Selector selector;
+    /** The worker threads */
+    private ExecutorService workers;
+    /** The connections that are not open */
+    private ArrayBlockingQueue<Connection> idle;
+    /** The connections with a response ready to write */
+    private final Queue<Connection> responses = new ConcurrentLinkedQueue<>();
+    /** The accepting thread */
+    private Thread thread;
+    /** If the server is running */
+    private volatile boolean running;
+
+    /**
+      * Constructor.
+      *
+      * @param scorer the calculator
+      */
+    public PRMServer(@Nonnull HCHRiskStratificationPRMScoreCalculator scorer)
+    {
+	this.scorer = scorer;
+	warmUp = new PRMWarmUp(scorer);
+    }
+
+    /**
+      * Sets the port.
+      *
+      * @param port the port, or 0 for any free port
+      *
+      * @return this server
+      */
+    public PRMServer setPort(int port)
+    {
+	this.port = port;
+	return this;
+    }
+
+    /**
+      * Sets the number of worker threads.
+      *
+      * @param threads the number of threads, &gt;= 1
+      *
+      * @return this server
+      */
+    public PRMServer setThreads(int threads)
+    {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("threads must be >= 1");
+	}
+	this.threads = threads;
+	return this;
+    }
+
+    /**
+      * Sets the maximum number of open connections; further connections
+      * are closed as soon as they are accepted.
+      *
+      * @param connections the number of connections, &gt;= 1
+      *
+      * @return this server
+      */
+    public PRMServer setConnections(int connections)
+    {
+	if (connections < 1) {
+	    throw new IllegalArgumentException("connections must be >= 1");
+	}
+	this.connections = connections;
+	return this;
+    }
+
+    /**
+      * Sets the size of the request and response buffers of each
+      * connection, which bounds the size of requests and responses.
+      *
+      * @param bufferSize the size in bytes, &gt;= 1024
+      *
+      * @return this server
+      */
+    public PRMServer setBufferSize(int bufferSize)
+    {
+	if (bufferSize < 1024) {
+	    throw new IllegalArgumentException("bufferSize must be >= 1024");
+	}
+	this.bufferSize = bufferSize;
+	return this;
+    }
+
+    /**
+      * Sets the number of warm-up profiles scored before /ready succeeds.
+      *
+      * @param profiles the number of profiles, zero for none
+      *
+      * @return this server
+      */
+    public PRMServer setWarmUpProfiles(int profiles)
+    {
+	warmUp.setProfiles(profiles);
+	return this;
+    }
+
+    /**
+      * Sets the journal that every score served is appended to.
+      *
+      * @param journal the started journal, or null for none
+      *
+      * @return this server
+      */
+    public PRMServer setJournal(PRMAuditJournal journal)
+    {
+	this.journal = journal;
+	return this;
+    }
+
+    /**
+      * Sets where the timing of the warm-up, and a failure that stops the
+      * server, are reported.
+      *
+      * @param log the log, or null for none
+      *
+      * @return this server
+      */
+    public PRMServer setLog(PrintStream log)
+    {
+	this.log = log;
+	return this;
+    }
+
+    /**
+      * Starts the server, allocating its buffers and starting the
+      * warm-up.
+      *
+      * @return this server
+      *
+      * @throws IOException if the port can not be bound
+      */
+    public PRMServer start() throws IOException
+    {
+	idle = new ArrayBlockingQueue<>(connections);
+	for (int i = 0; i < connections; i++) {
+	    idle.add(new Connection(bufferSize));
+	}
+	selector = Selector.open();
+	server = ServerSocketChannel.open();
+	server.bind(new InetSocketAddress(port), connections);
+	server.configureBlocking(false);
+	server.register(selector, SelectionKey.OP_ACCEPT);
+	workers = Executors.newFixedThreadPool(threads, r -> {
+	    Thread worker = new Thread(r, "prm-server-worker");
+	    worker.setDaemon(true);
+	    return worker;
+	});
+	running = true;
+	thread = new Thread(this::serve, "prm-server");
+	thread.start();
+	warmUp.start(log);
+	return this;
+    }
+
+    /**
+      * Returns the port the server listens on.
+      *
+      * @return the port
+      */
+    public int getPort()
+    {
+	return server.socket().getLocalPort();
+    }
+
+    /**
+      * Stops the server, closing all connections.
+      */
+    @Override
+    public void close()
+    {
+	running = false;
+	selector.wakeup();
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	workers.shutdownNow();
+    }
+
+    /**
+      * Accepts, reads and writes connections until closed.
+      */
+    private void serve()
+    {
+	try {
+	    while (running) {
+		selector.select();
+		Connection connection;
+		while ((connection = responses.poll()) != null) {
+		    write(connection);
+		}
+		Iterator<SelectionKey> keys
+		    = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    if (key.isAcceptable()) {
+			accept();
+		    } else if (key.isReadable()) {
+			read((Connection) key.attachment());
+		    } else if (key.isWritable()) {
+			write((Connection) key.attachment());
+		    }
+		}
+	    }
+	} catch (IOException e) {
+	    if (log != null) {
+		log.println("Server stopped: " + e);
+	    }
+	} finally {
+	    for (SelectionKey key : selector.keys()) {
+		closeQuietly(key.channel());
+	    }
+	    closeQuietly(selector);
+	}
+    }
+
+    /**
+      * Accepts a connection, if there is a free one.
+      */
+    private void accept() throws IOException
+    {
+	SocketChannel channel = server.accept();
+	if (channel == null) {
+	    return;
+	}
+	Connection connection = idle.poll();
+	if (connection == null) {
+	    closeQuietly(channel);
+	    return;
+	}
+	channel.configureBlocking(false);
+	channel.socket().setTcpNoDelay(true);
+	connection.channel = channel;
+	connection.key = channel.register(selector, SelectionKey.OP_READ,
+		connection);
+	connection.close = false;
+	((Buffer) connection.in).clear();
+	((Buffer) connection.out).clear().flip();
+    }
+
+    /**
+      * Reads from a connection, and hands a complete request to a worker.
+      */
+    private void read(Connection connection)
+    {
+	int count;
+	try {
+	    count = connection.channel.read(connection.in);
+	} catch (IOException e) {
+	    count = -1;
+	}
+	if (count < 0) {
+	    release(connection);
+	} else {
+	    dispatch(connection);
+	}
+    }
+
+    /**
+      * Writes the response of a connection, and goes on to the next
+      * request.
+      */
+    private void write(Connection connection)
+    {
+	if (connection.channel == null) {
+	    return;
+	}
+	try {
+	    connection.channel.write(connection.out);
+	} catch (IOException e) {
+	    release(connection);
+	    return;
+	}
+	if (connection.out.hasRemaining()) {
+	    connection.key.interestOps(SelectionKey.OP_WRITE);
+	} else if (connection.close) {
+	    release(connection);
+	} else {
+	    dispatch(connection);
+	}
+    }
+
+    /**
+      * Hands the next request of a connection to a worker if it is
+      * complete, refuses it if it is too large, or waits for more.
+      */
+    private void dispatch(Connection connection)
+    {
+	int status = frame(connection);
+	if (status == 0) {
+	    connection.key.interestOps(0);
+	    workers.execute(() -> handle(connection));
+	} else if (status > 0) {
+	    connection.close = true;
+	    respond(connection, status == 400
+		    ? new Response("400 Bad Request",
+			"\"Invalid Content-Length\"")
+		    : status == 411
+		    ? new Response("411 Length Required", "\"Length required\"")
+		    : new Response("413 Payload Too Large",
+			"\"Request too large\""));
+	    connection.key.interestOps(SelectionKey.OP_WRITE);
+	} else {
+	    connection.key.interestOps(SelectionKey.OP_READ);
+	}
+    }
+
+    /**
+      * Finds the end of the next request of a connection.
+      *
+      * @return 0 if the request is complete, -1 if more is needed, or the
+      *         status of an unacceptable request
+      */
+    private static int frame(Connection connection)
+    {
+	byte[] bytes = connection.in.array();
+	int length = connection.in.position();
+	int headerEnd = indexOf(bytes, length, HEADER_END, HEADER_END.length);
+	if (headerEnd < 0) {
+	    return length == bytes.length ? 413 : -1;
+	}
+	headerEnd += HEADER_END.length;
+	String headers = new String(bytes, 0, headerEnd,
+		StandardCharsets.ISO_8859_1);
+	long contentLength = 0;
+	boolean close = false;
+	for (String header : headers.split("\r\n")) {
+	    int colon = header.indexOf(':');
+	    if (colon < 0) {
+		continue;
+	    }
+	    String name = header.substring(0, colon).trim();
+	    String value = header.substring(colon + 1).trim();
+	    if (name.equalsIgnoreCase("Content-Length")) {
+		try {
+		    contentLength = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+		    return 400;
+		}
+		if (contentLength < 0) {
+		    return 400;
+		}
+	    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+		return 411;
+	    } else if (name.equalsIgnoreCase("Connection")) {
+		close = value.equalsIgnoreCase("close");
+	    }
+	}
+	if (headerEnd + contentLength > bytes.length) {
+	    return 413;
+	}
+	if (headerEnd + contentLength > length) {
+	    return -1;
+	}
+	connection.bodyStart = headerEnd;
+	connection.requestEnd = headerEnd + (int) contentLength;
+	connection.close = close || headers.substring(0,
+		headers.indexOf("\r\n")).endsWith("HTTP/1.0");
+	return 0;
+    }
+
+    /**
+      * Handles the current request of a connection, on a worker thread.
+      */
+    private void handle(Connection connection)
+    {
+	byte[] bytes = connection.in.array();
+	int lineEnd = indexOf(bytes, connection.bodyStart, HEADER_END, 2);
+	String[] requestLine = new String(bytes, 0, lineEnd,
+		StandardCharsets.ISO_8859_1).split(" ");
+	String body = new String(bytes, connection.bodyStart,
+		connection.requestEnd - connection.bodyStart,
+		StandardCharsets.UTF_8);
+	Response response;
+	try {
+	    response = requestLine.length < 2
+		? new Response("400 Bad Request", "\"Bad request line\"")
+		: route(requestLine[0], requestLine[1], body);
+	} catch (Exception e) {
+	    response = new Response("400 Bad Request",
+		    JSONValue.toJSONString(String.valueOf(e)));
+	}
+	// Keep any pipelined requests that follow
+	int next = connection.requestEnd;
+	int length = connection.in.position();
+	System.arraycopy(bytes, next, bytes, 0, length - next);
+	((Buffer) connection.in).position(length - next);
+	respond(connection, response);
+	responses.add(connection);
+	selector.wakeup();
+    }
+
+    /**
+      * Writes a response to the output buffer of a connection.
+      */
+    private static void respond(Connection connection, Response response)
+    {
+	byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+	String status = response.status;
+	String head = "HTTP/1.1 " + status + "\r\nContent-Type: application/json"
+	    + "\r\nContent-Length: " + body.length + "\r\n"
+	    + (connection.close ? "Connection: close\r\n" : "") + "\r\n";
+	ByteBuffer out = connection.out;
+	((Buffer) out).clear();
+	if (head.length() + body.length > out.capacity()) {
+	    body = "\"Response too large\"".getBytes(StandardCharsets.UTF_8);
+	    head = "HTTP/1.1 500 Internal Server Error\r\n"
+		+ "Content-Type: application/json\r\nContent-Length: "
+		+ body.length + "\r\n\r\n";
+	}
+	out.put(head.getBytes(StandardCharsets.ISO_8859_1)).put(body);
+	((Buffer) out).flip();
+    }
+
+    /**
+      * Handles a request.
+      *
+      * @param method the method, e.g. "POST"
+      * @param target the path and query
+      * @param body the body
+      *
+      * @return the response
+      *
+      * @throws Exception if the request is invalid
+      */
+    @SuppressWarnings("unchecked")
+    private Response route(String method, String target, String body)
+	throws Exception
+    {
+	int query = target.indexOf('?');
+	String path = query < 0 ? target : target.substring(0, query);
+	boolean percentile = query >= 0
+	    && target.substring(query + 1).contains("percentile=true");
+	switch (path) {
+	    case "/calculate":
+		if (!method.equals("POST")) {
+		    break;
+		}
+		Object event = PRMEvents.begin(PRMEvents.Phase.REQUEST);
+		boolean success = false;
+		try {
+		    PRMCalculator calculator = PRMBatch.parseLine(body);
+		    Object result = result(score(calculator), percentile);
+		    success = true;
+		    return new Response("200 OK",
+			    JSONValue.toJSONString(result));
+		} finally {
+		    PRMEvents.end(event, body.length(), success);
+		}
+	    case "/calculate/batch":
+		if (!method.equals("POST")) {
+		    break;
+		}
+		JSONArray results = new JSONArray();
+		for (String line : body.split("\n")) {
+		    if (!line.trim().isEmpty()) {
+			results.add(result(score(PRMBatch.parseLine(line)),
+				    percentile));
+		    }
+		}
+		return new Response("200 OK", results.toJSONString());
+	    case "/ready":
+		return new Response(warmUp.isReady() ? "200 OK"
+			: "503 Service Unavailable",
+			warmUp.toJSON().toJSONString());
+	    default:
+		return new Response("404 Not Found", "\"Not found\"");
+	}
+	return new Response("405 Method Not Allowed", "\"Method not allowed\"");
+    }
+
+    /**
+      * Scores a parsed request, journaling the score.
+      */
+    private double score(PRMCalculator calculator)
+    {
+	double probability = scorer.calculatePRMScore(calculator.getData());
+	if (journal != null) {
+	    journal.append(calculator.getPatientId(), calculator.getData(),
+		    probability, scorer.getModel().getVersion());
+	}
+	return probability;
+    }
+
+    /**
+      * Returns the response for a probability.
+      */
+    @SuppressWarnings("unchecked")
+    private static Object result(double probability, boolean percentile)
+    {
+	if (!percentile) {
+	    return probability;
+	}
+	PRMReferencePopulation reference = PRMReferencePopulation.getInstance();
+	double rank = reference.getPercentile(probability);
+	JSONObject json = new JSONObject();
+	json.put("Probability", probability);
+	json.put("Percentile", Double.isNaN(rank) ? null : rank);
+	json.put("Tier", Double.isNaN(rank) ? null : reference.getTier(rank));
+	return json;
+    }
+
+    /**
+      * Closes a connection and returns its buffers to the pool.
+      */
+    private void release(Connection connection)
+    {
+	if (connection.channel == null) {
+	    return;
+	}
+	connection.key.cancel();
+	closeQuietly(connection.channel);
+	connection.channel = null;
+	connection.key = null;
+	idle.add(connection);
+    }
+
+    /**
+      * Returns the index of the first bytes of a sequence, or -1.
+      */
+    private static int indexOf(byte[] bytes, int length, byte[] sequence,
+	    int count)
+    {
+	for (int i = 0; i + count <= length; i++) {
+	    int j = 0;
+	    while (j < count && bytes[i + j] == sequence[j]) {
+		j++;
+	    }
+	    if (j == count) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+      * Closes ignoring errors.
+      */
+    private static void closeQuietly(Closeable closeable)
+    {
+	try {
+	    closeable.close();
+	} catch (IOException e) {
+	    // Already closing
+	}
+    }
+
+    /**
+      * The main entry point. See class description.
+      *
+      * @param args command line arguments
+      */
+    public static void main(String[] args)
+    {
+	Options options = new Options();
+	options.addOption("h", "help", false, "Print this help message.");
+	options.addOption(argument("p", "port", "PORT",
+		    "Port to listen on, default 8080."));
+	options.addOption(argument("t", "threads", "N",
+		    "Number of worker threads, default all processors."));
+	options.addOption(argument("c", "connections", "N",
+		    "Maximum number of open connections, default 64."));
+	options.addOption(argument("B", "buffer-size", "KB",
+		    "Size of the request and response buffers of each"
+		    + " connection, default 64."));
+	options.addOption(argument("M", "model", "FILE",
+		    "Coefficient model file, instead of the national"
+		    + " coefficients."));
+	options.addOption(argument("r", "reference", "FILE",
+		    "Reference population, for percentiles."));
+	options.addOption(argument("W", "warm-up", "N",
+		    "Number of warm-up profiles, default 10000."));
+	options.addOption(argument("J", "journal", "DIR",
+		    "Directory of an audit journal of every score served."));
+	options.addOption(argument("L", "local", "PATH|tcp:PORT",
+		    "Also serves the binary protocol on the given Unix domain"
+		    + " socket, or loopback TCP port."));
+	try {
+	    CommandLine line = new DefaultParser().parse(options, args);
+	    if (line.hasOption("h")) {
+		new HelpFormatter().printHelp("prm-server", options, true);
+		return;
+	    }
+	    HCHRiskStratificationPRMScoreCalculator scorer
+		= HCHRiskStratificationPRMScoreCalculator.getInstance();
+	    if (line.hasOption("M")) {
+		try (Reader reader = new FileReader(line.getOptionValue("M"))) {
+		    scorer = PRMModelCalculator.read(reader);
+		}
+	    }
+	    if (line.hasOption("r")) {
+		try (InputStream in = new BufferedInputStream(
+			    new FileInputStream(line.getOptionValue("r")))) {
+		    PRMReferencePopulation.setInstance(
+			    PRMReferencePopulation.read(in));
+		}
+	    }
+	    PRMServer server = new PRMServer(scorer);
+	    if (line.hasOption("p")) {
+		server.setPort(Integer.parseInt(line.getOptionValue("p")));
+	    }
+	    if (line.hasOption("t")) {
+		server.setThreads(Integer.parseInt(line.getOptionValue("t")));
+	    }
+	    if (line.hasOption("c")) {
+		server.setConnections(Integer.parseInt(
+			    line.getOptionValue("c")));
+	    }
+	    if (line.hasOption("B")) {
+		server.setBufferSize(Integer.parseInt(
+			    line.getOptionValue("B")) * 1024);
+	    }
+	    if (line.hasOption("W")) {
+		server.setWarmUpProfiles(Integer.parseInt(
+			    line.getOptionValue("W")));
+	    }
+	    if (line.hasOption("J")) {
+		PRMAuditJournal journal = new PRMAuditJournal(
+			Paths.get(line.getOptionValue("J")))
+		    .setLog(System.err).start();
+		Runtime.getRuntime().addShutdownHook(
+			new Thread(journal::close, "prm-journal-close"));
+		server.setJournal(journal);
+	    }
+	    server.setLog(System.err).start();
+	    System.err.println("Listening on port " + server.getPort());
+	    if (line.hasOption("L")) {
+		PRMLocalServer local = new PRMLocalServer(scorer,
+			line.getOptionValue("L")).setLog(System.err).start();
+		Runtime.getRuntime().addShutdownHook(
+			new Thread(local::close, "prm-local-close"));
+		System.err.println("Listening on " + line.getOptionValue("L"));
+	    }
+	} catch (ParseException | IllegalArgumentException e) {
+	    System.err.println("Error: " + e.getMessage());
+	    new HelpFormatter().printHelp("prm-server", options, true);
+	    System.exit(1);
+	} catch (IOException e) {
+	    System.err.println("Error: " + e);
+	    System.exit(1);
+	}
+    }
+
+    /**
+      * Returns an option with an argument.
+      */
+    private static Option argument(String name, String longName,
+	    String argName, String description)
+    {
+	Option option = new Option(name, longName, true, description);
+	option.setArgName(argName);
+	return option;
+    }
+}
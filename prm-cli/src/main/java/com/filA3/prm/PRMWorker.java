@@ -0,0 +1,283 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.Nonnull;
+
+/**
+  * A worker of a batch coordinated by {@link PRMCoordinator}: connects to
+  * the coordinator, then scores each split of the batch file it is
+  * handed with {@link PRMBatch}, until it is told to stop. Each output
+  * line is the probability, followed by the percentile rank and risk
+  * tier when there is a reference population, as in a batch of
+  * {@link PRM}.
+  * <p>
+  * A worker is started with the command line of a batch and the address
+  * of the coordinator, and the token of the coordinator in the
+  * {@link PRMCoordinator#TOKEN_VARIABLE} environment variable, e.g. on
+  * another host:
+  * <pre>
+  * PRM_WORKER_TOKEN=... java -cp ... com.filA3.prm.PRM -b -d FILE -k HOST:PORT
+  * </pre>
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMWorker
+{
+    /** The size of the output frames sent */
+    private static final int OUTPUT_SIZE = 1 << 16;
+    /** The interval between progress frames, in milliseconds */
+    private static final long PROGRESS_MILLIS = 1000;
+
+    /** The calculator */
+    private final HCHRiskStratificationPRMScoreCalculator scorer;
+    /** The reference population, or null */
+    private final PRMReferencePopulation reference;
+    /** The number of batch threads */
+    private final int threads;
+
+    /**
+      * Constructor.
+      *
+      * @param scorer the calculator
+      * @param reference the reference population, or null for output
+      *                  lines of the probability only
+      * @param threads the number of batch threads, &gt;= 1
+      */
+    public PRMWorker(@Nonnull HCHRiskStratificationPRMScoreCalculator scorer,
+	    PRMReferencePopulation reference, int threads)
+    {
+	this.scorer = scorer;
+	this.reference = reference;
+	this.threads = threads;
+    }
+
+    /**
+      * Connects to the coordinator and scores the splits it hands out
+      * until it stops this worker.
+      *
+      * @param file the batch file
+      * @param address the address of the coordinator, as HOST:PORT
+      * @param token the token of the coordinator
+      *
+      * @return the number of splits scored, including those that failed
+      *
+      * @throws IOException if the connection fails
+      * @throws IllegalArgumentException if the address is invalid
+      */
+    public int run(@Nonnull Path file, @Nonnull String address,
+	    @Nonnull String token)
+	throws IOException
+    {
+	int colon = address.lastIndexOf(':');
+	if (colon < 1) {
+	    throw new IllegalArgumentException(
+		    "Invalid coordinator address: " + address);
+	}
+	int port = Integer.parseInt(address.substring(colon + 1));
+	try (Socket socket = new Socket(address.substring(0, colon), port)) {
+	    socket.setTcpNoDelay(true);
+	    DataInputStream in = new DataInputStream(
+		    new BufferedInputStream(socket.getInputStream()));
+	    DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(socket.getOutputStream(),
+			OUTPUT_SIZE + 1024));
+	    out.writeByte(PRMCoordinator.HELLO);
+	    out.writeInt(PRMCoordinator.MAGIC);
+	    out.writeInt(PRMCoordinator.VERSION);
+	    out.writeUTF(token);
+	    out.writeUTF(ManagementFactory.getRuntimeMXBean().getName());
+	    out.flush();
+	    int splits = 0;
+	    while (true) {
+		byte frame = in.readByte();
+		if (frame == PRMCoordinator.STOP) {
+		    return splits;
+		}
+		if (frame != PRMCoordinator.TASK) {
+		    throw new IOException("Invalid frame " + frame);
+		}
+		int index = in.readInt();
+		in.readInt(); // The attempt
+		long start = in.readLong();
+		long end = in.readLong();
+		score(file, index, start, end, out);
+		splits++;
+	    }
+	}
+    }
+
+    /**
+      * Scores a split and sends its frames. A failure to read or score
+      * the split is reported to the coordinator.
+      *
+      * @throws IOException if sending fails
+      */
+    private void score(Path file, int index, long start, long end,
+	    DataOutputStream out)
+	throws IOException
+    {
+	PRMDriftMonitor drift
+	    = new PRMDriftMonitor(PRMDriftMonitor.DEFAULT_WINDOW_MILLIS);
+	ByteArrayOutputStream output
+	    = new ByteArrayOutputStream(OUTPUT_SIZE + 256);
+	double[] sum = new double[1];
+	long[] lines = new long[1];
+	long[] reported = {System.currentTimeMillis()};
+	try (FileChannel channel = FileChannel.open(file,
+		    StandardOpenOption.READ);
+	     BufferedReader reader = new BufferedReader(new InputStreamReader(
+			 new Range(channel, start, end),
+			 StandardCharsets.UTF_8), 1 << 16)) {
+	    new PRMBatch(threads).process(reader,
+		    (lineNumber, line) -> {
+			PRMCalculator parsed = PRMBatch.parseLine(line);
+			double probability
+			    = scorer.calculatePRMScore(parsed.getData());
+			drift.record(parsed.getData(), probability);
+			return probability;
+		    },
+		    probability -> {
+			sum[0] += probability;
+			lines[0]++;
+			String line;
+			if (reference == null) {
+			    line = Double.toString(probability);
+			} else {
+			    double percentile
+				= reference.getPercentile(probability);
+			    line = probability + "," + percentile + ","
+				+ reference.getTier(percentile);
+			}
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+			output.write(bytes, 0, bytes.length);
+			output.write('\n');
+			try {
+			    if (output.size() >= OUTPUT_SIZE) {
+				send(index, output, out);
+			    }
+			    long now = System.currentTimeMillis();
+			    if (now - reported[0] >= PROGRESS_MILLIS) {
+				out.writeByte(PRMCoordinator.PROGRESS);
+				out.writeInt(index);
+				out.writeLong(lines[0]);
+				out.flush();
+				reported[0] = now;
+			    }
+			} catch (IOException e) {
+			    throw new UncheckedIOException(e);
+			}
+		    });
+	} catch (UncheckedIOException e) { // Sending failed
+	    throw e.getCause();
+	} catch (IOException e) { // Reading or scoring failed
+	    out.writeByte(PRMCoordinator.FAILED);
+	    out.writeInt(index);
+	    out.writeUTF("Split " + index + " from byte " + start + ": " + e);
+	    out.flush();
+	    return;
+	}
+	send(index, output, out);
+	ByteArrayOutputStream distribution = new ByteArrayOutputStream();
+	drift.getTotal().write(distribution);
+	out.writeByte(PRMCoordinator.DONE);
+	out.writeInt(index);
+	out.writeLong(lines[0]);
+	out.writeDouble(sum[0]);
+	out.writeInt(distribution.size());
+	distribution.writeTo(out);
+	out.flush();
+    }
+
+    /**
+      * Sends the output buffered, if any, as an output frame.
+      */
+    private static void send(int index, ByteArrayOutputStream output,
+	    DataOutputStream out)
+	throws IOException
+    {
+	if (output.size() > 0) {
+	    out.writeByte(PRMCoordinator.OUTPUT);
+	    out.writeInt(index);
+	    out.writeInt(output.size());
+	    output.writeTo(out);
+	    output.reset();
+	}
+    }
+
+    /**
+      * Reads a byte range of a file.
+      */
+    private static final class Range extends InputStream
+    {
+	/** The file */
+	private final FileChannel channel;
+	/** The offset of the next byte */
+	private long position;
+	/** The offset after the last byte */
+	private final long end;
+
+	/**
+	  * Constructor.
+	  */
+	private Range(FileChannel channel, long start, long end)
+	{
+	    this.channel = channel;
+	    this.position = start;
+	    this.end = end;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+	    byte[] b = new byte[1];
+	    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+	    if (position >= end) {
+		return -1;
+	    }
+	    int read = channel.read(ByteBuffer.wrap(b, off,
+			(int) Math.min(len, end - position)), position);
+	    if (read > 0) {
+		position += read;
+	    }
+	    return read;
+	}
+    }
+}
@@ -0,0 +1,148 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PRMCoordinatorTest {
+
+	private static final String TOKEN = "secret";
+
+	private static final PrintStream QUIET = new PrintStream(new ByteArrayOutputStream());
+
+	private static List<String> writeBatch(Path file, int count) throws IOException {
+		List<String> lines = new ArrayList<>();
+		String[] smoking = {"SMOKER", "NON_SMOKER", "EX_SMOKER"};
+		for (int i = 0; i < count; i++) {
+			lines.add("{\"Age\":" + (20 + i % 70) + ",\"IsFemale\":" + (i % 2 == 0)
+					+ ",\"SmokingStatus\":\"" + smoking[i % 3] + "\"}");
+		}
+		Files.write(file, lines, StandardCharsets.UTF_8);
+		return lines;
+	}
+
+	private static PRMCoordinator coordinator(Path file) throws IOException {
+		return new PRMCoordinator(file, 512,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), TOKEN)
+				.setLog(QUIET).setTimeout(500);
+	}
+
+	private static Socket hello(PRMCoordinator coordinator, String token, DataOutputStream[] out)
+			throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), coordinator.getPort());
+		socket.setSoTimeout(10000);
+		out[0] = new DataOutputStream(socket.getOutputStream());
+		out[0].writeByte(PRMCoordinator.HELLO);
+		out[0].writeInt(PRMCoordinator.MAGIC);
+		out[0].writeInt(PRMCoordinator.VERSION);
+		out[0].writeUTF(token);
+		out[0].writeUTF("fake");
+		out[0].flush();
+		return socket;
+	}
+
+	private static Thread start(Runnable runnable) {
+		Thread thread = new Thread(runnable);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	void retriesFailedAndSilentSplitsAndMergesInOrder(@TempDir Path dir) throws Exception {
+		Path file = dir.resolve("batch.ndjson");
+		List<String> lines = writeBatch(file, 200);
+		HCHRiskStratificationPRMScoreCalculator scorer = HCHRiskStratificationPRMScoreCalculator.getInstance();
+		try (PRMCoordinator coordinator = coordinator(file)) {
+			assertTrue(coordinator.getSplits() > 4);
+			// A worker that fails its first split, then goes silent on the second attempt
+			CountDownLatch silent = new CountDownLatch(1);
+			start(() -> {
+				DataOutputStream[] out = new DataOutputStream[1];
+				try (Socket socket = hello(coordinator, TOKEN, out)) {
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					assertEquals(PRMCoordinator.TASK, in.readByte());
+					int index = in.readInt();
+					assertEquals(0, in.readInt());
+					in.readLong();
+					in.readLong();
+					out[0].writeByte(PRMCoordinator.FAILED);
+					out[0].writeInt(index);
+					out[0].writeUTF("Failing on purpose");
+					out[0].flush();
+					assertEquals(PRMCoordinator.TASK, in.readByte());
+					assertEquals(index, in.readInt());
+					assertEquals(1, in.readInt());
+					silent.countDown();
+					in.readByte(); // Until the coordinator gives up
+				} catch (EOFException e) {
+					// Timed out by the coordinator
+				} catch (IOException e) {
+					// Closed by the coordinator
+				}
+			});
+			assertTrue(silent.await(10, TimeUnit.SECONDS));
+			AtomicReference<Exception> error = new AtomicReference<>();
+			Thread worker = start(() -> {
+				try {
+					new PRMWorker(scorer, null, 1).run(file,
+							"127.0.0.1:" + coordinator.getPort(), TOKEN);
+				} catch (Exception e) {
+					error.set(e);
+				}
+			});
+			coordinator.await();
+			worker.join(10000);
+			assertEquals(null, error.get());
+
+			assertEquals(2, coordinator.getRetries());
+			assertEquals(2, coordinator.getWorkers());
+			assertEquals(lines.size(), coordinator.getLines());
+			ByteArrayOutputStream merged = new ByteArrayOutputStream();
+			coordinator.merge(merged, null);
+			StringBuilder expected = new StringBuilder();
+			double sum = 0;
+			for (String line : lines) {
+				double probability = scorer.calculatePRMScore(PRMBatch.parseLine(line).getData());
+				sum += probability;
+				expected.append(probability).append('\n');
+			}
+			assertEquals(expected.toString(), new String(merged.toByteArray(), StandardCharsets.UTF_8));
+			assertEquals(sum / lines.size(), coordinator.getMeanProbability(), 1e-12);
+			assertEquals(lines.size(), coordinator.getDistribution().getProfiles());
+		}
+	}
+
+	@Test
+	void refusesWorkerWithoutToken(@TempDir Path dir) throws Exception {
+		Path file = dir.resolve("batch.ndjson");
+		writeBatch(file, 20);
+		try (PRMCoordinator coordinator = coordinator(file)) {
+			DataOutputStream[] out = new DataOutputStream[1];
+			try (Socket socket = hello(coordinator, "guess", out)) {
+				assertEquals(-1, socket.getInputStream().read());
+			}
+			assertEquals(0, coordinator.getWorkers());
+		}
+	}
+}
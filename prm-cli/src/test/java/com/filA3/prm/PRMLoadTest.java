@@ -0,0 +1,53 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class PRMLoadTest {
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject report(long requests, long errors, Double p99) {
+		JSONObject micros = new JSONObject();
+		micros.put("P99", p99);
+		JSONObject report = new JSONObject();
+		report.put("Requests", requests);
+		report.put("Errors", errors);
+		report.put("LatencyMicros", micros);
+		return report;
+	}
+
+	@Test
+	void latencyWithinTolerance() {
+		JSONObject baseline = report(1000, 0, 100.0);
+		assertNull(PRMLoad.regression(report(1000, 0, 109.0), baseline, 10));
+		assertNull(PRMLoad.regression(report(1000, 0, 50.0), baseline, 10));
+		assertTrue(PRMLoad.regression(report(1000, 0, 111.0), baseline, 10).startsWith("p99"));
+	}
+
+	@Test
+	void noSuccessIsARegression() {
+		String regression = PRMLoad.regression(report(0, 1000, null), report(1000, 0, 100.0), 10);
+		assertNotNull(regression);
+		assertTrue(regression.contains("1000 errors"), regression);
+	}
+
+	@Test
+	void moreErrorsIsARegression() {
+		JSONObject baseline = report(990, 10, 100.0);
+		assertNull(PRMLoad.regression(report(990, 10, 90.0), baseline, 10));
+		assertTrue(PRMLoad.regression(report(980, 20, 90.0), baseline, 10).startsWith("error rate"));
+		assertTrue(PRMLoad.regression(report(999, 1, 90.0), report(1000, 0, 100.0), 10)
+				.startsWith("error rate"));
+	}
+
+	@Test
+	void baselineWithoutSuccessIsRejected() {
+		assertThrows(IllegalArgumentException.class,
+				() -> PRMLoad.regression(report(10, 0, 100.0), report(0, 10, null), 10));
+	}
+}
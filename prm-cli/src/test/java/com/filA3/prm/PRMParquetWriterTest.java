@@ -0,0 +1,155 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class PRMParquetWriterTest {
+
+	private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+
+	/** Decodes the Thrift compact protocol: structs as maps of field ids, lists, longs and byte arrays. */
+	private static final class Compact {
+		private final ByteBuffer in;
+
+		Compact(ByteBuffer in) {
+			this.in = in;
+		}
+
+		long varint() {
+			long value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = in.get();
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) {
+					return value;
+				}
+				if (shift > 63) {
+					throw new IllegalStateException("Varint too long");
+				}
+			}
+		}
+
+		long zigzag() {
+			long value = varint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		Map<Integer, Object> struct() {
+			Map<Integer, Object> fields = new HashMap<>();
+			int id = 0;
+			while (true) {
+				int header = in.get() & 0xff;
+				if (header == 0) {
+					return fields;
+				}
+				int delta = header >> 4;
+				id = delta != 0 ? id + delta : (int) zigzag();
+				fields.put(id, value(header & 0x0f));
+			}
+		}
+
+		Object value(int type) {
+			switch (type) {
+			case 1:
+				return true;
+			case 2:
+				return false;
+			case 4:
+			case 5:
+			case 6:
+				return zigzag();
+			case 8:
+				byte[] bytes = new byte[(int) varint()];
+				in.get(bytes);
+				return bytes;
+			case 9:
+				int header = in.get() & 0xff;
+				int size = header >> 4 == 15 ? (int) varint() : header >> 4;
+				List<Object> list = new ArrayList<>();
+				for (int i = 0; i < size; i++) {
+					list.add(value(header & 0x0f));
+				}
+				return list;
+			case 12:
+				return struct();
+			default:
+				throw new IllegalStateException("Unexpected type " + type);
+			}
+		}
+	}
+
+	private static String string(Object bytes) {
+		return new String((byte[]) bytes, StandardCharsets.UTF_8);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T get(Object struct, int id) {
+		return (T) ((Map<Integer, Object>) struct).get(id);
+	}
+
+	@Test
+	void footerDescribesSchemaAndRowGroups() throws Exception {
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setAge(70);
+		data.setIsFemale(true);
+		data.setDiseases(EnumSet.of(HCHRiskStratificationPRMData.Disease.values()[0]));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (PRMParquetWriter writer = new PRMParquetWriter(out, true).setRowGroupSize(3)) {
+			for (int i = 0; i < 7; i++) {
+				writer.write("p" + i, 0.1 * i, -1.5 + i, "1.0", data);
+			}
+			assertEquals(7, writer.getRows());
+		}
+		byte[] file = out.toByteArray();
+		assertArrayEquals(MAGIC, Arrays.copyOfRange(file, 0, 4));
+		assertArrayEquals(MAGIC, Arrays.copyOfRange(file, file.length - 4, file.length));
+		int footerLength = ByteBuffer.wrap(file, file.length - 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		int footerStart = file.length - 8 - footerLength;
+		ByteBuffer footer = ByteBuffer.wrap(file, footerStart, footerLength);
+		Map<Integer, Object> metadata = new Compact(footer).struct();
+		// The footer decodes to exactly its length
+		assertEquals(file.length - 8, footer.position());
+
+		assertEquals(7L, (long) get(metadata, 3));
+		List<Object> schema = get(metadata, 2);
+		int columns = 4 + 2 + PRMField.values().length + 2;
+		assertEquals(columns + 1, schema.size());
+		assertEquals((long) columns, (long) get(schema.get(0), 5));
+		assertEquals("PatientId", string(get(schema.get(1), 4)));
+		assertEquals(6L, (long) get(schema.get(1), 1)); // BYTE_ARRAY
+		assertEquals(5L, (long) get(schema.get(2), 1)); // DOUBLE
+		assertEquals("MedicationGroupCount", string(get(schema.get(columns), 4)));
+
+		List<Object> rowGroups = get(metadata, 4);
+		assertEquals(3, rowGroups.size());
+		long[] rows = {3, 3, 1};
+		long offset = 4;
+		for (int g = 0; g < rowGroups.size(); g++) {
+			Object rowGroup = rowGroups.get(g);
+			assertEquals(rows[g], (long) get(rowGroup, 3));
+			List<Object> chunks = get(rowGroup, 1);
+			assertEquals(columns, chunks.size());
+			for (Object chunk : chunks) {
+				// Column chunks are contiguous, starting after the magic
+				assertEquals(offset, (long) get(chunk, 2));
+				Object chunkMetadata = get(chunk, 3);
+				assertEquals(rows[g], (long) get(chunkMetadata, 5));
+				offset += (long) get(chunkMetadata, 7);
+			}
+		}
+		assertEquals(footerStart, offset);
+	}
+}
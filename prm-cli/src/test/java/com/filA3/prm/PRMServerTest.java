@@ -0,0 +1,173 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PRMServerTest {
+
+	private static final String PROFILE = "{\"Age\":70,\"IsFemale\":true,\"SmokingStatus\":\"SMOKER\"}";
+
+	private PRMServer server;
+
+	/** A response: its status line, headers and body. */
+	private static final class Response {
+		final String head;
+		final String body;
+
+		Response(String head, String body) {
+			this.head = head;
+			this.body = body;
+		}
+
+		int status() {
+			return Integer.parseInt(head.split(" ")[1]);
+		}
+	}
+
+	@BeforeEach
+	void start() throws IOException {
+		server = new PRMServer(HCHRiskStratificationPRMScoreCalculator.getInstance())
+				.setPort(0).setThreads(2).setConnections(4).setBufferSize(4096)
+				.setWarmUpProfiles(0).start();
+	}
+
+	@AfterEach
+	void stop() {
+		server.close();
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static String post(String path, String body) {
+		return "POST " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: "
+				+ body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+	}
+
+	private static void send(Socket socket, String request) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(request.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/** Reads a response, or returns null at the end of the connection. */
+	private static Response receive(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int b;
+		while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+			if ((b = in.read()) < 0) {
+				return null;
+			}
+			head.write(b);
+		}
+		String headers = head.toString("ISO-8859-1");
+		int length = 0;
+		for (String header : headers.split("\r\n")) {
+			if (header.toLowerCase().startsWith("content-length:")) {
+				length = Integer.parseInt(header.substring(15).trim());
+			}
+		}
+		byte[] body = new byte[length];
+		for (int read = 0; read < length; ) {
+			int count = in.read(body, read, length - read);
+			if (count < 0) {
+				throw new IOException("Truncated body");
+			}
+			read += count;
+		}
+		return new Response(headers, new String(body, StandardCharsets.UTF_8));
+	}
+
+	private static double expected() throws Exception {
+		return HCHRiskStratificationPRMScoreCalculator.getInstance()
+				.calculatePRMScore(PRMBatch.parseLine(PROFILE).getData());
+	}
+
+	@Test
+	void keepsConnectionsAliveAndAnswersPipelinedRequestsInOrder() throws Exception {
+		try (Socket socket = connect()) {
+			send(socket, post("/calculate", PROFILE));
+			Response first = receive(socket);
+			assertEquals(200, first.status());
+			assertEquals(expected(), Double.parseDouble(first.body), 0);
+
+			// Three requests in one write, on the same connection
+			send(socket, post("/calculate", PROFILE) + "GET /nowhere HTTP/1.1\r\n\r\n"
+					+ post("/calculate/batch", PROFILE + "\n" + PROFILE + "\n"));
+			assertEquals(200, receive(socket).status());
+			assertEquals(404, receive(socket).status());
+			Response batch = receive(socket);
+			assertEquals("[" + expected() + "," + expected() + "]", batch.body);
+
+			send(socket, "GET /calculate HTTP/1.1\r\n\r\n");
+			assertEquals(405, receive(socket).status());
+		}
+	}
+
+	@Test
+	void waitsForTheWholeBodyGivenByContentLength() throws Exception {
+		try (Socket socket = connect()) {
+			String request = post("/calculate", PROFILE);
+			int split = request.indexOf("\r\n\r\n") + 10;
+			send(socket, request.substring(0, split));
+			Thread.sleep(100);
+			send(socket, request.substring(split));
+			assertEquals(expected(), Double.parseDouble(receive(socket).body), 0);
+
+			// Without a length there is no body to parse
+			send(socket, "POST /calculate HTTP/1.1\r\n\r\n");
+			assertEquals(400, receive(socket).status());
+		}
+		try (Socket socket = connect()) {
+			send(socket, "POST /calculate HTTP/1.1\r\nContent-Length: 5000\r\n\r\n{");
+			Response response = receive(socket);
+			assertEquals(413, response.status());
+			assertTrue(response.head.contains("Connection: close"));
+			assertEquals(null, receive(socket));
+		}
+		try (Socket socket = connect()) {
+			send(socket, "POST /calculate HTTP/1.0\r\nContent-Length: " + PROFILE.length() + "\r\n\r\n" + PROFILE);
+			assertEquals(200, receive(socket).status());
+			assertEquals(null, receive(socket));
+		}
+	}
+
+	@Test
+	void refusesMalformedRequests() throws IOException {
+		String[] requests = {
+			"GARBAGE\r\n\r\n",
+			"POST /calculate HTTP/1.1\r\nContent-Length: abc\r\n\r\n",
+			"POST /calculate HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+			"POST /calculate HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n",
+			post("/calculate", "{\"Age\":"),
+		};
+		int[] statuses = {400, 400, 400, 411, 400};
+		for (int i = 0; i < requests.length; i++) {
+			try (Socket socket = connect()) {
+				send(socket, requests[i]);
+				assertEquals(statuses[i], receive(socket).status(), requests[i]);
+			}
+		}
+		// The connections refused were all released
+		try (Socket socket = connect()) {
+			send(socket, post("/calculate", PROFILE));
+			assertEquals(200, receive(socket).status());
+		}
+	}
+}
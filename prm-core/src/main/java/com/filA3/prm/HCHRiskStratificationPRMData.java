@@ -22,7 +22,6 @@ import java.util.Set;
 
 import javax.annotation.Nonnull;
 
-import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 
 /**
  * This class represents the basic input information for the HCH Risk
@@ -813,6 +812,31 @@ public class HCHRiskStratificationPRMData
     @Override
     public String toString()
     {
-        return ReflectionToStringBuilder.toString(this);
+        return getClass().getName() + "@"
+	    + Integer.toHexString(System.identityHashCode(this))
+	    + "[age=" + age
+	    + ",isFemale=" + isFemale
+	    + ",ethnicity=" + ethnicity
+	    + ",bmiCategory=" + bmiCategory
+	    + ",smokingStatus=" + smokingStatus
+	    + ",alcoholStatus=" + alcoholStatus
+	    + ",irsadDecile=" + irsadDecile
+	    + ",medicationGroups=" + medicationGroups
+	    + ",diseases=" + diseases
+	    + ",haemoglobinCategory=" + haemoglobinCategory
+	    + ",plateletsCategory=" + plateletsCategory
+	    + ",alanineAminotransferaseCategory="
+	    + alanineAminotransferaseCategory
+	    + ",gammaGTCategory=" + gammaGTCategory
+	    + ",hba1cCategory=" + hba1cCategory
+	    + ",bilirubinCategory=" + bilirubinCategory
+	    + ",cholesterolCategory=" + cholesterolCategory
+	    + ",creatinineCategory=" + creatinineCategory
+	    + ",triglyceridesCategory=" + triglyceridesCategory
+	    + ",albuminCreatinineRatioCategory="
+	    + albuminCreatinineRatioCategory
+	    + ",ldlCategory=" + ldlCategory
+	    + ",eGFRCategory=" + eGFRCategory
+	    + ",bloodPressureCategory=" + bloodPressureCategory + "]";
     }
 }
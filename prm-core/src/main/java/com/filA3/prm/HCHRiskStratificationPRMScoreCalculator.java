@@ -250,6 +250,14 @@ public class HCHRiskStratificationPRMScoreCalculator
 	GENDER_FFEMALE_DISEASEGRP_DIABETES_TYPE_2_FLAG_COEFFICIENT
 	= BigDecimal.valueOf(-0.0002784439d);
 
+    /** The version of the national coefficients */
+    public static final String NATIONAL_MODEL_VERSION = "HCH-national";
+
+    /**
+      * The national coefficients as a model.
+      */
+    private static final PRMModel NATIONAL_MODEL = createNationalModel();
+
     /**
       * Instance of the calculator.
       */
@@ -281,14 +289,273 @@ public class HCHRiskStratificationPRMScoreCalculator
       */
     public double calculatePRMScore(@Nonnull HCHRiskStratificationPRMData data)
     {
-        BigDecimal linearPredictor = calculateLinearPredictor(data);
-
-        BigDecimal exponent =
-	    BigDecimal.valueOf(Math.exp(linearPredictor.doubleValue()));
-        BigDecimal probability = exponent.divide(
-		BigDecimal.valueOf(1).add(exponent), PRECISION,
-		RoundingMode.HALF_UP);
-        return probability.doubleValue();
+	Object event = PRMEvents.begin(PRMEvents.Phase.SCORE);
+        double probability = calculatePRMScore(
+		calculateLinearPredictor(data).doubleValue());
+	PRMEvents.end(event, 1, true, NATIONAL_MODEL_VERSION);
+        return probability;
+    }
+
+    /**
+      * Converts a linear predictor to a hospitalisation probability, the
+      * same that {@link #calculatePRMScore(HCHRiskStratificationPRMData)}
+      * returns for the data of the linear predictor, so that both may be
+      * had from a single calculation.
+      *
+      * @param linearPredictor the linear predictor, as returned by
+      *                        {@link #calculatePRMLinearPredictor}
+      *
+      * @return the probability
+      */
+    public double calculatePRMScore(double linearPredictor)
+    {
+        BigDecimal exponent = BigDecimal.valueOf(Math.exp(linearPredictor));
+        return exponent.divide(BigDecimal.valueOf(1).add(exponent),
+		PRECISION, RoundingMode.HALF_UP).doubleValue();
+    }
+
+    /**
+      * Given data, calculates the linear predictor, i.e. the log odds of
+      * hospitalisation before it is converted to a probability.
+      * <p>
+      * Apart from age and the disease terms, the linear predictor is a
+      * sum of one term per field, so the effect of changing a single
+      * field can be obtained by difference.
+      *
+      * @param data the input data
+      *
+      * @return the linear predictor
+      */
+    public double calculatePRMLinearPredictor(
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+        return calculateLinearPredictor(data).doubleValue();
+    }
+
+    /**
+      * Returns the coefficients of age, age squared and age cubed in the
+      * linear predictor. No other term of the linear predictor depends
+      * on age.
+      *
+      * @return the three age coefficients
+      */
+    public double[] getAgeCoefficients()
+    {
+        return new double[] {AGE_COEFFICIENT.doubleValue(),
+	    AGE_SQ_COEFFICIENT.doubleValue(), AGE_CU_COEFFICIENT.doubleValue()};
+    }
+
+    /**
+      * Returns the coefficients of this calculator as a model, e.g. as
+      * the starting point of a local refit.
+      *
+      * @return the model
+      */
+    public PRMModel getModel()
+    {
+        return NATIONAL_MODEL;
+    }
+
+    /**
+      * Returns the national coefficients as a model over the columns of
+      * {@link PRMDesign}.
+      */
+    private static PRMModel createNationalModel()
+    {
+	double[] coefficients = new double[PRMDesign.size()];
+	coefficients[PRMDesign.column("INTERCEPT")]
+	    = INTERCEPT.doubleValue();
+	coefficients[PRMDesign.column("AGE")]
+	    = AGE_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("AGE_SQ")]
+	    = AGE_SQ_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("AGE_CU")]
+	    = AGE_CU_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE")]
+	    = GENDER_FFEMALE_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("ETHNICITY_FATSI")]
+	    = ETHNICITY_FATSI_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("ETHNICITY_FUNKNOWN")]
+	    = ETHNICITY_FUNKNOWN_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("BMI_7CAT_25_30")]
+	    = BMI_7CAT_25_30_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("BMI_7CAT_30_35")]
+	    = BMI_7CAT_30_35_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("BMI_7CAT_35_40")]
+	    = BMI_7CAT_35_40_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("BMI_7CAT40")]
+	    = BMI_7CAT40_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("BMI_7CATNOT_RECORDED")]
+	    = BMI_7CATNOT_RECORDED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("SMOKINGSTATUS_4CATEX_SMOKER")]
+	    = SMOKINGSTATUS_4CATEX_SMOKER_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("SMOKINGSTATUS_4CATSMOKER")]
+	    = SMOKINGSTATUS_4CATSMOKER_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("SMOKINGSTATUS_4CATUNKNOWN")]
+	    = SMOKINGSTATUS_4CATUNKNOWN_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("ANYALCOHOL_3CATDRINKER")]
+	    = ANYALCOHOL_3CATDRINKER_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("ANYALCOHOL_3CATNOT_RECORDED")]
+	    = ANYALCOHOL_3CATNOT_RECORDED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F1")]
+	    = DECILE_IRSAD_F1_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F10")]
+	    = DECILE_IRSAD_F10_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F2")]
+	    = DECILE_IRSAD_F2_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F3")]
+	    = DECILE_IRSAD_F3_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F4")]
+	    = DECILE_IRSAD_F4_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F6")]
+	    = DECILE_IRSAD_F6_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F7")]
+	    = DECILE_IRSAD_F7_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F8")]
+	    = DECILE_IRSAD_F8_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_F9")]
+	    = DECILE_IRSAD_F9_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DECILE_IRSAD_FUNKNOWN")]
+	    = DECILE_IRSAD_FUNKNOWN_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MEDS_STATINS_FLAG")]
+	    = MEDS_STATINS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MEDS_ANTICOAGULANTS_FLAG")]
+	    = MEDS_ANTICOAGULANTS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MEDS_ANTIDEPRESSANTS_FLAG")]
+	    = MEDS_ANTIDEPRESSANTS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MEDS_ANTIPSYCHOTICS_FLAG")]
+	    = MEDS_ANTIPSYCHOTICS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MEDS_ANTIINFLAMMATORY_FLAG")]
+	    = MEDS_ANTIINFLAMMATORY_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MEDS_STEROIDS_FLAG")]
+	    = MEDS_STEROIDS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("NUMDISEASES")]
+	    = NUMDISEASES_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("NUMDISEASES_SQ")]
+	    = NUMDISEASES_SQ_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("NUMDISEASES_CU")]
+	    = NUMDISEASES_CU_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_RESPIRATORY_FLAG")]
+	    = DISEASEGRP_RESPIRATORY_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_ATRIAL_FIBR_FLAG")]
+	    = DISEASEGRP_ATRIAL_FIBR_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_CARDIOVASCULAR_FLAG")]
+	    = DISEASEGRP_CARDIOVASCULAR_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_OSTEOARTHRITIS_FLAG")]
+	    = DISEASEGRP_OSTEOARTHRITIS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_OSTEOPOROSIS_FLAG")]
+	    = DISEASEGRP_OSTEOPOROSIS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_RHEUMATOID_FLAG")]
+	    = DISEASEGRP_RHEUMATOID_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_MENTAL_HEALTH_FLAG")]
+	    = DISEASEGRP_MENTAL_HEALTH_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_CANCER_FLAG")]
+	    = DISEASEGRP_CANCER_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_DIGESTIVE_FLAG")]
+	    = DISEASEGRP_DIGESTIVE_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_HYPERTENSION_FLAG")]
+	    = DISEASEGRP_HYPERTENSION_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_BLOODFATS_FLAG")]
+	    = DISEASEGRP_BLOODFATS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_CHRONIC_KIDNEY_FLAG")]
+	    = DISEASEGRP_CHRONIC_KIDNEY_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_DIABETES_TYPE_1_FLAG")]
+	    = DISEASEGRP_DIABETES_TYPE_1_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_DIABETES_TYPE_2_FLAG")]
+	    = DISEASEGRP_DIABETES_TYPE_2_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_VENOUS_THROMBO_FLAG")]
+	    = DISEASEGRP_VENOUS_THROMBO_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("DISEASEGRP_OTHER_FLAG")]
+	    = DISEASEGRP_OTHER_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_HB_4CATHIGH")]
+	    = MORB_V2_HB_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_HB_4CATMED")]
+	    = MORB_V2_HB_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_HB_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_HB_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_PLATELETS_4CATHIGH")]
+	    = MORB_V2_PLATELETS_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_PLATELETS_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_PLATELETS_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_ALT_4CATHIGH")]
+	    = MORB_V2_ALT_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_ALT_4CATMED")]
+	    = MORB_V2_ALT_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_ALT_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_ALT_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_GGT_4CATHIGH")]
+	    = MORB_V2_GGT_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_GGT_4CATMED")]
+	    = MORB_V2_GGT_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_GGT_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_GGT_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_HBA1C_4CATHIGH")]
+	    = MORB_V2_HBA1C_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_HBA1C_4CATMED")]
+	    = MORB_V2_HBA1C_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_HBA1C_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_HBA1C_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_BILIRUBIN_3CATMED_OR_HIGH")]
+	    = MORB_V2_BILIRUBIN_3CATMED_OR_HIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_BILIRUBIN_3CATNO_TEST_HISTORY")]
+	    = MORB_V2_BILIRUBIN_3CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_CHOLESTEROL_4CATHIGH")]
+	    = MORB_V2_CHOLESTEROL_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_CHOLESTEROL_4CATMED")]
+	    = MORB_V2_CHOLESTEROL_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_CHOLESTEROL_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_CHOLESTEROL_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_CREATININE_3CATMED_OR_HIGH")]
+	    = MORB_V2_CREATININE_3CATMED_OR_HIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_CREATININE_3CATNO_TEST_HISTORY")]
+	    = MORB_V2_CREATININE_3CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_TAG_3CATMED_OR_HIGH")]
+	    = MORB_V2_TAG_3CATMED_OR_HIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_TAG_3CATNO_TEST_HISTORY")]
+	    = MORB_V2_TAG_3CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_ACR_4CATHIGH")]
+	    = MORB_V2_ACR_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_ACR_4CATMED")]
+	    = MORB_V2_ACR_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_ACR_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_ACR_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_LDL_4CATHIGH")]
+	    = MORB_V2_LDL_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_LDL_4CATMED")]
+	    = MORB_V2_LDL_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_LDL_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_LDL_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_EGFR_4CATHIGH")]
+	    = MORB_V2_EGFR_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_EGFR_4CATMED")]
+	    = MORB_V2_EGFR_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_EGFR_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_EGFR_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_BP_4CATHIGH")]
+	    = MORB_V2_BP_4CATHIGH_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_BP_4CATMED")]
+	    = MORB_V2_BP_4CATMED_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("MORB_V2_BP_4CATNO_TEST_HISTORY")]
+	    = MORB_V2_BP_4CATNO_TEST_HISTORY_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_CARDIOVASCULAR_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_CARDIOVASCULAR_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_RESPIRATORY_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_RESPIRATORY_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_DIABETES_TYPE_1_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_DIABETES_TYPE_1_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_OTHER_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_OTHER_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_OSTEOPOROSIS_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_OSTEOPOROSIS_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_CHRONIC_KIDNEY_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_CHRONIC_KIDNEY_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_MENTAL_HEALTH_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_MENTAL_HEALTH_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_HYPERTENSION_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_HYPERTENSION_FLAG_COEFFICIENT.doubleValue();
+	coefficients[PRMDesign.column("GENDER_FFEMALE_DISEASEGRP_DIABETES_TYPE_2_FLAG")]
+	    = GENDER_FFEMALE_DISEASEGRP_DIABETES_TYPE_2_FLAG_COEFFICIENT.doubleValue();
+	return new PRMModel(NATIONAL_MODEL_VERSION, coefficients);
     }
 
     /**
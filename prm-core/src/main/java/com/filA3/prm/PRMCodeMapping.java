@@ -0,0 +1,483 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+
+/**
+  * Maps clinical codes, e.g. ICD-10 or SNOMED diagnosis codes and ATC drug
+  * codes, to {@link Disease} and {@link MedicationGroup} values, so that
+  * callers can send the codes of their source systems.
+  * <p>
+  * Rules map either an exact code or a code prefix to a value, and are
+  * read from a CSV file such as the bundled default, "code-mapping.csv":
+  * <pre>
+  * # code[*],target
+  * J45*,Disease.ASTHMA
+  * 44054006,Disease.DIABETES_TYPE_2
+  * C10AA*,MedicationGroup.STATINS
+  * </pre>
+  * Codes are compared ignoring case, dots and spaces. An exact rule takes
+  * precedence over prefixes, and a longer prefix over a shorter one.
+  * Diagnosis codes are only mapped by disease rules and drug codes by
+  * medication group rules, so that e.g. the ATC code C09AA is not taken
+  * for the ICD-10 cancer chapter C.
+  * <p>
+  * The rules of each kind are held in a trie of letters and digits
+  * stored in flat arrays, so a code is mapped in a single walk of its
+  * characters. The number of mapped and unmapped codes is counted, and
+  * the first unmapped codes individually, to show where rules are
+  * missing; those are normalized as they are compared and truncated, so
+  * that the memory they take is bounded whatever codes are sent. The
+  * mapping used when parsing data objects is shared and may be replaced
+  * at any time with {@link #setInstance}.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMCodeMapping
+{
+    /** The bundled default rules */
+    private static final String DEFAULT_RESOURCE = "code-mapping.csv";
+    /** The number of distinct unmapped codes that are counted */
+    private static final int MAX_UNMAPPED_CODES = 1000;
+    /** The length at which unmapped codes are truncated */
+    private static final int MAX_UNMAPPED_LENGTH = 16;
+    /** The number of characters: digits then letters */
+    private static final int ALPHABET = 36;
+    /** No target */
+    private static final int NONE = -1;
+    /** Index of characters that are ignored */
+    private static final int SKIP = -2;
+
+    /** The diseases by ordinal */
+    private static final Disease[] DISEASES = Disease.values();
+    /** The medication groups by ordinal */
+    private static final MedicationGroup[] MEDICATION_GROUPS
+	= MedicationGroup.values();
+
+    /** The shared mapping, loaded on first use */
+    private static volatile PRMCodeMapping instance;
+
+    /** The rules mapping diagnosis codes to disease ordinals */
+    private final Trie diseaseRules = new Trie();
+    /** The rules mapping drug codes to medication group ordinals */
+    private final Trie medicationRules = new Trie();
+
+    /** The number of mapped codes */
+    private final LongAdder mapped = new LongAdder();
+    /** The number of unmapped codes */
+    private final LongAdder unmapped = new LongAdder();
+    /** The counts of the first unmapped codes seen */
+    private final Map<String, LongAdder> unmappedCodes
+	= new ConcurrentHashMap<>();
+
+    /**
+      * Constructor, for an empty mapping.
+      */
+    private PRMCodeMapping()
+    {
+    }
+
+    /**
+      * Returns the shared mapping, the bundled default unless replaced.
+      *
+      * @return the mapping
+      */
+    public static PRMCodeMapping getInstance()
+    {
+	PRMCodeMapping mapping = instance;
+	if (mapping == null) {
+	    try (InputStream in = PRMCodeMapping.class
+		    .getResourceAsStream(DEFAULT_RESOURCE)) {
+		if (in == null) {
+		    throw new IOException(DEFAULT_RESOURCE + " not found");
+		}
+		mapping = read(new InputStreamReader(in,
+			    StandardCharsets.UTF_8));
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    instance = mapping;
+	}
+	return mapping;
+    }
+
+    /**
+      * Replaces the shared mapping.
+      *
+      * @param mapping the new mapping
+      */
+    public static void setInstance(@Nonnull PRMCodeMapping mapping)
+    {
+	instance = mapping;
+    }
+
+    /**
+      * Reads rules from CSV. Blank lines and lines starting with # are
+      * ignored; for the same code, later rules replace earlier ones.
+      *
+      * @param reader the CSV
+      *
+      * @return the mapping
+      *
+      * @throws IOException if reading fails, or a line is invalid
+      */
+    public static PRMCodeMapping read(@Nonnull Reader reader)
+	throws IOException
+    {
+	PRMCodeMapping mapping = new PRMCodeMapping();
+	BufferedReader in = new BufferedReader(reader);
+	String line;
+	int lineNumber = 0;
+	while ((line = in.readLine()) != null) {
+	    lineNumber++;
+	    line = line.trim();
+	    if (line.isEmpty() || line.startsWith("#")) {
+		continue;
+	    }
+	    String[] values = line.split(",");
+	    try {
+		String code = values[0].trim();
+		boolean isPrefix = code.endsWith("*");
+		if (isPrefix) {
+		    code = code.substring(0, code.length() - 1);
+		}
+		String target = values[1].trim();
+		if (target.startsWith("Disease.")) {
+		    mapping.diseaseRules.add(code, isPrefix, Disease.valueOf(
+				target.substring("Disease.".length())).ordinal());
+		} else if (target.startsWith("MedicationGroup.")) {
+		    mapping.medicationRules.add(code, isPrefix,
+			    MedicationGroup.valueOf(target.substring(
+				    "MedicationGroup.".length())).ordinal());
+		} else {
+		    throw new IllegalArgumentException("Invalid target: "
+			    + target);
+		}
+	    } catch (RuntimeException e) {
+		throw new IOException("Line " + lineNumber + ": " + line, e);
+	    }
+	}
+	return mapping;
+    }
+
+    /**
+      * Returns the number of rules.
+      *
+      * @return the number of rules
+      */
+    public int size()
+    {
+	return diseaseRules.rules + medicationRules.rules;
+    }
+
+    /**
+      * Returns the disease a diagnosis code maps to.
+      *
+      * @param code the code
+      *
+      * @return the disease, or null if the code maps to none
+      */
+    public Disease getDisease(@Nonnull CharSequence code)
+    {
+	int target = diseaseRules.lookup(code);
+	return target == NONE ? null : DISEASES[target];
+    }
+
+    /**
+      * Returns the medication group a drug code maps to.
+      *
+      * @param code the code
+      *
+      * @return the medication group, or null if the code maps to none
+      */
+    public MedicationGroup getMedicationGroup(@Nonnull CharSequence code)
+    {
+	int target = medicationRules.lookup(code);
+	return target == NONE ? null : MEDICATION_GROUPS[target];
+    }
+
+    /**
+      * Maps diagnosis codes and adds the diseases to the data. Every code
+      * is counted as mapped or unmapped.
+      *
+      * @param data the data
+      * @param codes the codes, strings or numbers
+      */
+    public void applyDiagnoses(@Nonnull HCHRiskStratificationPRMData data,
+	    @Nonnull Iterable<?> codes)
+    {
+	long diseases = map(diseaseRules, codes);
+	if (diseases != 0) {
+	    Set<Disease> set = EnumSet.noneOf(Disease.class);
+	    set.addAll(data.getDiseases());
+	    for (Disease disease : DISEASES) {
+		if ((diseases & (1L << disease.ordinal())) != 0) {
+		    set.add(disease);
+		}
+	    }
+	    data.setDiseases(set);
+	}
+    }
+
+    /**
+      * Maps drug codes and adds the medication groups to the data. Every
+      * code is counted as mapped or unmapped.
+      *
+      * @param data the data
+      * @param codes the codes, strings or numbers
+      */
+    public void applyMedications(@Nonnull HCHRiskStratificationPRMData data,
+	    @Nonnull Iterable<?> codes)
+    {
+	long groups = map(medicationRules, codes);
+	if (groups != 0) {
+	    Set<MedicationGroup> set = EnumSet.noneOf(MedicationGroup.class);
+	    set.addAll(data.getMedicationGroups());
+	    for (MedicationGroup group : MEDICATION_GROUPS) {
+		if ((groups & (1L << group.ordinal())) != 0) {
+		    set.add(group);
+		}
+	    }
+	    data.setMedicationGroups(set);
+	}
+    }
+
+    /**
+      * Returns the number of codes that were mapped.
+      *
+      * @return the number of mapped codes
+      */
+    public long getMapped()
+    {
+	return mapped.sum();
+    }
+
+    /**
+      * Returns the number of codes that could not be mapped.
+      *
+      * @return the number of unmapped codes
+      */
+    public long getUnmapped()
+    {
+	return unmapped.sum();
+    }
+
+    /**
+      * Returns the counts of unmapped codes. Only the first 1000 distinct
+      * codes are counted individually, in upper case without dots and
+      * spaces; codes longer than 16 characters are truncated and end in
+      * "*", and characters that are not letters or digits are "?".
+      *
+      * @return the count of each unmapped code, sorted by code
+      */
+    public Map<String, Long> getUnmappedCodes()
+    {
+	Map<String, Long> counts = new TreeMap<>();
+	for (Map.Entry<String, LongAdder> entry : unmappedCodes.entrySet()) {
+	    counts.put(entry.getKey(), entry.getValue().sum());
+	}
+	return counts;
+    }
+
+    /**
+      * Maps codes with a trie, counting them, and returns the bit mask of
+      * the target ordinals.
+      */
+    private long map(Trie rules, Iterable<?> codes)
+    {
+	long targets = 0;
+	for (Object code : codes) {
+	    String s = String.valueOf(code);
+	    int target = rules.lookup(s);
+	    if (target == NONE) {
+		unmapped.increment();
+		String key = unmappedKey(s);
+		LongAdder count = unmappedCodes.get(key);
+		if (count == null
+			&& unmappedCodes.size() < MAX_UNMAPPED_CODES) {
+		    count = unmappedCodes.computeIfAbsent(key,
+			    k -> new LongAdder());
+		}
+		if (count != null) {
+		    count.increment();
+		}
+	    } else {
+		mapped.increment();
+		targets |= 1L << target;
+	    }
+	}
+	return targets;
+    }
+
+    /**
+      * Returns the key an unmapped code is counted by: in upper case,
+      * without dots and spaces, and truncated.
+      */
+    private static String unmappedKey(String code)
+    {
+	StringBuilder key = new StringBuilder(MAX_UNMAPPED_LENGTH + 1);
+	for (int i = 0; i < code.length(); i++) {
+	    char c = code.charAt(i);
+	    int index = index(c);
+	    if (index == SKIP) {
+		continue;
+	    }
+	    if (key.length() == MAX_UNMAPPED_LENGTH) {
+		return key.append('*').toString();
+	    }
+	    key.append(index < 0 ? '?' : Character.toUpperCase(c));
+	}
+	return key.toString();
+    }
+
+    /**
+      * Returns the trie index of a character, SKIP for dots and spaces,
+      * or -1 if it can not be part of a code.
+      */
+    private static int index(char c)
+    {
+	if (c >= '0' && c <= '9') {
+	    return c - '0';
+	} else if (c >= 'A' && c <= 'Z') {
+	    return 10 + c - 'A';
+	} else if (c >= 'a' && c <= 'z') {
+	    return 10 + c - 'a';
+	} else if (c == '.' || c == ' ') {
+	    return SKIP;
+	}
+	return -1;
+    }
+
+    /**
+      * A trie of exact and prefix rules, in flat arrays indexed by node.
+      * It is only changed while the rules are read.
+      */
+    private static final class Trie
+    {
+	/** The child of each node for each character, 0 for none */
+	private int[] children = new int[ALPHABET * 64];
+	/** The target of an exact rule ending at each node */
+	private int[] exact = new int[64];
+	/** The target of a prefix rule ending at each node */
+	private int[] prefix = new int[64];
+	/** The number of nodes; node 0 is the root */
+	private int nodes = 1;
+	/** The number of rules */
+	private int rules = 0;
+
+	/**
+	  * Constructor, for an empty trie.
+	  */
+	private Trie()
+	{
+	    Arrays.fill(exact, NONE);
+	    Arrays.fill(prefix, NONE);
+	}
+
+	/**
+	  * Returns the target a code maps to, or NONE.
+	  */
+	private int lookup(CharSequence code)
+	{
+	    int node = 0;
+	    int target = prefix[0];
+	    for (int i = 0; i < code.length(); i++) {
+		int c = index(code.charAt(i));
+		if (c < 0) {
+		    if (c == SKIP) {
+			continue;
+		    }
+		    return NONE;
+		}
+		node = children[node * ALPHABET + c];
+		if (node == 0) {
+		    return target;
+		}
+		if (prefix[node] != NONE) {
+		    target = prefix[node];
+		}
+	    }
+	    return exact[node] != NONE ? exact[node] : target;
+	}
+
+	/**
+	  * Adds a rule.
+	  */
+	private void add(String code, boolean isPrefix, int target)
+	{
+	    int node = 0;
+	    for (int i = 0; i < code.length(); i++) {
+		int c = index(code.charAt(i));
+		if (c == SKIP) {
+		    continue;
+		} else if (c < 0) {
+		    throw new IllegalArgumentException("Invalid code: " + code);
+		}
+		int child = children[node * ALPHABET + c];
+		if (child == 0) {
+		    child = newNode();
+		    children[node * ALPHABET + c] = child;
+		}
+		node = child;
+	    }
+	    if (node == 0 && !isPrefix) {
+		throw new IllegalArgumentException("Empty code");
+	    }
+	    if (isPrefix) {
+		prefix[node] = target;
+	    } else {
+		exact[node] = target;
+	    }
+	    rules++;
+	}
+
+	/**
+	  * Allocates a node, growing the arrays as needed.
+	  */
+	private int newNode()
+	{
+	    if (nodes == exact.length) {
+		int length = exact.length * 2;
+		children = Arrays.copyOf(children, length * ALPHABET);
+		exact = Arrays.copyOf(exact, length);
+		prefix = Arrays.copyOf(prefix, length);
+		Arrays.fill(exact, nodes, length, NONE);
+		Arrays.fill(prefix, nodes, length, NONE);
+	    }
+	    return nodes++;
+	}
+    }
+}
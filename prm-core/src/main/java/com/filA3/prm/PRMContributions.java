@@ -0,0 +1,121 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.util.EnumSet;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+
+/**
+  * The contribution of each field value to the linear predictor of a
+  * {@link HCHRiskStratificationPRMScoreCalculator}.
+  * <p>
+  * Every {@link PRMField} and every medication group adds its own term to
+  * the linear predictor, independent of all other fields. The terms are
+  * measured once, by difference against a reference data object, so that
+  * the effect of any change to those fields can afterwards be found with
+  * a table lookup rather than a new calculation.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMContributions
+{
+    /** Contributions of field values, indexed by field then value ordinal */
+    private final double[][] fieldContributions;
+    /** Contributions of medication groups, indexed by ordinal */
+    private final double[] medicationContributions;
+
+    /**
+      * Constructor. Measures the contributions of the given calculator.
+      *
+      * @param calculator the calculator
+      */
+    public PRMContributions(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator calculator)
+    {
+	double reference = calculator.calculatePRMLinearPredictor(
+		new HCHRiskStratificationPRMData());
+
+	PRMField[] fields = PRMField.values();
+	fieldContributions = new double[fields.length][];
+	for (PRMField field : fields) {
+	    Enum<?>[] values = field.getValues();
+	    double[] contributions = new double[values.length];
+	    for (Enum<?> value : values) {
+		HCHRiskStratificationPRMData data
+		    = new HCHRiskStratificationPRMData();
+		field.set(data, value);
+		contributions[value.ordinal()]
+		    = calculator.calculatePRMLinearPredictor(data) - reference;
+	    }
+	    fieldContributions[field.ordinal()] = contributions;
+	}
+
+	MedicationGroup[] groups = MedicationGroup.values();
+	medicationContributions = new double[groups.length];
+	for (MedicationGroup group : groups) {
+	    HCHRiskStratificationPRMData data
+		= new HCHRiskStratificationPRMData();
+	    data.setMedicationGroups(EnumSet.of(group));
+	    medicationContributions[group.ordinal()]
+		= calculator.calculatePRMLinearPredictor(data) - reference;
+	}
+    }
+
+    /**
+      * Returns the contribution of a field value to the linear predictor.
+      * Only differences between values of the same field are meaningful.
+      *
+      * @param field the field
+      * @param value the value, of the field's type
+      *
+      * @return the contribution
+      */
+    public double getContribution(@Nonnull PRMField field,
+	    @Nonnull Enum<?> value)
+    {
+	return fieldContributions[field.ordinal()][value.ordinal()];
+    }
+
+    /**
+      * Returns the contributions of all values of a field, indexed by
+      * value ordinal. The returned array must not be modified.
+      *
+      * @param field the field
+      *
+      * @return the contributions
+      */
+    public double[] getContributions(@Nonnull PRMField field)
+    {
+	return fieldContributions[field.ordinal()];
+    }
+
+    /**
+      * Returns the contribution of taking a medication group to the
+      * linear predictor.
+      *
+      * @param group the medication group
+      *
+      * @return the contribution
+      */
+    public double getContribution(@Nonnull MedicationGroup group)
+    {
+	return medicationContributions[group.ordinal()];
+    }
+}
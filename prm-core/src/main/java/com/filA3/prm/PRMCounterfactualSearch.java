@@ -0,0 +1,768 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.AlcoholStatus;
+import com.filA3.prm.HCHRiskStratificationPRMData.BMICategory;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+import com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory;
+import com.filA3.prm.HCHRiskStratificationPRMData.SmokingStatus;
+
+/**
+  * Searches for the cheapest sets of realistic changes to a patient's
+  * data that bring the hospitalisation probability under a target.
+  * <p>
+  * The modifiable fields are smoking status (quitting), alcohol status
+  * (stopping), BMI category and the pathology categories (moving to a
+  * lower category) and the medication groups (stopping the medication).
+  * Moving a field down by n categories costs n times the weight of the
+  * field, stopping a medication costs its weight. Missing values
+  * (UNKNOWN, NOT_RECORDED, NO_TEST_HISTORY) are never changed.
+  * <p>
+  * The weights, and which fields and medications may be changed, are set
+  * one by one or loaded from a properties file, with lines such as:
+  * <pre>
+  * SmokingStatus=3
+  * HbA1cCategory=0.5
+  * BMICategory=fixed
+  * MedicationGroups.ANTI_COAGULANTS=fixed
+  * </pre>
+  * where "fixed" means that the field or medication may not be changed.
+  * <p>
+  * All of these fields add an independent term to the linear predictor,
+  * so the effect of every change is looked up in {@link PRMContributions}
+  * and the combinations are explored with a branch and bound search over
+  * those terms, without any further calculation. A branch is abandoned as
+  * soon as either the remaining changes cannot reach the target, or the
+  * cheapest way of making up the missing reduction costs more than the
+  * results already found.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMCounterfactualSearch
+{
+    /** Default limit on the number of search nodes visited */
+    private static final long DEFAULT_MAX_NODES = 1000000;
+    /** The cost of a field or medication that may not be changed */
+    public static final String FIXED = "fixed";
+    /** The prefix of the name of a medication cost */
+    private static final String MEDICATION_PREFIX = "MedicationGroups.";
+
+    /**
+      * A single change to a field.
+      */
+    public static class Change
+    {
+	/** The changed field, or null for a medication */
+	private final PRMField field;
+	/** The stopped medication, or null for a field */
+	private final MedicationGroup medication;
+	/** The value before the change */
+	private final Enum<?> from;
+	/** The value after the change, or null for a medication */
+	private final Enum<?> to;
+	/** The cost of the change */
+	private final double cost;
+	/** The change of the linear predictor */
+	private final double linearPredictorChange;
+
+	/**
+	  * Constructor.
+	  */
+	private Change(PRMField field, MedicationGroup medication,
+		Enum<?> from, Enum<?> to, double cost,
+		double linearPredictorChange)
+	{
+	    this.field = field;
+	    this.medication = medication;
+	    this.from = from;
+	    this.to = to;
+	    this.cost = cost;
+	    this.linearPredictorChange = linearPredictorChange;
+	}
+
+	/**
+	  * Returns the changed field name, e.g. "SmokingStatus" or
+	  * "MedicationGroups".
+	  *
+	  * @return the field name
+	  */
+	public String getField()
+	{
+	    return field != null ? field.getJsonName() : "MedicationGroups";
+	}
+
+	/**
+	  * Returns the value before the change.
+	  *
+	  * @return the previous value
+	  */
+	public String getFrom()
+	{
+	    return from.name();
+	}
+
+	/**
+	  * Returns the value after the change, or null when a medication
+	  * is stopped.
+	  *
+	  * @return the new value
+	  */
+	public String getTo()
+	{
+	    return to != null ? to.name() : null;
+	}
+
+	/**
+	  * Returns the cost of the change.
+	  *
+	  * @return the cost
+	  */
+	public double getCost()
+	{
+	    return cost;
+	}
+
+	/**
+	  * Returns the change of the linear predictor.
+	  *
+	  * @return the (negative) change
+	  */
+	public double getLinearPredictorChange()
+	{
+	    return linearPredictorChange;
+	}
+
+	/**
+	  * Applies the change to the data.
+	  *
+	  * @param data the data to change
+	  */
+	public void applyTo(@Nonnull HCHRiskStratificationPRMData data)
+	{
+	    if (field != null) {
+		field.set(data, to);
+	    } else {
+		Set<MedicationGroup> groups
+		    = EnumSet.noneOf(MedicationGroup.class);
+		groups.addAll(data.getMedicationGroups());
+		groups.remove(medication);
+		data.setMedicationGroups(groups);
+	    }
+	}
+
+	@Override
+	public String toString()
+	{
+	    return getField() + ": " + getFrom() + " -> "
+		+ (to != null ? getTo() : "stopped");
+	}
+    }
+
+    /**
+      * A set of changes that together reach the target.
+      */
+    public static class ChangeSet
+    {
+	/** The changes */
+	private final List<Change> changes;
+	/** The total cost */
+	private final double cost;
+	/** The probability after the changes */
+	private final double probability;
+
+	/**
+	  * Constructor.
+	  */
+	private ChangeSet(List<Change> changes, double cost,
+		double probability)
+	{
+	    this.changes = Collections.unmodifiableList(changes);
+	    this.cost = cost;
+	    this.probability = probability;
+	}
+
+	/**
+	  * Returns the changes.
+	  *
+	  * @return the changes
+	  */
+	public List<Change> getChanges()
+	{
+	    return changes;
+	}
+
+	/**
+	  * Returns the total cost of the changes.
+	  *
+	  * @return the cost
+	  */
+	public double getCost()
+	{
+	    return cost;
+	}
+
+	/**
+	  * Returns the hospitalisation probability after the changes.
+	  *
+	  * @return the probability
+	  */
+	public double getProbability()
+	{
+	    return probability;
+	}
+
+	/**
+	  * Applies all the changes to the data.
+	  *
+	  * @param data the data to change
+	  */
+	public void applyTo(@Nonnull HCHRiskStratificationPRMData data)
+	{
+	    for (Change change : changes) {
+		change.applyTo(data);
+	    }
+	}
+
+	@Override
+	public String toString()
+	{
+	    return changes + " cost=" + cost + " probability=" + probability;
+	}
+    }
+
+    /** The contributions of the scored calculator */
+    private final PRMContributions contributions;
+    /** The calculator */
+    private final HCHRiskStratificationPRMScoreCalculator calculator;
+    /** Modifiable fields */
+    private final Set<PRMField> modifiableFields;
+    /** Modifiable medications */
+    private final Set<MedicationGroup> modifiableMedications;
+    /** Cost weights of the fields, indexed by ordinal */
+    private final double[] fieldWeights;
+    /** Cost weights of the medications, indexed by ordinal */
+    private final double[] medicationWeights;
+    /** Limit on the number of search nodes */
+    private long maxNodes = DEFAULT_MAX_NODES;
+
+    /**
+      * Constructor. All fields that have an ordering are modifiable, and
+      * all weights are 1.
+      *
+      * @param calculator the calculator whose score is to be reduced
+      */
+    public PRMCounterfactualSearch(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator calculator)
+    {
+	this.calculator = calculator;
+	this.contributions = new PRMContributions(calculator);
+	modifiableFields = EnumSet.noneOf(PRMField.class);
+	for (PRMField field : PRMField.values()) {
+	    if (getOrdering(field) != null) {
+		modifiableFields.add(field);
+	    }
+	}
+	modifiableMedications = EnumSet.allOf(MedicationGroup.class);
+	fieldWeights = new double[PRMField.values().length];
+	Arrays.fill(fieldWeights, 1);
+	medicationWeights = new double[MedicationGroup.values().length];
+	Arrays.fill(medicationWeights, 1);
+    }
+
+    /**
+      * Copy constructor, e.g. to change the costs for a single search
+      * without computing the contributions again.
+      *
+      * @param other the search whose calculator, modifiable fields and
+      *              medications, weights and limit are copied
+      */
+    public PRMCounterfactualSearch(@Nonnull PRMCounterfactualSearch other)
+    {
+	calculator = other.calculator;
+	contributions = other.contributions;
+	modifiableFields = EnumSet.noneOf(PRMField.class);
+	modifiableFields.addAll(other.modifiableFields);
+	modifiableMedications = EnumSet.noneOf(MedicationGroup.class);
+	modifiableMedications.addAll(other.modifiableMedications);
+	fieldWeights = other.fieldWeights.clone();
+	medicationWeights = other.medicationWeights.clone();
+	maxNodes = other.maxNodes;
+    }
+
+    /**
+      * Sets if a field may be changed. Ethnicity and IRSAD decile can
+      * never be changed.
+      *
+      * @param field the field
+      * @param modifiable if the field may be changed
+      *
+      * @return reference to this object
+      */
+    public PRMCounterfactualSearch setModifiable(@Nonnull PRMField field,
+	    boolean modifiable)
+    {
+	if (getOrdering(field) == null) {
+	    throw new IllegalArgumentException(field.getJsonName()
+		    + " can not be modified");
+	}
+	if (modifiable) {
+	    modifiableFields.add(field);
+	} else {
+	    modifiableFields.remove(field);
+	}
+	return this;
+    }
+
+    /**
+      * Sets if a medication may be stopped.
+      *
+      * @param group the medication group
+      * @param modifiable if the medication may be stopped
+      *
+      * @return reference to this object
+      */
+    public PRMCounterfactualSearch setModifiable(
+	    @Nonnull MedicationGroup group, boolean modifiable)
+    {
+	if (modifiable) {
+	    modifiableMedications.add(group);
+	} else {
+	    modifiableMedications.remove(group);
+	}
+	return this;
+    }
+
+    /**
+      * Sets the cost of moving a field by one category.
+      *
+      * @param field the field
+      * @param weight the cost, &gt;= 0
+      *
+      * @return reference to this object
+      */
+    public PRMCounterfactualSearch setWeight(@Nonnull PRMField field,
+	    double weight)
+    {
+	checkWeight(weight);
+	fieldWeights[field.ordinal()] = weight;
+	return this;
+    }
+
+    /**
+      * Sets the cost of stopping a medication.
+      *
+      * @param group the medication group
+      * @param weight the cost, &gt;= 0
+      *
+      * @return reference to this object
+      */
+    public PRMCounterfactualSearch setWeight(@Nonnull MedicationGroup group,
+	    double weight)
+    {
+	checkWeight(weight);
+	medicationWeights[group.ordinal()] = weight;
+	return this;
+    }
+
+    /**
+      * Sets the cost of a field or medication by name, as in the class
+      * description: the weight makes it modifiable, {@link #FIXED} makes
+      * it unmodifiable.
+      *
+      * @param name the JSON name of a field, e.g. "SmokingStatus", or
+      *             "MedicationGroups." followed by a medication group,
+      *             e.g. "MedicationGroups.STATINS"
+      * @param cost the weight, &gt;= 0, or {@link #FIXED}
+      *
+      * @return reference to this object
+      *
+      * @throws IllegalArgumentException if the name or the cost is
+      *                                  invalid
+      */
+    public PRMCounterfactualSearch setCost(@Nonnull String name,
+	    @Nonnull String cost)
+    {
+	cost = cost.trim();
+	boolean fixed = cost.equalsIgnoreCase(FIXED);
+	double weight = fixed ? 0 : Double.parseDouble(cost);
+	if (name.startsWith(MEDICATION_PREFIX)) {
+	    MedicationGroup group = MedicationGroup.valueOf(
+		    name.substring(MEDICATION_PREFIX.length()));
+	    if (!fixed) {
+		setWeight(group, weight);
+	    }
+	    return setModifiable(group, !fixed);
+	}
+	PRMField field = PRMField.forJsonName(name);
+	if (field == null) {
+	    throw new IllegalArgumentException("Unknown field: " + name);
+	}
+	if (fixed && getOrdering(field) == null) {
+	    return this; // Never changed anyway
+	}
+	if (!fixed) {
+	    setWeight(field, weight);
+	}
+	return setModifiable(field, !fixed);
+    }
+
+    /**
+      * Loads costs from a properties file, as described in the class
+      * description. Fields and medications not in the file keep their
+      * cost.
+      *
+      * @param reader the properties
+      *
+      * @return reference to this object
+      *
+      * @throws IOException if reading fails
+      * @throws IllegalArgumentException if a name or a cost is invalid
+      */
+    public PRMCounterfactualSearch loadCosts(@Nonnull Reader reader)
+	throws IOException
+    {
+	Properties properties = new Properties();
+	properties.load(reader);
+	for (String name : properties.stringPropertyNames()) {
+	    setCost(name, properties.getProperty(name));
+	}
+	return this;
+    }
+
+    /**
+      * Sets the maximum number of search nodes visited by one search.
+      * When the limit is reached, the best results found so far are
+      * returned.
+      *
+      * @param maxNodes the limit
+      *
+      * @return reference to this object
+      */
+    public PRMCounterfactualSearch setMaxNodes(long maxNodes)
+    {
+	this.maxNodes = maxNodes;
+	return this;
+    }
+
+    /**
+      * Finds the cheapest sets of changes that bring the probability
+      * of the data to at most the target. No returned set contains
+      * another returned set.
+      *
+      * @param data the data, which is not modified
+      * @param targetProbability the target probability, in (0, 1)
+      * @param maxResults the maximum number of sets to return, &gt;= 1
+      *
+      * @return the change sets, cheapest first; empty if the target can
+      *         not be reached, a single empty set if it already is
+      */
+    public List<ChangeSet> search(@Nonnull HCHRiskStratificationPRMData data,
+	    double targetProbability, int maxResults)
+    {
+	if (!(targetProbability > 0 && targetProbability < 1)) {
+	    throw new IllegalArgumentException(
+		    "Target probability must be in (0, 1)");
+	}
+	if (maxResults < 1) {
+	    throw new IllegalArgumentException("maxResults must be >= 1");
+	}
+	double target = Math.log(targetProbability / (1 - targetProbability));
+	double linearPredictor = calculator.calculatePRMLinearPredictor(data);
+	Search search = new Search(buildLevers(data), target, maxResults);
+	search.run(linearPredictor);
+	return search.getResults();
+    }
+
+    /**
+      * Builds the possible changes for the data, most effective first.
+      */
+    private List<Lever> buildLevers(HCHRiskStratificationPRMData data)
+    {
+	List<Lever> levers = new ArrayList<>();
+	for (PRMField field : modifiableFields) {
+	    Enum<?>[] ordering = getOrdering(field);
+	    Enum<?> current = field.get(data);
+	    int position = indexOf(ordering, current);
+	    Lever lever = new Lever();
+	    for (int i = position - 1; i >= 0; i--) {
+		double delta = contributions.getContribution(field, ordering[i])
+		    - contributions.getContribution(field, current);
+		lever.add(new Change(field, null, current, ordering[i],
+			    fieldWeights[field.ordinal()] * (position - i),
+			    delta));
+	    }
+	    if (!lever.options.isEmpty()) {
+		levers.add(lever);
+	    }
+	}
+	for (MedicationGroup group : data.getMedicationGroups()) {
+	    if (modifiableMedications.contains(group)) {
+		Lever lever = new Lever();
+		lever.add(new Change(null, group, group, null,
+			    medicationWeights[group.ordinal()],
+			    -contributions.getContribution(group)));
+		if (!lever.options.isEmpty()) {
+		    levers.add(lever);
+		}
+	    }
+	}
+	levers.sort(Comparator.comparingDouble(l -> l.best));
+	return levers;
+    }
+
+    /**
+      * The mutually exclusive changes of one field.
+      */
+    private static class Lever
+    {
+	/** Changes that reduce the linear predictor */
+	private final List<Change> options = new ArrayList<>();
+	/** The largest reduction (most negative change) */
+	private double best = 0;
+
+	/**
+	  * Adds a change, unless it does not help or is dominated by a
+	  * cheaper change that helps at least as much.
+	  */
+	private void add(Change change)
+	{
+	    if (!(change.linearPredictorChange < 0)) {
+		return;
+	    }
+	    for (Iterator<Change> it = options.iterator(); it.hasNext();) {
+		Change other = it.next();
+		if (other.cost <= change.cost
+			&& other.linearPredictorChange
+			    <= change.linearPredictorChange) {
+		    return;
+		}
+		if (change.cost <= other.cost
+			&& change.linearPredictorChange
+			    <= other.linearPredictorChange) {
+		    it.remove();
+		}
+	    }
+	    options.add(change);
+	    best = Math.min(best, change.linearPredictorChange);
+	}
+    }
+
+    /**
+      * The state of a single branch and bound search.
+      */
+    private class Search
+    {
+	/** The levers */
+	private final Lever[] levers;
+	/** The target linear predictor */
+	private final double target;
+	/** Maximum number of results */
+	private final int maxResults;
+	/** Largest possible reduction from each lever onwards */
+	private final double[] bestRemaining;
+	/** Smallest cost per unit of reduction from each lever onwards */
+	private final double[] cheapestRemaining;
+	/** Chosen option of each lever, -1 for no change */
+	private final int[] chosen;
+	/** Results found so far, cheapest first */
+	private final List<ChangeSet> results = new ArrayList<>();
+	/** Chosen options of each result, for the subset check */
+	private final List<Set<Change>> resultChanges = new ArrayList<>();
+	/** Number of nodes visited */
+	private long nodes = 0;
+
+	/**
+	  * Constructor.
+	  */
+	private Search(List<Lever> levers, double target, int maxResults)
+	{
+	    this.levers = levers.toArray(new Lever[0]);
+	    this.target = target;
+	    this.maxResults = maxResults;
+	    int n = this.levers.length;
+	    bestRemaining = new double[n + 1];
+	    cheapestRemaining = new double[n + 1];
+	    cheapestRemaining[n] = Double.POSITIVE_INFINITY;
+	    for (int i = n - 1; i >= 0; i--) {
+		bestRemaining[i] = bestRemaining[i + 1] + this.levers[i].best;
+		double cheapest = cheapestRemaining[i + 1];
+		for (Change option : this.levers[i].options) {
+		    cheapest = Math.min(cheapest,
+			    option.cost / -option.linearPredictorChange);
+		}
+		cheapestRemaining[i] = cheapest;
+	    }
+	    chosen = new int[n];
+	}
+
+	/**
+	  * Runs the search from the starting linear predictor.
+	  */
+	private void run(double linearPredictor)
+	{
+	    Arrays.fill(chosen, -1);
+	    visit(0, linearPredictor, 0);
+	}
+
+	/**
+	  * Visits the node where levers before index have been decided.
+	  */
+	private void visit(int index, double linearPredictor, double cost)
+	{
+	    if (linearPredictor <= target) {
+		record(index, linearPredictor, cost);
+		return;
+	    }
+	    if (index == levers.length || ++nodes > maxNodes) {
+		return;
+	    }
+	    if (linearPredictor + bestRemaining[index] > target) {
+		return; // Can not reach the target any more
+	    }
+	    if (results.size() == maxResults) {
+		double lowerBound = cost + (linearPredictor - target)
+		    * cheapestRemaining[index];
+		if (lowerBound >= results.get(maxResults - 1).cost) {
+		    return; // Can not beat the results any more
+		}
+	    }
+	    List<Change> options = levers[index].options;
+	    for (int i = 0; i < options.size(); i++) {
+		Change option = options.get(i);
+		chosen[index] = i;
+		visit(index + 1, linearPredictor + option.linearPredictorChange,
+			cost + option.cost);
+	    }
+	    chosen[index] = -1;
+	    visit(index + 1, linearPredictor, cost);
+	}
+
+	/**
+	  * Records a result made of the options chosen before index.
+	  */
+	private void record(int index, double linearPredictor, double cost)
+	{
+	    if (results.size() == maxResults
+		    && cost >= results.get(maxResults - 1).cost) {
+		return;
+	    }
+	    List<Change> changes = new ArrayList<>();
+	    for (int i = 0; i < index; i++) {
+		if (chosen[i] >= 0) {
+		    changes.add(levers[i].options.get(chosen[i]));
+		}
+	    }
+	    Set<Change> changeSet = new HashSet<>(changes);
+	    for (int i = results.size() - 1; i >= 0; i--) {
+		Set<Change> other = resultChanges.get(i);
+		if (changeSet.containsAll(other)) {
+		    return; // A subset already reaches the target
+		}
+		if (other.containsAll(changeSet)) {
+		    results.remove(i);
+		    resultChanges.remove(i);
+		}
+	    }
+	    int position = 0;
+	    while (position < results.size()
+		    && results.get(position).cost <= cost) {
+		position++;
+	    }
+	    results.add(position, new ChangeSet(changes, cost,
+			1 / (1 + Math.exp(-linearPredictor))));
+	    resultChanges.add(position, changeSet);
+	    if (results.size() > maxResults) {
+		results.remove(maxResults);
+		resultChanges.remove(maxResults);
+	    }
+	}
+
+	/**
+	  * Returns the results.
+	  */
+	private List<ChangeSet> getResults()
+	{
+	    return results;
+	}
+    }
+
+    /**
+      * Returns the values of a field from best to worst that a patient
+      * may move between, or null if the field can not be changed.
+      */
+    private static Enum<?>[] getOrdering(PRMField field)
+    {
+	if (field.isPathology()) {
+	    return new Enum<?>[] {PathologyCategory.LOW,
+		PathologyCategory.MED, PathologyCategory.HIGH};
+	}
+	switch (field) {
+	    case BMI_CATEGORY:
+		return new Enum<?>[] {BMICategory.BMI_7_TO_25,
+		    BMICategory.BMI_25_TO_30, BMICategory.BMI_30_TO_35,
+		    BMICategory.BMI_35_TO_40, BMICategory.BMI_40_TO_200};
+	    case SMOKING_STATUS:
+		// A smoker can quit, but never becomes a non smoker.
+		return new Enum<?>[] {SmokingStatus.EX_SMOKER,
+		    SmokingStatus.SMOKER};
+	    case ALCOHOL_STATUS:
+		return new Enum<?>[] {AlcoholStatus.NON_DRINKER,
+		    AlcoholStatus.DRINKER};
+	    default:
+		return null;
+	}
+    }
+
+    /**
+      * Returns the index of a value, or -1.
+      */
+    private static int indexOf(Enum<?>[] values, Enum<?> value)
+    {
+	for (int i = 0; i < values.length; i++) {
+	    if (values[i] == value) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+      * Checks a weight is valid.
+      */
+    private static void checkWeight(double weight)
+    {
+	if (!(weight >= 0) || Double.isInfinite(weight)) {
+	    throw new IllegalArgumentException("Weight must be >= 0");
+	}
+    }
+}
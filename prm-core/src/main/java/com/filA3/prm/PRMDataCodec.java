@@ -0,0 +1,167 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+
+/**
+  * A compact, fixed size, binary encoding of
+  * {@link HCHRiskStratificationPRMData}.
+  * <p>
+  * A profile takes {@link #SIZE} bytes: the age as a double, a flags byte
+  * (bit 0 is female), one byte per demographic field holding the value
+  * ordinal, the pathology categories packed two bits each into an int,
+  * the medication groups as a bit mask byte, and the diseases as a bit
+  * mask long. Enum ordinals are part of the format, so values must only
+  * ever be appended to the enums.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMDataCodec
+{
+    /** The number of demographic fields */
+    private static final int DEMOGRAPHICS = 5;
+
+    /** The size in bytes of an encoded profile */
+    public static final int SIZE = 8 + 1 + DEMOGRAPHICS + 4 + 1 + 8;
+
+    /** The demographic fields, in encoding order */
+    private static final PRMField[] DEMOGRAPHIC_FIELDS
+	= new PRMField[DEMOGRAPHICS];
+    /** The pathology fields, in encoding order */
+    private static final PRMField[] PATHOLOGY_FIELDS
+	= new PRMField[PRMField.values().length - DEMOGRAPHICS];
+    /** The values of each field, by field ordinal */
+    private static final Enum<?>[][] VALUES
+	= new Enum<?>[PRMField.values().length][];
+
+    static {
+	int demographics = 0;
+	int pathology = 0;
+	for (PRMField field : PRMField.values()) {
+	    VALUES[field.ordinal()] = field.getValues();
+	    if (field.isPathology()) {
+		PATHOLOGY_FIELDS[pathology++] = field;
+	    } else {
+		DEMOGRAPHIC_FIELDS[demographics++] = field;
+	    }
+	}
+    }
+
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRMDataCodec()
+    {
+    }
+
+    /**
+      * Encodes a profile at the position of a buffer, advancing it by
+      * {@link #SIZE} bytes.
+      *
+      * @param data the profile
+      * @param buffer the buffer
+      */
+    public static void encode(@Nonnull HCHRiskStratificationPRMData data,
+	    @Nonnull ByteBuffer buffer)
+    {
+	buffer.putDouble(data.getAge());
+	buffer.put((byte) (data.getIsFemale() ? 1 : 0));
+	for (PRMField field : DEMOGRAPHIC_FIELDS) {
+	    buffer.put((byte) field.get(data).ordinal());
+	}
+	int pathology = 0;
+	for (int i = 0; i < PATHOLOGY_FIELDS.length; i++) {
+	    pathology |= PATHOLOGY_FIELDS[i].get(data).ordinal() << (2 * i);
+	}
+	buffer.putInt(pathology);
+	int medications = 0;
+	for (MedicationGroup group : data.getMedicationGroups()) {
+	    medications |= 1 << group.ordinal();
+	}
+	buffer.put((byte) medications);
+	long diseases = 0;
+	for (Disease disease : data.getDiseases()) {
+	    diseases |= 1L << disease.ordinal();
+	}
+	buffer.putLong(diseases);
+    }
+
+    /**
+      * Decodes a profile at the position of a buffer, advancing it by
+      * {@link #SIZE} bytes.
+      *
+      * @param buffer the buffer
+      * @param data receives the profile
+      *
+      * @return the data
+      *
+      * @throws IllegalArgumentException if an ordinal is out of range
+      */
+    public static HCHRiskStratificationPRMData decode(
+	    @Nonnull ByteBuffer buffer,
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+	data.setAge(buffer.getDouble());
+	data.setIsFemale((buffer.get() & 1) != 0);
+	for (PRMField field : DEMOGRAPHIC_FIELDS) {
+	    field.set(data, value(field, buffer.get()));
+	}
+	int pathology = buffer.getInt();
+	for (int i = 0; i < PATHOLOGY_FIELDS.length; i++) {
+	    PRMField field = PATHOLOGY_FIELDS[i];
+	    field.set(data, value(field, (pathology >>> (2 * i)) & 3));
+	}
+	int medications = buffer.get() & 0xff;
+	Set<MedicationGroup> groups = EnumSet.noneOf(MedicationGroup.class);
+	for (MedicationGroup group : MedicationGroup.values()) {
+	    if ((medications & (1 << group.ordinal())) != 0) {
+		groups.add(group);
+	    }
+	}
+	data.setMedicationGroups(groups);
+	long mask = buffer.getLong();
+	Set<Disease> diseases = EnumSet.noneOf(Disease.class);
+	for (Disease disease : Disease.values()) {
+	    if ((mask & (1L << disease.ordinal())) != 0) {
+		diseases.add(disease);
+	    }
+	}
+	data.setDiseases(diseases);
+	return data;
+    }
+
+    /**
+      * Returns the value of a field with an ordinal.
+      */
+    private static Enum<?> value(PRMField field, int ordinal)
+    {
+	Enum<?>[] values = VALUES[field.ordinal()];
+	if (ordinal < 0 || ordinal >= values.length) {
+	    throw new IllegalArgumentException("Invalid " + field.getJsonName()
+		    + " ordinal: " + ordinal);
+	}
+	return values[ordinal];
+    }
+}
@@ -0,0 +1,423 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.DiseaseGroup;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+import com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory;
+
+/**
+  * The design matrix of the HCH Risk Stratification PRM: the columns whose
+  * weighted sum is the linear predictor of
+  * {@link HCHRiskStratificationPRMScoreCalculator}, named after its
+  * coefficients.
+  * <p>
+  * A row has an intercept, the age and disease count cubics, and one
+  * indicator per non reference category, medication group, disease group
+  * and female by disease group interaction. Rows are sparse: at most
+  * {@link #MAX_NONZERO} columns are non zero, and they are returned as
+  * parallel arrays of column indices and values.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMDesign
+{
+    /** The column names, in order */
+    private static final String[] COLUMNS = {
+	"INTERCEPT",
+	"AGE", "AGE_SQ", "AGE_CU",
+	"GENDER_FFEMALE",
+	"ETHNICITY_FATSI", "ETHNICITY_FUNKNOWN",
+	"BMI_7CAT_25_30", "BMI_7CAT_30_35", "BMI_7CAT_35_40", "BMI_7CAT40",
+	"BMI_7CATNOT_RECORDED",
+	"SMOKINGSTATUS_4CATEX_SMOKER", "SMOKINGSTATUS_4CATSMOKER",
+	"SMOKINGSTATUS_4CATUNKNOWN",
+	"ANYALCOHOL_3CATDRINKER", "ANYALCOHOL_3CATNOT_RECORDED",
+	"DECILE_IRSAD_F1", "DECILE_IRSAD_F10", "DECILE_IRSAD_F2",
+	"DECILE_IRSAD_F3", "DECILE_IRSAD_F4", "DECILE_IRSAD_F6",
+	"DECILE_IRSAD_F7", "DECILE_IRSAD_F8", "DECILE_IRSAD_F9",
+	"DECILE_IRSAD_FUNKNOWN",
+	"MEDS_STATINS_FLAG", "MEDS_ANTICOAGULANTS_FLAG",
+	"MEDS_ANTIDEPRESSANTS_FLAG", "MEDS_ANTIPSYCHOTICS_FLAG",
+	"MEDS_ANTIINFLAMMATORY_FLAG", "MEDS_STEROIDS_FLAG",
+	"NUMDISEASES", "NUMDISEASES_SQ", "NUMDISEASES_CU",
+	"DISEASEGRP_RESPIRATORY_FLAG", "DISEASEGRP_ATRIAL_FIBR_FLAG",
+	"DISEASEGRP_CARDIOVASCULAR_FLAG", "DISEASEGRP_OSTEOARTHRITIS_FLAG",
+	"DISEASEGRP_OSTEOPOROSIS_FLAG", "DISEASEGRP_RHEUMATOID_FLAG",
+	"DISEASEGRP_MENTAL_HEALTH_FLAG", "DISEASEGRP_CANCER_FLAG",
+	"DISEASEGRP_DIGESTIVE_FLAG", "DISEASEGRP_HYPERTENSION_FLAG",
+	"DISEASEGRP_BLOODFATS_FLAG", "DISEASEGRP_CHRONIC_KIDNEY_FLAG",
+	"DISEASEGRP_DIABETES_TYPE_1_FLAG", "DISEASEGRP_DIABETES_TYPE_2_FLAG",
+	"DISEASEGRP_VENOUS_THROMBO_FLAG", "DISEASEGRP_OTHER_FLAG",
+	"MORB_V2_HB_4CATHIGH", "MORB_V2_HB_4CATMED",
+	"MORB_V2_HB_4CATNO_TEST_HISTORY",
+	"MORB_V2_PLATELETS_4CATHIGH", "MORB_V2_PLATELETS_4CATNO_TEST_HISTORY",
+	"MORB_V2_ALT_4CATHIGH", "MORB_V2_ALT_4CATMED",
+	"MORB_V2_ALT_4CATNO_TEST_HISTORY",
+	"MORB_V2_GGT_4CATHIGH", "MORB_V2_GGT_4CATMED",
+	"MORB_V2_GGT_4CATNO_TEST_HISTORY",
+	"MORB_V2_HBA1C_4CATHIGH", "MORB_V2_HBA1C_4CATMED",
+	"MORB_V2_HBA1C_4CATNO_TEST_HISTORY",
+	"MORB_V2_BILIRUBIN_3CATMED_OR_HIGH",
+	"MORB_V2_BILIRUBIN_3CATNO_TEST_HISTORY",
+	"MORB_V2_CHOLESTEROL_4CATHIGH", "MORB_V2_CHOLESTEROL_4CATMED",
+	"MORB_V2_CHOLESTEROL_4CATNO_TEST_HISTORY",
+	"MORB_V2_CREATININE_3CATMED_OR_HIGH",
+	"MORB_V2_CREATININE_3CATNO_TEST_HISTORY",
+	"MORB_V2_TAG_3CATMED_OR_HIGH", "MORB_V2_TAG_3CATNO_TEST_HISTORY",
+	"MORB_V2_ACR_4CATHIGH", "MORB_V2_ACR_4CATMED",
+	"MORB_V2_ACR_4CATNO_TEST_HISTORY",
+	"MORB_V2_LDL_4CATHIGH", "MORB_V2_LDL_4CATMED",
+	"MORB_V2_LDL_4CATNO_TEST_HISTORY",
+	"MORB_V2_EGFR_4CATHIGH", "MORB_V2_EGFR_4CATMED",
+	"MORB_V2_EGFR_4CATNO_TEST_HISTORY",
+	"MORB_V2_BP_4CATHIGH", "MORB_V2_BP_4CATMED",
+	"MORB_V2_BP_4CATNO_TEST_HISTORY",
+	"GENDER_FFEMALE_DISEASEGRP_CARDIOVASCULAR_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_RESPIRATORY_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_DIABETES_TYPE_1_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_OTHER_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_OSTEOPOROSIS_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_CHRONIC_KIDNEY_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_MENTAL_HEALTH_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_HYPERTENSION_FLAG",
+	"GENDER_FFEMALE_DISEASEGRP_DIABETES_TYPE_2_FLAG"
+    };
+
+    /** The most non zero columns a row may have */
+    public static final int MAX_NONZERO = 64;
+
+    /** Column of the intercept */
+    public static final int INTERCEPT = column("INTERCEPT");
+    /** Column of age */
+    public static final int AGE = column("AGE");
+    /** Column of age squared */
+    public static final int AGE_SQ = column("AGE_SQ");
+    /** Column of age cubed */
+    public static final int AGE_CU = column("AGE_CU");
+    /** Column of the female indicator */
+    public static final int FEMALE = column("GENDER_FFEMALE");
+    /** Column of the number of diseases */
+    public static final int NUMDISEASES = column("NUMDISEASES");
+    /** Column of the number of diseases squared */
+    public static final int NUMDISEASES_SQ = column("NUMDISEASES_SQ");
+    /** Column of the number of diseases cubed */
+    public static final int NUMDISEASES_CU = column("NUMDISEASES_CU");
+
+    /** Indicator columns of the field values, -1 for reference values */
+    private static final int[][] FIELD_COLUMNS
+	= new int[PRMField.values().length][];
+    /** Indicator columns of the medication groups */
+    private static final int[] MEDICATION_COLUMNS
+	= new int[MedicationGroup.values().length];
+    /** Indicator columns of the disease groups */
+    private static final int[] DISEASE_GROUP_COLUMNS
+	= new int[DiseaseGroup.values().length];
+    /** Interaction columns of female and the disease groups, or -1 */
+    private static final int[] FEMALE_DISEASE_GROUP_COLUMNS
+	= new int[DiseaseGroup.values().length];
+
+    static {
+	fieldColumns(PRMField.ETHNICITY, null, "ETHNICITY_FATSI",
+		"ETHNICITY_FUNKNOWN");
+	fieldColumns(PRMField.BMI_CATEGORY, null, "BMI_7CAT_25_30",
+		"BMI_7CAT_30_35", "BMI_7CAT_35_40", "BMI_7CAT40",
+		"BMI_7CATNOT_RECORDED");
+	fieldColumns(PRMField.SMOKING_STATUS, null,
+		"SMOKINGSTATUS_4CATEX_SMOKER", "SMOKINGSTATUS_4CATSMOKER",
+		"SMOKINGSTATUS_4CATUNKNOWN");
+	fieldColumns(PRMField.ALCOHOL_STATUS, null,
+		"ANYALCOHOL_3CATDRINKER", "ANYALCOHOL_3CATNOT_RECORDED");
+	fieldColumns(PRMField.IRSAD_DECILE, "DECILE_IRSAD_F1",
+		"DECILE_IRSAD_F2", "DECILE_IRSAD_F3", "DECILE_IRSAD_F4", null,
+		"DECILE_IRSAD_F6", "DECILE_IRSAD_F7", "DECILE_IRSAD_F8",
+		"DECILE_IRSAD_F9", "DECILE_IRSAD_F10", "DECILE_IRSAD_FUNKNOWN");
+	pathologyColumns(PRMField.HAEMOGLOBIN, "HB", "4CAT");
+	fieldColumns(PRMField.PLATELETS, null, null,
+		"MORB_V2_PLATELETS_4CATHIGH",
+		"MORB_V2_PLATELETS_4CATNO_TEST_HISTORY");
+	pathologyColumns(PRMField.ALANINE_AMINOTRANSFERASE, "ALT", "4CAT");
+	pathologyColumns(PRMField.GAMMA_GT, "GGT", "4CAT");
+	pathologyColumns(PRMField.HBA1C, "HBA1C", "4CAT");
+	pathologyColumns(PRMField.BILIRUBIN, "BILIRUBIN", "3CAT");
+	pathologyColumns(PRMField.CHOLESTEROL, "CHOLESTEROL", "4CAT");
+	pathologyColumns(PRMField.CREATININE, "CREATININE", "3CAT");
+	pathologyColumns(PRMField.TRIGLYCERIDES, "TAG", "3CAT");
+	pathologyColumns(PRMField.ALBUMIN_CREATININE_RATIO, "ACR", "4CAT");
+	pathologyColumns(PRMField.LDL, "LDL", "4CAT");
+	pathologyColumns(PRMField.EGFR, "EGFR", "4CAT");
+	pathologyColumns(PRMField.BLOOD_PRESSURE, "BP", "4CAT");
+
+	String[] medications = {"MEDS_STATINS_FLAG",
+	    "MEDS_ANTICOAGULANTS_FLAG", "MEDS_ANTIDEPRESSANTS_FLAG",
+	    "MEDS_ANTIPSYCHOTICS_FLAG", "MEDS_ANTIINFLAMMATORY_FLAG",
+	    "MEDS_STEROIDS_FLAG"};
+	for (MedicationGroup group : MedicationGroup.values()) {
+	    MEDICATION_COLUMNS[group.ordinal()]
+		= column(medications[group.ordinal()]);
+	}
+	for (DiseaseGroup group : DiseaseGroup.values()) {
+	    String name = "DISEASEGRP_" + group.name() + "_FLAG";
+	    DISEASE_GROUP_COLUMNS[group.ordinal()] = column(name);
+	    int interaction = Arrays.asList(COLUMNS).indexOf(
+		    "GENDER_FFEMALE_" + name);
+	    FEMALE_DISEASE_GROUP_COLUMNS[group.ordinal()] = interaction;
+	}
+    }
+
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRMDesign()
+    {
+    }
+
+    /**
+      * Returns the number of columns.
+      *
+      * @return the number of columns
+      */
+    public static int size()
+    {
+	return COLUMNS.length;
+    }
+
+    /**
+      * Returns the column names, in order.
+      *
+      * @return the names
+      */
+    public static List<String> getColumns()
+    {
+	return Collections.unmodifiableList(Arrays.asList(COLUMNS));
+    }
+
+    /**
+      * Returns the index of a column.
+      *
+      * @param name the column name
+      *
+      * @return the index
+      *
+      * @throws IllegalArgumentException if there is no such column
+      */
+    public static int column(@Nonnull String name)
+    {
+	for (int i = 0; i < COLUMNS.length; i++) {
+	    if (COLUMNS[i].equals(name)) {
+		return i;
+	    }
+	}
+	throw new IllegalArgumentException("Unknown column: " + name);
+    }
+
+    /**
+      * Returns the indicator column of a field value.
+      *
+      * @param field the field
+      * @param value the value
+      *
+      * @return the column, or -1 for the reference value
+      */
+    public static int getColumn(@Nonnull PRMField field,
+	    @Nonnull Enum<?> value)
+    {
+	return FIELD_COLUMNS[field.ordinal()][value.ordinal()];
+    }
+
+    /**
+      * Returns the indicator column of a medication group.
+      *
+      * @param group the medication group
+      *
+      * @return the column
+      */
+    public static int getColumn(@Nonnull MedicationGroup group)
+    {
+	return MEDICATION_COLUMNS[group.ordinal()];
+    }
+
+    /**
+      * Returns the indicator column of a disease group.
+      *
+      * @param group the disease group
+      *
+      * @return the column
+      */
+    public static int getColumn(@Nonnull DiseaseGroup group)
+    {
+	return DISEASE_GROUP_COLUMNS[group.ordinal()];
+    }
+
+    /**
+      * Returns the column of the interaction of female and a disease
+      * group.
+      *
+      * @param group the disease group
+      *
+      * @return the column, or -1 if the model has no such interaction
+      */
+    public static int getFemaleColumn(@Nonnull DiseaseGroup group)
+    {
+	return FEMALE_DISEASE_GROUP_COLUMNS[group.ordinal()];
+    }
+
+    /**
+      * Returns the disease groups of a set of diseases as a bit mask of
+      * group ordinals.
+      *
+      * @param data the data
+      *
+      * @return the bit mask
+      */
+    public static int getDiseaseGroups(@Nonnull HCHRiskStratificationPRMData data)
+    {
+	int groups = 0;
+	for (Disease disease : data.getDiseases()) {
+	    groups |= 1 << disease.getGroup().ordinal();
+	}
+	return groups;
+    }
+
+    /**
+      * Extracts the non zero columns of the row of the data.
+      *
+      * @param data the data
+      * @param columns receives the column indices, increasing; at least
+      *                {@link #MAX_NONZERO} long
+      * @param values receives the values; at least {@link #MAX_NONZERO}
+      *               long
+      *
+      * @return the number of non zero columns
+      */
+    public static int extract(@Nonnull HCHRiskStratificationPRMData data,
+	    int[] columns, double[] values)
+    {
+	int n = 0;
+	double age = data.getAge();
+	double numDiseases = data.getDiseases().size();
+	int groups = getDiseaseGroups(data);
+	n = put(columns, values, n, INTERCEPT, 1);
+	n = put(columns, values, n, AGE, age);
+	n = put(columns, values, n, AGE_SQ, age * age);
+	n = put(columns, values, n, AGE_CU, age * age * age);
+	if (data.getIsFemale()) {
+	    n = put(columns, values, n, FEMALE, 1);
+	}
+	for (PRMField field : PRMField.values()) {
+	    int column = getColumn(field, field.get(data));
+	    if (column >= 0) {
+		n = put(columns, values, n, column, 1);
+	    }
+	}
+	for (MedicationGroup group : data.getMedicationGroups()) {
+	    n = put(columns, values, n, getColumn(group), 1);
+	}
+	n = put(columns, values, n, NUMDISEASES, numDiseases);
+	n = put(columns, values, n, NUMDISEASES_SQ, numDiseases * numDiseases);
+	n = put(columns, values, n, NUMDISEASES_CU,
+		numDiseases * numDiseases * numDiseases);
+	for (DiseaseGroup group : DiseaseGroup.values()) {
+	    if ((groups & (1 << group.ordinal())) != 0) {
+		n = put(columns, values, n, getColumn(group), 1);
+		if (data.getIsFemale() && getFemaleColumn(group) >= 0) {
+		    n = put(columns, values, n, getFemaleColumn(group), 1);
+		}
+	    }
+	}
+	sort(columns, values, n);
+	return n;
+    }
+
+    /**
+      * Stores one non zero column.
+      */
+    private static int put(int[] columns, double[] values, int n,
+	    int column, double value)
+    {
+	if (value != 0) {
+	    columns[n] = column;
+	    values[n] = value;
+	    n++;
+	}
+	return n;
+    }
+
+    /**
+      * Sorts the first n columns, keeping values in step. Rows are short
+      * and nearly sorted, so insertion sort is used.
+      */
+    private static void sort(int[] columns, double[] values, int n)
+    {
+	for (int i = 1; i < n; i++) {
+	    int column = columns[i];
+	    double value = values[i];
+	    int j = i - 1;
+	    while (j >= 0 && columns[j] > column) {
+		columns[j + 1] = columns[j];
+		values[j + 1] = values[j];
+		j--;
+	    }
+	    columns[j + 1] = column;
+	    values[j + 1] = value;
+	}
+    }
+
+    /**
+      * Sets the indicator columns of a field, one name per value in
+      * ordinal order; null for reference values.
+      */
+    private static void fieldColumns(PRMField field, String... names)
+    {
+	int[] columns = new int[names.length];
+	for (int i = 0; i < names.length; i++) {
+	    columns[i] = names[i] == null ? -1 : column(names[i]);
+	}
+	FIELD_COLUMNS[field.ordinal()] = columns;
+    }
+
+    /**
+      * Sets the indicator columns of a pathology category. Three category
+      * columns merge MED and HIGH. LOW is the reference value.
+      */
+    private static void pathologyColumns(PRMField field, String code,
+	    String categories)
+    {
+	String prefix = "MORB_V2_" + code + "_" + categories;
+	int[] columns = new int[PathologyCategory.values().length];
+	columns[PathologyCategory.LOW.ordinal()] = -1;
+	if (categories.equals("3CAT")) {
+	    columns[PathologyCategory.MED.ordinal()]
+		= column(prefix + "MED_OR_HIGH");
+	    columns[PathologyCategory.HIGH.ordinal()]
+		= column(prefix + "MED_OR_HIGH");
+	} else {
+	    columns[PathologyCategory.MED.ordinal()] = column(prefix + "MED");
+	    columns[PathologyCategory.HIGH.ordinal()] = column(prefix + "HIGH");
+	}
+	columns[PathologyCategory.NO_TEST_HISTORY.ordinal()]
+	    = column(prefix + "NO_TEST_HISTORY");
+	FIELD_COLUMNS[field.ordinal()] = columns;
+    }
+}
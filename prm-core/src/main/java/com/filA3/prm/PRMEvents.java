@@ -0,0 +1,157 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+/**
+  * Records the phases of handling requests as Java Flight Recorder
+  * events, so that a recording shows where the time of slow requests
+  * goes: binding JSON, the setters of PRMData by JSON name,
+  * calculating scores, or garbage collection.
+  * <p>
+  * A phase is recorded with:
+  * <pre>
+  * Object event = PRMEvents.begin(PRMEvents.Phase.SCORE);
+  * ...
+  * PRMEvents.end(event, size, success, detail);
+  * </pre>
+  * Each phase is its own event type, named e.g. "com.filA3.prm.Score",
+  * with its duration, a size (JSON fields, values, lines or entries), a
+  * success flag and a detail such as the field name or model version.
+  * When the event type is not enabled in the recording, or the JVM has
+  * no flight recorder, begin returns null and end does nothing, so the
+  * calls may be left in place. The bundled settings "prm.jfc" enable all
+  * phases with thresholds suitable for continuous recording, and
+  * PRMRecordingSummary summarizes a recording per phase. Both are in the
+  * prm-jfr module, which must be on the class path for events to be
+  * recorded.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMEvents
+{
+    /**
+      * The phases that are recorded.
+      */
+    public static enum Phase
+    {
+	/** A web request, sized by its JSON fields */
+	REQUEST,
+	/** Parsing a JSON data object, sized by its fields */
+	PARSE,
+	/** A setter of PRMData by JSON name, sized by its values */
+	BIND,
+	/** Calculating a probability */
+	SCORE,
+	/** A chunk of a batch, sized by its lines */
+	BATCH,
+	/** A snapshot of a store, sized by its entries */
+	SNAPSHOT
+    }
+
+    /**
+      * Creates and commits the events of phases.
+      */
+    interface Recorder
+    {
+	/**
+	  * Starts the event of a phase.
+	  *
+	  * @param phase the phase
+	  *
+	  * @return the event, or null if the phase is not recorded
+	  */
+	Object begin(Phase phase);
+
+	/**
+	  * Ends and commits an event.
+	  *
+	  * @param event the event returned by begin
+	  * @param size the size of the phase
+	  * @param success whether the phase succeeded
+	  * @param detail the detail, or null
+	  */
+	void end(Object event, int size, boolean success, String detail);
+    }
+
+    /** The recorder, or null without a flight recorder */
+    private static final Recorder RECORDER = createRecorder();
+
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRMEvents()
+    {
+    }
+
+    /**
+      * Starts recording a phase.
+      *
+      * @param phase the phase
+      *
+      * @return the event to pass to end, or null if the phase is not
+      *         being recorded
+      */
+    public static Object begin(Phase phase)
+    {
+	return RECORDER == null ? null : RECORDER.begin(phase);
+    }
+
+    /**
+      * Ends recording a phase.
+      *
+      * @param event the event returned by begin, may be null
+      * @param size the size of the phase
+      * @param success whether the phase succeeded
+      */
+    public static void end(Object event, int size, boolean success)
+    {
+	if (event != null) {
+	    RECORDER.end(event, size, success, null);
+	}
+    }
+
+    /**
+      * Ends recording a phase.
+      *
+      * @param event the event returned by begin, may be null
+      * @param size the size of the phase
+      * @param success whether the phase succeeded
+      * @param detail the detail, or null
+      */
+    public static void end(Object event, int size, boolean success,
+	    String detail)
+    {
+	if (event != null) {
+	    RECORDER.end(event, size, success, detail);
+	}
+    }
+
+    /**
+      * Returns the flight recorder events of prm-jfr, if they are on the
+      * class path and the JVM can link them.
+      */
+    private static Recorder createRecorder()
+    {
+	try {
+	    Class.forName("jdk.jfr.Event");
+	    return (Recorder) Class.forName("com.filA3.prm.PRMFlightRecorder")
+		.getDeclaredConstructor().newInstance();
+	} catch (ReflectiveOperationException | LinkageError e) {
+	    return null;
+	}
+    }
+}
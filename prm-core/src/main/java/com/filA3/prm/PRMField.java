@@ -0,0 +1,259 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.AlcoholStatus;
+import com.filA3.prm.HCHRiskStratificationPRMData.BMICategory;
+import com.filA3.prm.HCHRiskStratificationPRMData.Ethnicity;
+import com.filA3.prm.HCHRiskStratificationPRMData.IRSADDecile;
+import com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory;
+import com.filA3.prm.HCHRiskStratificationPRMData.SmokingStatus;
+
+/**
+  * The single valued enum fields of {@link HCHRiskStratificationPRMData}.
+  * <p>
+  * Each field knows its JSON name (as described in PRM, of prm-cli), its enum
+  * type and how to read and write it on a data object, so that code
+  * working over all the fields does not need reflection.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public enum PRMField
+{
+    ETHNICITY("Ethnicity", false, Ethnicity.class, Ethnicity.UNKNOWN,
+	    d -> d.getEthnicity(),
+	    (d, v) -> d.setEthnicity((Ethnicity) v)),
+    BMI_CATEGORY("BMICategory", false, BMICategory.class,
+	    BMICategory.NOT_RECORDED,
+	    d -> d.getBMICategory(),
+	    (d, v) -> d.setBMICategory((BMICategory) v)),
+    SMOKING_STATUS("SmokingStatus", false, SmokingStatus.class,
+	    SmokingStatus.UNKNOWN,
+	    d -> d.getSmokingStatus(),
+	    (d, v) -> d.setSmokingStatus((SmokingStatus) v)),
+    ALCOHOL_STATUS("AlcoholStatus", false, AlcoholStatus.class,
+	    AlcoholStatus.NOT_RECORDED,
+	    d -> d.getAlcoholStatus(),
+	    (d, v) -> d.setAlcoholStatus((AlcoholStatus) v)),
+    IRSAD_DECILE("IRSADDecile", false, IRSADDecile.class,
+	    IRSADDecile.UNKNOWN,
+	    d -> d.getIRSADDecile(),
+	    (d, v) -> d.setIRSADDecile((IRSADDecile) v)),
+    HAEMOGLOBIN("HaemoglobinCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getHaemoglobinCategory(),
+	    (d, v) -> d.setHaemoglobinCategory((PathologyCategory) v)),
+    PLATELETS("PlateletsCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getPlateletsCategory(),
+	    (d, v) -> d.setPlateletsCategory((PathologyCategory) v)),
+    ALANINE_AMINOTRANSFERASE("AlanineAminotransferaseCategory", true,
+	    PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getAlanineAminotransferaseCategory(),
+	    (d, v) -> d.setAlanineAminotransferaseCategory(
+		(PathologyCategory) v)),
+    GAMMA_GT("GammaGTCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getGammaGTCategory(),
+	    (d, v) -> d.setGammaGTCategory((PathologyCategory) v)),
+    HBA1C("HbA1cCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getHbA1cCategory(),
+	    (d, v) -> d.setHbA1cCategory((PathologyCategory) v)),
+    BILIRUBIN("BilirubinCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getBilirubinCategory(),
+	    (d, v) -> d.setBilirubinCategory((PathologyCategory) v)),
+    CHOLESTEROL("CholesterolCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getCholesterolCategory(),
+	    (d, v) -> d.setCholesterolCategory((PathologyCategory) v)),
+    CREATININE("CreatinineCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getCreatinineCategory(),
+	    (d, v) -> d.setCreatinineCategory((PathologyCategory) v)),
+    TRIGLYCERIDES("TriglyceridesCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getTriglyceridesCategory(),
+	    (d, v) -> d.setTriglyceridesCategory((PathologyCategory) v)),
+    ALBUMIN_CREATININE_RATIO("AlbuminCreatinineRatioCategory", true,
+	    PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getAlbuminCreatinineRatioCategory(),
+	    (d, v) -> d.setAlbuminCreatinineRatioCategory(
+		(PathologyCategory) v)),
+    LDL("LDLCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getLDLCategory(),
+	    (d, v) -> d.setLDLCategory((PathologyCategory) v)),
+    EGFR("EGFRCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getEGFRCategory(),
+	    (d, v) -> d.setEGFRCategory((PathologyCategory) v)),
+    BLOOD_PRESSURE("BloodPressureCategory", true, PathologyCategory.class,
+	    PathologyCategory.NO_TEST_HISTORY,
+	    d -> d.getBloodPressureCategory(),
+	    (d, v) -> d.setBloodPressureCategory((PathologyCategory) v));
+
+    /** The JSON name of the field */
+    private final String jsonName;
+    /** If the field lives in the "Pathology" JSON object */
+    private final boolean pathology;
+    /** The enum type of the field */
+    private final Class<? extends Enum<?>> type;
+    /** The value used when the field is not known */
+    private final Enum<?> missingValue;
+    /** Reads the field */
+    private final Function<HCHRiskStratificationPRMData, Enum<?>> getter;
+    /** Writes the field */
+    private final BiConsumer<HCHRiskStratificationPRMData, Enum<?>> setter;
+
+    /**
+      * Constructor.
+      */
+    private PRMField(String jsonName, boolean pathology,
+	    Class<? extends Enum<?>> type, Enum<?> missingValue,
+	    Function<HCHRiskStratificationPRMData, Enum<?>> getter,
+	    BiConsumer<HCHRiskStratificationPRMData, Enum<?>> setter)
+    {
+	this.jsonName = jsonName;
+	this.pathology = pathology;
+	this.type = type;
+	this.missingValue = missingValue;
+	this.getter = getter;
+	this.setter = setter;
+    }
+
+    /**
+      * Returns the JSON name of the field, e.g. "SmokingStatus".
+      *
+      * @return the JSON name
+      */
+    public String getJsonName()
+    {
+	return jsonName;
+    }
+
+    /**
+      * Returns if the field is one of the pathology categories.
+      *
+      * @return true for pathology categories, false otherwise
+      */
+    public boolean isPathology()
+    {
+	return pathology;
+    }
+
+    /**
+      * Returns the enum type of the field.
+      *
+      * @return the enum type
+      */
+    public Class<? extends Enum<?>> getType()
+    {
+	return type;
+    }
+
+    /**
+      * Returns all the values the field may take.
+      *
+      * @return the values, in ordinal order
+      */
+    public Enum<?>[] getValues()
+    {
+	return type.getEnumConstants();
+    }
+
+    /**
+      * Returns the value of the field with the given name.
+      *
+      * @param name the value name, e.g. "NO_TEST_HISTORY"
+      *
+      * @return the value
+      *
+      * @throws IllegalArgumentException if there is no such value
+      */
+    public Enum<?> parseValue(String name)
+    {
+	for (Enum<?> value : getValues()) {
+	    if (value.name().equals(name)) {
+		return value;
+	    }
+	}
+	throw new IllegalArgumentException("No value " + name + " for "
+		+ jsonName);
+    }
+
+    /**
+      * Returns the value recorded when the field is not known, e.g.
+      * NOT_RECORDED or NO_TEST_HISTORY.
+      *
+      * @return the missing value
+      */
+    public Enum<?> getMissingValue()
+    {
+	return missingValue;
+    }
+
+    /**
+      * Returns the value of the field in the data.
+      *
+      * @param data the data
+      *
+      * @return the value
+      */
+    @Nonnull
+    public Enum<?> get(@Nonnull HCHRiskStratificationPRMData data)
+    {
+	return getter.apply(data);
+    }
+
+    /**
+      * Sets the value of the field in the data.
+      *
+      * @param data the data
+      * @param value the value, of the field's type
+      */
+    public void set(@Nonnull HCHRiskStratificationPRMData data,
+	    @Nonnull Enum<?> value)
+    {
+	setter.accept(data, value);
+    }
+
+    /**
+      * Returns the field with the given JSON name.
+      *
+      * @param jsonName the JSON name, e.g. "HbA1cCategory"
+      *
+      * @return the field, or null if there is none with that name
+      */
+    public static PRMField forJsonName(String jsonName)
+    {
+	for (PRMField field : values()) {
+	    if (field.jsonName.equals(jsonName)) {
+		return field;
+	    }
+	}
+	return null;
+    }
+}
@@ -0,0 +1,209 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import javax.annotation.Nonnull;
+
+/**
+  * A histogram with a fixed number of equal width buckets over a range.
+  * Values outside the range are counted in the first or last bucket.
+  * <p>
+  * Histograms use constant memory whatever the number of values, and
+  * histograms with the same range and buckets can be merged, so that
+  * each thread can fill its own and the results be combined at the end.
+  * The class is not thread safe.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMHistogram
+{
+    /** The lower end of the range */
+    private final double min;
+    /** The upper end of the range */
+    private final double max;
+    /** The counts of each bucket */
+    private final long[] counts;
+    /** The number of values */
+    private long count = 0;
+    /** The sum of the values */
+    private double sum = 0;
+    /** The sum of the squared values */
+    private double sumOfSquares = 0;
+
+    /**
+      * Constructor.
+      *
+      * @param min the lower end of the range
+      * @param max the upper end of the range, &gt; min
+      * @param buckets the number of buckets, &gt;= 1
+      */
+    public PRMHistogram(double min, double max, int buckets)
+    {
+	if (!(max > min) || buckets < 1) {
+	    throw new IllegalArgumentException("Invalid histogram range");
+	}
+	this.min = min;
+	this.max = max;
+	this.counts = new long[buckets];
+    }
+
+    /**
+      * Adds a value.
+      *
+      * @param value the value
+      */
+    public void add(double value)
+    {
+	counts[getBucket(value)]++;
+	count++;
+	sum += value;
+	sumOfSquares += value * value;
+    }
+
+    /**
+      * Adds all the values of another histogram with the same range and
+      * buckets.
+      *
+      * @param other the other histogram
+      */
+    public void merge(@Nonnull PRMHistogram other)
+    {
+	if (other.min != min || other.max != max
+		|| other.counts.length != counts.length) {
+	    throw new IllegalArgumentException("Histograms do not match");
+	}
+	for (int i = 0; i < counts.length; i++) {
+	    counts[i] += other.counts[i];
+	}
+	count += other.count;
+	sum += other.sum;
+	sumOfSquares += other.sumOfSquares;
+    }
+
+    /**
+      * Returns the bucket a value falls in.
+      *
+      * @param value the value
+      *
+      * @return the bucket index
+      */
+    public int getBucket(double value)
+    {
+	int bucket = (int) ((value - min) / (max - min) * counts.length);
+	return Math.max(0, Math.min(counts.length - 1, bucket));
+    }
+
+    /**
+      * Returns the lower end of a bucket.
+      *
+      * @param bucket the bucket index
+      *
+      * @return the lower end
+      */
+    public double getBucketStart(int bucket)
+    {
+	return min + (max - min) * bucket / counts.length;
+    }
+
+    /**
+      * Returns the number of buckets.
+      *
+      * @return the number of buckets
+      */
+    public int getBuckets()
+    {
+	return counts.length;
+    }
+
+    /**
+      * Returns the count of a bucket.
+      *
+      * @param bucket the bucket index
+      *
+      * @return the count
+      */
+    public long getCount(int bucket)
+    {
+	return counts[bucket];
+    }
+
+    /**
+      * Returns the number of values.
+      *
+      * @return the number of values
+      */
+    public long getCount()
+    {
+	return count;
+    }
+
+    /**
+      * Returns the sum of the values.
+      *
+      * @return the sum
+      */
+    public double getSum()
+    {
+	return sum;
+    }
+
+    /**
+      * Returns the mean of the values.
+      *
+      * @return the mean, or NaN without values
+      */
+    public double getMean()
+    {
+	return sum / count;
+    }
+
+    /**
+      * Returns the standard deviation of the values.
+      *
+      * @return the standard deviation, or NaN without values
+      */
+    public double getStandardDeviation()
+    {
+	double mean = getMean();
+	return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+    }
+
+    /**
+      * Returns an estimate of a quantile, interpolating linearly inside
+      * the bucket it falls in. The error is at most one bucket width.
+      *
+      * @param level the level, in [0, 1]
+      *
+      * @return the quantile, or NaN without values
+      */
+    public double getQuantile(double level)
+    {
+	if (count == 0) {
+	    return Double.NaN;
+	}
+	double rank = level * count;
+	long seen = 0;
+	for (int i = 0; i < counts.length; i++) {
+	    if (counts[i] > 0 && seen + counts[i] >= rank) {
+		double fraction = (rank - seen) / counts[i];
+		return getBucketStart(i) + fraction * (max - min) / counts.length;
+	    }
+	    seen += counts[i];
+	}
+	return max;
+    }
+}
@@ -0,0 +1,346 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory;
+
+/**
+  * Cut-points that bin raw pathology results into
+  * {@link PathologyCategory} values, so that callers can send measured
+  * values instead of categories.
+  * <p>
+  * Each {@link Measure} has a low and a high cut-point, optionally
+  * different for females and males: a value below the low cut-point is
+  * LOW, one below the high cut-point MED, and any other HIGH. Blood
+  * pressure is measured twice, and takes the higher category of the
+  * systolic and diastolic pressures.
+  * <p>
+  * The cut-points are held in one flat array, so that binning a value is
+  * two comparisons whose results are added to index the categories,
+  * without branches. Tables are read from properties files such as the
+  * bundled default, "lab-thresholds.properties":
+  * <pre>
+  * # Measure[.female|.male]=low,high
+  * Haemoglobin.female=115,165
+  * Haemoglobin.male=130,180
+  * Platelets=150,400
+  * </pre>
+  * The table used when parsing data objects is shared and may be replaced
+  * at any time with {@link #setInstance}.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMLabThresholds
+{
+    /**
+      * The raw measures and the fields they are binned into, with their
+      * JSON names and units.
+      */
+    public static enum Measure
+    {
+	/** Haemoglobin, g/L */
+	HAEMOGLOBIN("Haemoglobin", PRMField.HAEMOGLOBIN),
+	/** Platelets, x10^9/L */
+	PLATELETS("Platelets", PRMField.PLATELETS),
+	/** Alanine aminotransferase, U/L */
+	ALANINE_AMINOTRANSFERASE("AlanineAminotransferase",
+		PRMField.ALANINE_AMINOTRANSFERASE),
+	/** Gamma GT, U/L */
+	GAMMA_GT("GammaGT", PRMField.GAMMA_GT),
+	/** HbA1c, % */
+	HBA1C("HbA1c", PRMField.HBA1C),
+	/** Bilirubin, umol/L */
+	BILIRUBIN("Bilirubin", PRMField.BILIRUBIN),
+	/** Total cholesterol, mmol/L */
+	CHOLESTEROL("Cholesterol", PRMField.CHOLESTEROL),
+	/** Creatinine, umol/L */
+	CREATININE("Creatinine", PRMField.CREATININE),
+	/** Triglycerides, mmol/L */
+	TRIGLYCERIDES("Triglycerides", PRMField.TRIGLYCERIDES),
+	/** Albumin creatinine ratio, mg/mmol */
+	ALBUMIN_CREATININE_RATIO("AlbuminCreatinineRatio",
+		PRMField.ALBUMIN_CREATININE_RATIO),
+	/** LDL cholesterol, mmol/L */
+	LDL("LDL", PRMField.LDL),
+	/** eGFR, mL/min/1.73m^2 */
+	EGFR("EGFR", PRMField.EGFR),
+	/** Systolic blood pressure, mmHg */
+	SYSTOLIC_BP("SystolicBP", PRMField.BLOOD_PRESSURE),
+	/** Diastolic blood pressure, mmHg */
+	DIASTOLIC_BP("DiastolicBP", PRMField.BLOOD_PRESSURE);
+
+	/** The measures by JSON name */
+	private static final Map<String, Measure> BY_JSON_NAME
+	    = new HashMap<>();
+
+	static {
+	    for (Measure measure : values()) {
+		BY_JSON_NAME.put(measure.jsonName, measure);
+	    }
+	}
+
+	/** The JSON name */
+	private final String jsonName;
+	/** The field the measure is binned into */
+	private final PRMField field;
+
+	/**
+	  * Constructor.
+	  */
+	Measure(String jsonName, PRMField field)
+	{
+	    this.jsonName = jsonName;
+	    this.field = field;
+	}
+
+	/**
+	  * Returns the JSON name.
+	  *
+	  * @return the name, e.g. "Haemoglobin"
+	  */
+	public String getJsonName()
+	{
+	    return jsonName;
+	}
+
+	/**
+	  * Returns the field the measure is binned into.
+	  *
+	  * @return the pathology field
+	  */
+	public PRMField getField()
+	{
+	    return field;
+	}
+
+	/**
+	  * Returns the measure with the given JSON name.
+	  *
+	  * @param jsonName the JSON name
+	  *
+	  * @return the measure, or null if there is none with that name
+	  */
+	public static Measure forJsonName(String jsonName)
+	{
+	    return BY_JSON_NAME.get(jsonName);
+	}
+    }
+
+    /** The bundled default table */
+    private static final String DEFAULT_RESOURCE = "lab-thresholds.properties";
+
+    /** The categories by number of cut-points reached */
+    private static final PathologyCategory[] CATEGORIES = {
+	PathologyCategory.LOW, PathologyCategory.MED, PathologyCategory.HIGH};
+
+    /** The shared table, loaded on first use */
+    private static volatile PRMLabThresholds instance;
+
+    /**
+      * The cut-points, low then high, for males then females, for each
+      * measure in ordinal order.
+      */
+    private final double[] cutPoints;
+
+    /**
+      * Constructor.
+      */
+    private PRMLabThresholds(double[] cutPoints)
+    {
+	this.cutPoints = cutPoints;
+    }
+
+    /**
+      * Returns the shared table, the bundled default unless replaced.
+      *
+      * @return the table
+      */
+    public static PRMLabThresholds getInstance()
+    {
+	PRMLabThresholds thresholds = instance;
+	if (thresholds == null) {
+	    try (InputStream in = PRMLabThresholds.class
+		    .getResourceAsStream(DEFAULT_RESOURCE)) {
+		if (in == null) {
+		    throw new IOException(DEFAULT_RESOURCE + " not found");
+		}
+		thresholds = read(new InputStreamReader(in,
+			    StandardCharsets.UTF_8));
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+	    instance = thresholds;
+	}
+	return thresholds;
+    }
+
+    /**
+      * Replaces the shared table.
+      *
+      * @param thresholds the new table
+      */
+    public static void setInstance(@Nonnull PRMLabThresholds thresholds)
+    {
+	instance = thresholds;
+    }
+
+    /**
+      * Reads a table. Every measure needs cut-points for both sexes.
+      *
+      * @param reader the properties
+      *
+      * @return the table
+      *
+      * @throws IOException if reading fails
+      * @throws IllegalArgumentException if an entry is invalid, or a
+      *                                  measure has no cut-points
+      */
+    public static PRMLabThresholds read(@Nonnull Reader reader)
+	throws IOException
+    {
+	Properties properties = new Properties();
+	properties.load(reader);
+	double[] cutPoints = new double[Measure.values().length * 4];
+	Arrays.fill(cutPoints, Double.NaN);
+	for (String key : properties.stringPropertyNames()) {
+	    int dot = key.indexOf('.');
+	    String name = dot < 0 ? key : key.substring(0, dot);
+	    String sex = dot < 0 ? "" : key.substring(dot + 1);
+	    Measure measure = Measure.forJsonName(name);
+	    if (measure == null
+		    || !(sex.isEmpty() || sex.equals("female")
+			|| sex.equals("male"))) {
+		throw new IllegalArgumentException("Unknown measure: " + key);
+	    }
+	    String[] values = properties.getProperty(key).split(",");
+	    if (values.length != 2) {
+		throw new IllegalArgumentException(
+			"Expected low,high for " + key);
+	    }
+	    double low = Double.parseDouble(values[0].trim());
+	    double high = Double.parseDouble(values[1].trim());
+	    if (!(low <= high)) {
+		throw new IllegalArgumentException(
+			"Low above high for " + key);
+	    }
+	    // Sex specific entries take precedence over common ones
+	    for (int female = 0; female < 2; female++) {
+		int index = index(measure, female == 1);
+		if (sex.isEmpty() ? Double.isNaN(cutPoints[index])
+			: sex.equals(female == 1 ? "female" : "male")) {
+		    cutPoints[index] = low;
+		    cutPoints[index + 1] = high;
+		}
+	    }
+	}
+	for (Measure measure : Measure.values()) {
+	    if (Double.isNaN(cutPoints[index(measure, false)])
+		    || Double.isNaN(cutPoints[index(measure, true)])) {
+		throw new IllegalArgumentException("No cut-points for "
+			+ measure.getJsonName());
+	    }
+	}
+	return new PRMLabThresholds(cutPoints);
+    }
+
+    /**
+      * Bins a raw value.
+      *
+      * @param measure the measure
+      * @param isFemale whether the patient is female
+      * @param value the value, in the units of the measure
+      *
+      * @return the category, LOW, MED or HIGH
+      */
+    public PathologyCategory bin(@Nonnull Measure measure, boolean isFemale,
+	    double value)
+    {
+	return CATEGORIES[binIndex(measure, isFemale, value)];
+    }
+
+    /**
+      * Bins the raw values of a patient and sets the pathology fields.
+      * Blood pressure takes the higher category of its two measures.
+      * Fields without a value are not changed.
+      *
+      * @param data the data, whose sex must already be set
+      * @param values the raw value of each measure, by JSON name; numbers
+      *               or numeric strings
+      *
+      * @throws IllegalArgumentException if a measure or value is invalid
+      */
+    public void setPathology(@Nonnull HCHRiskStratificationPRMData data,
+	    @Nonnull Map<?, ?> values)
+    {
+	boolean isFemale = data.getIsFemale();
+	int bloodPressure = -1;
+	for (Map.Entry<?, ?> entry : values.entrySet()) {
+	    Measure measure = Measure.forJsonName(String.valueOf(entry.getKey()));
+	    if (measure == null) {
+		throw new IllegalArgumentException("Unknown measure: "
+			+ entry.getKey());
+	    }
+	    Object raw = entry.getValue();
+	    double value = raw instanceof Number ? ((Number) raw).doubleValue()
+		: Double.parseDouble(String.valueOf(raw));
+	    int category = binIndex(measure, isFemale, value);
+	    if (measure.getField() == PRMField.BLOOD_PRESSURE) {
+		bloodPressure = Math.max(bloodPressure, category);
+	    } else {
+		measure.getField().set(data, CATEGORIES[category]);
+	    }
+	}
+	if (bloodPressure >= 0) {
+	    PRMField.BLOOD_PRESSURE.set(data, CATEGORIES[bloodPressure]);
+	}
+    }
+
+    /**
+      * Returns the number of cut-points a value reaches.
+      */
+    private int binIndex(Measure measure, boolean isFemale, double value)
+    {
+	if (Double.isNaN(value)) {
+	    throw new IllegalArgumentException("Invalid "
+		    + measure.getJsonName() + ": " + value);
+	}
+	int index = index(measure, isFemale);
+	return (value >= cutPoints[index] ? 1 : 0)
+	    + (value >= cutPoints[index + 1] ? 1 : 0);
+    }
+
+    /**
+      * Returns the index of the low cut-point of a measure and sex.
+      */
+    private static int index(Measure measure, boolean isFemale)
+    {
+	return (measure.ordinal() * 2 + (isFemale ? 1 : 0)) * 2;
+    }
+}
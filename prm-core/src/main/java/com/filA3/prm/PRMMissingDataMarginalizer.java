@@ -0,0 +1,529 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Calculates the distribution of the hospitalisation probability when
+  * the missing fields of a patient (UNKNOWN, NOT_RECORDED and
+  * NO_TEST_HISTORY values) are given their population prevalence values
+  * instead of being scored as a category of their own.
+  * <p>
+  * Each field adds an independent term to the linear predictor, so the
+  * distribution of the sum of the missing terms is the convolution of the
+  * distributions of the single terms. The terms are rounded to a grid of
+  * the configured resolution and convolved once per combination of
+  * missing fields; the result is cached, so that a patient afterwards
+  * costs one linear predictor and one pass over the distribution.
+  * <p>
+  * Prevalences default to equal weights for all non missing values of a
+  * field, which are not those of any population, so that they should be
+  * set one by one or loaded from a properties file with lines such as:
+  * <pre>
+  * SmokingStatus.SMOKER=0.14
+  * HbA1cCategory.HIGH=0.08
+  * </pre>
+  * Weights of a field need not sum to 1.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMMissingDataMarginalizer
+{
+    /** Default grid step of the linear predictor */
+    private static final double DEFAULT_RESOLUTION = 0.01;
+    /** Default levels of the reported quantiles */
+    private static final double[] DEFAULT_QUANTILE_LEVELS
+	= {0.05, 0.25, 0.5, 0.75, 0.95};
+    /** Default coverage of the reported interval */
+    private static final double DEFAULT_INTERVAL_LEVEL = 0.9;
+
+    /**
+      * The probability distribution of a patient.
+      */
+    public static class MarginalRisk
+    {
+	/** The probability with missing values scored as recorded */
+	private final double probability;
+	/** The mean probability */
+	private final double mean;
+	/** The quantile levels */
+	private final double[] quantileLevels;
+	/** The quantiles */
+	private final double[] quantiles;
+	/** The lower end of the interval */
+	private final double lower;
+	/** The upper end of the interval */
+	private final double upper;
+	/** The missing fields */
+	private final List<String> missingFields;
+
+	/**
+	  * Constructor.
+	  */
+	private MarginalRisk(double probability, double mean,
+		double[] quantileLevels, double[] quantiles, double lower,
+		double upper, List<String> missingFields)
+	{
+	    this.probability = probability;
+	    this.mean = mean;
+	    this.quantileLevels = quantileLevels;
+	    this.quantiles = quantiles;
+	    this.lower = lower;
+	    this.upper = upper;
+	    this.missingFields = missingFields;
+	}
+
+	/**
+	  * Returns the probability with missing values scored as recorded.
+	  *
+	  * @return the probability
+	  */
+	public double getProbability()
+	{
+	    return probability;
+	}
+
+	/**
+	  * Returns the expected probability over the missing values.
+	  *
+	  * @return the mean
+	  */
+	public double getMean()
+	{
+	    return mean;
+	}
+
+	/**
+	  * Returns the levels of the quantiles.
+	  *
+	  * @return the levels
+	  */
+	public double[] getQuantileLevels()
+	{
+	    return quantileLevels.clone();
+	}
+
+	/**
+	  * Returns the quantiles of the probability, one per level.
+	  *
+	  * @return the quantiles
+	  */
+	public double[] getQuantiles()
+	{
+	    return quantiles.clone();
+	}
+
+	/**
+	  * Returns the lower end of the central interval.
+	  *
+	  * @return the lower end
+	  */
+	public double getLower()
+	{
+	    return lower;
+	}
+
+	/**
+	  * Returns the upper end of the central interval.
+	  *
+	  * @return the upper end
+	  */
+	public double getUpper()
+	{
+	    return upper;
+	}
+
+	/**
+	  * Returns the JSON names of the fields that were missing.
+	  *
+	  * @return the field names
+	  */
+	public List<String> getMissingFields()
+	{
+	    return missingFields;
+	}
+
+	@Override
+	public String toString()
+	{
+	    return "probability=" + probability + " mean=" + mean
+		+ " quantiles=" + Arrays.toString(quantiles)
+		+ " interval=[" + lower + ", " + upper + "]"
+		+ " missing=" + missingFields;
+	}
+    }
+
+    /**
+      * The distribution of the linear predictor shift for one combination
+      * of missing fields.
+      */
+    private static class ShiftDistribution
+    {
+	/** The possible shifts, increasing */
+	private final double[] shifts;
+	/** The probability of each shift */
+	private final double[] weights;
+	/** The cumulative probability up to each shift */
+	private final double[] cumulative;
+
+	/**
+	  * Constructor.
+	  */
+	private ShiftDistribution(double[] shifts, double[] weights)
+	{
+	    this.shifts = shifts;
+	    this.weights = weights;
+	    cumulative = new double[weights.length];
+	    double sum = 0;
+	    for (int i = 0; i < weights.length; i++) {
+		sum += weights[i];
+		cumulative[i] = sum;
+	    }
+	}
+
+	/**
+	  * Returns the smallest shift whose cumulative probability reaches
+	  * the level.
+	  */
+	private double quantile(double level)
+	{
+	    int index = Arrays.binarySearch(cumulative,
+		    level * cumulative[cumulative.length - 1]);
+	    if (index < 0) {
+		index = -index - 1;
+	    }
+	    return shifts[Math.min(index, shifts.length - 1)];
+	}
+    }
+
+    /** The calculator */
+    private final HCHRiskStratificationPRMScoreCalculator calculator;
+    /** The contributions of the calculator */
+    private final PRMContributions contributions;
+    /** Prevalence weights, indexed by field then value ordinal */
+    private final double[][] prevalences;
+    /** Distributions by bit mask of missing field ordinals */
+    private final Map<Integer, ShiftDistribution> cache
+	= new ConcurrentHashMap<>();
+    /** The grid step */
+    private double resolution = DEFAULT_RESOLUTION;
+    /** The quantile levels */
+    private double[] quantileLevels = DEFAULT_QUANTILE_LEVELS;
+    /** The interval coverage */
+    private double intervalLevel = DEFAULT_INTERVAL_LEVEL;
+
+    /**
+      * Constructor.
+      *
+      * @param calculator the calculator
+      */
+    public PRMMissingDataMarginalizer(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator calculator)
+    {
+	this.calculator = calculator;
+	this.contributions = new PRMContributions(calculator);
+	prevalences = new double[PRMField.values().length][];
+	for (PRMField field : PRMField.values()) {
+	    double[] weights = new double[field.getValues().length];
+	    Arrays.fill(weights, 1);
+	    weights[field.getMissingValue().ordinal()] = 0;
+	    prevalences[field.ordinal()] = weights;
+	}
+    }
+
+    /**
+      * Copy constructor, for the same calculator, prevalences and
+      * settings with a cache of its own, e.g. for each thread of a batch.
+      *
+      * @param other the marginalizer to copy
+      */
+    public PRMMissingDataMarginalizer(
+	    @Nonnull PRMMissingDataMarginalizer other)
+    {
+	this.calculator = other.calculator;
+	this.contributions = other.contributions;
+	prevalences = new double[other.prevalences.length][];
+	for (int i = 0; i < prevalences.length; i++) {
+	    prevalences[i] = other.prevalences[i].clone();
+	}
+	this.resolution = other.resolution;
+	this.quantileLevels = other.quantileLevels;
+	this.intervalLevel = other.intervalLevel;
+    }
+
+    /**
+      * Returns the calculator.
+      *
+      * @return the calculator
+      */
+    public HCHRiskStratificationPRMScoreCalculator getCalculator()
+    {
+	return calculator;
+    }
+
+    /**
+      * Sets the prevalence weight of a field value.
+      *
+      * @param field the field
+      * @param value the value, which must not be the missing value
+      * @param weight the weight, &gt;= 0
+      *
+      * @return reference to this object
+      */
+    public PRMMissingDataMarginalizer setPrevalence(@Nonnull PRMField field,
+	    @Nonnull Enum<?> value, double weight)
+    {
+	if (value == field.getMissingValue()) {
+	    throw new IllegalArgumentException(value
+		    + " is the missing value of " + field.getJsonName());
+	}
+	if (!(weight >= 0) || Double.isInfinite(weight)) {
+	    throw new IllegalArgumentException("Weight must be >= 0");
+	}
+	prevalences[field.ordinal()][value.ordinal()] = weight;
+	cache.clear();
+	return this;
+    }
+
+    /**
+      * Loads prevalence weights from a properties file, as described in
+      * the class description. Values not in the file keep their weight.
+      *
+      * @param reader the properties
+      *
+      * @return reference to this object
+      *
+      * @throws IOException if reading fails
+      */
+    public PRMMissingDataMarginalizer loadPrevalences(@Nonnull Reader reader)
+	throws IOException
+    {
+	Properties properties = new Properties();
+	properties.load(reader);
+	for (String key : properties.stringPropertyNames()) {
+	    int dot = key.indexOf('.');
+	    PRMField field = dot < 0 ? null
+		: PRMField.forJsonName(key.substring(0, dot));
+	    if (field == null) {
+		throw new IllegalArgumentException("Unknown field: " + key);
+	    }
+	    setPrevalence(field, field.parseValue(key.substring(dot + 1)),
+		    Double.parseDouble(properties.getProperty(key).trim()));
+	}
+	return this;
+    }
+
+    /**
+      * Sets the grid step of the linear predictor. Smaller steps are more
+      * precise but make the distributions longer.
+      *
+      * @param resolution the step, &gt; 0
+      *
+      * @return reference to this object
+      */
+    public PRMMissingDataMarginalizer setResolution(double resolution)
+    {
+	if (!(resolution > 0)) {
+	    throw new IllegalArgumentException("Resolution must be > 0");
+	}
+	this.resolution = resolution;
+	cache.clear();
+	return this;
+    }
+
+    /**
+      * Sets the levels of the reported quantiles.
+      *
+      * @param levels the levels, each in [0, 1]
+      *
+      * @return reference to this object
+      */
+    public PRMMissingDataMarginalizer setQuantileLevels(double... levels)
+    {
+	for (double level : levels) {
+	    checkLevel(level);
+	}
+	this.quantileLevels = levels.clone();
+	return this;
+    }
+
+    /**
+      * Sets the coverage of the reported central interval.
+      *
+      * @param level the coverage, in [0, 1]
+      *
+      * @return reference to this object
+      */
+    public PRMMissingDataMarginalizer setIntervalLevel(double level)
+    {
+	checkLevel(level);
+	this.intervalLevel = level;
+	return this;
+    }
+
+    /**
+      * Calculates the probability distribution of the data over its
+      * missing fields. With no missing field, all values are equal to
+      * the probability.
+      *
+      * @param data the data
+      *
+      * @return the distribution summary
+      */
+    public MarginalRisk calculate(@Nonnull HCHRiskStratificationPRMData data)
+    {
+	return calculate(data, calculator.calculatePRMLinearPredictor(data));
+    }
+
+    /**
+      * Calculates the probability distribution of the data over its
+      * missing fields, given its linear predictor, e.g. when the
+      * probability is also calculated from it.
+      *
+      * @param data the data
+      * @param linearPredictor the linear predictor of the data
+      *
+      * @return the distribution summary
+      */
+    public MarginalRisk calculate(@Nonnull HCHRiskStratificationPRMData data,
+	    double linearPredictor)
+    {
+	int mask = 0;
+	List<String> missingFields = new ArrayList<>();
+	for (PRMField field : PRMField.values()) {
+	    if (field.get(data) == field.getMissingValue()) {
+		mask |= 1 << field.ordinal();
+		missingFields.add(field.getJsonName());
+	    }
+	}
+	ShiftDistribution distribution
+	    = cache.computeIfAbsent(mask, this::buildDistribution);
+
+	double mean = 0;
+	for (int i = 0; i < distribution.shifts.length; i++) {
+	    mean += distribution.weights[i]
+		* logistic(linearPredictor + distribution.shifts[i]);
+	}
+	mean /= distribution.cumulative[distribution.cumulative.length - 1];
+
+	double[] levels = quantileLevels;
+	double[] quantiles = new double[levels.length];
+	for (int i = 0; i < levels.length; i++) {
+	    quantiles[i] = logistic(linearPredictor
+		    + distribution.quantile(levels[i]));
+	}
+	double lower = logistic(linearPredictor
+		+ distribution.quantile((1 - intervalLevel) / 2));
+	double upper = logistic(linearPredictor
+		+ distribution.quantile((1 + intervalLevel) / 2));
+
+	return new MarginalRisk(logistic(linearPredictor), mean, levels,
+		quantiles, lower, upper,
+		Collections.unmodifiableList(missingFields));
+    }
+
+    /**
+      * Convolves the shift distributions of the fields in the mask.
+      */
+    private ShiftDistribution buildDistribution(int mask)
+    {
+	double[] pmf = {1};
+	int offset = 0;
+	for (PRMField field : PRMField.values()) {
+	    if ((mask & (1 << field.ordinal())) == 0) {
+		continue;
+	    }
+	    double[] weights = prevalences[field.ordinal()];
+	    double[] terms = contributions.getContributions(field);
+	    double missing = terms[field.getMissingValue().ordinal()];
+	    double total = 0;
+	    int min = Integer.MAX_VALUE;
+	    int max = Integer.MIN_VALUE;
+	    int[] steps = new int[weights.length];
+	    for (int v = 0; v < weights.length; v++) {
+		steps[v] = (int) Math.round((terms[v] - missing) / resolution);
+		if (weights[v] > 0) {
+		    total += weights[v];
+		    min = Math.min(min, steps[v]);
+		    max = Math.max(max, steps[v]);
+		}
+	    }
+	    if (total == 0) {
+		continue; // No prevalence, so the field stays as recorded
+	    }
+	    double[] next = new double[pmf.length + max - min];
+	    for (int v = 0; v < weights.length; v++) {
+		if (weights[v] > 0) {
+		    double p = weights[v] / total;
+		    int shift = steps[v] - min;
+		    for (int i = 0; i < pmf.length; i++) {
+			next[i + shift] += pmf[i] * p;
+		    }
+		}
+	    }
+	    pmf = next;
+	    offset += min;
+	}
+
+	int count = 0;
+	for (double p : pmf) {
+	    if (p > 0) {
+		count++;
+	    }
+	}
+	double[] shifts = new double[count];
+	double[] weights = new double[count];
+	int j = 0;
+	for (int i = 0; i < pmf.length; i++) {
+	    if (pmf[i] > 0) {
+		shifts[j] = (offset + i) * resolution;
+		weights[j] = pmf[i];
+		j++;
+	    }
+	}
+	return new ShiftDistribution(shifts, weights);
+    }
+
+    /**
+      * The logistic function.
+      */
+    private static double logistic(double x)
+    {
+	return 1 / (1 + Math.exp(-x));
+    }
+
+    /**
+      * Checks a probability level is valid.
+      */
+    private static void checkLevel(double level)
+    {
+	if (!(level >= 0 && level <= 1)) {
+	    throw new IllegalArgumentException("Level must be in [0, 1]");
+	}
+    }
+}
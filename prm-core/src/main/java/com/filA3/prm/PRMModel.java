@@ -0,0 +1,214 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.DiseaseGroup;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+
+/**
+  * A set of coefficients for the columns of {@link PRMDesign}, with a
+  * version that identifies it, e.g. in stored scores.
+  * <p>
+  * Models are stored as properties files with a "Version" key and one key
+  * per column, e.g. "AGE=-0.03795278". The national model is returned by
+  * {@link HCHRiskStratificationPRMScoreCalculator#getModel()}, locally
+  * refitted ones are written by <code>PRMModelFitter</code>, and
+  * {@link PRMModelCalculator} scores with any of them.
+  * <p>
+  * The linear predictor is calculated in double precision directly from
+  * the column tables of the design, without building the row.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMModel
+{
+    /** The properties key of the version */
+    private static final String VERSION_KEY = "Version";
+
+    /** The version */
+    private final String version;
+    /** The coefficient of each column */
+    private final double[] coefficients;
+
+    /**
+      * Constructor.
+      *
+      * @param version the version
+      * @param coefficients the coefficient of each column of the design
+      */
+    public PRMModel(@Nonnull String version, @Nonnull double[] coefficients)
+    {
+	if (coefficients.length != PRMDesign.size()) {
+	    throw new IllegalArgumentException("Expected "
+		    + PRMDesign.size() + " coefficients, not "
+		    + coefficients.length);
+	}
+	this.version = version;
+	this.coefficients = coefficients.clone();
+    }
+
+    /**
+      * Reads a model from a properties file. Every column must be present.
+      *
+      * @param reader the properties
+      *
+      * @return the model
+      *
+      * @throws IOException if reading fails
+      * @throws IllegalArgumentException if a key or value is invalid, or a
+      *                                  column is missing
+      */
+    public static PRMModel read(@Nonnull Reader reader) throws IOException
+    {
+	Properties properties = new Properties();
+	properties.load(reader);
+	String version = properties.getProperty(VERSION_KEY);
+	if (version == null) {
+	    throw new IllegalArgumentException("Missing " + VERSION_KEY);
+	}
+	double[] coefficients = new double[PRMDesign.size()];
+	boolean[] found = new boolean[coefficients.length];
+	for (String key : properties.stringPropertyNames()) {
+	    if (!key.equals(VERSION_KEY)) {
+		int column = PRMDesign.column(key);
+		coefficients[column]
+		    = Double.parseDouble(properties.getProperty(key).trim());
+		found[column] = true;
+	    }
+	}
+	for (int i = 0; i < found.length; i++) {
+	    if (!found[i]) {
+		throw new IllegalArgumentException("Missing coefficient: "
+			+ PRMDesign.getColumns().get(i));
+	    }
+	}
+	return new PRMModel(version, coefficients);
+    }
+
+    /**
+      * Writes the model as a properties file, columns in design order.
+      *
+      * @param writer where to write
+      */
+    public void write(@Nonnull Writer writer)
+    {
+	PrintWriter out = new PrintWriter(writer);
+	out.println(VERSION_KEY + "=" + version);
+	for (int i = 0; i < coefficients.length; i++) {
+	    out.println(PRMDesign.getColumns().get(i) + "=" + coefficients[i]);
+	}
+	out.flush();
+    }
+
+    /**
+      * Returns the version.
+      *
+      * @return the version
+      */
+    public String getVersion()
+    {
+	return version;
+    }
+
+    /**
+      * Returns the coefficient of a column.
+      *
+      * @param column the column index
+      *
+      * @return the coefficient
+      */
+    public double getCoefficient(int column)
+    {
+	return coefficients[column];
+    }
+
+    /**
+      * Returns the coefficients of all columns.
+      *
+      * @return the coefficients, in design order
+      */
+    public double[] getCoefficients()
+    {
+	return coefficients.clone();
+    }
+
+    /**
+      * Calculates the linear predictor.
+      *
+      * @param data the data
+      *
+      * @return the linear predictor
+      */
+    public double calculateLinearPredictor(
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+	double age = data.getAge();
+	double numDiseases = data.getDiseases().size();
+	double lp = coefficients[PRMDesign.INTERCEPT]
+	    + age * (coefficients[PRMDesign.AGE]
+		    + age * (coefficients[PRMDesign.AGE_SQ]
+			+ age * coefficients[PRMDesign.AGE_CU]))
+	    + numDiseases * (coefficients[PRMDesign.NUMDISEASES]
+		    + numDiseases * (coefficients[PRMDesign.NUMDISEASES_SQ]
+			+ numDiseases * coefficients[PRMDesign.NUMDISEASES_CU]));
+	boolean female = data.getIsFemale();
+	if (female) {
+	    lp += coefficients[PRMDesign.FEMALE];
+	}
+	for (PRMField field : PRMField.values()) {
+	    int column = PRMDesign.getColumn(field, field.get(data));
+	    if (column >= 0) {
+		lp += coefficients[column];
+	    }
+	}
+	for (MedicationGroup group : data.getMedicationGroups()) {
+	    lp += coefficients[PRMDesign.getColumn(group)];
+	}
+	int groups = PRMDesign.getDiseaseGroups(data);
+	for (DiseaseGroup group : DiseaseGroup.values()) {
+	    if ((groups & (1 << group.ordinal())) != 0) {
+		lp += coefficients[PRMDesign.getColumn(group)];
+		int interaction = PRMDesign.getFemaleColumn(group);
+		if (female && interaction >= 0) {
+		    lp += coefficients[interaction];
+		}
+	    }
+	}
+	return lp;
+    }
+
+    /**
+      * Calculates the hospitalisation probability.
+      *
+      * @param data the data
+      *
+      * @return the probability
+      */
+    public double calculateProbability(
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+	return 1 / (1 + Math.exp(-calculateLinearPredictor(data)));
+    }
+}
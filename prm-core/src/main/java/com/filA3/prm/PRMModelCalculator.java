@@ -0,0 +1,107 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.annotation.Nonnull;
+
+/**
+  * A calculator that scores with a {@link PRMModel} instead of the
+  * national coefficients, e.g. one refitted to local outcomes by
+  * <code>PRMModelFitter</code>.
+  * <p>
+  * Being a calculator, it can be used wherever the national one is, e.g.
+  * by the counterfactual search or the age projection. Probabilities are
+  * rounded to the same precision as the national calculator's.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMModelCalculator extends HCHRiskStratificationPRMScoreCalculator
+{
+    /** Scale of the rounding of probabilities */
+    private static final double ROUNDING = 1e8;
+
+    /** The model */
+    private final PRMModel model;
+
+    /**
+      * Constructor.
+      *
+      * @param model the model
+      */
+    public PRMModelCalculator(@Nonnull PRMModel model)
+    {
+	this.model = model;
+    }
+
+    /**
+      * Reads a model file and returns a calculator that scores with it.
+      *
+      * @param reader the model properties
+      *
+      * @return the calculator
+      *
+      * @throws IOException if reading fails
+      * @throws IllegalArgumentException if the model is invalid
+      */
+    public static PRMModelCalculator read(@Nonnull Reader reader)
+	throws IOException
+    {
+	return new PRMModelCalculator(PRMModel.read(reader));
+    }
+
+    @Override
+    public PRMModel getModel()
+    {
+	return model;
+    }
+
+    @Override
+    public double calculatePRMScore(@Nonnull HCHRiskStratificationPRMData data)
+    {
+	Object event = PRMEvents.begin(PRMEvents.Phase.SCORE);
+	double probability
+	    = Math.round(model.calculateProbability(data) * ROUNDING)
+	    / ROUNDING;
+	PRMEvents.end(event, 1, true, model.getVersion());
+	return probability;
+    }
+
+    @Override
+    public double calculatePRMScore(double linearPredictor)
+    {
+	return Math.round(1 / (1 + Math.exp(-linearPredictor)) * ROUNDING)
+	    / ROUNDING;
+    }
+
+    @Override
+    public double calculatePRMLinearPredictor(
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+	return model.calculateLinearPredictor(data);
+    }
+
+    @Override
+    public double[] getAgeCoefficients()
+    {
+	return new double[] {model.getCoefficient(PRMDesign.AGE),
+	    model.getCoefficient(PRMDesign.AGE_SQ),
+	    model.getCoefficient(PRMDesign.AGE_CU)};
+    }
+}
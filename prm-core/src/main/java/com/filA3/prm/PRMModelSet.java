@@ -0,0 +1,138 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Scores profiles under several models at once, e.g. the current model
+  * and candidate recalibrations of it.
+  * <p>
+  * The row of {@link PRMDesign} is extracted once per profile, as its non
+  * zero columns, and multiplied with the coefficients of all models,
+  * which are stored column by column so that each non zero column updates
+  * every model's linear predictor from one contiguous run. Scoring under
+  * a few models costs little more than scoring under one.
+  * <p>
+  * Probabilities are rounded as by {@link PRMModelCalculator}. The set is
+  * immutable and thread safe.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMModelSet
+{
+    /** Scale of the rounding of probabilities */
+    private static final double ROUNDING = 1e8;
+
+    /** The non zero columns of rows, per thread */
+    private static final ThreadLocal<int[]> COLUMNS
+	= ThreadLocal.withInitial(() -> new int[PRMDesign.MAX_NONZERO]);
+    /** The non zero values of rows, per thread */
+    private static final ThreadLocal<double[]> VALUES
+	= ThreadLocal.withInitial(() -> new double[PRMDesign.MAX_NONZERO]);
+
+    /** The models */
+    private final PRMModel[] models;
+    /** The coefficients, model k of column c at c * models.length + k */
+    private final double[] coefficients;
+
+    /**
+      * Constructor.
+      *
+      * @param models the models, the first usually being the current one
+      */
+    public PRMModelSet(@Nonnull PRMModel... models)
+    {
+	if (models.length == 0) {
+	    throw new IllegalArgumentException("No models");
+	}
+	this.models = models.clone();
+	int m = models.length;
+	coefficients = new double[PRMDesign.size() * m];
+	for (int k = 0; k < m; k++) {
+	    for (int c = 0; c < PRMDesign.size(); c++) {
+		coefficients[c * m + k] = models[k].getCoefficient(c);
+	    }
+	}
+    }
+
+    /**
+      * Returns the number of models.
+      *
+      * @return the number of models
+      */
+    public int size()
+    {
+	return models.length;
+    }
+
+    /**
+      * Returns the models.
+      *
+      * @return the models, in order
+      */
+    public List<PRMModel> getModels()
+    {
+	return Arrays.asList(models.clone());
+    }
+
+    /**
+      * Calculates the linear predictor of a profile under every model.
+      *
+      * @param data the profile
+      * @param linearPredictors receives the linear predictor of each
+      *                         model, at least {@link #size} long
+      */
+    public void calculateLinearPredictors(
+	    @Nonnull HCHRiskStratificationPRMData data,
+	    @Nonnull double[] linearPredictors)
+    {
+	int[] columns = COLUMNS.get();
+	double[] values = VALUES.get();
+	int n = PRMDesign.extract(data, columns, values);
+	int m = models.length;
+	Arrays.fill(linearPredictors, 0, m, 0);
+	for (int i = 0; i < n; i++) {
+	    double value = values[i];
+	    int offset = columns[i] * m;
+	    for (int k = 0; k < m; k++) {
+		linearPredictors[k] += value * coefficients[offset + k];
+	    }
+	}
+    }
+
+    /**
+      * Calculates the probability of a profile under every model.
+      *
+      * @param data the profile
+      * @param probabilities receives the probability of each model, at
+      *                      least {@link #size} long
+      */
+    public void calculateProbabilities(
+	    @Nonnull HCHRiskStratificationPRMData data,
+	    @Nonnull double[] probabilities)
+    {
+	calculateLinearPredictors(data, probabilities);
+	for (int k = 0; k < models.length; k++) {
+	    probabilities[k] = Math.round(ROUNDING
+		    * (1 / (1 + Math.exp(-probabilities[k])))) / ROUNDING;
+	}
+    }
+}
@@ -0,0 +1,196 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.IRSADDecile;
+
+/**
+  * Maps Australian postcodes to {@link IRSADDecile} values, so that
+  * callers can send a "Postcode" instead of the decile.
+  * <p>
+  * The table is a dense array of one byte per possible 4 digit postcode,
+  * holding the decile ordinal, so a lookup is a single array read. It is
+  * read from a CSV file of postcode and decile (1 to 10) pairs, such as
+  * can be derived from the ABS SEIFA postal area tables, e.g.:
+  * <pre>
+  * Postcode,Decile
+  * 0800,7
+  * 3000,9
+  * </pre>
+  * Postcodes that are not in the table map to UNKNOWN. The table used
+  * when parsing data objects is shared, empty until one is set with
+  * {@link #setInstance}, and may be replaced at any time.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMPostcodeDeciles
+{
+    /** The number of 4 digit postcodes */
+    private static final int POSTCODES = 10000;
+
+    /** The deciles by ordinal */
+    private static final IRSADDecile[] DECILES = IRSADDecile.values();
+
+    /** The shared table */
+    private static volatile PRMPostcodeDeciles instance
+	= new PRMPostcodeDeciles(empty());
+
+    /** The decile ordinal of each postcode */
+    private final byte[] deciles;
+    /** The number of postcodes in the table */
+    private final int size;
+
+    /**
+      * Constructor.
+      */
+    private PRMPostcodeDeciles(byte[] deciles)
+    {
+	this.deciles = deciles;
+	int n = 0;
+	for (byte decile : deciles) {
+	    if (decile != IRSADDecile.UNKNOWN.ordinal()) {
+		n++;
+	    }
+	}
+	this.size = n;
+    }
+
+    /**
+      * Returns the shared table.
+      *
+      * @return the table
+      */
+    public static PRMPostcodeDeciles getInstance()
+    {
+	return instance;
+    }
+
+    /**
+      * Replaces the shared table.
+      *
+      * @param table the new table
+      */
+    public static void setInstance(@Nonnull PRMPostcodeDeciles table)
+    {
+	instance = table;
+    }
+
+    /**
+      * Reads a table from CSV. A first line that does not start with a
+      * digit is taken as a header; blank lines are ignored.
+      *
+      * @param reader the CSV
+      *
+      * @return the table
+      *
+      * @throws IOException if reading fails, or a line is invalid
+      */
+    public static PRMPostcodeDeciles read(@Nonnull Reader reader)
+	throws IOException
+    {
+	byte[] deciles = empty();
+	BufferedReader in = new BufferedReader(reader);
+	String line;
+	int lineNumber = 0;
+	while ((line = in.readLine()) != null) {
+	    lineNumber++;
+	    line = line.trim();
+	    if (line.isEmpty() || (lineNumber == 1
+			&& !Character.isDigit(line.charAt(0)))) {
+		continue;
+	    }
+	    String[] values = line.split(",");
+	    try {
+		int postcode = Integer.parseInt(values[0].trim());
+		int decile = Integer.parseInt(values[1].trim());
+		if (postcode < 0 || postcode >= POSTCODES
+			|| decile < 1 || decile > 10) {
+		    throw new NumberFormatException("out of range");
+		}
+		deciles[postcode] = (byte) (decile - 1);
+	    } catch (RuntimeException e) {
+		throw new IOException("Line " + lineNumber + ": " + line, e);
+	    }
+	}
+	return new PRMPostcodeDeciles(deciles);
+    }
+
+    /**
+      * Returns the decile of a postcode.
+      *
+      * @param postcode the postcode
+      *
+      * @return the decile, UNKNOWN if the postcode is not in the table
+      */
+    public IRSADDecile lookup(int postcode)
+    {
+	return postcode >= 0 && postcode < POSTCODES
+	    ? DECILES[deciles[postcode]] : IRSADDecile.UNKNOWN;
+    }
+
+    /**
+      * Returns the decile of a postcode given as a number or a string.
+      *
+      * @param postcode the postcode, e.g. 3000 or "0800"
+      *
+      * @return the decile, UNKNOWN if the postcode is invalid or not in
+      *         the table
+      */
+    public IRSADDecile lookup(Object postcode)
+    {
+	if (postcode instanceof Number) {
+	    return lookup(((Number) postcode).intValue());
+	}
+	String s = String.valueOf(postcode).trim();
+	int value = 0;
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c < '0' || c > '9' || i == 4) {
+		return IRSADDecile.UNKNOWN;
+	    }
+	    value = value * 10 + c - '0';
+	}
+	return s.isEmpty() ? IRSADDecile.UNKNOWN : lookup(value);
+    }
+
+    /**
+      * Returns the number of postcodes in the table.
+      *
+      * @return the number of postcodes with a decile
+      */
+    public int size()
+    {
+	return size;
+    }
+
+    /**
+      * Returns a table with no postcodes.
+      */
+    private static byte[] empty()
+    {
+	byte[] deciles = new byte[POSTCODES];
+	Arrays.fill(deciles, (byte) IRSADDecile.UNKNOWN.ordinal());
+	return deciles;
+    }
+}
@@ -0,0 +1,315 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+  * The distribution of probabilities in a reference population, such as
+  * a scored cohort, for placing a patient's probability as a percentile
+  * rank and a risk tier.
+  * <p>
+  * The distribution is kept as a sorted array of at most
+  * {@link #MAX_POINTS} order statistics of the population, all of them
+  * for smaller populations, so that it is small to load and a lookup is
+  * two binary searches. The percentile of a probability is the
+  * percentage of the population below it, counting half of those equal
+  * to it. Tiers are given by ascending percentile bands: tier 0 is below
+  * the first band, tier 1 below the second, and so on.
+  * <p>
+  * The distribution used for responses is shared, empty until one is
+  * set with {@link #setInstance}, and may be replaced at any time.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMReferencePopulation
+{
+    /** The maximum number of order statistics kept */
+    public static final int MAX_POINTS = 100001;
+
+    /** The default percentile bands of tiers */
+    public static final double[] DEFAULT_BANDS = {50, 80, 95};
+
+    /** The file magic number, "PRMR" */
+    private static final int MAGIC = 0x50524d52;
+
+    /**
+      * Collects the probabilities of a population, such as a cohort as it
+      * is scored.
+      */
+    public static class Builder
+    {
+	/** The probabilities */
+	private float[] probabilities = new float[1024];
+	/** The number of probabilities */
+	private int count;
+
+	/**
+	  * Adds the probability of a patient.
+	  *
+	  * @param probability the probability
+	  *
+	  * @return this builder
+	  */
+	public Builder add(double probability)
+	{
+	    if (count == probabilities.length) {
+		probabilities = Arrays.copyOf(probabilities, count * 2);
+	    }
+	    probabilities[count++] = (float) probability;
+	    return this;
+	}
+
+	/**
+	  * Creates the distribution of the probabilities added.
+	  *
+	  * @return the distribution, with the default tiers
+	  */
+	public PRMReferencePopulation build()
+	{
+	    return of(probabilities, count);
+	}
+    }
+
+    /** The shared distribution */
+    private static volatile PRMReferencePopulation instance
+	= new PRMReferencePopulation(new float[0], 0, DEFAULT_BANDS);
+
+    /** The sorted order statistics */
+    private final float[] points;
+    /** The size of the population */
+    private final long populationSize;
+    /** The ascending percentile bands of tiers */
+    private final double[] bands;
+
+    /**
+      * Constructor.
+      */
+    private PRMReferencePopulation(float[] points, long populationSize,
+	    double[] bands)
+    {
+	this.points = points;
+	this.populationSize = populationSize;
+	this.bands = bands;
+    }
+
+    /**
+      * Returns the shared distribution.
+      *
+      * @return the distribution
+      */
+    public static PRMReferencePopulation getInstance()
+    {
+	return instance;
+    }
+
+    /**
+      * Replaces the shared distribution.
+      *
+      * @param population the new distribution
+      */
+    public static void setInstance(@Nonnull PRMReferencePopulation population)
+    {
+	instance = population;
+    }
+
+    /**
+      * Creates the distribution of a population.
+      *
+      * @param probabilities the probabilities of the population, which
+      *                      are sorted in place
+      * @param count the number of probabilities
+      *
+      * @return the distribution, with the default tiers
+      */
+    public static PRMReferencePopulation of(@Nonnull float[] probabilities,
+	    int count)
+    {
+	Arrays.sort(probabilities, 0, count);
+	float[] points;
+	if (count <= MAX_POINTS) {
+	    points = Arrays.copyOf(probabilities, count);
+	} else {
+	    points = new float[MAX_POINTS];
+	    for (int i = 0; i < MAX_POINTS; i++) {
+		points[i] = probabilities[(int) ((long) i * (count - 1)
+			    / (MAX_POINTS - 1))];
+	    }
+	}
+	return new PRMReferencePopulation(points, count, DEFAULT_BANDS);
+    }
+
+    /**
+      * Returns this distribution with other tiers.
+      *
+      * @param bands the ascending percentile bands between tiers
+      *
+      * @return the distribution with the tiers
+      *
+      * @throws IllegalArgumentException if a band is not in [0, 100], or
+      *                                  they are not ascending
+      */
+    public PRMReferencePopulation withBands(@Nonnull double... bands)
+    {
+	for (int i = 0; i < bands.length; i++) {
+	    if (!(bands[i] >= 0 && bands[i] <= 100)
+		    || (i > 0 && bands[i] <= bands[i - 1])) {
+		throw new IllegalArgumentException("Invalid bands: "
+			+ Arrays.toString(bands));
+	    }
+	}
+	return new PRMReferencePopulation(points, populationSize,
+		bands.clone());
+    }
+
+    /**
+      * Reads a distribution written by {@link #write}, with the default
+      * tiers.
+      *
+      * @param in the input
+      *
+      * @return the distribution
+      *
+      * @throws IOException if reading fails, or the input is invalid
+      */
+    public static PRMReferencePopulation read(@Nonnull InputStream in)
+	throws IOException
+    {
+	DataInputStream data = new DataInputStream(in);
+	if (data.readInt() != MAGIC) {
+	    throw new IOException("Not a reference population");
+	}
+	long populationSize = data.readLong();
+	int count = data.readInt();
+	if (count < 0 || count > MAX_POINTS || count > populationSize) {
+	    throw new IOException("Invalid number of points: " + count);
+	}
+	float[] points = new float[count];
+	for (int i = 0; i < count; i++) {
+	    points[i] = data.readFloat();
+	    if (i > 0 && !(points[i] >= points[i - 1])) {
+		throw new IOException("Points are not sorted");
+	    }
+	}
+	return new PRMReferencePopulation(points, populationSize,
+		DEFAULT_BANDS);
+    }
+
+    /**
+      * Writes the distribution.
+      *
+      * @param out the output
+      *
+      * @throws IOException if writing fails
+      */
+    public void write(@Nonnull OutputStream out) throws IOException
+    {
+	DataOutputStream data = new DataOutputStream(out);
+	data.writeInt(MAGIC);
+	data.writeLong(populationSize);
+	data.writeInt(points.length);
+	for (float point : points) {
+	    data.writeFloat(point);
+	}
+	data.flush();
+    }
+
+    /**
+      * Returns the size of the population.
+      *
+      * @return the number of patients the distribution was built from
+      */
+    public long getPopulationSize()
+    {
+	return populationSize;
+    }
+
+    /**
+      * Returns the percentile bands of tiers.
+      *
+      * @return the ascending bands
+      */
+    public double[] getBands()
+    {
+	return bands.clone();
+    }
+
+    /**
+      * Returns the percentile rank of a probability.
+      *
+      * @param probability the probability
+      *
+      * @return the percentage of the population below it, counting half
+      *         of those equal to it, or NaN if the population is empty
+      */
+    public double getPercentile(double probability)
+    {
+	if (points.length == 0) {
+	    return Double.NaN;
+	}
+	float value = (float) probability;
+	int below = bound(value, false);
+	int atOrBelow = bound(value, true);
+	return 50.0 * (below + atOrBelow) / points.length;
+    }
+
+    /**
+      * Returns the tier of a percentile.
+      *
+      * @param percentile the percentile
+      *
+      * @return the number of bands at or below the percentile, or -1 if
+      *         the percentile is NaN
+      */
+    public int getTier(double percentile)
+    {
+	if (Double.isNaN(percentile)) {
+	    return -1;
+	}
+	int tier = 0;
+	while (tier < bands.length && bands[tier] <= percentile) {
+	    tier++;
+	}
+	return tier;
+    }
+
+    /**
+      * Returns the number of points below a value, or at or below it.
+      */
+    private int bound(float value, boolean inclusive)
+    {
+	int low = 0;
+	int high = points.length;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if (points[middle] < value
+		    || (inclusive && points[middle] == value)) {
+		low = middle + 1;
+	    } else {
+		high = middle;
+	    }
+	}
+	return low;
+    }
+}
@@ -18,8 +18,16 @@
  * Provides the classes necessary to create an application
  * for calculating Health Care Homes hospitalisation probability.
  * <p>
- * A call to {@link com.filA3.prm.PRM#main} in class {@link com.filA3.prm.PRM} with
- * arguments performs the calculation. The {@link com.filA3.prm.PRM} class
- * describes the format of arguments and datafiles required.
+ * A call to PRM.main in class PRM, of prm-cli, with arguments performs
+ * the calculation. The PRM class describes the format of arguments and
+ * datafiles required.
+ * <p>
+ * The package is built in several modules, so that the scorers can be
+ * embedded without the rest: prm-core holds the data model and the
+ * scorers, with no dependencies; prm-json the parsing of JSON data
+ * objects, batches and patient event streams; prm-service the local
+ * protocol, shadow scoring, audit journal and drift monitoring; prm-jfr
+ * the flight recorder events, which need Java 11; and prm-cli the
+ * command line and the standalone servers.
  */
 package com.filA3.prm;
@@ -0,0 +1,102 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+import org.junit.jupiter.api.Test;
+
+class PRMCodeMappingTest {
+
+	private static PRMCodeMapping mapping() throws IOException {
+		return PRMCodeMapping.read(new StringReader("# code[*],target\n"
+				+ "I*,Disease.HYPERTENSION\n"
+				+ "I2*,Disease.CORONARY_HEART\n"
+				+ "I25*,Disease.STROKE\n"
+				+ "I25.1,Disease.CONG_HEART_FAILURE\n"
+				+ "\n"
+				+ "C09*,MedicationGroup.STATINS\n"
+				+ "C*,Disease.CANCER\n"));
+	}
+
+	@Test
+	void exactRulesThenLongestPrefixes() throws Exception {
+		PRMCodeMapping mapping = mapping();
+		assertEquals(6, mapping.size());
+		assertEquals(Disease.CONG_HEART_FAILURE, mapping.getDisease("I25.1"));
+		assertEquals(Disease.CONG_HEART_FAILURE, mapping.getDisease("i 251"));
+		assertEquals(Disease.STROKE, mapping.getDisease("I25.10"));
+		assertEquals(Disease.STROKE, mapping.getDisease("I25"));
+		assertEquals(Disease.CORONARY_HEART, mapping.getDisease("I21"));
+		assertEquals(Disease.CORONARY_HEART, mapping.getDisease("I2"));
+		assertEquals(Disease.HYPERTENSION, mapping.getDisease("I10"));
+		assertNull(mapping.getDisease("J45"));
+		assertNull(mapping.getDisease("I25-1"));
+		// Drug codes only map by medication rules, diagnoses by disease rules
+		assertEquals(MedicationGroup.STATINS, mapping.getMedicationGroup("C09AA"));
+		assertEquals(Disease.CANCER, mapping.getDisease("C09AA"));
+		assertNull(mapping.getMedicationGroup("C10"));
+	}
+
+	@Test
+	void appliesAndCountsCodes() throws Exception {
+		PRMCodeMapping mapping = mapping();
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setDiseases(EnumSet.of(Disease.ASTHMA));
+		mapping.applyDiagnoses(data, Arrays.asList("I25.1", 12345, "j45.9", "J459 ", "I10"));
+		mapping.applyMedications(data, Arrays.asList("C09AA01", "N02"));
+		assertEquals(EnumSet.of(Disease.ASTHMA, Disease.CONG_HEART_FAILURE, Disease.HYPERTENSION),
+				data.getDiseases());
+		assertEquals(EnumSet.of(MedicationGroup.STATINS), data.getMedicationGroups());
+		assertEquals(3, mapping.getMapped());
+		assertEquals(4, mapping.getUnmapped());
+		// Unmapped codes are counted as they are compared
+		Map<String, Long> codes = mapping.getUnmappedCodes();
+		assertEquals(3, codes.size());
+		assertEquals(2L, (long) codes.get("J459"));
+		assertEquals(1L, (long) codes.get("12345"));
+		assertEquals(1L, (long) codes.get("N02"));
+	}
+
+	@Test
+	void boundsUnmappedCodes() throws Exception {
+		PRMCodeMapping mapping = mapping();
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		StringBuilder longCode = new StringBuilder("Z");
+		for (int i = 0; i < 1000; i++) {
+			longCode.append(i % 10);
+		}
+		mapping.applyDiagnoses(data, Arrays.asList(longCode, longCode + "9", "Z-1"));
+		Map<String, Long> codes = mapping.getUnmappedCodes();
+		assertEquals(2L, (long) codes.get("Z012345678901234*"));
+		assertEquals(1L, (long) codes.get("Z?1"));
+		for (int i = 0; i < 2000; i++) {
+			mapping.applyDiagnoses(data, Arrays.asList("Z" + i));
+		}
+		assertEquals(1000, mapping.getUnmappedCodes().size());
+		assertEquals(2003, mapping.getUnmapped());
+	}
+
+	@Test
+	void rejectsInvalidRules() {
+		assertThrows(IOException.class, () -> PRMCodeMapping.read(new StringReader("J45*,Disease.UNKNOWN\n")));
+		assertThrows(IOException.class, () -> PRMCodeMapping.read(new StringReader("J45*,Procedure.X\n")));
+		assertThrows(IOException.class, () -> PRMCodeMapping.read(new StringReader("J4-5,Disease.ASTHMA\n")));
+		assertThrows(IOException.class, () -> PRMCodeMapping.read(new StringReader("J45\n")));
+	}
+
+	@Test
+	void bundledRulesMapCommonCodes() {
+		PRMCodeMapping mapping = PRMCodeMapping.getInstance();
+		assertEquals(Disease.ASTHMA, mapping.getDisease("J45.9"));
+		assertEquals(Disease.CONG_HEART_FAILURE, mapping.getDisease("I50"));
+	}
+}
@@ -0,0 +1,150 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.BMICategory;
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+import com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory;
+import com.filA3.prm.HCHRiskStratificationPRMData.SmokingStatus;
+import org.junit.jupiter.api.Test;
+
+class PRMCounterfactualSearchTest {
+
+	private final HCHRiskStratificationPRMScoreCalculator calculator =
+			HCHRiskStratificationPRMScoreCalculator.getInstance();
+
+	private HCHRiskStratificationPRMData patient() {
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setAge(71).setIsFemale(true);
+		data.setSmokingStatus(SmokingStatus.SMOKER);
+		data.setBMICategory(BMICategory.BMI_35_TO_40);
+		data.setMedicationGroups(EnumSet.of(MedicationGroup.ANTI_INFLAMMATORY,
+				MedicationGroup.STEROIDS, MedicationGroup.STATINS));
+		data.setDiseases(EnumSet.of(Disease.COPD, Disease.DIABETES_TYPE_2,
+				Disease.CONG_HEART_FAILURE));
+		data.setHbA1cCategory(PathologyCategory.HIGH);
+		data.setBloodPressureCategory(PathologyCategory.HIGH);
+		data.setCreatinineCategory(PathologyCategory.MED);
+		return data;
+	}
+
+	@Test
+	void changeSetsReachTheTarget() {
+		HCHRiskStratificationPRMData data = patient();
+		double before = calculator.calculatePRMScore(data);
+		double target = before * 0.6;
+
+		List<PRMCounterfactualSearch.ChangeSet> results =
+				new PRMCounterfactualSearch(calculator).search(data, target, 5);
+
+		assertFalse(results.isEmpty());
+		double previousCost = 0;
+		for (PRMCounterfactualSearch.ChangeSet result : results) {
+			HCHRiskStratificationPRMData changed = patient();
+			result.applyTo(changed);
+			double after = calculator.calculatePRMScore(changed);
+			assertTrue(after <= target + 1e-7, result.toString());
+			assertEquals(after, result.getProbability(), 1e-7);
+			assertTrue(result.getCost() >= previousCost);
+			previousCost = result.getCost();
+		}
+		assertEquals(before, calculator.calculatePRMScore(data));
+	}
+
+	@Test
+	void cheapestSetMatchesExhaustiveSearch() {
+		HCHRiskStratificationPRMData data = patient();
+		double target = calculator.calculatePRMScore(data) * 0.5;
+		PRMCounterfactualSearch search = new PRMCounterfactualSearch(calculator)
+				.setWeight(PRMField.SMOKING_STATUS, 5)
+				.setWeight(MedicationGroup.STEROIDS, 0.5);
+
+		List<PRMCounterfactualSearch.ChangeSet> results = search.search(data, target, 1);
+
+		// Every combination of smoking, BMI, HbA1c, blood pressure,
+		// creatinine and the two helpful medications.
+		double best = Double.POSITIVE_INFINITY;
+		for (int smoking = 0; smoking < 2; smoking++) {
+			for (int bmi = 0; bmi < 4; bmi++) {
+				for (int hba1c = 0; hba1c < 3; hba1c++) {
+					for (int bp = 0; bp < 3; bp++) {
+						for (int creatinine = 0; creatinine < 2; creatinine++) {
+							for (int meds = 0; meds < 4; meds++) {
+								HCHRiskStratificationPRMData changed = patient();
+								changed.setSmokingStatus(smoking == 1
+										? SmokingStatus.EX_SMOKER : SmokingStatus.SMOKER);
+								changed.setBMICategory(BMICategory.values()[3 - bmi]);
+								changed.setHbA1cCategory(PathologyCategory.values()[2 - hba1c]);
+								changed.setBloodPressureCategory(PathologyCategory.values()[2 - bp]);
+								changed.setCreatinineCategory(PathologyCategory.values()[1 - creatinine]);
+								EnumSet<MedicationGroup> groups = EnumSet.of(MedicationGroup.STATINS);
+								if ((meds & 1) == 0) {
+									groups.add(MedicationGroup.ANTI_INFLAMMATORY);
+								}
+								if ((meds & 2) == 0) {
+									groups.add(MedicationGroup.STEROIDS);
+								}
+								changed.setMedicationGroups(groups);
+								if (calculator.calculatePRMScore(changed) <= target) {
+									double cost = 5 * smoking + bmi + hba1c + bp + creatinine
+											+ (meds & 1) + 0.5 * ((meds & 2) >> 1);
+									best = Math.min(best, cost);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+
+		assertEquals(1, results.size());
+		assertEquals(best, results.get(0).getCost(), 1e-9);
+	}
+
+	@Test
+	void loadedCostsWeighAndFixChanges() throws Exception {
+		HCHRiskStratificationPRMData data = patient();
+		double target = calculator.calculatePRMScore(data) * 0.6;
+		PRMCounterfactualSearch defaults = new PRMCounterfactualSearch(calculator);
+		PRMCounterfactualSearch costs = new PRMCounterfactualSearch(defaults)
+				.loadCosts(new StringReader("SmokingStatus=fixed\n"
+						+ "BMICategory=0.25\n"
+						+ "MedicationGroups.STEROIDS=fixed\n"
+						+ "Ethnicity=fixed\n"));
+
+		List<PRMCounterfactualSearch.ChangeSet> results = costs.search(data, target, 5);
+		assertFalse(results.isEmpty());
+		for (PRMCounterfactualSearch.ChangeSet result : results) {
+			double cost = 0;
+			for (PRMCounterfactualSearch.Change change : result.getChanges()) {
+				assertFalse(change.getField().equals("SmokingStatus"), result.toString());
+				assertFalse(change.getFrom().equals("STEROIDS"), result.toString());
+				cost += change.getCost();
+				if (change.getField().equals("BMICategory")) {
+					assertEquals(0.25 * (BMICategory.BMI_35_TO_40.ordinal()
+							- BMICategory.valueOf(change.getTo()).ordinal()), change.getCost(), 1e-12);
+				}
+			}
+			assertEquals(cost, result.getCost(), 1e-12);
+		}
+
+		// The copy did not change the original, and costs can be reset one by one
+		assertTrue(defaults.search(data, target, 5).stream().anyMatch(result -> result.getChanges()
+				.stream().anyMatch(change -> change.getField().equals("SmokingStatus"))));
+		costs.setCost("SmokingStatus", "0");
+		assertEquals(0, costs.search(data, calculator.calculatePRMScore(data) * 0.99, 1).get(0).getCost(), 1e-12);
+
+		assertThrows(IllegalArgumentException.class, () -> costs.setCost("Smoking", "1"));
+		assertThrows(IllegalArgumentException.class, () -> costs.setCost("MedicationGroups.ASPIRIN", "1"));
+		assertThrows(IllegalArgumentException.class, () -> costs.setCost("HbA1cCategory", "-1"));
+		assertThrows(IllegalArgumentException.class, () -> costs.setCost("Ethnicity", "1"));
+	}
+}
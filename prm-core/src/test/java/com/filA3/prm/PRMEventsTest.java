@@ -0,0 +1,25 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class PRMEventsTest {
+
+	@Test
+	void recordsNothingWithoutTheFlightRecorderModule() {
+		// prm-jfr is not on the class path of prm-core
+		for (PRMEvents.Phase phase : PRMEvents.Phase.values()) {
+			Object event = PRMEvents.begin(phase);
+			assertNull(event);
+			PRMEvents.end(event, 1, true);
+			PRMEvents.end(event, 1, false, "detail");
+		}
+		// The calculator still scores around its calls
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setAge(50);
+		double probability = HCHRiskStratificationPRMScoreCalculator.getInstance().calculatePRMScore(data);
+		assertTrue(probability > 0 && probability < 1);
+	}
+}
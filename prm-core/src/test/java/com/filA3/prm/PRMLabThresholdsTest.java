@@ -0,0 +1,92 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory;
+import com.filA3.prm.PRMLabThresholds.Measure;
+import org.junit.jupiter.api.Test;
+
+class PRMLabThresholdsTest {
+
+	private static String defaults() throws IOException {
+		try (InputStream in = PRMLabThresholds.class.getResourceAsStream("lab-thresholds.properties")) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	void binsAtCutPoints() {
+		PRMLabThresholds thresholds = PRMLabThresholds.getInstance();
+		assertEquals(PathologyCategory.LOW, thresholds.bin(Measure.PLATELETS, false, 149.9));
+		assertEquals(PathologyCategory.MED, thresholds.bin(Measure.PLATELETS, false, 150));
+		assertEquals(PathologyCategory.MED, thresholds.bin(Measure.PLATELETS, true, 399.9));
+		assertEquals(PathologyCategory.HIGH, thresholds.bin(Measure.PLATELETS, true, 400));
+		assertThrows(IllegalArgumentException.class, () -> thresholds.bin(Measure.PLATELETS, true, Double.NaN));
+	}
+
+	@Test
+	void binsBySex() {
+		PRMLabThresholds thresholds = PRMLabThresholds.getInstance();
+		assertEquals(PathologyCategory.MED, thresholds.bin(Measure.HAEMOGLOBIN, true, 120));
+		assertEquals(PathologyCategory.LOW, thresholds.bin(Measure.HAEMOGLOBIN, false, 120));
+		assertEquals(PathologyCategory.HIGH, thresholds.bin(Measure.HAEMOGLOBIN, true, 170));
+		assertEquals(PathologyCategory.MED, thresholds.bin(Measure.HAEMOGLOBIN, false, 170));
+	}
+
+	@Test
+	void sexSpecificRowsOverrideCommonOnes() throws Exception {
+		PRMLabThresholds thresholds = PRMLabThresholds.read(new StringReader(defaults()
+				+ "Platelets.male=100,200\nEGFR.female=30,60\nEGFR=10,20\n"));
+		assertEquals(PathologyCategory.HIGH, thresholds.bin(Measure.PLATELETS, false, 300));
+		assertEquals(PathologyCategory.MED, thresholds.bin(Measure.PLATELETS, true, 300));
+		// The later common row replaces the earlier common one, but not the female one
+		assertEquals(PathologyCategory.MED, thresholds.bin(Measure.EGFR, false, 15));
+		assertEquals(PathologyCategory.LOW, thresholds.bin(Measure.EGFR, true, 15));
+		assertEquals(PathologyCategory.MED, thresholds.bin(Measure.EGFR, true, 45));
+	}
+
+	@Test
+	void rejectsInvalidTables() throws Exception {
+		String defaults = defaults();
+		assertThrows(IllegalArgumentException.class,
+				() -> PRMLabThresholds.read(new StringReader("Platelets=150,400\n")));
+		assertThrows(IllegalArgumentException.class,
+				() -> PRMLabThresholds.read(new StringReader(defaults + "Platelets.child=1,2\n")));
+		assertThrows(IllegalArgumentException.class,
+				() -> PRMLabThresholds.read(new StringReader(defaults + "Platelets=400,150\n")));
+		assertThrows(IllegalArgumentException.class,
+				() -> PRMLabThresholds.read(new StringReader(defaults + "Platelets=150\n")));
+	}
+
+	@Test
+	void setsPathologyWithHigherBloodPressure() {
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData().setIsFemale(true);
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put("Haemoglobin", 120);
+		values.put("Creatinine", "95.5");
+		values.put("SystolicBP", 125);
+		values.put("DiastolicBP", 85);
+		PRMLabThresholds.getInstance().setPathology(data, values);
+		assertEquals(PathologyCategory.MED, PRMField.HAEMOGLOBIN.get(data));
+		assertEquals(PathologyCategory.MED, PRMField.CREATININE.get(data));
+		assertEquals(PathologyCategory.MED, PRMField.BLOOD_PRESSURE.get(data));
+
+		values.clear();
+		values.put("Sodium", 140);
+		assertThrows(IllegalArgumentException.class, () -> PRMLabThresholds.getInstance().setPathology(data, values));
+	}
+}
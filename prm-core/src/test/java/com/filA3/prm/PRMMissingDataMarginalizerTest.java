@@ -0,0 +1,75 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.AlcoholStatus;
+import com.filA3.prm.HCHRiskStratificationPRMData.Ethnicity;
+import com.filA3.prm.HCHRiskStratificationPRMData.IRSADDecile;
+import com.filA3.prm.HCHRiskStratificationPRMData.PathologyCategory;
+import com.filA3.prm.HCHRiskStratificationPRMData.SmokingStatus;
+import org.junit.jupiter.api.Test;
+
+class PRMMissingDataMarginalizerTest {
+
+	private final HCHRiskStratificationPRMScoreCalculator calculator =
+			HCHRiskStratificationPRMScoreCalculator.getInstance();
+
+	/** Only smoking status and BMI are missing. */
+	private HCHRiskStratificationPRMData patient() {
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setAge(58).setIsFemale(false);
+		data.setEthnicity(Ethnicity.NON_ATSI);
+		data.setAlcoholStatus(AlcoholStatus.DRINKER);
+		data.setIRSADDecile(IRSADDecile.THREE);
+		for (PRMField field : PRMField.values()) {
+			if (field.isPathology()) {
+				field.set(data, PathologyCategory.MED);
+			}
+		}
+		return data;
+	}
+
+	@Test
+	void meanMatchesEnumeration() throws Exception {
+		PRMMissingDataMarginalizer marginalizer = new PRMMissingDataMarginalizer(calculator)
+				.setResolution(1e-5)
+				.loadPrevalences(new StringReader("SmokingStatus.NON_SMOKER=0.5\n"
+						+ "SmokingStatus.EX_SMOKER=0.3\nSmokingStatus.SMOKER=0.2\n"));
+
+		PRMMissingDataMarginalizer.MarginalRisk risk = marginalizer.calculate(patient());
+
+		double expected = 0;
+		double[] smokingWeights = {0.5, 0.3, 0.2};
+		for (int s = 0; s < 3; s++) {
+			for (int b = 0; b < 5; b++) {
+				HCHRiskStratificationPRMData data = patient();
+				data.setSmokingStatus(SmokingStatus.values()[s]);
+				PRMField.BMI_CATEGORY.set(data, PRMField.BMI_CATEGORY.getValues()[b]);
+				expected += smokingWeights[s] * 0.2 * calculator.calculatePRMScore(data);
+			}
+		}
+
+		assertEquals(2, risk.getMissingFields().size());
+		assertEquals(expected, risk.getMean(), 1e-5);
+		assertEquals(calculator.calculatePRMScore(patient()), risk.getProbability(), 1e-7);
+		assertTrue(risk.getLower() <= risk.getQuantiles()[2]);
+		assertTrue(risk.getQuantiles()[2] <= risk.getUpper());
+	}
+
+	@Test
+	void completeDataHasNoSpread() {
+		HCHRiskStratificationPRMData data = patient();
+		data.setSmokingStatus(SmokingStatus.SMOKER);
+		PRMField.BMI_CATEGORY.set(data, PRMField.BMI_CATEGORY.getValues()[1]);
+
+		PRMMissingDataMarginalizer.MarginalRisk risk =
+				new PRMMissingDataMarginalizer(calculator).calculate(data);
+
+		assertTrue(risk.getMissingFields().isEmpty());
+		assertEquals(risk.getProbability(), risk.getMean(), 1e-12);
+		assertEquals(risk.getLower(), risk.getUpper(), 1e-12);
+	}
+}
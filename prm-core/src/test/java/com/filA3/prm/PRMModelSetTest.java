@@ -0,0 +1,48 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PRMModelSetTest {
+
+	private static PRMModel perturbed(PRMModel model, String version, Random random) {
+		double[] coefficients = model.getCoefficients();
+		for (int i = 0; i < coefficients.length; i++) {
+			coefficients[i] += 0.1 * random.nextGaussian();
+		}
+		return new PRMModel(version, coefficients);
+	}
+
+	@Test
+	void matchesEachModelScoredAlone() {
+		Random random = new Random(1);
+		PRMModel national = HCHRiskStratificationPRMScoreCalculator.getInstance().getModel();
+		PRMModel[] models = {national, perturbed(national, "a", random), perturbed(national, "b", random)};
+		PRMModelSet set = new PRMModelSet(models);
+		assertEquals(3, set.size());
+		assertEquals("b", set.getModels().get(2).getVersion());
+
+		double[] linearPredictors = new double[set.size()];
+		double[] probabilities = new double[set.size()];
+		for (int i = 0; i < 1000; i++) {
+			HCHRiskStratificationPRMData data = PRMTestPatients.random(random);
+			set.calculateLinearPredictors(data, linearPredictors);
+			set.calculateProbabilities(data, probabilities);
+			for (int k = 0; k < models.length; k++) {
+				PRMModelCalculator calculator = new PRMModelCalculator(models[k]);
+				assertEquals(models[k].calculateLinearPredictor(data), linearPredictors[k], 1e-9);
+				// Both round to 1e-8, so may differ by one unit of rounding
+				assertEquals(calculator.calculatePRMScore(data), probabilities[k], 1.01e-8);
+			}
+		}
+	}
+
+	@Test
+	void requiresModels() {
+		assertThrows(IllegalArgumentException.class, () -> new PRMModelSet());
+	}
+}
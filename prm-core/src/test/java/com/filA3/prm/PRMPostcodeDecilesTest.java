@@ -0,0 +1,53 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.IRSADDecile;
+import org.junit.jupiter.api.Test;
+
+class PRMPostcodeDecilesTest {
+
+	@Test
+	void readsAndLooksUpPostcodes() throws Exception {
+		PRMPostcodeDeciles table = PRMPostcodeDeciles.read(new StringReader(
+				"Postcode,Decile\n0800,7\n\n 3000 , 10 \n2600,1\n3000,9\n"));
+		assertEquals(3, table.size());
+		assertEquals(IRSADDecile.SEVEN, table.lookup(800));
+		assertEquals(IRSADDecile.SEVEN, table.lookup("0800"));
+		assertEquals(IRSADDecile.SEVEN, table.lookup(" 800 "));
+		// A later line replaces an earlier one
+		assertEquals(IRSADDecile.NINE, table.lookup(Integer.valueOf(3000)));
+		assertEquals(IRSADDecile.ONE, table.lookup(2600L));
+		assertEquals(IRSADDecile.UNKNOWN, table.lookup(2000));
+		assertEquals(IRSADDecile.UNKNOWN, table.lookup(-1));
+		assertEquals(IRSADDecile.UNKNOWN, table.lookup(10000));
+		assertEquals(IRSADDecile.UNKNOWN, table.lookup("30000"));
+		assertEquals(IRSADDecile.UNKNOWN, table.lookup("3OOO"));
+		assertEquals(IRSADDecile.UNKNOWN, table.lookup(""));
+	}
+
+	@Test
+	void rejectsInvalidLines() {
+		assertThrows(IOException.class, () -> PRMPostcodeDeciles.read(new StringReader("3000,11\n")));
+		assertThrows(IOException.class, () -> PRMPostcodeDeciles.read(new StringReader("3000,0\n")));
+		assertThrows(IOException.class, () -> PRMPostcodeDeciles.read(new StringReader("10000,5\n")));
+		assertThrows(IOException.class, () -> PRMPostcodeDeciles.read(new StringReader("3000\n")));
+		// Only the first line may be a header
+		assertThrows(IOException.class, () -> PRMPostcodeDeciles.read(new StringReader("3000,5\nPostcode,Decile\n")));
+	}
+
+	@Test
+	void sharedTableIsReplaceable() throws Exception {
+		PRMPostcodeDeciles previous = PRMPostcodeDeciles.getInstance();
+		try {
+			PRMPostcodeDeciles.setInstance(PRMPostcodeDeciles.read(new StringReader("3000,9\n")));
+			assertEquals(IRSADDecile.NINE, PRMPostcodeDeciles.getInstance().lookup(3000));
+		} finally {
+			PRMPostcodeDeciles.setInstance(previous);
+		}
+	}
+}
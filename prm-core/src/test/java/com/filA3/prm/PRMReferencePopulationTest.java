@@ -0,0 +1,85 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class PRMReferencePopulationTest {
+
+	private static PRMReferencePopulation tenths() {
+		PRMReferencePopulation.Builder builder = new PRMReferencePopulation.Builder();
+		for (int i = 10; i >= 1; i--) {
+			builder.add(i / 10.0);
+		}
+		return builder.build();
+	}
+
+	@Test
+	void percentilesCountHalfOfTies() {
+		PRMReferencePopulation population = tenths();
+		assertEquals(10, population.getPopulationSize());
+		assertEquals(0, population.getPercentile(0.05), 1e-12);
+		assertEquals(30, population.getPercentile(0.35), 1e-12);
+		// Two below and one equal
+		assertEquals(25, population.getPercentile(0.3), 1e-12);
+		assertEquals(95, population.getPercentile(1), 1e-12);
+		assertEquals(100, population.getPercentile(1.5), 1e-12);
+
+		float[] tied = {0.2f, 0.2f, 0.2f, 0.8f};
+		assertEquals(37.5, PRMReferencePopulation.of(tied, 4).getPercentile(0.2), 1e-12);
+		assertTrue(Double.isNaN(new PRMReferencePopulation.Builder().build().getPercentile(0.5)));
+	}
+
+	@Test
+	void tiersByBands() {
+		PRMReferencePopulation population = tenths();
+		assertArrayEquals(PRMReferencePopulation.DEFAULT_BANDS, population.getBands());
+		assertEquals(0, population.getTier(49.9));
+		assertEquals(1, population.getTier(50));
+		assertEquals(2, population.getTier(94.9));
+		assertEquals(3, population.getTier(95));
+		assertEquals(-1, population.getTier(Double.NaN));
+
+		PRMReferencePopulation deciles = population.withBands(90);
+		assertEquals(1, deciles.getTier(population.getPercentile(1)));
+		assertEquals(0, deciles.getTier(population.getPercentile(0.9)));
+		assertThrows(IllegalArgumentException.class, () -> population.withBands(80, 50));
+		assertThrows(IllegalArgumentException.class, () -> population.withBands(101));
+	}
+
+	@Test
+	void largePopulationsKeepOrderStatistics() {
+		int count = 3 * PRMReferencePopulation.MAX_POINTS;
+		float[] probabilities = new float[count];
+		for (int i = 0; i < count; i++) {
+			probabilities[i] = (float) ((i * 7919L % count) / (double) count);
+		}
+		PRMReferencePopulation population = PRMReferencePopulation.of(probabilities, count);
+		assertEquals(count, population.getPopulationSize());
+		for (double p = 0.05; p < 1; p += 0.1) {
+			assertEquals(100 * p, population.getPercentile(p), 0.01);
+		}
+	}
+
+	@Test
+	void roundTrips() throws Exception {
+		PRMReferencePopulation population = tenths();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		population.write(out);
+		PRMReferencePopulation read = PRMReferencePopulation.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(10, read.getPopulationSize());
+		for (double p = 0; p <= 1.05; p += 0.05) {
+			assertEquals(population.getPercentile(p), read.getPercentile(p), 0);
+		}
+		byte[] bytes = out.toByteArray();
+		bytes[0] = 0;
+		assertThrows(IOException.class, () -> PRMReferencePopulation.read(new ByteArrayInputStream(bytes)));
+	}
+}
@@ -0,0 +1,83 @@
+package com.filA3.prm;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+
+/**
+ * Random patients for tests, shared with the other modules through the
+ * prm-core test-jar.
+ */
+public final class PRMTestPatients {
+
+	private PRMTestPatients() {
+	}
+
+	/**
+	 * Returns a patient with a random age and sex, a random value of every
+	 * field, and each medication group with probability 1/4 and disease
+	 * with probability 1/8.
+	 */
+	public static HCHRiskStratificationPRMData random(Random random) {
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setAge(18 + random.nextInt(80)).setIsFemale(random.nextBoolean());
+		for (PRMField field : PRMField.values()) {
+			Enum<?>[] values = field.getValues();
+			field.set(data, values[random.nextInt(values.length)]);
+		}
+		Set<MedicationGroup> medications = EnumSet.noneOf(MedicationGroup.class);
+		for (MedicationGroup group : MedicationGroup.values()) {
+			if (random.nextInt(4) == 0) {
+				medications.add(group);
+			}
+		}
+		Set<Disease> diseases = EnumSet.noneOf(Disease.class);
+		for (Disease disease : Disease.values()) {
+			if (random.nextInt(8) == 0) {
+				diseases.add(disease);
+			}
+		}
+		return data.setMedicationGroups(medications).setDiseases(diseases);
+	}
+
+	/**
+	 * Returns the patient with the given seed, so that tests can build the
+	 * same patient again.
+	 */
+	public static HCHRiskStratificationPRMData random(long seed) {
+		return random(new Random(seed));
+	}
+
+	/**
+	 * Returns a patient as a JSON data object line, with a Hospitalised
+	 * outcome.
+	 */
+	public static String toJson(HCHRiskStratificationPRMData data, boolean hospitalised) {
+		StringBuilder sb = new StringBuilder("{\"Age\":").append(data.getAge())
+				.append(",\"IsFemale\":").append(data.getIsFemale());
+		StringBuilder pathology = new StringBuilder();
+		for (PRMField field : PRMField.values()) {
+			StringBuilder target = field.isPathology() ? pathology : sb;
+			target.append(target == pathology && pathology.length() == 0 ? "" : ",")
+					.append('"').append(field.getJsonName()).append("\":\"")
+					.append(field.get(data).name()).append('"');
+		}
+		sb.append(",\"Pathology\":{").append(pathology).append('}');
+		sb.append(",\"MedicationGroups\":[");
+		String separator = "";
+		for (MedicationGroup group : data.getMedicationGroups()) {
+			sb.append(separator).append('"').append(group).append('"');
+			separator = ",";
+		}
+		sb.append("],\"Diseases\":[");
+		separator = "";
+		for (Disease disease : data.getDiseases()) {
+			sb.append(separator).append('"').append(disease).append('"');
+			separator = ",";
+		}
+		return sb.append("],\"Hospitalised\":").append(hospitalised).append('}').toString();
+	}
+}
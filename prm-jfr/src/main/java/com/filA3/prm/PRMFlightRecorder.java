@@ -0,0 +1,145 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+  * The flight recorder events of {@link PRMEvents}. Only loaded when the
+  * JVM has a flight recorder.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+final class PRMFlightRecorder implements PRMEvents.Recorder
+{
+    /**
+      * The fields common to all phases.
+      */
+    @Category("PRM")
+    @StackTrace(false)
+    abstract static class PhaseEvent extends Event
+    {
+	/** The size of the phase */
+	@Label("Size")
+	int size;
+
+	/** Whether the phase succeeded */
+	@Label("Success")
+	boolean success;
+
+	/** The detail, e.g. the field name or model version */
+	@Label("Detail")
+	String detail;
+    }
+
+    /** A web request */
+    @Name("com.filA3.prm.Request")
+    @Label("PRM Request")
+    @Description("A web request, sized by its JSON fields")
+    static final class RequestEvent extends PhaseEvent
+    {
+    }
+
+    /** Parsing a JSON data object */
+    @Name("com.filA3.prm.Parse")
+    @Label("PRM Parse")
+    @Description("Parsing a JSON data object, sized by its fields")
+    static final class ParseEvent extends PhaseEvent
+    {
+    }
+
+    /** A setter by JSON name */
+    @Name("com.filA3.prm.Bind")
+    @Label("PRM Bind")
+    @Description("A setter of PRMData by JSON name, sized by its values")
+    static final class BindEvent extends PhaseEvent
+    {
+    }
+
+    /** Calculating a probability */
+    @Name("com.filA3.prm.Score")
+    @Label("PRM Score")
+    @Description("Calculating a probability, detailed by model version")
+    static final class ScoreEvent extends PhaseEvent
+    {
+    }
+
+    /** A chunk of a batch */
+    @Name("com.filA3.prm.Batch")
+    @Label("PRM Batch")
+    @Description("A chunk of a batch, sized by its lines")
+    static final class BatchEvent extends PhaseEvent
+    {
+    }
+
+    /** A snapshot of a store */
+    @Name("com.filA3.prm.Snapshot")
+    @Label("PRM Snapshot")
+    @Description("A snapshot of a store, sized by its entries")
+    static final class SnapshotEvent extends PhaseEvent
+    {
+    }
+
+    @Override
+    public Object begin(PRMEvents.Phase phase)
+    {
+	PhaseEvent event;
+	switch (phase) {
+	    case REQUEST:
+		event = new RequestEvent();
+		break;
+	    case PARSE:
+		event = new ParseEvent();
+		break;
+	    case BIND:
+		event = new BindEvent();
+		break;
+	    case SCORE:
+		event = new ScoreEvent();
+		break;
+	    case BATCH:
+		event = new BatchEvent();
+		break;
+	    default:
+		event = new SnapshotEvent();
+		break;
+	}
+	if (!event.isEnabled()) {
+	    return null;
+	}
+	event.begin();
+	return event;
+    }
+
+    @Override
+    public void end(Object event, int size, boolean success, String detail)
+    {
+	PhaseEvent phaseEvent = (PhaseEvent) event;
+	phaseEvent.end();
+	if (phaseEvent.shouldCommit()) {
+	    phaseEvent.size = size;
+	    phaseEvent.success = success;
+	    phaseEvent.detail = detail;
+	    phaseEvent.commit();
+	}
+    }
+}
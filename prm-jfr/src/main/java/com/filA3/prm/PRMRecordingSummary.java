@@ -0,0 +1,194 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+  * Summarizes a flight recording of the {@link PRMEvents} phases: for
+  * each phase, the number of events and failures, the mean size, and the
+  * mean, median, 99th percentile and maximum durations, followed by the
+  * garbage collection pauses over the same period. Usage:
+  * <pre>
+  * java -XX:StartFlightRecording=settings=/path/to/prm.jfc,filename=prm.jfr ...
+  * java -cp ... com.filA3.prm.PRMRecordingSummary prm.jfr
+  * </pre>
+  * The settings file is bundled as "com/filA3/prm/prm.jfc".
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMRecordingSummary
+{
+    /** The prefix of the names of the phase events */
+    private static final String PREFIX = "com.filA3.prm.";
+
+    /** The name of garbage collection events */
+    private static final String GC = "jdk.GarbageCollection";
+
+    /**
+      * The durations of the events of one type.
+      */
+    private static class Durations
+    {
+	/** The durations, in nanoseconds */
+	private long[] nanos = new long[256];
+	/** The number of events */
+	private int count;
+	/** The number of failed events */
+	private int failures;
+	/** The sum of the sizes */
+	private long size;
+
+	/**
+	  * Adds an event.
+	  */
+	private void add(long duration, int eventSize, boolean success)
+	{
+	    if (count == nanos.length) {
+		nanos = Arrays.copyOf(nanos, count * 2);
+	    }
+	    nanos[count++] = duration;
+	    size += eventSize;
+	    if (!success) {
+		failures++;
+	    }
+	}
+
+	/**
+	  * Returns the sum of the durations, in nanoseconds.
+	  */
+	private long total()
+	{
+	    long total = 0;
+	    for (int i = 0; i < count; i++) {
+		total += nanos[i];
+	    }
+	    return total;
+	}
+
+	/**
+	  * Returns a quantile of the durations, after sorting them.
+	  */
+	private long quantile(double q)
+	{
+	    Arrays.sort(nanos, 0, count);
+	    return nanos[Math.min(count - 1, (int) Math.ceil(q * count) - 1)];
+	}
+    }
+
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRMRecordingSummary()
+    {
+    }
+
+    /**
+      * Summarizes a recording.
+      *
+      * @param recording the recording file
+      * @param out receives the summary
+      *
+      * @throws IOException if the recording can not be read
+      */
+    public static void summarize(@Nonnull Path recording,
+	    @Nonnull PrintStream out) throws IOException
+    {
+	Map<String, Durations> phases = new TreeMap<>();
+	Durations gc = new Durations();
+	Instant first = null;
+	Instant last = null;
+	try (RecordingFile file = new RecordingFile(recording)) {
+	    while (file.hasMoreEvents()) {
+		RecordedEvent event = file.readEvent();
+		String name = event.getEventType().getName();
+		if (first == null || event.getStartTime().isBefore(first)) {
+		    first = event.getStartTime();
+		}
+		if (last == null || event.getEndTime().isAfter(last)) {
+		    last = event.getEndTime();
+		}
+		if (name.startsWith(PREFIX)) {
+		    phases.computeIfAbsent(name.substring(PREFIX.length()),
+			    k -> new Durations()).add(
+				event.getDuration().toNanos(),
+				event.getInt("size"),
+				event.getBoolean("success"));
+		} else if (name.equals(GC)) {
+		    gc.add(event.getDuration("sumOfPauses").toNanos(), 0, true);
+		}
+	    }
+	}
+	out.printf("%-10s %10s %8s %9s %12s %10s %10s %10s %10s%n", "Phase",
+		"Events", "Failed", "MeanSize", "Total ms", "Mean us",
+		"p50 us", "p99 us", "Max us");
+	for (Map.Entry<String, Durations> entry : phases.entrySet()) {
+	    Durations phase = entry.getValue();
+	    long total = phase.total();
+	    out.printf("%-10s %10d %8d %9.1f %12.1f %10.1f %10.1f %10.1f"
+		    + " %10.1f%n", entry.getKey(), phase.count, phase.failures,
+		    (double) phase.size / phase.count, total / 1e6,
+		    total / 1e3 / phase.count, phase.quantile(0.5) / 1e3,
+		    phase.quantile(0.99) / 1e3, phase.quantile(1) / 1e3);
+	}
+	if (phases.isEmpty()) {
+	    out.println("No PRM events; was the recording made with prm.jfc?");
+	}
+	long span = first == null ? 0 : Duration.between(first, last).toNanos();
+	if (gc.count > 0) {
+	    long pauses = gc.total();
+	    out.printf("GC: %d collections, %.1f ms paused (%.2f%% of %.1f s),"
+		    + " longest %.1f ms%n", gc.count, pauses / 1e6,
+		    span > 0 ? 100.0 * pauses / span : 0, span / 1e9,
+		    gc.quantile(1) / 1e6);
+	} else {
+	    out.printf("GC: no collections in %.1f s%n", span / 1e9);
+	}
+    }
+
+    /**
+      * The main entry point.
+      *
+      * @param args the recording file
+      */
+    public static void main(String[] args)
+    {
+	if (args.length != 1) {
+	    System.err.println("usage: PRMRecordingSummary <FILE.jfr>");
+	    System.exit(1);
+	}
+	try {
+	    summarize(Paths.get(args[0]), System.out);
+	} catch (IOException e) {
+	    System.err.println("Error: " + e);
+	    System.exit(1);
+	}
+    }
+}
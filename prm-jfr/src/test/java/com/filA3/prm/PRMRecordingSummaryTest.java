@@ -0,0 +1,108 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PRMRecordingSummaryTest {
+
+	/** The bundled settings, with the thresholds of the short phases removed */
+	private static Map<String, String> settings() throws Exception {
+		Configuration configuration;
+		try (Reader reader = new InputStreamReader(
+				PRMRecordingSummary.class.getResourceAsStream("prm.jfc"), StandardCharsets.UTF_8)) {
+			configuration = Configuration.create(reader);
+		}
+		Map<String, String> settings = new HashMap<>(configuration.getSettings());
+		assertEquals("1 ms", settings.get("com.filA3.prm.Score#threshold"));
+		for (String phase : new String[] {"Parse", "Bind", "Score"}) {
+			settings.put("com.filA3.prm." + phase + "#threshold", "0 ms");
+		}
+		return settings;
+	}
+
+	@Test
+	void summarizesThePhasesOfARecording(@TempDir Path dir) throws Exception {
+		HCHRiskStratificationPRMScoreCalculator scorer = HCHRiskStratificationPRMScoreCalculator.getInstance();
+		// Not recorded without a recording
+		assertNull(PRMEvents.begin(PRMEvents.Phase.SCORE));
+		Path file = dir.resolve("prm.jfr");
+		try (Recording recording = new Recording(settings())) {
+			recording.start();
+			for (int i = 0; i < 5; i++) {
+				scorer.calculatePRMScore(PRMTestPatients.random(i));
+			}
+			Object bind = PRMEvents.begin(PRMEvents.Phase.BIND);
+			assertNotNull(bind);
+			PRMEvents.end(bind, 3, false, "SmokingStatus");
+			Object batch = PRMEvents.begin(PRMEvents.Phase.BATCH);
+			PRMEvents.end(batch, 100, true);
+			recording.stop();
+			recording.dump(file);
+		}
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+		int scores = 0;
+		for (RecordedEvent event : events) {
+			if (event.getEventType().getName().equals("com.filA3.prm.Score")) {
+				assertTrue(event.getBoolean("success"));
+				assertEquals(HCHRiskStratificationPRMScoreCalculator.NATIONAL_MODEL_VERSION,
+						event.getString("detail"));
+				scores++;
+			}
+		}
+		assertEquals(5, scores);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PRMRecordingSummary.summarize(file, new PrintStream(out, true, "UTF-8"));
+		Map<String, String[]> rows = new HashMap<>();
+		for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\\R")) {
+			String[] columns = line.trim().split("\\s+");
+			rows.put(columns[0], columns);
+		}
+		// Phase, events, failed, mean size
+		assertEquals("5", rows.get("Score")[1]);
+		assertEquals("0", rows.get("Score")[2]);
+		assertEquals("1", rows.get("Bind")[1]);
+		assertEquals("1", rows.get("Bind")[2]);
+		assertEquals(3, Double.parseDouble(rows.get("Bind")[3]));
+		assertEquals("1", rows.get("Batch")[1]);
+		assertEquals("0", rows.get("Batch")[2]);
+		assertEquals(100, Double.parseDouble(rows.get("Batch")[3]));
+		assertFalse(rows.containsKey("Request"));
+		assertTrue(rows.containsKey("GC:"));
+	}
+
+	@Test
+	void reportsARecordingWithoutPhases(@TempDir Path dir) throws Exception {
+		Path file = dir.resolve("empty.jfr");
+		try (Recording recording = new Recording()) {
+			recording.start();
+			recording.stop();
+			recording.dump(file);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PRMRecordingSummary.summarize(file, new PrintStream(out, true, "UTF-8"));
+		assertTrue(new String(out.toByteArray(), StandardCharsets.UTF_8).contains("No PRM events"));
+	}
+}
@@ -0,0 +1,328 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Projects the hospitalisation probability of patients a number of years
+  * ahead, assuming only their age changes.
+  * <p>
+  * Age only enters the linear predictor through its cubic polynomial, so
+  * the linear predictor of a patient is split once into an age
+  * independent part and the polynomial; each horizon then costs a few
+  * multiply-adds instead of a full calculation.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMAgeProjection
+{
+    /** Number of buckets of the probability histograms */
+    private static final int HISTOGRAM_BUCKETS = 1000;
+
+    /**
+      * The projected probabilities of a single patient.
+      */
+    public static class Curve
+    {
+	/** The patient identifier */
+	private final String patientId;
+	/** The current age */
+	private final double age;
+	/** The probability at each horizon */
+	private final double[] probabilities;
+
+	/**
+	  * Constructor.
+	  */
+	private Curve(String patientId, double age, double[] probabilities)
+	{
+	    this.patientId = patientId;
+	    this.age = age;
+	    this.probabilities = probabilities;
+	}
+
+	/**
+	  * Returns the patient identifier.
+	  *
+	  * @return the identifier
+	  */
+	public String getPatientId()
+	{
+	    return patientId;
+	}
+
+	/**
+	  * Returns the current age.
+	  *
+	  * @return the age
+	  */
+	public double getAge()
+	{
+	    return age;
+	}
+
+	/**
+	  * Returns the probability at each horizon.
+	  *
+	  * @return the probabilities
+	  */
+	public double[] getProbabilities()
+	{
+	    return probabilities.clone();
+	}
+
+	@Override
+	public String toString()
+	{
+	    StringBuilder sb = new StringBuilder();
+	    sb.append(patientId).append(',').append(age);
+	    for (double probability : probabilities) {
+		sb.append(',').append(probability);
+	    }
+	    return sb.toString();
+	}
+    }
+
+    /**
+      * The distribution of the projected probabilities of a cohort at
+      * each horizon. Summaries of parts of a cohort may be merged.
+      */
+    public class Summary
+    {
+	/** The probabilities at each horizon */
+	private final PRMHistogram[] histograms;
+
+	/**
+	  * Constructor.
+	  */
+	private Summary()
+	{
+	    histograms = new PRMHistogram[horizons.length];
+	    for (int i = 0; i < horizons.length; i++) {
+		histograms[i] = new PRMHistogram(0, 1, HISTOGRAM_BUCKETS);
+	    }
+	}
+
+	/**
+	  * Adds a patient.
+	  *
+	  * @param curve the projection of the patient
+	  */
+	public void add(@Nonnull Curve curve)
+	{
+	    for (int i = 0; i < histograms.length; i++) {
+		histograms[i].add(curve.probabilities[i]);
+	    }
+	}
+
+	/**
+	  * Adds all patients of another summary of the same projection.
+	  *
+	  * @param other the other summary
+	  */
+	public void merge(@Nonnull Summary other)
+	{
+	    for (int i = 0; i < histograms.length; i++) {
+		histograms[i].merge(other.histograms[i]);
+	    }
+	}
+
+	/**
+	  * Returns the distribution at a horizon.
+	  *
+	  * @param horizon the horizon index
+	  *
+	  * @return the histogram of probabilities
+	  */
+	public PRMHistogram getHistogram(int horizon)
+	{
+	    return histograms[horizon];
+	}
+
+	/**
+	  * Writes the summary in CSV format, one line per horizon. The
+	  * expected admissions are the sum of the probabilities.
+	  *
+	  * @param out where to write
+	  */
+	public void write(@Nonnull PrintStream out)
+	{
+	    out.println("Years,Patients,ExpectedAdmissions,Mean,StdDev,"
+		    + "P50,P90,P99");
+	    for (int i = 0; i < histograms.length; i++) {
+		PRMHistogram h = histograms[i];
+		out.println(horizons[i] + "," + h.getCount() + ","
+			+ h.getSum() + "," + h.getMean() + ","
+			+ h.getStandardDeviation() + ","
+			+ h.getQuantile(0.5) + "," + h.getQuantile(0.9) + ","
+			+ h.getQuantile(0.99));
+	    }
+	}
+    }
+
+    /** The calculator */
+    private final HCHRiskStratificationPRMScoreCalculator calculator;
+    /** The horizons in years */
+    private final double[] horizons;
+    /** The coefficient of age */
+    private final double ageCoefficient;
+    /** The coefficient of age squared */
+    private final double ageSqCoefficient;
+    /** The coefficient of age cubed */
+    private final double ageCuCoefficient;
+
+    /**
+      * Constructor.
+      *
+      * @param calculator the calculator
+      * @param horizons the horizons in years, e.g. 1, 3 and 5
+      */
+    public PRMAgeProjection(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator calculator,
+	    double... horizons)
+    {
+	if (horizons.length == 0) {
+	    throw new IllegalArgumentException("No horizon");
+	}
+	this.calculator = calculator;
+	this.horizons = horizons.clone();
+	double[] coefficients = calculator.getAgeCoefficients();
+	ageCoefficient = coefficients[0];
+	ageSqCoefficient = coefficients[1];
+	ageCuCoefficient = coefficients[2];
+    }
+
+    /**
+      * Returns the horizons.
+      *
+      * @return the horizons in years
+      */
+    public double[] getHorizons()
+    {
+	return horizons.clone();
+    }
+
+    /**
+      * Returns a new, empty, summary for this projection.
+      *
+      * @return the summary
+      */
+    public Summary newSummary()
+    {
+	return new Summary();
+    }
+
+    /**
+      * Returns the part of the linear predictor that does not depend on
+      * age.
+      *
+      * @param data the data
+      *
+      * @return the age independent part of the linear predictor
+      */
+    public double calculateAgeIndependentPredictor(
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+	return calculator.calculatePRMLinearPredictor(data)
+	    - ageTerm(data.getAge());
+    }
+
+    /**
+      * Projects a patient to all horizons.
+      *
+      * @param patientId the patient identifier
+      * @param data the data
+      *
+      * @return the projection
+      */
+    public Curve project(String patientId,
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+	double base = calculateAgeIndependentPredictor(data);
+	double[] probabilities = new double[horizons.length];
+	project(base, data.getAge(), probabilities);
+	return new Curve(patientId, data.getAge(), probabilities);
+    }
+
+    /**
+      * Projects an age independent linear predictor to all horizons.
+      *
+      * @param base the age independent part of the linear predictor
+      * @param age the current age
+      * @param probabilities receives the probability at each horizon
+      */
+    public void project(double base, double age, double[] probabilities)
+    {
+	for (int i = 0; i < horizons.length; i++) {
+	    double lp = base + ageTerm(age + horizons[i]);
+	    probabilities[i] = 1 / (1 + Math.exp(-lp));
+	}
+    }
+
+    /**
+      * Projects a cohort file with one JSON data object per line.
+      * Patients without a "PatientId" are identified by line number.
+      *
+      * @param reader the cohort
+      * @param curves receives one CSV line per patient, or null
+      * @param summary receives all patients
+      * @param threads the number of threads
+      *
+      * @return the number of patients
+      *
+      * @throws IOException if reading fails or a line is invalid
+      */
+    public long projectCohort(@Nonnull BufferedReader reader,
+	    PrintStream curves, @Nonnull Summary summary, int threads)
+	throws IOException
+    {
+	if (curves != null) {
+	    StringBuilder header = new StringBuilder("PatientId,Age");
+	    for (double horizon : horizons) {
+		header.append(",P").append(horizon);
+	    }
+	    curves.println(header);
+	}
+	return new PRMBatch(threads).process(reader,
+		(lineNumber, line) -> {
+		    PRMCalculator parsed = PRMBatch.parseLine(line);
+		    String id = parsed.getPatientId() != null
+			? parsed.getPatientId() : Long.toString(lineNumber);
+		    return project(id, parsed.getData());
+		},
+		curve -> {
+		    summary.add(curve);
+		    if (curves != null) {
+			curves.println(curve);
+		    }
+		});
+    }
+
+    /**
+      * Returns the age part of the linear predictor.
+      */
+    private double ageTerm(double age)
+    {
+	return age * (ageCoefficient + age * (ageSqCoefficient
+		    + age * ageCuCoefficient));
+    }
+}
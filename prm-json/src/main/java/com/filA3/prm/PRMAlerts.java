@@ -0,0 +1,631 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+  * Raises an alert when a patient's probability crosses one of a set of
+  * cut-offs, that is when the risk tier of a new score differs from that
+  * of the patient's last score.
+  * <p>
+  * The cut-offs divide probabilities into tiers: tier 0 is below the
+  * first cut-off, tier 1 below the second, and so on. A patient's first
+  * score is compared with tier 0, so patients first seen above a cut-off
+  * are alerted too. {@link #scored} costs a binary search and a map
+  * update, and may be called from any thread; alerts are handed to a
+  * bounded queue without blocking, and delivered to a {@link Sink} in
+  * batches by a single background thread. Alerts for the same patient
+  * within a batch are merged, and dropped if the patient returned to
+  * their earlier tier. When the queue is full, alerts are counted as
+  * dropped rather than slowing the scoring.
+  * <p>
+  * The last tiers are kept for a bounded number of patients, by default
+  * {@link #DEFAULT_MAX_PATIENTS}, in two generations: when the current
+  * generation holds half of them, it becomes the previous one and the
+  * older previous one is evicted. A patient scored in either generation
+  * is kept in the current one, so the patients evicted are those not
+  * scored for the longest, and they are compared with tier 0 again when
+  * next scored.
+  * <p>
+  * The last tiers are held in memory, so alerting is per process: a
+  * second run over the same cohort alerts again for every patient above
+  * the first cut-off. With a {@link PRMScoreStore} (see
+  * {@link #setScores}), the tier of a patient with no last tier kept is
+  * that of their stored probability, as long as the store is updated
+  * after each call to {@link #scored}, so that a store carried over
+  * from an earlier run or kept beyond the evicted patients only alerts
+  * on the patients whose tier changed.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMAlerts implements Closeable
+{
+    /** The default capacity of the queue */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** The default number of patients whose last tiers are kept */
+    public static final int DEFAULT_MAX_PATIENTS = 1 << 20;
+
+    /** The maximum number of alerts delivered at a time */
+    private static final int MAX_BATCH = 1000;
+
+    /** The rounding of scores, undoing that of the score store */
+    private static final double ROUNDING = 1e8;
+
+    /** The cached tiers, so that the map of last tiers does not allocate */
+    private static final Byte[] TIERS = new Byte[Byte.MAX_VALUE + 1];
+
+    static {
+	for (int i = 0; i < TIERS.length; i++) {
+	    TIERS[i] = (byte) i;
+	}
+    }
+
+    /**
+      * Receives alerts.
+      */
+    public interface Sink
+    {
+	/**
+	  * Delivers alerts.
+	  *
+	  * @param alerts the alerts, in the order raised
+	  *
+	  * @throws IOException if delivery fails
+	  */
+	void deliver(List<Alert> alerts) throws IOException;
+    }
+
+    /**
+      * A change of a patient's risk tier.
+      */
+    public static class Alert
+    {
+	/** The patient identifier */
+	private final String patientId;
+	/** The tier of the last score */
+	private final int previousTier;
+	/** The tier of the new score */
+	private final int tier;
+	/** The new probability */
+	private final double probability;
+	/** The time of the score, in milliseconds */
+	private final long timestamp;
+
+	/**
+	  * Constructor.
+	  */
+	private Alert(String patientId, int previousTier, int tier,
+		double probability, long timestamp)
+	{
+	    this.patientId = patientId;
+	    this.previousTier = previousTier;
+	    this.tier = tier;
+	    this.probability = probability;
+	    this.timestamp = timestamp;
+	}
+
+	/**
+	  * Returns the patient identifier.
+	  *
+	  * @return the identifier
+	  */
+	public String getPatientId()
+	{
+	    return patientId;
+	}
+
+	/**
+	  * Returns the tier of the last score.
+	  *
+	  * @return the previous tier, 0 for a new patient
+	  */
+	public int getPreviousTier()
+	{
+	    return previousTier;
+	}
+
+	/**
+	  * Returns the tier of the new score.
+	  *
+	  * @return the tier
+	  */
+	public int getTier()
+	{
+	    return tier;
+	}
+
+	/**
+	  * Returns the new probability.
+	  *
+	  * @return the probability
+	  */
+	public double getProbability()
+	{
+	    return probability;
+	}
+
+	/**
+	  * Returns the time of the score.
+	  *
+	  * @return the time, in milliseconds since the epoch
+	  */
+	public long getTimestamp()
+	{
+	    return timestamp;
+	}
+
+	/**
+	  * Returns the alert as a JSON object, with the PatientId,
+	  * PreviousTier, Tier, Probability and Timestamp.
+	  *
+	  * @return the JSON object
+	  */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON()
+	{
+	    JSONObject json = new JSONObject();
+	    json.put("PatientId", patientId);
+	    json.put("PreviousTier", previousTier);
+	    json.put("Tier", tier);
+	    json.put("Probability", probability);
+	    json.put("Timestamp", timestamp);
+	    return json;
+	}
+    }
+
+    /** The cut-offs, ascending */
+    private final double[] cutOffs;
+    /** The sink */
+    private final Sink sink;
+    /** The queue of alerts to deliver */
+    private final BlockingQueue<Alert> queue;
+    /** The tier of the last score of recently scored patients */
+    private volatile Map<String, Byte> tiers = new ConcurrentHashMap<>();
+    /** The tiers of the previous generation */
+    private volatile Map<String, Byte> previousTiers = new ConcurrentHashMap<>();
+    /** The number of patients of a generation */
+    private volatile int generation = DEFAULT_MAX_PATIENTS / 2;
+    /** The latest scores of patients with no last tier kept, or null */
+    private volatile PRMScoreStore scores;
+    /** The delivery thread */
+    private final Thread delivery;
+    /** Where failed deliveries are reported, or null */
+    private volatile PrintStream log = System.err;
+    /** Whether the alerts are closed */
+    private volatile boolean closed;
+    /** The number of alerts raised */
+    private final LongAdder raised = new LongAdder();
+    /** The number of alerts dropped because the queue was full */
+    private final LongAdder dropped = new LongAdder();
+    /** The number of alerts delivered */
+    private final LongAdder delivered = new LongAdder();
+    /** The number of alerts whose delivery failed */
+    private final LongAdder failed = new LongAdder();
+    /** The number of patients whose last tiers were evicted */
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+      * Constructor, with a queue of the default capacity.
+      *
+      * @param sink receives the alerts
+      * @param cutOffs the probability cut-offs between tiers
+      */
+    public PRMAlerts(@Nonnull Sink sink, @Nonnull double... cutOffs)
+    {
+	this(sink, DEFAULT_CAPACITY, cutOffs);
+    }
+
+    /**
+      * Constructor. Starts the delivery thread.
+      *
+      * @param sink receives the alerts
+      * @param capacity the number of alerts that may wait for delivery
+      * @param cutOffs the probability cut-offs between tiers
+      *
+      * @throws IllegalArgumentException if there are no cut-offs, or too
+      *                                  many, or one is not in [0, 1]
+      */
+    public PRMAlerts(@Nonnull Sink sink, int capacity,
+	    @Nonnull double... cutOffs)
+    {
+	if (cutOffs.length == 0 || cutOffs.length >= TIERS.length) {
+	    throw new IllegalArgumentException("Expected 1 to "
+		    + (TIERS.length - 1) + " cut-offs");
+	}
+	for (double cutOff : cutOffs) {
+	    if (!(cutOff >= 0 && cutOff <= 1)) {
+		throw new IllegalArgumentException("Invalid cut-off: " + cutOff);
+	    }
+	}
+	this.cutOffs = cutOffs.clone();
+	Arrays.sort(this.cutOffs);
+	this.sink = sink;
+	this.queue = new ArrayBlockingQueue<>(capacity);
+	this.delivery = new Thread(this::deliver, "prm-alerts");
+	delivery.setDaemon(true);
+	delivery.start();
+    }
+
+    /**
+      * Sets where failed deliveries are reported.
+      *
+      * @param log the log, or null for none
+      *
+      * @return these alerts
+      */
+    public PRMAlerts setLog(PrintStream log)
+    {
+	this.log = log;
+	return this;
+    }
+
+    /**
+      * Sets the number of patients whose last tiers are kept.
+      *
+      * @param maxPatients the number of patients, at least 2
+      *
+      * @return these alerts
+      *
+      * @throws IllegalArgumentException if the number is less than 2
+      */
+    public PRMAlerts setMaxPatients(int maxPatients)
+    {
+	if (maxPatients < 2) {
+	    throw new IllegalArgumentException("Invalid maximum patients: "
+		    + maxPatients);
+	}
+	this.generation = maxPatients / 2;
+	return this;
+    }
+
+    /**
+      * Sets the store of the latest scores, which gives the last tier of
+      * patients with a numeric identifier and no last tier kept. The
+      * store should be updated after each call to {@link #scored}.
+      *
+      * @param scores the store, or null for none
+      *
+      * @return these alerts
+      */
+    public PRMAlerts setScores(PRMScoreStore scores)
+    {
+	this.scores = scores;
+	return this;
+    }
+
+    /**
+      * Returns the tier of a probability.
+      *
+      * @param probability the probability
+      *
+      * @return the number of cut-offs at or below the probability
+      */
+    public int getTier(double probability)
+    {
+	int index = Arrays.binarySearch(cutOffs, probability);
+	if (index < 0) {
+	    return -index - 1;
+	}
+	while (index < cutOffs.length && cutOffs[index] <= probability) {
+	    index++;
+	}
+	return index;
+    }
+
+    /**
+      * Records a new score of a patient, and raises an alert if its tier
+      * differs from that of the last score.
+      *
+      * @param patientId the patient identifier
+      * @param probability the probability
+      * @param timestamp the time of the score, in milliseconds
+      *
+      * @return whether an alert was raised
+      */
+    public boolean scored(@Nonnull String patientId, double probability,
+	    long timestamp)
+    {
+	int tier = getTier(probability);
+	Map<String, Byte> current = tiers;
+	Byte previous = current.put(patientId, TIERS[tier]);
+	if (previous == null) {
+	    previous = previousTiers.get(patientId);
+	    if (previous == null) {
+		previous = storedTier(patientId);
+	    }
+	    if (current.size() >= generation) {
+		evict(current);
+	    }
+	}
+	int previousTier = previous == null ? 0 : previous;
+	if (tier == previousTier || closed) {
+	    return false;
+	}
+	raised.increment();
+	if (!queue.offer(new Alert(patientId, previousTier, tier, probability,
+			timestamp))) {
+	    dropped.increment();
+	}
+	return true;
+    }
+
+    /**
+      * Returns the tier of the stored probability of a patient, or null
+      * if there is no store or it holds no score of the patient.
+      */
+    private Byte storedTier(String patientId)
+    {
+	PRMScoreStore store = scores;
+	if (store == null) {
+	    return null;
+	}
+	double probability;
+	try {
+	    probability = store.getProbability(Long.parseLong(patientId.trim()));
+	} catch (NumberFormatException e) {
+	    return null;
+	}
+	if (Double.isNaN(probability)) {
+	    return null;
+	}
+	return TIERS[getTier(Math.round(probability * ROUNDING) / ROUNDING)];
+    }
+
+    /**
+      * Makes a full generation the previous one, evicting the older
+      * previous one, unless another thread has already done so.
+      */
+    private synchronized void evict(Map<String, Byte> current)
+    {
+	if (tiers != current) {
+	    return;
+	}
+	evicted.add(previousTiers.size());
+	previousTiers = current;
+	tiers = new ConcurrentHashMap<>();
+    }
+
+    /**
+      * Returns the number of alerts raised.
+      *
+      * @return the number raised
+      */
+    public long getRaised()
+    {
+	return raised.sum();
+    }
+
+    /**
+      * Returns the number of alerts dropped because the queue was full.
+      *
+      * @return the number dropped
+      */
+    public long getDropped()
+    {
+	return dropped.sum();
+    }
+
+    /**
+      * Returns the number of alerts delivered, after merging.
+      *
+      * @return the number delivered
+      */
+    public long getDelivered()
+    {
+	return delivered.sum();
+    }
+
+    /**
+      * Returns the number of alerts whose delivery failed.
+      *
+      * @return the number failed
+      */
+    public long getFailed()
+    {
+	return failed.sum();
+    }
+
+    /**
+      * Returns the number of patients whose last tiers were evicted.
+      *
+      * @return the number evicted
+      */
+    public long getEvicted()
+    {
+	return evicted.sum();
+    }
+
+    /**
+      * Delivers the queued alerts, then stops the delivery thread.
+      */
+    @Override
+    public void close()
+    {
+	closed = true;
+	try {
+	    delivery.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+      * Delivers alerts until closed and the queue is empty.
+      */
+    private void deliver()
+    {
+	List<Alert> batch = new ArrayList<>();
+	while (!closed || !queue.isEmpty()) {
+	    try {
+		Alert alert = queue.poll(100, TimeUnit.MILLISECONDS);
+		if (alert == null) {
+		    continue;
+		}
+		batch.add(alert);
+		queue.drainTo(batch, MAX_BATCH - 1);
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    List<Alert> merged = merge(batch);
+	    batch.clear();
+	    if (merged.isEmpty()) {
+		continue;
+	    }
+	    try {
+		sink.deliver(merged);
+		delivered.add(merged.size());
+	    } catch (Exception e) {
+		failed.add(merged.size());
+		PrintStream out = log;
+		if (out != null) {
+		    out.println("Alert delivery failed: " + e);
+		}
+	    }
+	}
+    }
+
+    /**
+      * Merges the alerts of each patient into one, from their first
+      * previous tier to their last tier, dropping those that end where
+      * they started.
+      */
+    private static List<Alert> merge(List<Alert> batch)
+    {
+	Map<String, Alert> byPatient = new LinkedHashMap<>();
+	for (Alert alert : batch) {
+	    Alert first = byPatient.remove(alert.patientId);
+	    byPatient.put(alert.patientId, first == null ? alert
+		    : new Alert(alert.patientId, first.previousTier,
+			alert.tier, alert.probability, alert.timestamp));
+	}
+	List<Alert> merged = new ArrayList<>(byPatient.size());
+	for (Alert alert : byPatient.values()) {
+	    if (alert.tier != alert.previousTier) {
+		merged.add(alert);
+	    }
+	}
+	return merged;
+    }
+
+    /**
+      * Returns a sink that appends one JSON alert per line to a file.
+      *
+      * @param file the file
+      *
+      * @return the sink
+      */
+    public static Sink fileSink(@Nonnull Path file)
+    {
+	return alerts -> {
+	    try (Writer writer = Files.newBufferedWriter(file,
+			StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+			StandardOpenOption.APPEND)) {
+		for (Alert alert : alerts) {
+		    writer.write(alert.toJSON().toJSONString());
+		    writer.write('\n');
+		}
+	    }
+	};
+    }
+
+    /**
+      * Returns a sink that posts each batch of alerts, as a JSON array,
+      * to an HTTP callback.
+      *
+      * @param url the callback URL
+      *
+      * @return the sink
+      */
+    @SuppressWarnings("unchecked")
+    public static Sink httpSink(@Nonnull URL url)
+    {
+	return alerts -> {
+	    JSONArray array = new JSONArray();
+	    for (Alert alert : alerts) {
+		array.add(alert.toJSON());
+	    }
+	    byte[] body = array.toJSONString().getBytes(StandardCharsets.UTF_8);
+	    HttpURLConnection connection
+		= (HttpURLConnection) url.openConnection();
+	    try {
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(5000);
+		connection.setRequestProperty("Content-Type",
+			"application/json");
+		connection.setFixedLengthStreamingMode(body.length);
+		try (OutputStream out = connection.getOutputStream()) {
+		    out.write(body);
+		}
+		int status = connection.getResponseCode();
+		if (status / 100 != 2) {
+		    throw new IOException("HTTP " + status + " from " + url);
+		}
+	    } finally {
+		connection.disconnect();
+	    }
+	};
+    }
+
+    /**
+      * Returns a sink for a destination given as an HTTP URL or a file
+      * name.
+      *
+      * @param destination an http: or https: URL, or a file name
+      *
+      * @return the sink
+      *
+      * @throws IOException if the URL is invalid
+      */
+    public static Sink sink(@Nonnull String destination) throws IOException
+    {
+	if (destination.startsWith("http:")
+		|| destination.startsWith("https:")) {
+	    return httpSink(new URL(destination));
+	}
+	return fileSink(Paths.get(destination));
+    }
+}
@@ -0,0 +1,256 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+  * Processes a batch file with one JSON data object per line, as described
+  * in <code>PRM</code>, on several threads.
+  * <p>
+  * Lines are read in chunks, each chunk is handled by a worker thread,
+  * and the results are handed to a sink on the calling thread in input
+  * order. Only a bounded number of chunks is in flight at any time, so
+  * files of any size can be processed in constant memory.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMBatch
+{
+    /** Default number of lines handled by a worker at a time */
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /** JSON parsers, which are not thread safe */
+    private static final ThreadLocal<JSONParser> PARSERS
+	= ThreadLocal.withInitial(JSONParser::new);
+
+    /**
+      * Handles a single line on a worker thread.
+      *
+      * @param <R> the result type
+      */
+    public interface Worker<R>
+    {
+	/**
+	  * Handles a line.
+	  *
+	  * @param lineNumber the line number, starting at 1
+	  * @param line the line
+	  *
+	  * @return the result, handed to the sink
+	  *
+	  * @throws Exception if the line can not be handled
+	  */
+	R process(long lineNumber, String line) throws Exception;
+    }
+
+    /** The number of worker threads */
+    private final int threads;
+    /** The number of lines in a chunk */
+    private final int chunkSize;
+
+    /**
+      * Constructor.
+      *
+      * @param threads the number of worker threads, &gt;= 1
+      */
+    public PRMBatch(int threads)
+    {
+	this(threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+      * Constructor.
+      *
+      * @param threads the number of worker threads, &gt;= 1
+      * @param chunkSize the number of lines handled at a time, &gt;= 1
+      */
+    public PRMBatch(int threads, int chunkSize)
+    {
+	if (threads < 1 || chunkSize < 1) {
+	    throw new IllegalArgumentException(
+		    "threads and chunkSize must be >= 1");
+	}
+	this.threads = threads;
+	this.chunkSize = chunkSize;
+    }
+
+    /**
+      * Processes all non blank lines of the reader.
+      *
+      * @param <R> the result type
+      * @param reader the input
+      * @param worker handles each line, on a worker thread
+      * @param sink receives the results in input order, on this thread
+      *
+      * @return the number of lines processed
+      *
+      * @throws IOException if reading fails, or a line can not be handled
+      */
+    public <R> long process(@Nonnull BufferedReader reader,
+	    @Nonnull Worker<R> worker, @Nonnull Consumer<? super R> sink)
+	throws IOException
+    {
+	ExecutorService executor = Executors.newFixedThreadPool(threads);
+	Deque<Future<List<R>>> pending = new ArrayDeque<>();
+	long count = 0;
+	try {
+	    List<String> lines = new ArrayList<>(chunkSize);
+	    long firstLine = 1;
+	    long lineNumber = 0;
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		lineNumber++;
+		if (lines.isEmpty()) {
+		    firstLine = lineNumber;
+		}
+		lines.add(line);
+		if (lines.size() == chunkSize) {
+		    pending.add(executor.submit(
+				new Chunk<>(worker, firstLine, lines)));
+		    lines = new ArrayList<>(chunkSize);
+		    while (pending.size() > 2 * threads) {
+			count += drain(pending.removeFirst(), sink);
+		    }
+		}
+	    }
+	    if (!lines.isEmpty()) {
+		pending.add(executor.submit(
+			    new Chunk<>(worker, firstLine, lines)));
+	    }
+	    while (!pending.isEmpty()) {
+		count += drain(pending.removeFirst(), sink);
+	    }
+	} finally {
+	    executor.shutdownNow();
+	}
+	return count;
+    }
+
+    /**
+      * Parses a line into a calculator that is ready to calculate.
+      *
+      * @param line the JSON data object
+      *
+      * @return the parsed calculator
+      *
+      * @throws ParseException if the line is not a JSON object
+      */
+    public static PRMCalculator parseLine(@Nonnull String line)
+	throws ParseException
+    {
+	Object obj = PARSERS.get().parse(line);
+	if (!(obj instanceof JSONObject)) {
+	    throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN,
+		    obj);
+	}
+	PRMCalculator calculator = new PRMCalculator((JSONObject) obj);
+	calculator.parse();
+	return calculator;
+    }
+
+    /**
+      * Waits for a chunk and hands its results to the sink.
+      */
+    private static <R> int drain(Future<List<R>> future,
+	    Consumer<? super R> sink) throws IOException
+    {
+	List<R> results;
+	try {
+	    results = future.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted", e);
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException) cause;
+	    }
+	    throw new IOException(cause.getMessage(), cause);
+	}
+	for (R result : results) {
+	    sink.accept(result);
+	}
+	return results.size();
+    }
+
+    /**
+      * A chunk of lines handled by a worker thread.
+      */
+    private static class Chunk<R> implements Callable<List<R>>
+    {
+	/** The worker */
+	private final Worker<R> worker;
+	/** The number of the first line */
+	private final long firstLine;
+	/** The lines */
+	private final List<String> lines;
+
+	/**
+	  * Constructor.
+	  */
+	private Chunk(Worker<R> worker, long firstLine, List<String> lines)
+	{
+	    this.worker = worker;
+	    this.firstLine = firstLine;
+	    this.lines = lines;
+	}
+
+	@Override
+	public List<R> call() throws Exception
+	{
+	    Object event = PRMEvents.begin(PRMEvents.Phase.BATCH);
+	    List<R> results = new ArrayList<>(lines.size());
+	    long lineNumber = firstLine;
+	    boolean success = false;
+	    try {
+		for (String line : lines) {
+		    if (!line.trim().isEmpty()) {
+			try {
+			    results.add(worker.process(lineNumber, line));
+			} catch (Exception e) {
+			    throw new IOException("Line " + lineNumber + ": "
+				    + e, e);
+			}
+		    }
+		    lineNumber++;
+		}
+		success = true;
+	    } finally {
+		PRMEvents.end(event, lines.size(), success);
+	    }
+	    return results;
+	}
+    }
+}
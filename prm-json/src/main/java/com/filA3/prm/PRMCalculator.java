@@ -0,0 +1,220 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONArray;
+
+import com.filA3.prm.HCHRiskStratificationPRMScoreCalculator;
+import com.filA3.prm.PRMData;
+
+/**
+  * The PRM calculator.  Takes a JSONObject with the many parameters used
+  * in the PRM calculation.
+  * <p>
+  * The user calls parse() on the created object in order to parse
+  * the JSON object. The user can then call displayData() to display the
+  * data fields after application of the JSON parameters, and calculate()
+  * to calculate and return the score.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMCalculator extends HCHRiskStratificationPRMScoreCalculator
+{
+    /** The data object **/
+    private PRMData data;
+    /** The json object with parameter structure */
+    private JSONObject json;
+    /** The optional patient identifier */
+    private String patientId;
+    /** The optional observed outcome */
+    private Boolean hospitalised;
+    /** The optional raw pathology results */
+    private Map<?, ?> pathologyValues;
+    /** The optional postcode */
+    private Object postcode;
+    /** The optional diagnosis codes */
+    private List<?> diagnosisCodes;
+    /** The optional drug codes */
+    private List<?> medicationCodes;
+
+    /**
+      * Constructor. Takes a JSON object with paramters used in the calculation.
+      *
+      * @param obj JSON object with parameters
+      */
+    public PRMCalculator(JSONObject obj)
+    {
+	data = new PRMData();
+	json = obj;
+    }
+
+    /**
+      * Parses the JSON parameters supplied in construction.
+      */
+    public void parse()
+    {
+	Object event = PRMEvents.begin(PRMEvents.Phase.PARSE);
+	boolean success = false;
+	try {
+	    parseFields();
+	    success = true;
+	} finally {
+	    PRMEvents.end(event, json.size(), success);
+	}
+    }
+
+    /**
+      * Parses the JSON object into the data.
+      */
+    private void parseFields()
+    {
+	for(Iterator iterator = json.keySet().iterator(); iterator.hasNext();)
+	{
+	    String key = (String) iterator.next();
+	    switch(key) {
+		case "Age":
+		    Object age = json.get(key);
+		    data.setAge(age instanceof Number
+			    ? ((Number) age).doubleValue()
+			    : Double.parseDouble(age.toString()));
+		    break;
+		case "IsFemale":
+		    Object isFemale = json.get(key);
+		    data.setIsFemale(isFemale instanceof Boolean
+			    ? (Boolean) isFemale
+			    : Boolean.parseBoolean(isFemale.toString()));
+		    break;
+		case "MedicationGroups":
+				JSONArray temp = new JSONArray();
+				temp.addAll((List) json.get(key));
+		    data.setGroupEnum(key, temp);
+		    break;
+		case "Diseases":
+				temp = new JSONArray();
+				temp.addAll((List) json.get(key));
+				data.setGroupEnum(key, temp);
+		    break;
+		case "Pathology":
+		    data.setPathology(new JSONObject((Map) json.get(key)));
+		    break;
+		case "PathologyValues":
+		    pathologyValues = (Map<?, ?>) json.get(key);
+		    break;
+		case "DiagnosisCodes":
+		    diagnosisCodes = (List<?>) json.get(key);
+		    break;
+		case "MedicationCodes":
+		    medicationCodes = (List<?>) json.get(key);
+		    break;
+		case "Postcode":
+		    postcode = json.get(key);
+		    break;
+		case "PatientId":
+		    patientId = String.valueOf(json.get(key));
+		    break;
+		case "Hospitalised":
+		    Object outcome = json.get(key);
+		    hospitalised = outcome instanceof Boolean ? (Boolean) outcome
+			: outcome instanceof Number
+			    ? ((Number) outcome).intValue() != 0
+			    : Boolean.valueOf(outcome.toString());
+		    break;
+		default:
+ 			    data.setEnum((String) key, (String) json.get(key));
+		    break;
+	    }
+	}
+	// Codes add to the diseases and medication groups given by name
+	if (diagnosisCodes != null) {
+	    PRMCodeMapping.getInstance().applyDiagnoses(data, diagnosisCodes);
+	}
+	if (medicationCodes != null) {
+	    PRMCodeMapping.getInstance().applyMedications(data,
+		    medicationCodes);
+	}
+	// An explicit decile takes precedence over the postcode
+	if (postcode != null && !json.containsKey("IRSADDecile")) {
+	    data.setIRSADDecile(PRMPostcodeDeciles.getInstance()
+		    .lookup(postcode));
+	}
+	// Binned last, as cut-points may depend on sex
+	if (pathologyValues != null) {
+	    PRMLabThresholds.getInstance().setPathology(data, pathologyValues);
+	}
+    }
+
+    /**
+      * Returns all data that will be used for calculation in an appropriate
+      * format for display.
+      *
+      * @return a string representation of the data
+      */
+    public String displayData()
+    {
+	String str =  data.toString();
+	str = str.substring(str.indexOf("["));
+	return str;
+    }
+
+    /**
+      * Returns the patient identifier, as found by parse().
+      *
+      * @return the "PatientId" value, or null if there was none
+      */
+    public String getPatientId()
+    {
+	return patientId;
+    }
+
+    /**
+      * Returns the observed outcome, as found by parse(), of labelled data
+      * used to fit or evaluate a model.
+      *
+      * @return the "Hospitalised" value, true, false, 1 or 0, or null if
+      *         there was none
+      */
+    public Boolean getHospitalised()
+    {
+	return hospitalised;
+    }
+
+    /**
+      * Returns the data object, as filled in by parse().
+      *
+      * @return the data
+      */
+    public PRMData getData()
+    {
+	return data;
+    }
+
+    /**
+      * Calculates the Health Care Homes hospitalisation probability.
+      *
+      * @return the probability
+      */
+    public double calculate()
+    {
+	double score = calculatePRMScore(data);
+	return score;
+    }
+}
@@ -19,10 +19,7 @@ package com.filA3.prm;
 import java.util.EnumSet;
 import java.util.Set;
 import java.util.Iterator;
-import java.lang.reflect.Method;
 
-
-import org.apache.commons.lang3.StringUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
@@ -31,7 +28,11 @@ import com.filA3.prm.HCHRiskStratificationPRMData;
 /**
   * The data structure used by the calculator. This class extends
   * the HCHRiskStratificationPRMData class to provide concenience
-  * functions for setting data objects – mainly through reflection.
+  * functions for setting data objects by their JSON names.
+  * <p>
+  * The names are resolved through {@link PRMField} and the enum types
+  * rather than by reflection, so that the calculator compiles ahead of
+  * time, e.g. to a native image, without reflection configuration.
   *
   * @author Precedence Health Care Pty Ltd
   */
@@ -46,18 +47,21 @@ public class PRMData extends HCHRiskStratificationPRMData
       * @param enumType the enum type name
       * @param enumValue the value to set
       */
-    @SuppressWarnings("unchecked")
     public void setEnum(String enumType, String enumValue)
     {
-        try { // Use reflection
-            Class<?> c = Class.forName(getClass().getSuperclass().getName()
-					+ "$" + enumType);
-            Class<Enum> cc = (Class<Enum>) c;
-            Method method = getClass().getMethod("set" + enumType, cc);
-            method.invoke(this, Enum.valueOf(cc, enumValue));
-        } catch (Exception e) {
-            System.err.println(e);
-        }
+	Object event = PRMEvents.begin(PRMEvents.Phase.BIND);
+	boolean success = false;
+	try {
+	    PRMField field = PRMField.forJsonName(enumType);
+	    if (field == null || field.isPathology()) {
+		throw new IllegalArgumentException("No field " + enumType);
+	    }
+	    field.set(this, field.parseValue(enumValue));
+	    success = true;
+	} catch (Exception e) {
+	    System.err.println(e);
+	}
+	PRMEvents.end(event, 1, success, enumType);
     }
 
     /**
@@ -66,29 +70,39 @@ public class PRMData extends HCHRiskStratificationPRMData
       * enumType "MedicationGroups" and an array of enums, calls
       * the setMedicationGroups method with a set of MedicationGroup enums.
       *
-      * @param enumType the enum type name
+      * @param enumType the enum type name, "MedicationGroups" or
+      *                 "Diseases"
       * @param enumValues the array of values to set
       */
-    @SuppressWarnings("unchecked")
     public void setGroupEnum(String enumType, String[] enumValues)
     {
-	String type = enumType;
-	if (enumType.endsWith("s")) { // Make a simple singular from plural
-	    type = StringUtils.chop(enumType);
-	}
-	try { // Use reflection
-	    Class<?> c = Class.forName(getClass().getSuperclass()
-		    .getName() + "$" + type);
-	    Class<Enum> cc = (Class<Enum>) c;
-	    Set es = EnumSet.noneOf(cc);
-	    for (String val : enumValues) { // Build a set
-		es.add(Enum.valueOf(cc, val));
+	Object event = PRMEvents.begin(PRMEvents.Phase.BIND);
+	boolean success = false;
+	try {
+	    switch (enumType) {
+		case "MedicationGroups":
+		    Set<MedicationGroup> groups
+			= EnumSet.noneOf(MedicationGroup.class);
+		    for (String val : enumValues) { // Build a set
+			groups.add(MedicationGroup.valueOf(val));
+		    }
+		    setMedicationGroups(groups);
+		    break;
+		case "Diseases":
+		    Set<Disease> diseases = EnumSet.noneOf(Disease.class);
+		    for (String val : enumValues) {
+			diseases.add(Disease.valueOf(val));
+		    }
+		    setDiseases(diseases);
+		    break;
+		default:
+		    throw new IllegalArgumentException("No field " + enumType);
 	    }
-            Method method = getClass().getMethod("set" + enumType, Set.class);
-            method.invoke(this, es);
+	    success = true;
 	} catch (Exception e) {
 	    System.err.println(e);
 	}
+	PRMEvents.end(event, enumValues.length, success, enumType);
     }
 
     /**
@@ -121,23 +135,28 @@ public class PRMData extends HCHRiskStratificationPRMData
       * </pre>
       * @param pathologyCategories the JSONObject
       */
-    @SuppressWarnings("unchecked")
     public void setPathology(JSONObject pathologyCategories)
     {
+	Object event = PRMEvents.begin(PRMEvents.Phase.BIND);
+	boolean success = true;
 	for(Iterator iterator = pathologyCategories.keySet().iterator();
 							iterator.hasNext();)
 	{
 	    String key = (String) iterator.next();
 	    try {
-		Class<?> c = Class.forName(getClass().getSuperclass()
-			.getName() + "$" + "PathologyCategory");
-		Class<Enum> cc = (Class<Enum>) c;
-		Method method = getClass().getMethod("set" + key, cc);
-		method.invoke(this, Enum.valueOf(cc,
-				    (String) pathologyCategories.get(key)));
+		PRMField field = PRMField.forJsonName(key);
+		if (field == null || !field.isPathology()) {
+		    throw new IllegalArgumentException("No pathology field "
+			    + key);
+		}
+		field.set(this, PathologyCategory.valueOf(
+			    (String) pathologyCategories.get(key)));
 	    } catch (Exception e) {
 		System.err.println(e);
+		success = false;
 	    }
 	}
+	PRMEvents.end(event, pathologyCategories.size(), success,
+		"Pathology");
     }
 }
@@ -0,0 +1,343 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+  * Measures how well predicted probabilities match observed outcomes:
+  * discrimination (ROC AUC, and precision and recall at thresholds),
+  * accuracy (Brier score) and calibration in the large (mean predicted
+  * probability against the observed rate).
+  * <p>
+  * Evaluations use constant memory: the probabilities of patients with
+  * and without the outcome are counted in two fixed bucket histograms,
+  * from which the AUC is calculated with patients in the same bucket
+  * counted as ties. Evaluations of parts of a data set can be merged, so
+  * each thread keeps its own. The class is not thread safe.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMEvaluation
+{
+    /** Number of buckets of the probability histograms */
+    private static final int HISTOGRAM_BUCKETS = 10000;
+
+    /** The thresholds, increasing */
+    private final double[] thresholds;
+    /** The probabilities of patients with the outcome */
+    private final PRMHistogram positives
+	= new PRMHistogram(0, 1, HISTOGRAM_BUCKETS);
+    /** The probabilities of patients without the outcome */
+    private final PRMHistogram negatives
+	= new PRMHistogram(0, 1, HISTOGRAM_BUCKETS);
+    /** Patients with the outcome at or above each threshold */
+    private final long[] truePositives;
+    /** Patients without the outcome at or above each threshold */
+    private final long[] falsePositives;
+    /** The sum of squared errors */
+    private double squaredErrors = 0;
+
+    /**
+      * Constructor.
+      *
+      * @param thresholds the probabilities at or above which patients are
+      *                   flagged, for precision and recall
+      */
+    public PRMEvaluation(double... thresholds)
+    {
+	this.thresholds = thresholds.clone();
+	Arrays.sort(this.thresholds);
+	truePositives = new long[thresholds.length];
+	falsePositives = new long[thresholds.length];
+    }
+
+    /**
+      * Adds a patient.
+      *
+      * @param probability the predicted probability
+      * @param hospitalised the observed outcome
+      */
+    public void add(double probability, boolean hospitalised)
+    {
+	long[] flagged;
+	if (hospitalised) {
+	    positives.add(probability);
+	    flagged = truePositives;
+	    squaredErrors += (1 - probability) * (1 - probability);
+	} else {
+	    negatives.add(probability);
+	    flagged = falsePositives;
+	    squaredErrors += probability * probability;
+	}
+	for (int i = 0; i < thresholds.length
+		&& probability >= thresholds[i]; i++) {
+	    flagged[i]++;
+	}
+    }
+
+    /**
+      * Adds all patients of another evaluation with the same thresholds.
+      *
+      * @param other the other evaluation
+      */
+    public void merge(@Nonnull PRMEvaluation other)
+    {
+	if (!Arrays.equals(thresholds, other.thresholds)) {
+	    throw new IllegalArgumentException("Thresholds do not match");
+	}
+	positives.merge(other.positives);
+	negatives.merge(other.negatives);
+	for (int i = 0; i < thresholds.length; i++) {
+	    truePositives[i] += other.truePositives[i];
+	    falsePositives[i] += other.falsePositives[i];
+	}
+	squaredErrors += other.squaredErrors;
+    }
+
+    /**
+      * Returns the number of patients.
+      *
+      * @return the number of patients
+      */
+    public long getCount()
+    {
+	return positives.getCount() + negatives.getCount();
+    }
+
+    /**
+      * Returns the number of patients with the outcome.
+      *
+      * @return the number of hospitalised patients
+      */
+    public long getPositives()
+    {
+	return positives.getCount();
+    }
+
+    /**
+      * Returns the observed rate of the outcome.
+      *
+      * @return the rate, or NaN without patients
+      */
+    public double getObservedRate()
+    {
+	return (double) getPositives() / getCount();
+    }
+
+    /**
+      * Returns the mean predicted probability.
+      *
+      * @return the mean, or NaN without patients
+      */
+    public double getMeanProbability()
+    {
+	return (positives.getSum() + negatives.getSum()) / getCount();
+    }
+
+    /**
+      * Returns the calibration in the large: the difference between the
+      * observed rate and the mean predicted probability. It is positive
+      * when the model under predicts.
+      *
+      * @return the difference, or NaN without patients
+      */
+    public double getCalibrationInTheLarge()
+    {
+	return getObservedRate() - getMeanProbability();
+    }
+
+    /**
+      * Returns the Brier score, the mean squared difference between the
+      * predicted probability and the outcome.
+      *
+      * @return the score, or NaN without patients
+      */
+    public double getBrierScore()
+    {
+	return squaredErrors / getCount();
+    }
+
+    /**
+      * Returns the area under the ROC curve: the probability that a
+      * patient with the outcome is predicted a higher probability than one
+      * without. Probabilities within 1/10000 of each other count as ties.
+      *
+      * @return the area, or NaN without both kinds of patients
+      */
+    public double getAUC()
+    {
+	double concordant = 0;
+	long below = 0;
+	for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+	    long p = positives.getCount(i);
+	    long n = negatives.getCount(i);
+	    concordant += p * (below + 0.5 * n);
+	    below += n;
+	}
+	return concordant / ((double) positives.getCount()
+		* negatives.getCount());
+    }
+
+    /**
+      * Returns the thresholds.
+      *
+      * @return the thresholds, increasing
+      */
+    public double[] getThresholds()
+    {
+	return thresholds.clone();
+    }
+
+    /**
+      * Returns the number of patients flagged at a threshold.
+      *
+      * @param threshold the threshold index
+      *
+      * @return the number of patients at or above the threshold
+      */
+    public long getFlagged(int threshold)
+    {
+	return truePositives[threshold] + falsePositives[threshold];
+    }
+
+    /**
+      * Returns the precision at a threshold: the proportion of flagged
+      * patients with the outcome.
+      *
+      * @param threshold the threshold index
+      *
+      * @return the precision, or NaN if no patient is flagged
+      */
+    public double getPrecision(int threshold)
+    {
+	return (double) truePositives[threshold] / getFlagged(threshold);
+    }
+
+    /**
+      * Returns the recall at a threshold: the proportion of patients with
+      * the outcome that are flagged.
+      *
+      * @param threshold the threshold index
+      *
+      * @return the recall, or NaN without patients with the outcome
+      */
+    public double getRecall(int threshold)
+    {
+	return (double) truePositives[threshold] / getPositives();
+    }
+
+    /**
+      * Returns the evaluation as a JSON report. Undefined measures are
+      * null.
+      *
+      * @param modelVersion the version of the evaluated model
+      *
+      * @return the report
+      */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON(String modelVersion)
+    {
+	JSONObject report = new JSONObject();
+	report.put("ModelVersion", modelVersion);
+	report.put("Patients", getCount());
+	report.put("Hospitalised", getPositives());
+	report.put("ObservedRate", number(getObservedRate()));
+	report.put("MeanProbability", number(getMeanProbability()));
+	report.put("CalibrationInTheLarge",
+		number(getCalibrationInTheLarge()));
+	report.put("BrierScore", number(getBrierScore()));
+	report.put("AUC", number(getAUC()));
+	JSONArray byThreshold = new JSONArray();
+	for (int i = 0; i < thresholds.length; i++) {
+	    JSONObject entry = new JSONObject();
+	    entry.put("Threshold", thresholds[i]);
+	    entry.put("Flagged", getFlagged(i));
+	    entry.put("Precision", number(getPrecision(i)));
+	    entry.put("Recall", number(getRecall(i)));
+	    byThreshold.add(entry);
+	}
+	report.put("Thresholds", byThreshold);
+	return report;
+    }
+
+    /**
+      * Evaluates a calculator on a labelled file with one JSON data object
+      * per line, each with a "Hospitalised" outcome. Each thread evaluates
+      * its own lines and the evaluations are merged at the end.
+      *
+      * @param reader the labelled data
+      * @param calculator the calculator
+      * @param threads the number of threads
+      * @param thresholds the thresholds for precision and recall
+      *
+      * @return the evaluation
+      *
+      * @throws IOException if reading fails, or a line is invalid or has
+      *                     no outcome
+      */
+    public static PRMEvaluation evaluate(@Nonnull BufferedReader reader,
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator calculator,
+	    int threads, double... thresholds)
+	throws IOException
+    {
+	List<PRMEvaluation> parts
+	    = Collections.synchronizedList(new ArrayList<>());
+	ThreadLocal<PRMEvaluation> part = ThreadLocal.withInitial(() -> {
+		PRMEvaluation evaluation = new PRMEvaluation(thresholds);
+		parts.add(evaluation);
+		return evaluation;
+	    });
+	new PRMBatch(threads).process(reader,
+		(lineNumber, line) -> {
+		    PRMCalculator parsed = PRMBatch.parseLine(line);
+		    if (parsed.getHospitalised() == null) {
+			throw new IllegalArgumentException(
+				"Missing Hospitalised");
+		    }
+		    part.get().add(calculator.calculatePRMScore(
+				parsed.getData()), parsed.getHospitalised());
+		    return Boolean.TRUE;
+		},
+		done -> { });
+	PRMEvaluation evaluation = new PRMEvaluation(thresholds);
+	synchronized (parts) {
+	    for (PRMEvaluation p : parts) {
+		evaluation.merge(p);
+	    }
+	}
+	return evaluation;
+    }
+
+    /**
+      * Returns a number, or null if it is not finite.
+      */
+    private static Double number(double value)
+    {
+	return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+    }
+}
@@ -0,0 +1,265 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+  * Applies the events of an append-only file, or of a directory of such
+  * files, to {@link PRMPatientStates}, and hands each change of a
+  * probability to a sink.
+  * <p>
+  * Each file holds one JSON event per line. Only complete lines are
+  * read, and the position reached in each file is remembered, so a file
+  * that is being appended to can be followed: {@link #process} then
+  * polls for new lines, and new files in the directory, until
+  * {@link #stop} is called. Files in a directory are read in name order.
+  * Invalid events are reported to the log and skipped, so that one bad
+  * line does not stop the stream.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMEventStream
+{
+    /** The size of the read buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The patient states */
+    private final PRMPatientStates states;
+    /** Receives the changes of probability */
+    private final Consumer<? super PRMPatientStates.Update> sink;
+    /** The position reached in each file */
+    private final Map<Path, Long> positions = new HashMap<>();
+    /** The read buffer */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** The bytes of the current line */
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    /** The JSON parser */
+    private final JSONParser parser = new JSONParser();
+    /** Milliseconds between polls when following */
+    private long pollInterval = 1000;
+    /** Where invalid events are reported, or null */
+    private PrintStream log = System.err;
+    /** Whether to keep following */
+    private volatile boolean running;
+    /** The number of events applied */
+    private long events;
+    /** The number of invalid events */
+    private long errors;
+
+    /**
+      * Constructor.
+      *
+      * @param states the patient states
+      * @param sink receives each change of a patient's probability
+      */
+    public PRMEventStream(@Nonnull PRMPatientStates states,
+	    @Nonnull Consumer<? super PRMPatientStates.Update> sink)
+    {
+	this.states = states;
+	this.sink = sink;
+    }
+
+    /**
+      * Sets the time between polls for new events when following.
+      *
+      * @param pollInterval the interval in milliseconds, &gt;= 1
+      *
+      * @return this stream
+      */
+    public PRMEventStream setPollInterval(long pollInterval)
+    {
+	if (pollInterval < 1) {
+	    throw new IllegalArgumentException("pollInterval must be >= 1");
+	}
+	this.pollInterval = pollInterval;
+	return this;
+    }
+
+    /**
+      * Sets where invalid events are reported.
+      *
+      * @param log the log, or null for none
+      *
+      * @return this stream
+      */
+    public PRMEventStream setLog(PrintStream log)
+    {
+	this.log = log;
+	return this;
+    }
+
+    /**
+      * Returns the number of events applied.
+      *
+      * @return the number of valid events
+      */
+    public long getEvents()
+    {
+	return events;
+    }
+
+    /**
+      * Returns the number of invalid events skipped.
+      *
+      * @return the number of invalid events
+      */
+    public long getErrors()
+    {
+	return errors;
+    }
+
+    /**
+      * Applies the events of a file or directory.
+      *
+      * @param input the event file, or directory of event files
+      * @param follow whether to keep polling for new events until
+      *               {@link #stop} is called or the thread is interrupted
+      *
+      * @throws IOException if reading fails
+      */
+    public void process(@Nonnull Path input, boolean follow)
+	throws IOException
+    {
+	running = true;
+	while (true) {
+	    for (Path file : files(input)) {
+		read(file);
+	    }
+	    if (!follow || !running) {
+		return;
+	    }
+	    try {
+		Thread.sleep(pollInterval);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return;
+	    }
+	}
+    }
+
+    /**
+      * Stops following, after the current poll.
+      */
+    public void stop()
+    {
+	running = false;
+    }
+
+    /**
+      * Returns the event files of the input, in name order.
+      */
+    private static List<Path> files(Path input) throws IOException
+    {
+	if (!Files.isDirectory(input)) {
+	    return Collections.singletonList(input);
+	}
+	List<Path> files = new ArrayList<>();
+	try (DirectoryStream<Path> entries = Files.newDirectoryStream(input)) {
+	    for (Path entry : entries) {
+		if (Files.isRegularFile(entry)
+			&& !entry.getFileName().toString().startsWith(".")) {
+		    files.add(entry);
+		}
+	    }
+	}
+	Collections.sort(files);
+	return files;
+    }
+
+    /**
+      * Applies the complete lines of a file after the position reached.
+      */
+    private void read(Path file) throws IOException
+    {
+	long position = positions.getOrDefault(file, 0L);
+	try (FileChannel channel = FileChannel.open(file,
+		    StandardOpenOption.READ)) {
+	    if (channel.size() < position) { // Truncated, start again
+		position = 0;
+	    }
+	    long offset = position;
+	    line.reset();
+	    ((Buffer) buffer).clear();
+	    while (channel.read(buffer, offset) > 0) {
+		((Buffer) buffer).flip();
+		while (buffer.hasRemaining()) {
+		    byte b = buffer.get();
+		    offset++;
+		    if (b == '\n') {
+			apply(file);
+			line.reset();
+			position = offset;
+		    } else {
+			line.write(b);
+		    }
+		}
+		((Buffer) buffer).clear();
+	    }
+	}
+	positions.put(file, position);
+    }
+
+    /**
+      * Applies the event of the current line.
+      */
+    private void apply(Path file)
+    {
+	String text = new String(line.toByteArray(), StandardCharsets.UTF_8)
+	    .trim();
+	if (text.isEmpty()) {
+	    return;
+	}
+	try {
+	    Object event = parser.parse(text);
+	    if (!(event instanceof JSONObject)) {
+		throw new IllegalArgumentException("Not a JSON object");
+	    }
+	    PRMPatientStates.Update update = states.apply((JSONObject) event);
+	    events++;
+	    if (update != null) {
+		sink.accept(update);
+	    }
+	} catch (Exception e) {
+	    errors++;
+	    if (log != null) {
+		log.println(file + ": invalid event " + text + ": " + e);
+	    }
+	}
+    }
+}
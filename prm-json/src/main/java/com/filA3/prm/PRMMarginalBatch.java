@@ -0,0 +1,155 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Marginalizes over the missing fields of each patient of a batch file
+  * with one JSON data object per line, see
+  * {@link PRMMissingDataMarginalizer}.
+  * <p>
+  * Each worker thread has its own copy of the marginalizer, so that the
+  * distributions of the combinations of missing fields are built once
+  * per thread and looked up without contention; a batch of millions of
+  * patients, who share a few dozen combinations, then costs little more
+  * than scoring it.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public final class PRMMarginalBatch
+{
+    /**
+      * A marginalized patient.
+      */
+    public static class Patient
+    {
+	/** The parsed data object */
+	private final PRMCalculator calculator;
+	/** The probability */
+	private final double probability;
+	/** The distribution of the probability */
+	private final PRMMissingDataMarginalizer.MarginalRisk risk;
+
+	/**
+	  * Constructor.
+	  */
+	private Patient(PRMCalculator calculator, double probability,
+		PRMMissingDataMarginalizer.MarginalRisk risk)
+	{
+	    this.calculator = calculator;
+	    this.probability = probability;
+	    this.risk = risk;
+	}
+
+	/**
+	  * Returns the parsed data object.
+	  *
+	  * @return the calculator the line was parsed into
+	  */
+	public PRMCalculator getCalculator()
+	{
+	    return calculator;
+	}
+
+	/**
+	  * Returns the probability, as the calculator of the marginalizer
+	  * returns it.
+	  *
+	  * @return the probability
+	  */
+	public double getProbability()
+	{
+	    return probability;
+	}
+
+	/**
+	  * Returns the distribution of the probability.
+	  *
+	  * @return the distribution summary
+	  */
+	public PRMMissingDataMarginalizer.MarginalRisk getRisk()
+	{
+	    return risk;
+	}
+
+	/**
+	  * Returns the distribution as CSV: the probability, the mean, the
+	  * quantiles and the lower and upper ends of the interval.
+	  *
+	  * @return the CSV values
+	  */
+	@Override
+	public String toString()
+	{
+	    StringBuilder sb = new StringBuilder();
+	    sb.append(probability).append(',').append(risk.getMean());
+	    for (double quantile : risk.getQuantiles()) {
+		sb.append(',').append(quantile);
+	    }
+	    return sb.append(',').append(risk.getLower())
+		.append(',').append(risk.getUpper()).toString();
+	}
+    }
+
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRMMarginalBatch()
+    {
+    }
+
+    /**
+      * Marginalizes all patients of a batch file.
+      *
+      * @param reader the batch file
+      * @param marginalizer the marginalizer, copied for each thread
+      * @param threads the number of threads
+      * @param sink receives the patients in input order
+      *
+      * @return the number of patients
+      *
+      * @throws IOException if reading fails or a line is invalid
+      */
+    public static long process(@Nonnull BufferedReader reader,
+	    @Nonnull PRMMissingDataMarginalizer marginalizer, int threads,
+	    @Nonnull Consumer<? super Patient> sink)
+	throws IOException
+    {
+	HCHRiskStratificationPRMScoreCalculator calculator
+	    = marginalizer.getCalculator();
+	ThreadLocal<PRMMissingDataMarginalizer> copies
+	    = ThreadLocal.withInitial(
+		    () -> new PRMMissingDataMarginalizer(marginalizer));
+	return new PRMBatch(threads).process(reader,
+		(lineNumber, line) -> {
+		    PRMCalculator parsed = PRMBatch.parseLine(line);
+		    double linearPredictor
+			= calculator.calculatePRMLinearPredictor(
+				parsed.getData());
+		    return new Patient(parsed,
+			    calculator.calculatePRMScore(linearPredictor),
+			    copies.get().calculate(parsed.getData(),
+				linearPredictor));
+		},
+		sink);
+    }
+}
@@ -0,0 +1,461 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+  * Compares the probabilities of a cohort under several models, the first
+  * being the reference, e.g. the current model, and the others candidates
+  * replacing it.
+  * <p>
+  * Besides differences in probability, a candidate is compared on how it
+  * ranks the cohort: the Spearman correlation of the ranks, the change in
+  * each patient's percentile within the cohort, and the movements between
+  * the tiers of {@link PRMReferencePopulation#DEFAULT_BANDS}, since
+  * patients are selected by rank rather than by probability.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMModelComparison
+{
+    /**
+      * The probabilities of a single patient under each model.
+      */
+    public static class Scores
+    {
+	/** The patient identifier */
+	private final String patientId;
+	/** The probability under each model */
+	private final double[] probabilities;
+
+	/**
+	  * Constructor.
+	  */
+	private Scores(String patientId, double[] probabilities)
+	{
+	    this.patientId = patientId;
+	    this.probabilities = probabilities;
+	}
+
+	/**
+	  * Returns the patient identifier.
+	  *
+	  * @return the identifier
+	  */
+	public String getPatientId()
+	{
+	    return patientId;
+	}
+
+	/**
+	  * Returns the probability under each model.
+	  *
+	  * @return the probabilities
+	  */
+	public double[] getProbabilities()
+	{
+	    return probabilities.clone();
+	}
+
+	@Override
+	public String toString()
+	{
+	    StringBuilder sb = new StringBuilder(patientId);
+	    for (double probability : probabilities) {
+		sb.append(',').append(probability);
+	    }
+	    return sb.toString();
+	}
+    }
+
+    /** The models */
+    private final PRMModelSet models;
+    /** The probabilities of each model, in patient order */
+    private final double[][] probabilities;
+    /** The number of patients */
+    private int count;
+    /** The mid-ranks of each model, computed when first needed */
+    private double[][] ranks;
+
+    /**
+      * Constructor.
+      *
+      * @param models the models, the first being the reference
+      */
+    public PRMModelComparison(@Nonnull PRMModelSet models)
+    {
+	this.models = models;
+	probabilities = new double[models.size()][1024];
+    }
+
+    /**
+      * Adds a patient.
+      *
+      * @param scores the probabilities of the patient under each model
+      */
+    public void add(@Nonnull Scores scores)
+    {
+	if (count == probabilities[0].length) {
+	    for (int k = 0; k < probabilities.length; k++) {
+		probabilities[k] = Arrays.copyOf(probabilities[k], 2 * count);
+	    }
+	}
+	for (int k = 0; k < probabilities.length; k++) {
+	    probabilities[k][count] = scores.probabilities[k];
+	}
+	count++;
+	ranks = null;
+    }
+
+    /**
+      * Scores a patient under every model.
+      *
+      * @param patientId the patient identifier
+      * @param data the data
+      *
+      * @return the probabilities of the patient
+      */
+    public Scores score(String patientId,
+	    @Nonnull HCHRiskStratificationPRMData data)
+    {
+	double[] p = new double[models.size()];
+	models.calculateProbabilities(data, p);
+	return new Scores(patientId, p);
+    }
+
+    /**
+      * Returns the number of patients.
+      *
+      * @return the number of patients
+      */
+    public long getCount()
+    {
+	return count;
+    }
+
+    /**
+      * Returns the mean probability under a model.
+      *
+      * @param model the model index
+      *
+      * @return the mean, or NaN without patients
+      */
+    public double getMeanProbability(int model)
+    {
+	double sum = 0;
+	for (int i = 0; i < count; i++) {
+	    sum += probabilities[model][i];
+	}
+	return sum / count;
+    }
+
+    /**
+      * Returns the mean absolute difference between the probabilities
+      * under a model and the reference.
+      *
+      * @param model the model index
+      *
+      * @return the mean, or NaN without patients
+      */
+    public double getMeanAbsoluteDifference(int model)
+    {
+	double sum = 0;
+	for (int i = 0; i < count; i++) {
+	    sum += Math.abs(probabilities[model][i] - probabilities[0][i]);
+	}
+	return sum / count;
+    }
+
+    /**
+      * Returns the largest absolute difference between the probabilities
+      * under a model and the reference.
+      *
+      * @param model the model index
+      *
+      * @return the largest difference, 0 without patients
+      */
+    public double getMaxAbsoluteDifference(int model)
+    {
+	double max = 0;
+	for (int i = 0; i < count; i++) {
+	    max = Math.max(max,
+		    Math.abs(probabilities[model][i] - probabilities[0][i]));
+	}
+	return max;
+    }
+
+    /**
+      * Returns the Spearman correlation between the ranks of patients
+      * under a model and under the reference, ties sharing their mean
+      * rank.
+      *
+      * @param model the model index
+      *
+      * @return the correlation, or NaN if either ranking is constant
+      */
+    public double getRankCorrelation(int model)
+    {
+	double[] x = ranks(0);
+	double[] y = ranks(model);
+	double mean = (count + 1) / 2.0;
+	double sxy = 0;
+	double sxx = 0;
+	double syy = 0;
+	for (int i = 0; i < count; i++) {
+	    double dx = x[i] - mean;
+	    double dy = y[i] - mean;
+	    sxy += dx * dy;
+	    sxx += dx * dx;
+	    syy += dy * dy;
+	}
+	return sxy / Math.sqrt(sxx * syy);
+    }
+
+    /**
+      * Returns the mean absolute change in the percentile of patients
+      * within the cohort between the reference and a model.
+      *
+      * @param model the model index
+      *
+      * @return the mean change in percentile points, or NaN without
+      *         patients
+      */
+    public double getMeanPercentileChange(int model)
+    {
+	double[] x = ranks(0);
+	double[] y = ranks(model);
+	double sum = 0;
+	for (int i = 0; i < count; i++) {
+	    sum += Math.abs(y[i] - x[i]);
+	}
+	return 100 * sum / count / count;
+    }
+
+    /**
+      * Returns a quantile of the absolute change in the percentile of
+      * patients within the cohort between the reference and a model.
+      *
+      * @param model the model index
+      * @param q the quantile, in [0, 1]
+      *
+      * @return the change in percentile points, or NaN without patients
+      */
+    public double getPercentileChangeQuantile(int model, double q)
+    {
+	if (count == 0) {
+	    return Double.NaN;
+	}
+	double[] x = ranks(0);
+	double[] y = ranks(model);
+	double[] changes = new double[count];
+	for (int i = 0; i < count; i++) {
+	    changes[i] = Math.abs(y[i] - x[i]);
+	}
+	Arrays.sort(changes);
+	return 100 * changes[(int) Math.min(count - 1, (long) (q * count))]
+	    / count;
+    }
+
+    /**
+      * Returns the movements of patients between tiers from the reference
+      * to a model, tiers being given by the percentiles within the cohort
+      * and {@link PRMReferencePopulation#DEFAULT_BANDS}.
+      *
+      * @param model the model index
+      *
+      * @return the number of patients in each reference tier, first
+      *         index, and model tier, second index
+      */
+    public long[][] getTierTransitions(int model)
+    {
+	int tiers = PRMReferencePopulation.DEFAULT_BANDS.length + 1;
+	long[][] transitions = new long[tiers][tiers];
+	double[] x = ranks(0);
+	double[] y = ranks(model);
+	for (int i = 0; i < count; i++) {
+	    transitions[tier(x[i])][tier(y[i])]++;
+	}
+	return transitions;
+    }
+
+    /**
+      * Returns the comparison as a JSON report, with an entry per model
+      * and the rank statistics of each candidate against the reference.
+      * Undefined measures are null.
+      *
+      * @return the report
+      */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON()
+    {
+	List<PRMModel> list = models.getModels();
+	JSONObject report = new JSONObject();
+	report.put("Patients", getCount());
+	report.put("Reference", list.get(0).getVersion());
+	JSONArray entries = new JSONArray();
+	for (int k = 0; k < list.size(); k++) {
+	    JSONObject entry = new JSONObject();
+	    entry.put("ModelVersion", list.get(k).getVersion());
+	    entry.put("MeanProbability", number(getMeanProbability(k)));
+	    if (k > 0) {
+		entry.put("MeanAbsoluteDifference",
+			number(getMeanAbsoluteDifference(k)));
+		entry.put("MaxAbsoluteDifference", getMaxAbsoluteDifference(k));
+		entry.put("RankCorrelation", number(getRankCorrelation(k)));
+		entry.put("MeanPercentileChange",
+			number(getMeanPercentileChange(k)));
+		entry.put("P95PercentileChange",
+			number(getPercentileChangeQuantile(k, 0.95)));
+		long[][] transitions = getTierTransitions(k);
+		long changed = 0;
+		JSONArray matrix = new JSONArray();
+		for (int from = 0; from < transitions.length; from++) {
+		    JSONArray row = new JSONArray();
+		    for (int to = 0; to < transitions.length; to++) {
+			row.add(transitions[from][to]);
+			if (from != to) {
+			    changed += transitions[from][to];
+			}
+		    }
+		    matrix.add(row);
+		}
+		entry.put("TierChanges", changed);
+		entry.put("TierTransitions", matrix);
+	    }
+	    entries.add(entry);
+	}
+	report.put("Models", entries);
+	return report;
+    }
+
+    /**
+      * Compares models on a cohort file with one JSON data object per
+      * line. Each line is parsed once and scored under all models.
+      * Patients without a "PatientId" are identified by line number.
+      *
+      * @param reader the cohort
+      * @param models the models, the first being the reference
+      * @param threads the number of threads
+      * @param scores receives one CSV line per patient, or null
+      *
+      * @return the comparison
+      *
+      * @throws IOException if reading fails or a line is invalid
+      */
+    public static PRMModelComparison compare(@Nonnull BufferedReader reader,
+	    @Nonnull PRMModelSet models, int threads, PrintStream scores)
+	throws IOException
+    {
+	PRMModelComparison comparison = new PRMModelComparison(models);
+	if (scores != null) {
+	    StringBuilder header = new StringBuilder("PatientId");
+	    for (PRMModel model : models.getModels()) {
+		header.append(',').append(model.getVersion());
+	    }
+	    scores.println(header);
+	}
+	new PRMBatch(threads).process(reader,
+		(lineNumber, line) -> {
+		    PRMCalculator parsed = PRMBatch.parseLine(line);
+		    String id = parsed.getPatientId() != null
+			? parsed.getPatientId() : Long.toString(lineNumber);
+		    return comparison.score(id, parsed.getData());
+		},
+		patient -> {
+		    comparison.add(patient);
+		    if (scores != null) {
+			scores.println(patient);
+		    }
+		});
+	return comparison;
+    }
+
+    /**
+      * Returns the mid-ranks, from 1, of the patients under a model.
+      */
+    private double[] ranks(int model)
+    {
+	if (ranks == null) {
+	    ranks = new double[probabilities.length][];
+	}
+	if (ranks[model] == null) {
+	    // The mid-rank of ties from sorted index start to end is
+	    // (start + end + 1) / 2, the bounds found by binary search
+	    double[] sorted = Arrays.copyOf(probabilities[model], count);
+	    Arrays.sort(sorted);
+	    double[] r = new double[count];
+	    for (int i = 0; i < count; i++) {
+		double probability = probabilities[model][i];
+		r[i] = (bound(sorted, probability, false)
+			+ bound(sorted, probability, true) + 1) / 2.0;
+	    }
+	    ranks[model] = r;
+	}
+	return ranks[model];
+    }
+
+    /**
+      * Returns the number of sorted values below a value, or at or below
+      * it if inclusive.
+      */
+    private static int bound(double[] sorted, double value, boolean inclusive)
+    {
+	int low = 0;
+	int high = sorted.length;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if (sorted[middle] < value || inclusive && sorted[middle] == value) {
+		low = middle + 1;
+	    } else {
+		high = middle;
+	    }
+	}
+	return low;
+    }
+
+    /**
+      * Returns the tier of a mid-rank.
+      */
+    private int tier(double rank)
+    {
+	double percentile = 100 * (rank - 0.5) / count;
+	int tier = 0;
+	while (tier < PRMReferencePopulation.DEFAULT_BANDS.length
+		&& PRMReferencePopulation.DEFAULT_BANDS[tier] <= percentile) {
+	    tier++;
+	}
+	return tier;
+    }
+
+    /**
+      * Returns a number, or null if it is not finite.
+      */
+    private static Double number(double value)
+    {
+	return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+    }
+}
@@ -0,0 +1,452 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Refits the coefficients of the {@link PRMDesign} to local outcomes by
+  * logistic regression, so that a practice or network can recalibrate the
+  * national model to its own population.
+  * <p>
+  * The input is a file with one JSON data object per line, as described
+  * in <code>PRM</code>, each with a "Hospitalised" outcome. It is parsed once,
+  * on several threads, into a temporary file of fixed size binary records
+  * ({@link PRMDataCodec}); the data is never held in memory. The model is
+  * then fitted by iteratively reweighted least squares: each iteration
+  * streams the records, split into one contiguous range per thread, and
+  * every thread accumulates the gradient and the (sparse row) Hessian of
+  * its range; the sums are merged and the Newton step solved by Cholesky
+  * decomposition. Starting from the national coefficients, a few
+  * iterations usually suffice.
+  * <p>
+  * The age and disease count columns are scaled while fitting, for the
+  * conditioning of the Hessian. A small ridge is added to its diagonal,
+  * so a column that never occurs in the data keeps its starting
+  * coefficient.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMModelFitter
+{
+    /** Size of a record: the outcome byte and the profile */
+    private static final int RECORD_SIZE = 1 + PRMDataCodec.SIZE;
+    /** Number of records read at a time */
+    private static final int RECORDS_PER_READ = 8192;
+
+    /** The scale of each column while fitting */
+    private static final double[] SCALES = new double[PRMDesign.size()];
+
+    static {
+	Arrays.fill(SCALES, 1);
+	SCALES[PRMDesign.AGE] = 100;
+	SCALES[PRMDesign.AGE_SQ] = 100 * 100;
+	SCALES[PRMDesign.AGE_CU] = 100 * 100 * 100;
+	SCALES[PRMDesign.NUMDISEASES] = 10;
+	SCALES[PRMDesign.NUMDISEASES_SQ] = 10 * 10;
+	SCALES[PRMDesign.NUMDISEASES_CU] = 10 * 10 * 10;
+    }
+
+    /** The number of threads */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /** The maximum number of iterations */
+    private int maxIterations = 25;
+    /** The largest scaled coefficient change at convergence */
+    private double tolerance = 1e-6;
+    /** The ridge added to the diagonal of the Hessian */
+    private double ridge = 1e-4;
+    /** The directory of the temporary file, null for the default */
+    private File directory;
+    /** Where progress is reported, or null */
+    private PrintStream log;
+
+    /**
+      * Sets the number of threads.
+      *
+      * @param threads the number of threads, &gt;= 1; defaults to the
+      *                number of processors
+      *
+      * @return this fitter
+      */
+    public PRMModelFitter setThreads(int threads)
+    {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("threads must be >= 1");
+	}
+	this.threads = threads;
+	return this;
+    }
+
+    /**
+      * Sets the maximum number of iterations.
+      *
+      * @param maxIterations the maximum, &gt;= 1; defaults to 25
+      *
+      * @return this fitter
+      */
+    public PRMModelFitter setMaxIterations(int maxIterations)
+    {
+	if (maxIterations < 1) {
+	    throw new IllegalArgumentException("maxIterations must be >= 1");
+	}
+	this.maxIterations = maxIterations;
+	return this;
+    }
+
+    /**
+      * Sets the convergence tolerance.
+      *
+      * @param tolerance the largest change of a scaled coefficient in an
+      *                  iteration at which fitting stops; defaults to 1e-6
+      *
+      * @return this fitter
+      */
+    public PRMModelFitter setTolerance(double tolerance)
+    {
+	this.tolerance = tolerance;
+	return this;
+    }
+
+    /**
+      * Sets the ridge added to the diagonal of the Hessian.
+      *
+      * @param ridge the ridge, &gt; 0; defaults to 1e-4
+      *
+      * @return this fitter
+      */
+    public PRMModelFitter setRidge(double ridge)
+    {
+	if (!(ridge > 0)) {
+	    throw new IllegalArgumentException("ridge must be > 0");
+	}
+	this.ridge = ridge;
+	return this;
+    }
+
+    /**
+      * Sets the directory of the temporary record file.
+      *
+      * @param directory the directory, or null for the system default
+      *
+      * @return this fitter
+      */
+    public PRMModelFitter setDirectory(File directory)
+    {
+	this.directory = directory;
+	return this;
+    }
+
+    /**
+      * Sets where the deviance of each iteration is reported.
+      *
+      * @param log the stream, or null for no reporting
+      *
+      * @return this fitter
+      */
+    public PRMModelFitter setLog(PrintStream log)
+    {
+	this.log = log;
+	return this;
+    }
+
+    /**
+      * Fits a model to labelled data.
+      *
+      * @param reader the labelled data, one JSON object per line
+      * @param start the coefficients to start from, usually the national
+      *              ones
+      * @param version the version of the fitted model
+      *
+      * @return the fitted model
+      *
+      * @throws IOException if reading fails, or a line is invalid or has
+      *                     no outcome
+      */
+    public PRMModel fit(@Nonnull BufferedReader reader,
+	    @Nonnull PRMModel start, @Nonnull String version)
+	throws IOException
+    {
+	File file = File.createTempFile("prm-fit", ".bin", directory);
+	try {
+	    long records = spill(reader, file);
+	    if (records == 0) {
+		throw new IOException("No labelled data");
+	    }
+	    double[] beta = start.getCoefficients();
+	    for (int i = 0; i < beta.length; i++) {
+		beta[i] *= SCALES[i];
+	    }
+	    try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ)) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+		    for (int iteration = 1; iteration <= maxIterations;
+			    iteration++) {
+			Accumulator total
+			    = accumulate(executor, channel, records, beta);
+			double[] step = total.solve(ridge);
+			double largest = 0;
+			for (int i = 0; i < beta.length; i++) {
+			    beta[i] += step[i];
+			    largest = Math.max(largest, Math.abs(step[i]));
+			}
+			if (log != null) {
+			    log.println("Iteration " + iteration + ": deviance "
+				    + total.deviance + ", largest change "
+				    + largest);
+			}
+			if (largest < tolerance) {
+			    break;
+			}
+		    }
+		} finally {
+		    executor.shutdownNow();
+		}
+	    }
+	    for (int i = 0; i < beta.length; i++) {
+		beta[i] /= SCALES[i];
+	    }
+	    return new PRMModel(version, beta);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    /**
+      * Parses the labelled data into the record file.
+      */
+    private long spill(BufferedReader reader, File file) throws IOException
+    {
+	try (OutputStream out
+		= new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+	    return new PRMBatch(threads).process(reader,
+		    (lineNumber, line) -> {
+			PRMCalculator parsed = PRMBatch.parseLine(line);
+			if (parsed.getHospitalised() == null) {
+			    throw new IllegalArgumentException(
+				    "Missing Hospitalised");
+			}
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			record.put((byte) (parsed.getHospitalised() ? 1 : 0));
+			PRMDataCodec.encode(parsed.getData(), record);
+			return record.array();
+		    },
+		    record -> {
+			try {
+			    out.write(record);
+			} catch (IOException e) {
+			    throw new UncheckedIOException(e);
+			}
+		    });
+	} catch (UncheckedIOException e) {
+	    throw e.getCause();
+	}
+    }
+
+    /**
+      * Accumulates the gradient and Hessian of all records at the current
+      * coefficients, one contiguous range of records per thread.
+      */
+    private Accumulator accumulate(ExecutorService executor,
+	    FileChannel channel, long records, double[] beta)
+	throws IOException
+    {
+	List<Future<Accumulator>> futures = new ArrayList<>();
+	long perThread = (records + threads - 1) / threads;
+	for (long first = 0; first < records; first += perThread) {
+	    long from = first;
+	    long to = Math.min(records, first + perThread);
+	    Callable<Accumulator> range = () -> {
+		Accumulator accumulator = new Accumulator();
+		accumulator.add(channel, from, to, beta);
+		return accumulator;
+	    };
+	    futures.add(executor.submit(range));
+	}
+	Accumulator total = new Accumulator();
+	try {
+	    for (Future<Accumulator> future : futures) {
+		total.merge(future.get());
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted", e);
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException) cause;
+	    }
+	    throw new IOException(cause.getMessage(), cause);
+	}
+	return total;
+    }
+
+    /**
+      * The sums of one iteration over part of the records.
+      */
+    private static class Accumulator
+    {
+	/** The number of columns */
+	private final int size = PRMDesign.size();
+	/** The gradient of the log likelihood */
+	private final double[] gradient = new double[size];
+	/** The negated Hessian, upper triangle, row major */
+	private final double[] hessian = new double[size * size];
+	/** The deviance */
+	private double deviance = 0;
+
+	/**
+	  * Adds the records in [from, to).
+	  */
+	private void add(FileChannel channel, long from, long to,
+		double[] beta) throws IOException
+	{
+	    ByteBuffer buffer
+		= ByteBuffer.allocate(RECORD_SIZE * RECORDS_PER_READ);
+	    HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+	    int[] columns = new int[PRMDesign.MAX_NONZERO];
+	    double[] values = new double[PRMDesign.MAX_NONZERO];
+	    for (long first = from; first < to; first += RECORDS_PER_READ) {
+		int count = (int) Math.min(RECORDS_PER_READ, to - first);
+		((Buffer) buffer).clear().limit(count * RECORD_SIZE);
+		long position = first * RECORD_SIZE;
+		while (buffer.hasRemaining()) {
+		    int read = channel.read(buffer, position);
+		    if (read < 0) {
+			throw new IOException("Record file truncated");
+		    }
+		    position += read;
+		}
+		((Buffer) buffer).flip();
+		for (int r = 0; r < count; r++) {
+		    double y = buffer.get();
+		    PRMDataCodec.decode(buffer, data);
+		    int n = PRMDesign.extract(data, columns, values);
+		    add(y, columns, values, n, beta);
+		}
+	    }
+	}
+
+	/**
+	  * Adds one row.
+	  */
+	private void add(double y, int[] columns, double[] values, int n,
+		double[] beta)
+	{
+	    double eta = 0;
+	    for (int k = 0; k < n; k++) {
+		values[k] /= SCALES[columns[k]];
+		eta += beta[columns[k]] * values[k];
+	    }
+	    double p = 1 / (1 + Math.exp(-eta));
+	    double w = p * (1 - p);
+	    double residual = y - p;
+	    deviance -= 2 * Math.log(y > 0 ? p : 1 - p);
+	    for (int k = 0; k < n; k++) {
+		int row = columns[k] * size;
+		double wx = w * values[k];
+		gradient[columns[k]] += residual * values[k];
+		for (int l = k; l < n; l++) {
+		    hessian[row + columns[l]] += wx * values[l];
+		}
+	    }
+	}
+
+	/**
+	  * Adds the sums of another accumulator.
+	  */
+	private void merge(Accumulator other)
+	{
+	    for (int i = 0; i < size; i++) {
+		gradient[i] += other.gradient[i];
+	    }
+	    for (int i = 0; i < hessian.length; i++) {
+		hessian[i] += other.hessian[i];
+	    }
+	    deviance += other.deviance;
+	}
+
+	/**
+	  * Solves (H + ridge I) step = gradient by Cholesky decomposition,
+	  * in place of the Hessian.
+	  */
+	private double[] solve(double ridge)
+	{
+	    double[] a = hessian;
+	    for (int i = 0; i < size; i++) {
+		a[i * size + i] += ridge;
+		for (int j = 0; j < i; j++) {
+		    a[i * size + j] = a[j * size + i];
+		}
+	    }
+	    for (int j = 0; j < size; j++) {
+		double d = a[j * size + j];
+		for (int k = 0; k < j; k++) {
+		    d -= a[j * size + k] * a[j * size + k];
+		}
+		if (!(d > 0)) {
+		    throw new IllegalStateException("Hessian not positive "
+			    + "definite at " + PRMDesign.getColumns().get(j));
+		}
+		d = Math.sqrt(d);
+		a[j * size + j] = d;
+		for (int i = j + 1; i < size; i++) {
+		    double s = a[i * size + j];
+		    for (int k = 0; k < j; k++) {
+			s -= a[i * size + k] * a[j * size + k];
+		    }
+		    a[i * size + j] = s / d;
+		}
+	    }
+	    double[] x = gradient.clone();
+	    for (int i = 0; i < size; i++) {
+		for (int k = 0; k < i; k++) {
+		    x[i] -= a[i * size + k] * x[k];
+		}
+		x[i] /= a[i * size + i];
+	    }
+	    for (int i = size - 1; i >= 0; i--) {
+		for (int k = i + 1; k < size; k++) {
+		    x[i] -= a[k * size + i] * x[k];
+		}
+		x[i] /= a[i * size + i];
+	    }
+	    return x;
+	}
+    }
+}
@@ -0,0 +1,393 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.json.simple.JSONObject;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+
+/**
+  * The current data of many patients, built up from a stream of clinical
+  * events, with each patient rescored as their data changes.
+  * <p>
+  * An event is a JSON object with a "PatientId", an "Event" type, an
+  * optional "Timestamp" in milliseconds, and the fields of a data object,
+  * as described in <code>PRM</code>, that the event changes:
+  * <ul>
+  * <li>"Profile": replaces all the data of the patient.
+  * <li>"Demographics": sets any of Age, IsFemale, Ethnicity, BMICategory,
+  *     SmokingStatus, AlcoholStatus, IRSADDecile and Postcode.
+  * <li>"Diagnosis": adds Diseases and DiagnosisCodes.
+  * <li>"MedicationStarted" and "MedicationStopped": add or remove
+  *     MedicationGroups and MedicationCodes.
+  * <li>"Pathology": sets Pathology categories and binned PathologyValues.
+  * </ul>
+  * Each patient's data is kept encoded with {@link PRMDataCodec}, with
+  * the last probability, in a single small byte array. The class is not
+  * thread safe; events of a patient must be applied in order.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMPatientStates
+{
+    /** Size of a state: the last probability and the profile */
+    private static final int STATE_SIZE = 8 + PRMDataCodec.SIZE;
+
+    /**
+      * A change of a patient's probability.
+      */
+    public static class Update
+    {
+	/** The patient identifier */
+	private final String patientId;
+	/** The probability before the event, NaN for a new patient */
+	private final double previousProbability;
+	/** The probability after the event */
+	private final double probability;
+	/** The time of the event, in milliseconds */
+	private final long timestamp;
+	/** The version of the model that calculated the probability */
+	private final String modelVersion;
+
+	/**
+	  * Constructor.
+	  */
+	private Update(String patientId, double previousProbability,
+		double probability, long timestamp, String modelVersion)
+	{
+	    this.patientId = patientId;
+	    this.previousProbability = previousProbability;
+	    this.probability = probability;
+	    this.timestamp = timestamp;
+	    this.modelVersion = modelVersion;
+	}
+
+	/**
+	  * Returns the patient identifier.
+	  *
+	  * @return the identifier
+	  */
+	public String getPatientId()
+	{
+	    return patientId;
+	}
+
+	/**
+	  * Returns the probability before the event.
+	  *
+	  * @return the previous probability, NaN for a new patient
+	  */
+	public double getPreviousProbability()
+	{
+	    return previousProbability;
+	}
+
+	/**
+	  * Returns the probability after the event.
+	  *
+	  * @return the probability
+	  */
+	public double getProbability()
+	{
+	    return probability;
+	}
+
+	/**
+	  * Returns the time of the event.
+	  *
+	  * @return the time, in milliseconds since the epoch
+	  */
+	public long getTimestamp()
+	{
+	    return timestamp;
+	}
+
+	/**
+	  * Returns the version of the model that calculated the probability.
+	  *
+	  * @return the model version
+	  */
+	public String getModelVersion()
+	{
+	    return modelVersion;
+	}
+
+	/**
+	  * Returns the update as a JSON object, with the PatientId,
+	  * Probability, ModelVersion and Timestamp.
+	  *
+	  * @return the JSON object
+	  */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON()
+	{
+	    JSONObject json = new JSONObject();
+	    json.put("PatientId", patientId);
+	    json.put("Probability", probability);
+	    json.put("ModelVersion", modelVersion);
+	    json.put("Timestamp", timestamp);
+	    return json;
+	}
+    }
+
+    /** The calculator */
+    private final HCHRiskStratificationPRMScoreCalculator calculator;
+    /** The state of each patient */
+    private final Map<String, byte[]> states = new HashMap<>();
+    /** Data decoded for each event */
+    private final HCHRiskStratificationPRMData data
+	= new HCHRiskStratificationPRMData();
+
+    /**
+      * Constructor.
+      *
+      * @param calculator the calculator
+      */
+    public PRMPatientStates(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator calculator)
+    {
+	this.calculator = calculator;
+    }
+
+    /**
+      * Returns the number of patients.
+      *
+      * @return the number of patients
+      */
+    public int size()
+    {
+	return states.size();
+    }
+
+    /**
+      * Returns the current data of a patient.
+      *
+      * @param patientId the patient identifier
+      *
+      * @return a copy of the data, or null for an unknown patient
+      */
+    public HCHRiskStratificationPRMData getData(@Nonnull String patientId)
+    {
+	byte[] state = states.get(patientId);
+	if (state == null) {
+	    return null;
+	}
+	ByteBuffer buffer = ByteBuffer.wrap(state, 8, PRMDataCodec.SIZE);
+	return PRMDataCodec.decode(buffer, new HCHRiskStratificationPRMData());
+    }
+
+    /**
+      * Applies an event and rescores the patient.
+      *
+      * @param event the event
+      *
+      * @return the update if the probability changed, or null
+      *
+      * @throws IllegalArgumentException if the event is invalid
+      */
+    public Update apply(@Nonnull JSONObject event)
+    {
+	Object id = event.get("PatientId");
+	if (id == null) {
+	    throw new IllegalArgumentException("Missing PatientId");
+	}
+	String patientId = String.valueOf(id);
+	Object timestamp = event.get("Timestamp");
+	long time = timestamp instanceof Number
+	    ? ((Number) timestamp).longValue() : System.currentTimeMillis();
+
+	byte[] state = states.get(patientId);
+	double previous = Double.NaN;
+	HCHRiskStratificationPRMData current = data;
+	if (state == null) {
+	    state = new byte[STATE_SIZE];
+	    PRMDataCodec.encode(new HCHRiskStratificationPRMData(),
+		    ByteBuffer.wrap(state, 8, PRMDataCodec.SIZE));
+	} else {
+	    previous = ByteBuffer.wrap(state).getDouble(0);
+	}
+	PRMDataCodec.decode(ByteBuffer.wrap(state, 8, PRMDataCodec.SIZE),
+		current);
+	current = applyEvent(event, current);
+	ByteBuffer buffer = ByteBuffer.wrap(state);
+	((Buffer) buffer).position(8);
+	PRMDataCodec.encode(current, buffer);
+
+	double probability = calculator.calculatePRMScore(current);
+	buffer.putDouble(0, probability);
+	if (Double.isNaN(previous)) { // Only once the first event is valid
+	    states.put(patientId, state);
+	}
+	return probability == previous ? null
+	    : new Update(patientId, previous, probability, time,
+		    calculator.getModel().getVersion());
+    }
+
+    /**
+      * Applies the changes of an event to data.
+      */
+    private HCHRiskStratificationPRMData applyEvent(JSONObject event,
+	    HCHRiskStratificationPRMData current)
+    {
+	Object type = event.get("Event");
+	switch (String.valueOf(type)) {
+	    case "Profile":
+		JSONObject profile = new JSONObject(event);
+		profile.remove("Event");
+		profile.remove("Timestamp");
+		PRMCalculator parsed = new PRMCalculator(profile);
+		parsed.parse();
+		return parsed.getData();
+	    case "Demographics":
+		applyDemographics(event, current);
+		break;
+	    case "Diagnosis":
+		if (event.get("Diseases") != null) {
+		    Set<Disease> diseases = EnumSet.noneOf(Disease.class);
+		    diseases.addAll(current.getDiseases());
+		    for (Object name : (List<?>) event.get("Diseases")) {
+			diseases.add(Disease.valueOf(String.valueOf(name)));
+		    }
+		    current.setDiseases(diseases);
+		}
+		if (event.get("DiagnosisCodes") != null) {
+		    PRMCodeMapping.getInstance().applyDiagnoses(current,
+			    (List<?>) event.get("DiagnosisCodes"));
+		}
+		break;
+	    case "MedicationStarted":
+	    case "MedicationStopped":
+		applyMedications(event, current,
+			type.equals("MedicationStarted"));
+		break;
+	    case "Pathology":
+		Object categories = event.get("Pathology");
+		if (categories != null) {
+		    for (Map.Entry<?, ?> entry
+			    : ((Map<?, ?>) categories).entrySet()) {
+			field(entry.getKey()).set(current,
+				field(entry.getKey()).parseValue(
+				    String.valueOf(entry.getValue())));
+		    }
+		}
+		if (event.get("PathologyValues") != null) {
+		    PRMLabThresholds.getInstance().setPathology(current,
+			    (Map<?, ?>) event.get("PathologyValues"));
+		}
+		break;
+	    default:
+		throw new IllegalArgumentException("Unknown Event: " + type);
+	}
+	return current;
+    }
+
+    /**
+      * Applies the demographic fields of an event.
+      */
+    private static void applyDemographics(JSONObject event,
+	    HCHRiskStratificationPRMData current)
+    {
+	for (Object key : event.keySet()) {
+	    Object value = event.get(key);
+	    switch ((String) key) {
+		case "PatientId":
+		case "Event":
+		case "Timestamp":
+		    break;
+		case "Age":
+		    current.setAge(value instanceof Number
+			    ? ((Number) value).doubleValue()
+			    : Double.parseDouble(String.valueOf(value)));
+		    break;
+		case "IsFemale":
+		    current.setIsFemale(value instanceof Boolean
+			    ? (Boolean) value
+			    : Boolean.parseBoolean(String.valueOf(value)));
+		    break;
+		case "Postcode":
+		    current.setIRSADDecile(
+			    PRMPostcodeDeciles.getInstance().lookup(value));
+		    break;
+		default:
+		    PRMField field = field(key);
+		    if (field.isPathology()) {
+			throw new IllegalArgumentException(
+				"Not a demographic field: " + key);
+		    }
+		    field.set(current, field.parseValue(String.valueOf(value)));
+		    break;
+	    }
+	}
+    }
+
+    /**
+      * Adds or removes the medication groups of an event.
+      */
+    private static void applyMedications(JSONObject event,
+	    HCHRiskStratificationPRMData current, boolean started)
+    {
+	Set<MedicationGroup> groups = EnumSet.noneOf(MedicationGroup.class);
+	groups.addAll(current.getMedicationGroups());
+	if (event.get("MedicationGroups") != null) {
+	    for (Object name : (List<?>) event.get("MedicationGroups")) {
+		MedicationGroup group
+		    = MedicationGroup.valueOf(String.valueOf(name));
+		if (started) {
+		    groups.add(group);
+		} else {
+		    groups.remove(group);
+		}
+	    }
+	}
+	if (event.get("MedicationCodes") != null) {
+	    PRMCodeMapping mapping = PRMCodeMapping.getInstance();
+	    for (Object code : (List<?>) event.get("MedicationCodes")) {
+		MedicationGroup group
+		    = mapping.getMedicationGroup(String.valueOf(code));
+		if (group != null && started) {
+		    groups.add(group);
+		} else if (group != null) {
+		    groups.remove(group);
+		}
+	    }
+	}
+	current.setMedicationGroups(groups);
+    }
+
+    /**
+      * Returns the field with a JSON name.
+      */
+    private static PRMField field(Object jsonName)
+    {
+	PRMField field = PRMField.forJsonName(String.valueOf(jsonName));
+	if (field == null) {
+	    throw new IllegalArgumentException("Unknown field: " + jsonName);
+	}
+	return field;
+    }
+}
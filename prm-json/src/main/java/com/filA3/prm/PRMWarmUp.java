@@ -0,0 +1,368 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.PrintStream;
+
+import javax.annotation.Nonnull;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+
+/**
+  * Warms up the scoring path before a service reports that it is ready.
+  * <p>
+  * Freshly started, the JSON binding, the setters by JSON name of
+  * {@link PRMData} and the BigDecimal arithmetic of the calculator run
+  * interpreted, and the first few thousand requests are several times
+  * slower than later ones. The warm-up drives a number of synthetic
+  * profiles through the whole path, from JSON text to probability, so
+  * that it is compiled before real requests arrive. The profiles cycle
+  * through every value of every enum field, the pathology categories,
+  * diseases and medication groups, so that no branch is left cold.
+  * <p>
+  * By default each profile is parsed with json-simple and scored with a
+  * given calculator; a service passes its own {@link Target} to include
+  * its own binding and handling. The warm-up is timed, comparing the mean
+  * time of the first and last tenth of the profiles.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMWarmUp
+{
+    /** The default number of profiles */
+    public static final int DEFAULT_PROFILES = 10000;
+
+    /**
+      * The path a profile is driven through.
+      */
+    public interface Target
+    {
+	/**
+	  * Scores a profile.
+	  *
+	  * @param json the profile, as JSON text
+	  *
+	  * @throws Exception if scoring fails
+	  */
+	void score(String json) throws Exception;
+    }
+
+    /**
+      * The timing of a completed warm-up.
+      */
+    public static class Timing
+    {
+	/** The number of profiles */
+	private final int profiles;
+	/** The number of profiles that failed */
+	private final int failures;
+	/** The total time, in nanoseconds */
+	private final long nanos;
+	/** The mean time of the first tenth, in nanoseconds */
+	private final long firstNanos;
+	/** The mean time of the last tenth, in nanoseconds */
+	private final long lastNanos;
+
+	/**
+	  * Constructor.
+	  */
+	private Timing(int profiles, int failures, long nanos,
+		long firstNanos, long lastNanos)
+	{
+	    this.profiles = profiles;
+	    this.failures = failures;
+	    this.nanos = nanos;
+	    this.firstNanos = firstNanos;
+	    this.lastNanos = lastNanos;
+	}
+
+	/**
+	  * Returns the number of profiles scored.
+	  *
+	  * @return the number of profiles
+	  */
+	public int getProfiles()
+	{
+	    return profiles;
+	}
+
+	/**
+	  * Returns the number of profiles that failed.
+	  *
+	  * @return the number of failures
+	  */
+	public int getFailures()
+	{
+	    return failures;
+	}
+
+	/**
+	  * Returns the duration of the warm-up.
+	  *
+	  * @return the duration, in milliseconds
+	  */
+	public double getMillis()
+	{
+	    return nanos / 1e6;
+	}
+
+	/**
+	  * Returns the mean time of a profile in the first tenth.
+	  *
+	  * @return the mean, in microseconds
+	  */
+	public double getFirstMicros()
+	{
+	    return firstNanos / 1e3;
+	}
+
+	/**
+	  * Returns the mean time of a profile in the last tenth.
+	  *
+	  * @return the mean, in microseconds
+	  */
+	public double getLastMicros()
+	{
+	    return lastNanos / 1e3;
+	}
+
+	/**
+	  * Returns the timing as JSON.
+	  *
+	  * @return an object with "Profiles", "Failures", "Millis",
+	  *         "FirstMicros" and "LastMicros"
+	  */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJSON()
+	{
+	    JSONObject json = new JSONObject();
+	    json.put("Profiles", profiles);
+	    json.put("Failures", failures);
+	    json.put("Millis", getMillis());
+	    json.put("FirstMicros", getFirstMicros());
+	    json.put("LastMicros", getLastMicros());
+	    return json;
+	}
+
+	@Override
+	public String toString()
+	{
+	    return String.format("Warmed up with %d profiles (%d failed) in"
+		    + " %.0f ms, %.1f us per profile at first, %.1f us at"
+		    + " last", profiles, failures, getMillis(),
+		    getFirstMicros(), getLastMicros());
+	}
+    }
+
+    /** The path profiles are driven through */
+    private final Target target;
+    /** The number of profiles */
+    private int profiles = DEFAULT_PROFILES;
+    /** The number of profiles scored so far */
+    private volatile int completed;
+    /** The timing, once complete */
+    private volatile Timing timing;
+
+    /**
+      * Constructor, for warming up parsing with json-simple and scoring
+      * with a calculator.
+      *
+      * @param scorer the calculator
+      */
+    public PRMWarmUp(@Nonnull HCHRiskStratificationPRMScoreCalculator scorer)
+    {
+	this(json -> {
+	    PRMCalculator calculator = new PRMCalculator(
+		    (JSONObject) new JSONParser().parse(json));
+	    calculator.parse();
+	    scorer.calculatePRMScore(calculator.getData());
+	});
+    }
+
+    /**
+      * Constructor.
+      *
+      * @param target the path profiles are driven through
+      */
+    public PRMWarmUp(@Nonnull Target target)
+    {
+	this.target = target;
+    }
+
+    /**
+      * Sets the number of profiles.
+      *
+      * @param profiles the number of profiles, zero for none
+      *
+      * @return this warm-up
+      */
+    public PRMWarmUp setProfiles(int profiles)
+    {
+	if (profiles < 0) {
+	    throw new IllegalArgumentException("Invalid number of profiles: "
+		    + profiles);
+	}
+	this.profiles = profiles;
+	return this;
+    }
+
+    /**
+      * Returns a synthetic profile. Consecutive profiles take consecutive
+      * values of each enum field, offset per field, with up to seven
+      * diseases and three medication groups.
+      *
+      * @param index the index of the profile
+      *
+      * @return the profile
+      */
+    @SuppressWarnings("unchecked")
+    public static JSONObject profile(int index)
+    {
+	JSONObject json = new JSONObject();
+	json.put("Age", 18 + (index * 7) % 83);
+	json.put("IsFemale", index % 2 == 0);
+	JSONObject pathology = new JSONObject();
+	for (PRMField field : PRMField.values()) {
+	    Enum<?>[] values = field.getValues();
+	    String value = values[(index + field.ordinal()) % values.length]
+		.name();
+	    if (field.isPathology()) {
+		pathology.put(field.getJsonName(), value);
+	    } else {
+		json.put(field.getJsonName(), value);
+	    }
+	}
+	json.put("Pathology", pathology);
+	Disease[] diseases = Disease.values();
+	JSONArray diseaseNames = new JSONArray();
+	for (int i = 0; i < index % 8; i++) {
+	    diseaseNames.add(diseases[(index * 3 + i) % diseases.length]
+		    .name());
+	}
+	json.put("Diseases", diseaseNames);
+	MedicationGroup[] groups = MedicationGroup.values();
+	JSONArray groupNames = new JSONArray();
+	for (int i = 0; i < index % 4; i++) {
+	    groupNames.add(groups[(index + i) % groups.length].name());
+	}
+	json.put("MedicationGroups", groupNames);
+	return json;
+    }
+
+    /**
+      * Runs the warm-up.
+      *
+      * @return the timing
+      */
+    public Timing run()
+    {
+	String[] texts = new String[Math.min(profiles, 1024)];
+	for (int i = 0; i < texts.length; i++) {
+	    texts[i] = profile(i).toJSONString();
+	}
+	int tenth = Math.max(1, profiles / 10);
+	long firstNanos = 0;
+	long lastNanos = 0;
+	int failures = 0;
+	long start = System.nanoTime();
+	for (int i = 0; i < profiles; i++) {
+	    long begin = System.nanoTime();
+	    try {
+		target.score(texts[i % texts.length]);
+	    } catch (Exception e) {
+		failures++;
+	    }
+	    long nanos = System.nanoTime() - begin;
+	    if (i < tenth) {
+		firstNanos += nanos;
+	    }
+	    if (i >= profiles - tenth) {
+		lastNanos += nanos;
+	    }
+	    completed = i + 1;
+	}
+	long nanos = System.nanoTime() - start;
+	int count = Math.min(tenth, profiles);
+	Timing result = count == 0 ? new Timing(0, 0, nanos, 0, 0)
+	    : new Timing(profiles, failures, nanos, firstNanos / count,
+		    lastNanos / count);
+	timing = result;
+	return result;
+    }
+
+    /**
+      * Runs the warm-up in a background thread, logging the timing when
+      * it completes.
+      *
+      * @param log receives the timing, or null for none
+      *
+      * @return the thread
+      */
+    public Thread start(PrintStream log)
+    {
+	Thread thread = new Thread(() -> {
+		Timing result = run();
+		if (log != null) {
+		    log.println(result);
+		}
+	    }, "prm-warm-up");
+	thread.setDaemon(true);
+	thread.start();
+	return thread;
+    }
+
+    /**
+      * Returns if the warm-up has completed.
+      *
+      * @return true once all the profiles have been scored
+      */
+    public boolean isReady()
+    {
+	return timing != null;
+    }
+
+    /**
+      * Returns the timing of the warm-up.
+      *
+      * @return the timing, or null if it has not completed
+      */
+    public Timing getTiming()
+    {
+	return timing;
+    }
+
+    /**
+      * Returns the progress of the warm-up as JSON.
+      *
+      * @return an object with "Ready", "Completed" and, once ready, the
+      *         timing
+      */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON()
+    {
+	Timing result = timing;
+	JSONObject json = result == null ? new JSONObject() : result.toJSON();
+	json.put("Ready", result != null);
+	json.put("Completed", completed);
+	return json;
+    }
+}
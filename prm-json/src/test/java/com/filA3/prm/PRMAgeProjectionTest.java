@@ -0,0 +1,70 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PRMAgeProjectionTest {
+
+	private static final double[] HORIZONS = {0, 1, 2.5, 5};
+
+	private static void assertMatchesDirectScoring(HCHRiskStratificationPRMScoreCalculator calculator) {
+		PRMAgeProjection projection = new PRMAgeProjection(calculator, HORIZONS);
+		Random random = new Random(1);
+		for (int i = 0; i < 500; i++) {
+			HCHRiskStratificationPRMData data = PRMTestPatients.random(random);
+			double age = data.getAge();
+			PRMAgeProjection.Curve curve = projection.project("p" + i, data);
+			assertEquals(age, curve.getAge(), 0);
+			double[] probabilities = curve.getProbabilities();
+			for (int h = 0; h < HORIZONS.length; h++) {
+				data.setAge(age + HORIZONS[h]);
+				// The calculator rounds to 1e-8, the projection does not
+				assertEquals(calculator.calculatePRMScore(data), probabilities[h], 0.6e-8);
+			}
+		}
+	}
+
+	@Test
+	void matchesNationalScoringAtLaterAges() {
+		assertMatchesDirectScoring(HCHRiskStratificationPRMScoreCalculator.getInstance());
+	}
+
+	@Test
+	void matchesModelScoringAtLaterAges() {
+		double[] coefficients = HCHRiskStratificationPRMScoreCalculator.getInstance().getModel().getCoefficients();
+		coefficients[PRMDesign.AGE] += 0.01;
+		coefficients[PRMDesign.AGE_SQ] -= 1e-4;
+		coefficients[PRMDesign.AGE_CU] += 1e-6;
+		assertMatchesDirectScoring(new PRMModelCalculator(new PRMModel("aged", coefficients)));
+	}
+
+	@Test
+	void summarizesCohortPerHorizon() throws Exception {
+		HCHRiskStratificationPRMScoreCalculator calculator = HCHRiskStratificationPRMScoreCalculator.getInstance();
+		PRMAgeProjection projection = new PRMAgeProjection(calculator, 1, 10);
+		String cohort = "{\"PatientId\":\"x\",\"Age\":40,\"IsFemale\":true}\n"
+				+ "{\"Age\":80,\"IsFemale\":false,\"SmokingStatus\":\"SMOKER\"}\n";
+		PRMAgeProjection.Summary summary = projection.newSummary();
+		assertEquals(2, projection.projectCohort(new BufferedReader(new StringReader(cohort)), null, summary, 2));
+		double expected = 0;
+		for (String line : cohort.split("\n")) {
+			HCHRiskStratificationPRMData data = PRMBatch.parseLine(line).getData();
+			data.setAge(data.getAge() + 10);
+			expected += calculator.calculatePRMScore(data);
+		}
+		assertEquals(2, summary.getHistogram(1).getCount());
+		assertEquals(expected, summary.getHistogram(1).getSum(), 2e-8);
+	}
+
+	@Test
+	void requiresHorizon() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new PRMAgeProjection(HCHRiskStratificationPRMScoreCalculator.getInstance()));
+	}
+}
@@ -0,0 +1,141 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class PRMAlertsTest {
+
+	/** Collects the delivered batches, holding the first until released */
+	private static final class Collector implements PRMAlerts.Sink {
+		final List<List<PRMAlerts.Alert>> batches = new ArrayList<>();
+		final CountDownLatch first = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void deliver(List<PRMAlerts.Alert> alerts) {
+			synchronized (this) {
+				batches.add(new ArrayList<>(alerts));
+			}
+			first.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Test
+	void tiersCountCutOffsAtOrBelow() {
+		Collector sink = new Collector();
+		sink.release.countDown();
+		try (PRMAlerts alerts = new PRMAlerts(sink, 0.5, 0.2)) {
+			assertEquals(0, alerts.getTier(0));
+			assertEquals(0, alerts.getTier(0.19));
+			assertEquals(1, alerts.getTier(0.2));
+			assertEquals(1, alerts.getTier(0.49));
+			assertEquals(2, alerts.getTier(0.5));
+			assertEquals(2, alerts.getTier(1));
+		}
+	}
+
+	@Test
+	void raisesOnCrossingAndMergesWithinBatch() throws Exception {
+		Collector sink = new Collector();
+		PRMAlerts alerts = new PRMAlerts(sink, 0.2, 0.5);
+		// A new patient below the first cut-off is in tier 0
+		assertFalse(alerts.scored("a", 0.1, 1));
+		assertTrue(alerts.scored("a", 0.3, 2));
+		assertTrue(sink.first.await(10, TimeUnit.SECONDS));
+		// Queued while the first batch is being delivered, so delivered together
+		assertFalse(alerts.scored("a", 0.4, 3));
+		assertTrue(alerts.scored("b", 0.6, 4));
+		assertTrue(alerts.scored("b", 0.1, 5));
+		assertTrue(alerts.scored("c", 0.25, 6));
+		assertTrue(alerts.scored("c", 0.7, 7));
+		assertTrue(alerts.scored("a", 0.9, 8));
+		sink.release.countDown();
+		alerts.close();
+
+		assertEquals(6, alerts.getRaised());
+		assertEquals(0, alerts.getDropped());
+		assertEquals(2, sink.batches.size());
+		PRMAlerts.Alert first = sink.batches.get(0).get(0);
+		assertEquals("a", first.getPatientId());
+		assertEquals(0, first.getPreviousTier());
+		assertEquals(1, first.getTier());
+		// b returned to tier 0 and is dropped; c is merged from 0 to 2
+		List<PRMAlerts.Alert> second = sink.batches.get(1);
+		assertEquals(2, second.size());
+		assertEquals("c", second.get(0).getPatientId());
+		assertEquals(0, second.get(0).getPreviousTier());
+		assertEquals(2, second.get(0).getTier());
+		assertEquals(0.7, second.get(0).getProbability(), 0);
+		assertEquals(7, second.get(0).getTimestamp());
+		assertEquals("a", second.get(1).getPatientId());
+		assertEquals(1, second.get(1).getPreviousTier());
+		assertEquals(2, second.get(1).getTier());
+		assertEquals(3, alerts.getDelivered());
+	}
+
+	@Test
+	void evictsLeastRecentlyScoredPatients() {
+		Collector sink = new Collector();
+		sink.release.countDown();
+		try (PRMAlerts alerts = new PRMAlerts(sink, 0.5).setMaxPatients(4)) {
+			assertTrue(alerts.scored("a", 0.9, 1));
+			assertTrue(alerts.scored("b", 0.9, 2));
+			assertEquals(0, alerts.getEvicted());
+			// a and b are in the previous generation; a is kept by scoring it
+			assertFalse(alerts.scored("a", 0.9, 3));
+			assertTrue(alerts.scored("c", 0.9, 4));
+			// b is evicted, so its next score is compared with tier 0
+			assertEquals(2, alerts.getEvicted());
+			assertFalse(alerts.scored("a", 0.9, 5));
+			assertTrue(alerts.scored("b", 0.9, 6));
+		}
+	}
+
+	@Test
+	void secondRunAlertsOnlyOnChangesWithScoreStore() {
+		PRMScoreStore scores = new PRMScoreStore();
+		double[] cohort = {0.1, 0.2, 0.6, 0.9};
+		for (int run = 0; run < 2; run++) {
+			Collector sink = new Collector();
+			sink.release.countDown();
+			try (PRMAlerts alerts = new PRMAlerts(sink, 0.2, 0.5).setScores(scores)) {
+				for (int i = 0; i < cohort.length; i++) {
+					alerts.scored(Integer.toString(i), cohort[i], run);
+					scores.put(i, cohort[i], "1", run * 1000L + 1000);
+				}
+				assertEquals(run == 0 ? 3 : 0, alerts.getRaised());
+			}
+		}
+		// Without the store, the second run alerts as the first did
+		Collector sink = new Collector();
+		sink.release.countDown();
+		try (PRMAlerts alerts = new PRMAlerts(sink, 0.2, 0.5)) {
+			for (int i = 0; i < cohort.length; i++) {
+				alerts.scored(Integer.toString(i), cohort[i], 2);
+			}
+			assertEquals(3, alerts.getRaised());
+		}
+		// A changed tier is alerted from the stored one
+		Collector changed = new Collector();
+		changed.release.countDown();
+		try (PRMAlerts alerts = new PRMAlerts(changed, 0.2, 0.5).setScores(scores)) {
+			assertTrue(alerts.scored("3", 0.3, 3));
+			assertFalse(alerts.scored("x", 0.1, 3));
+		}
+		assertEquals(2, changed.batches.get(0).get(0).getPreviousTier());
+		assertEquals(1, changed.batches.get(0).get(0).getTier());
+	}
+}
@@ -0,0 +1,151 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class PRMDataTest {
+
+	/** Sets a field through its setter, as the reflective binding did */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static void setDirectly(HCHRiskStratificationPRMData data, String name, String value) throws Exception {
+		Class<? extends Enum> type = (Class<? extends Enum>) HCHRiskStratificationPRMData.class
+				.getMethod("get" + name).getReturnType();
+		HCHRiskStratificationPRMData.class.getMethod("set" + name, type).invoke(data, Enum.valueOf(type, value));
+	}
+
+	private static void assertSameData(HCHRiskStratificationPRMData expected, HCHRiskStratificationPRMData actual)
+			throws Exception {
+		assertEquals(expected.getAge(), actual.getAge());
+		assertEquals(expected.getIsFemale(), actual.getIsFemale());
+		for (Method getter : HCHRiskStratificationPRMData.class.getMethods()) {
+			if (getter.getName().startsWith("get") && getter.getParameterCount() == 0
+					&& (getter.getReturnType().isEnum() || getter.getReturnType() == Set.class)) {
+				assertEquals(getter.invoke(expected), getter.invoke(actual), getter.getName());
+			}
+		}
+	}
+
+	@Test
+	void everyEnumFieldHasAJsonName() {
+		int fields = 0;
+		for (Method getter : HCHRiskStratificationPRMData.class.getMethods()) {
+			if (getter.getName().startsWith("get") && getter.getReturnType().isEnum()) {
+				assertEquals(getter.getReturnType(),
+						PRMField.forJsonName(getter.getName().substring(3)).getValues()[0].getDeclaringClass());
+				fields++;
+			}
+		}
+		assertEquals(PRMField.values().length, fields);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void bindsEveryNameAndValueAsItsSetter() throws Exception {
+		for (PRMField field : PRMField.values()) {
+			for (Enum<?> value : field.getValues()) {
+				PRMData bound = new PRMData();
+				if (field.isPathology()) {
+					JSONObject pathology = new JSONObject();
+					pathology.put(field.getJsonName(), value.name());
+					bound.setPathology(pathology);
+				} else {
+					bound.setEnum(field.getJsonName(), value.name());
+				}
+				HCHRiskStratificationPRMData expected = new HCHRiskStratificationPRMData();
+				setDirectly(expected, field.getJsonName(), value.name());
+				assertSameData(expected, bound);
+			}
+		}
+		for (HCHRiskStratificationPRMData.MedicationGroup group : HCHRiskStratificationPRMData.MedicationGroup.values()) {
+			PRMData bound = new PRMData();
+			bound.setGroupEnum("MedicationGroups", new String[] {group.name()});
+			assertEquals(EnumSet.of(group), bound.getMedicationGroups());
+		}
+		for (HCHRiskStratificationPRMData.Disease disease : HCHRiskStratificationPRMData.Disease.values()) {
+			PRMData bound = new PRMData();
+			bound.setGroupEnum("Diseases", new String[] {disease.name()});
+			assertEquals(EnumSet.of(disease), bound.getDiseases());
+		}
+	}
+
+	@Test
+	void bindsWarmUpProfilesAsDirectlySet() throws Exception {
+		HCHRiskStratificationPRMScoreCalculator scorer = HCHRiskStratificationPRMScoreCalculator.getInstance();
+		for (int i = 0; i < 200; i++) {
+			JSONObject json = PRMWarmUp.profile(i);
+			PRMCalculator calculator = new PRMCalculator(json);
+			calculator.parse();
+
+			HCHRiskStratificationPRMData expected = new HCHRiskStratificationPRMData();
+			expected.setAge(((Number) json.get("Age")).doubleValue());
+			expected.setIsFemale((Boolean) json.get("IsFemale"));
+			JSONObject pathology = (JSONObject) json.get("Pathology");
+			for (Object name : pathology.keySet()) {
+				setDirectly(expected, (String) name, (String) pathology.get(name));
+			}
+			for (Object name : json.keySet()) {
+				if (!"Age".equals(name) && !"IsFemale".equals(name) && !(json.get(name) instanceof JSONObject)
+						&& !(json.get(name) instanceof JSONArray)) {
+					setDirectly(expected, (String) name, (String) json.get(name));
+				}
+			}
+			Set<HCHRiskStratificationPRMData.MedicationGroup> groups
+					= EnumSet.noneOf(HCHRiskStratificationPRMData.MedicationGroup.class);
+			for (Object group : (JSONArray) json.get("MedicationGroups")) {
+				groups.add(HCHRiskStratificationPRMData.MedicationGroup.valueOf((String) group));
+			}
+			expected.setMedicationGroups(groups);
+			Set<HCHRiskStratificationPRMData.Disease> diseases
+					= EnumSet.noneOf(HCHRiskStratificationPRMData.Disease.class);
+			for (Object disease : (JSONArray) json.get("Diseases")) {
+				diseases.add(HCHRiskStratificationPRMData.Disease.valueOf((String) disease));
+			}
+			expected.setDiseases(diseases);
+
+			assertSameData(expected, calculator.getData());
+			assertEquals(scorer.calculatePRMScore(expected), scorer.calculatePRMScore(calculator.getData()));
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void rejectsUnknownNamesAndValues() throws Exception {
+		PRMData data = new PRMData();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		PrintStream previous = System.err;
+		System.setErr(new PrintStream(err, true, "UTF-8"));
+		try {
+			data.setEnum("Colour", "RED");
+			data.setEnum("SmokingStatus", "SOMETIMES");
+			// Pathology categories are only set through Pathology
+			data.setEnum("HbA1cCategory", "LOW");
+			data.setGroupEnum("Allergies", new String[] {"PENICILLIN"});
+			data.setGroupEnum("Diseases", new String[] {"NOT_A_DISEASE"});
+			JSONObject pathology = new JSONObject();
+			pathology.put("SmokingStatus", "SMOKER");
+			data.setPathology(pathology);
+			pathology.clear();
+			pathology.put("HbA1cCategory", "SOMETIMES");
+			data.setPathology(pathology);
+		} finally {
+			System.setErr(previous);
+		}
+		String[] errors = new String(err.toByteArray(), StandardCharsets.UTF_8).split("\\R");
+		assertEquals(7, errors.length);
+		for (String error : errors) {
+			assertTrue(error.startsWith(IllegalArgumentException.class.getName() + ": "), error);
+		}
+		assertSameData(new HCHRiskStratificationPRMData(), data);
+	}
+}
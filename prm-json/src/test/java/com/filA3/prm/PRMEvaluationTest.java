@@ -0,0 +1,100 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class PRMEvaluationTest {
+
+	private static final double[] HOSPITALISED = {0.9, 0.6, 0.35};
+	private static final double[] NOT_HOSPITALISED = {0.1, 0.35, 0.7};
+
+	@Test
+	void measuresTinyLabelledSet() {
+		PRMEvaluation evaluation = new PRMEvaluation(0.8, 0.5);
+		for (double p : HOSPITALISED) {
+			evaluation.add(p, true);
+		}
+		for (double p : NOT_HOSPITALISED) {
+			evaluation.add(p, false);
+		}
+		assertEquals(6, evaluation.getCount());
+		assertEquals(3, evaluation.getPositives());
+		assertEquals(0.5, evaluation.getObservedRate(), 1e-12);
+		assertEquals(3.0 / 6, evaluation.getMeanProbability(), 1e-12);
+		assertEquals(0, evaluation.getCalibrationInTheLarge(), 1e-12);
+		// 0.9 is above all three, 0.6 above two, 0.35 above one and tied with one
+		assertEquals(6.5 / 9, evaluation.getAUC(), 1e-12);
+		assertEquals((0.01 + 0.16 + 0.4225 + 0.01 + 0.1225 + 0.49) / 6, evaluation.getBrierScore(), 1e-12);
+
+		assertEquals(0.5, evaluation.getThresholds()[0], 0);
+		assertEquals(3, evaluation.getFlagged(0));
+		assertEquals(2.0 / 3, evaluation.getPrecision(0), 1e-12);
+		assertEquals(2.0 / 3, evaluation.getRecall(0), 1e-12);
+		assertEquals(1, evaluation.getFlagged(1));
+		assertEquals(1, evaluation.getPrecision(1), 1e-12);
+		assertEquals(1.0 / 3, evaluation.getRecall(1), 1e-12);
+	}
+
+	@Test
+	void mergedPartsMatchWhole() {
+		PRMEvaluation whole = new PRMEvaluation(0.5);
+		PRMEvaluation first = new PRMEvaluation(0.5);
+		PRMEvaluation second = new PRMEvaluation(0.5);
+		for (int i = 0; i < 3; i++) {
+			whole.add(HOSPITALISED[i], true);
+			whole.add(NOT_HOSPITALISED[i], false);
+			(i == 0 ? first : second).add(HOSPITALISED[i], true);
+			(i == 2 ? first : second).add(NOT_HOSPITALISED[i], false);
+		}
+		first.merge(second);
+		assertEquals(whole.getAUC(), first.getAUC(), 1e-12);
+		assertEquals(whole.getBrierScore(), first.getBrierScore(), 1e-12);
+		assertEquals(whole.getFlagged(0), first.getFlagged(0));
+		assertThrows(IllegalArgumentException.class, () -> first.merge(new PRMEvaluation(0.6)));
+	}
+
+	@Test
+	void reportsUndefinedMeasuresAsNull() {
+		PRMEvaluation evaluation = new PRMEvaluation(0.5);
+		evaluation.add(0.2, false);
+		assertTrue(Double.isNaN(evaluation.getAUC()));
+		JSONObject report = evaluation.toJSON("v1");
+		assertEquals("v1", report.get("ModelVersion"));
+		assertEquals(0.0, report.get("ObservedRate"));
+		assertNull(report.get("AUC"));
+	}
+
+	@Test
+	void evaluatesLabelledFile() throws Exception {
+		HCHRiskStratificationPRMScoreCalculator calculator = HCHRiskStratificationPRMScoreCalculator.getInstance();
+		String[] lines = {
+				"{\"Age\":85,\"IsFemale\":false,\"SmokingStatus\":\"SMOKER\",\"Hospitalised\":true}",
+				"{\"Age\":30,\"IsFemale\":true,\"Hospitalised\":false}",
+				"{\"Age\":60,\"IsFemale\":true,\"Hospitalised\":false}"};
+		PRMEvaluation evaluation = PRMEvaluation.evaluate(
+				new BufferedReader(new StringReader(String.join("\n", lines))), calculator, 2, 0.5);
+		double squaredErrors = 0;
+		for (String line : lines) {
+			PRMCalculator parsed = PRMBatch.parseLine(line);
+			double p = calculator.calculatePRMScore(parsed.getData());
+			double outcome = parsed.getHospitalised() ? 1 : 0;
+			squaredErrors += (outcome - p) * (outcome - p);
+		}
+		assertEquals(3, evaluation.getCount());
+		assertEquals(1, evaluation.getPositives());
+		assertEquals(squaredErrors / 3, evaluation.getBrierScore(), 1e-12);
+		assertEquals(1, evaluation.getAUC(), 1e-12);
+
+		assertThrows(IOException.class, () -> PRMEvaluation.evaluate(
+				new BufferedReader(new StringReader("{\"Age\":30}")), calculator, 1));
+	}
+}
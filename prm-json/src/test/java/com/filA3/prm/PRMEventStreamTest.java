@@ -0,0 +1,105 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.filA3.prm.HCHRiskStratificationPRMData.Disease;
+import com.filA3.prm.HCHRiskStratificationPRMData.MedicationGroup;
+import com.filA3.prm.HCHRiskStratificationPRMData.SmokingStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PRMEventStreamTest {
+
+	private final HCHRiskStratificationPRMScoreCalculator calculator =
+			HCHRiskStratificationPRMScoreCalculator.getInstance();
+
+	@TempDir
+	Path directory;
+
+	/** A profile, then demographic, diagnosis and medication changes, per patient. */
+	private static String events(int patient, HCHRiskStratificationPRMData profile) {
+		String id = "{\"PatientId\":\"p" + patient + "\",\"Timestamp\":" + patient;
+		StringBuilder stopped = new StringBuilder();
+		for (MedicationGroup group : profile.getMedicationGroups()) {
+			stopped.append(stopped.length() == 0 ? "" : ",").append('"').append(group).append('"');
+		}
+		return id + ",\"Event\":\"Profile\"," + PRMTestPatients.toJson(profile, false).substring(1) + "\n"
+				+ id + ",\"Event\":\"Demographics\",\"Age\":80,\"SmokingStatus\":\"SMOKER\"}\n"
+				+ id + ",\"Event\":\"Diagnosis\",\"Diseases\":[\"" + Disease.values()[patient % 5] + "\"]}\n"
+				+ id + ",\"Event\":\"MedicationStopped\",\"MedicationGroups\":[" + stopped + "]}\n";
+	}
+
+	/** The data the events of a patient lead to. */
+	private static HCHRiskStratificationPRMData expected(int patient, HCHRiskStratificationPRMData profile) {
+		Set<Disease> diseases = EnumSet.noneOf(Disease.class);
+		diseases.addAll(profile.getDiseases());
+		diseases.add(Disease.values()[patient % 5]);
+		HCHRiskStratificationPRMData data = PRMTestPatients.random(new Random(patient));
+		data.setAge(80).setIsFemale(profile.getIsFemale());
+		data.setSmokingStatus(SmokingStatus.SMOKER);
+		return data.setDiseases(diseases).setMedicationGroups(EnumSet.noneOf(MedicationGroup.class));
+	}
+
+	private static String text(HCHRiskStratificationPRMData data) {
+		return data.toString().replaceAll("@[0-9a-f]+", "");
+	}
+
+	@Test
+	void replayedEventsMatchDirectScoring() throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			lines.append(events(i, PRMTestPatients.random(new Random(i))));
+		}
+		lines.append("{\"PatientId\":\"p0\",\"Event\":\"Unknown\"}\n");
+		String all = lines.toString();
+		// The last event is only half written at first
+		int split = all.lastIndexOf('\n', all.length() / 2) + 10;
+		Path file = directory.resolve("events.ndjson");
+		Files.write(file, all.substring(0, split).getBytes(StandardCharsets.UTF_8));
+
+		PRMPatientStates states = new PRMPatientStates(calculator);
+		Map<String, Double> probabilities = new HashMap<>();
+		List<PRMPatientStates.Update> updates = new ArrayList<>();
+		PRMEventStream stream = new PRMEventStream(states, updates::add).setLog(null);
+		stream.process(file, false);
+		long firstEvents = stream.getEvents();
+		Files.write(file, all.substring(split).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		stream.process(file, false);
+
+		assertEquals(all.substring(0, split).split("\n", -1).length - 1, firstEvents);
+		assertEquals(80, stream.getEvents());
+		assertEquals(1, stream.getErrors());
+		assertEquals(20, states.size());
+		for (PRMPatientStates.Update update : updates) {
+			Double previous = probabilities.put(update.getPatientId(), update.getProbability());
+			assertEquals(previous == null ? Double.NaN : previous, update.getPreviousProbability());
+		}
+		for (int i = 0; i < 20; i++) {
+			HCHRiskStratificationPRMData expected = expected(i, PRMTestPatients.random(new Random(i)));
+			assertEquals(text(expected), text(states.getData("p" + i)));
+			assertEquals(calculator.calculatePRMScore(expected), probabilities.get("p" + i), 0);
+		}
+
+		// Replaying the whole file into new states gives the same states
+		PRMPatientStates replayed = new PRMPatientStates(calculator);
+		new PRMEventStream(replayed, update -> { }).setLog(null).process(directory, false);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(text(states.getData("p" + i)), text(replayed.getData("p" + i)));
+		}
+		assertNull(replayed.getData("p20"));
+	}
+}
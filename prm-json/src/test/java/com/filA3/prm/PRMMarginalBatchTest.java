@@ -0,0 +1,57 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PRMMarginalBatchTest {
+
+	@Test
+	void marginalizesEachLineInOrder() throws Exception {
+		HCHRiskStratificationPRMScoreCalculator calculator = HCHRiskStratificationPRMScoreCalculator.getInstance();
+		PRMMissingDataMarginalizer marginalizer = new PRMMissingDataMarginalizer(calculator)
+				.loadPrevalences(new StringReader("SmokingStatus.SMOKER=0.14\n"
+						+ "SmokingStatus.NON_SMOKER=0.6\nHbA1cCategory.HIGH=0.08\n"));
+		Random random = new Random(1);
+		List<HCHRiskStratificationPRMData> patients = new ArrayList<>();
+		StringBuilder batch = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			HCHRiskStratificationPRMData data = PRMTestPatients.random(random);
+			patients.add(data);
+			batch.append(PRMTestPatients.toJson(data, false)).append('\n');
+		}
+		List<PRMMarginalBatch.Patient> results = new ArrayList<>();
+		assertEquals(patients.size(), PRMMarginalBatch.process(
+				new BufferedReader(new StringReader(batch.toString())), marginalizer, 4, results::add));
+
+		assertEquals(patients.size(), results.size());
+		int missing = 0;
+		for (int i = 0; i < patients.size(); i++) {
+			HCHRiskStratificationPRMData data = patients.get(i);
+			PRMMissingDataMarginalizer.MarginalRisk expected = marginalizer.calculate(data);
+			PRMMissingDataMarginalizer.MarginalRisk risk = results.get(i).getRisk();
+			assertEquals(calculator.calculatePRMScore(data), results.get(i).getProbability(), 0);
+			assertEquals(expected.getProbability(), risk.getProbability(), 0);
+			assertEquals(expected.getMean(), risk.getMean(), 0);
+			assertArrayEquals(expected.getQuantiles(), risk.getQuantiles(), 0);
+			assertEquals(expected.getLower(), risk.getLower(), 0);
+			assertEquals(expected.getUpper(), risk.getUpper(), 0);
+			assertEquals(expected.getMissingFields(), risk.getMissingFields());
+			if (!risk.getMissingFields().isEmpty()) {
+				missing++;
+			}
+			String[] csv = results.get(i).toString().split(",");
+			assertEquals(2 + expected.getQuantiles().length + 2, csv.length);
+			assertEquals(risk.getMean(), Double.parseDouble(csv[1]), 0);
+		}
+		assertTrue(missing > patients.size() / 2);
+	}
+}
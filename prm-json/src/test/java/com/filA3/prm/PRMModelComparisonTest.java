@@ -0,0 +1,114 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.jupiter.api.Test;
+
+class PRMModelComparisonTest {
+
+	private static final PRMModel NATIONAL =
+			HCHRiskStratificationPRMScoreCalculator.getInstance().getModel();
+
+	private static PRMModel transformed(String version, double scale, double shift) {
+		double[] coefficients = NATIONAL.getCoefficients();
+		for (int i = 0; i < coefficients.length; i++) {
+			coefficients[i] *= scale;
+		}
+		coefficients[PRMDesign.INTERCEPT] += shift;
+		return new PRMModel(version, coefficients);
+	}
+
+	@Test
+	void comparesRanksAndKeepsDoublePrecision() {
+		// A shift below float precision, a reversal and a constant model
+		PRMModelSet models = new PRMModelSet(NATIONAL, transformed("shifted", 1, 1e-6),
+				transformed("reversed", -1, 0), transformed("constant", 0, 0));
+		PRMModelComparison comparison = new PRMModelComparison(models);
+		Random random = new Random(1);
+		double maxDifference = 0;
+		double sum = 0;
+		for (int i = 0; i < 2000; i++) {
+			PRMModelComparison.Scores scores = comparison.score("p" + i,
+					PRMTestPatients.random(random));
+			double[] p = scores.getProbabilities();
+			maxDifference = Math.max(maxDifference, Math.abs(p[1] - p[0]));
+			sum += p[0];
+			comparison.add(scores);
+		}
+		assertEquals(2000, comparison.getCount());
+		assertEquals(sum / 2000, comparison.getMeanProbability(0), 1e-12);
+		assertTrue(maxDifference > 0);
+		assertEquals(maxDifference, comparison.getMaxAbsoluteDifference(1), 0);
+
+		assertEquals(1, comparison.getRankCorrelation(1), 1e-6);
+		assertTrue(comparison.getMeanPercentileChange(1) < 0.1);
+		assertEquals(-1, comparison.getRankCorrelation(2), 1e-6);
+		assertTrue(Double.isNaN(comparison.getRankCorrelation(3)));
+		assertEquals(0.5, comparison.getMeanProbability(3), 0);
+
+		// A reversal moves the top tier to the bottom
+		long[][] transitions = comparison.getTierTransitions(2);
+		int top = transitions.length - 1;
+		assertEquals(100, transitions[top][0]);
+		long total = 0;
+		for (long[] row : transitions) {
+			for (long n : row) {
+				total += n;
+			}
+		}
+		assertEquals(2000, total);
+
+		JSONObject report = comparison.toJSON();
+		assertEquals(2000L, report.get("Patients"));
+		assertEquals(NATIONAL.getVersion(), report.get("Reference"));
+		JSONArray entries = (JSONArray) report.get("Models");
+		assertEquals(4, entries.size());
+		assertNull(((JSONObject) entries.get(3)).get("RankCorrelation"));
+	}
+
+	@Test
+	void midRanksShareTies() {
+		PRMModelSet models = new PRMModelSet(NATIONAL, transformed("constant", 0, 0));
+		PRMModelComparison comparison = new PRMModelComparison(models);
+		HCHRiskStratificationPRMData young = new HCHRiskStratificationPRMData().setAge(20);
+		HCHRiskStratificationPRMData old = new HCHRiskStratificationPRMData().setAge(90);
+		comparison.add(comparison.score("a", young));
+		comparison.add(comparison.score("b", old));
+		comparison.add(comparison.score("c", young));
+		comparison.add(comparison.score("d", old));
+		// Reference mid-ranks 1.5, 3.5, 1.5, 3.5 against 2.5 for all
+		assertEquals(25, comparison.getMeanPercentileChange(1), 1e-12);
+		assertEquals(25, comparison.getPercentileChangeQuantile(1, 0.95), 1e-12);
+	}
+
+	@Test
+	void comparesCohortFile() throws Exception {
+		String cohort = "{\"PatientId\":\"x\",\"Age\":40,\"IsFemale\":true}\n"
+				+ "{\"Age\":80,\"IsFemale\":false,\"SmokingStatus\":\"SMOKER\"}\n";
+		PRMModelSet models = new PRMModelSet(NATIONAL, transformed("shifted", 1, 0.5));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PRMModelComparison comparison = PRMModelComparison.compare(
+				new BufferedReader(new StringReader(cohort)), models, 2,
+				new PrintStream(out, true, "UTF-8"));
+		assertEquals(2, comparison.getCount());
+		List<String> lines = Arrays.asList(
+				new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+		assertEquals("PatientId," + NATIONAL.getVersion() + ",shifted", lines.get(0));
+		assertTrue(lines.get(1).startsWith("x,"));
+		assertTrue(lines.get(2).startsWith("2,"), lines.get(2));
+		assertEquals(1, comparison.getRankCorrelation(1), 1e-12);
+	}
+}
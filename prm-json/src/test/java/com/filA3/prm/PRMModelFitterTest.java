@@ -0,0 +1,78 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PRMModelFitterTest {
+
+	private final HCHRiskStratificationPRMScoreCalculator calculator =
+			HCHRiskStratificationPRMScoreCalculator.getInstance();
+
+	@Test
+	void nationalModelMatchesCalculator() throws Exception {
+		Random random = new Random(1);
+		PRMModelCalculator model = PRMModelCalculator.read(new StringReader(
+				writeModel(calculator.getModel())));
+		for (int i = 0; i < 1000; i++) {
+			HCHRiskStratificationPRMData data = PRMTestPatients.random(random);
+			assertEquals(calculator.calculatePRMLinearPredictor(data),
+					model.calculatePRMLinearPredictor(data), 1e-9);
+			assertEquals(calculator.calculatePRMScore(data), model.calculatePRMScore(data), 1e-8);
+		}
+	}
+
+	@Test
+	void codecRoundTrips() {
+		Random random = new Random(2);
+		ByteBuffer buffer = ByteBuffer.allocate(PRMDataCodec.SIZE);
+		for (int i = 0; i < 100; i++) {
+			HCHRiskStratificationPRMData data = PRMTestPatients.random(random);
+			buffer.clear();
+			PRMDataCodec.encode(data, buffer);
+			buffer.flip();
+			HCHRiskStratificationPRMData decoded =
+					PRMDataCodec.decode(buffer, new HCHRiskStratificationPRMData());
+			assertEquals(data.toString().replaceAll("@[0-9a-f]+", ""),
+					decoded.toString().replaceAll("@[0-9a-f]+", ""));
+		}
+	}
+
+	@Test
+	void fittedModelIsCalibratedInTheLarge() throws Exception {
+		Random random = new Random(3);
+		StringBuilder lines = new StringBuilder();
+		HCHRiskStratificationPRMData[] patients = new HCHRiskStratificationPRMData[5000];
+		int admissions = 0;
+		for (int i = 0; i < patients.length; i++) {
+			patients[i] = PRMTestPatients.random(random);
+			// Outcomes twice as likely as the national model predicts
+			boolean hospitalised = random.nextDouble() < 2 * calculator.calculatePRMScore(patients[i]);
+			admissions += hospitalised ? 1 : 0;
+			lines.append(PRMTestPatients.toJson(patients[i], hospitalised)).append('\n');
+		}
+
+		PRMModel model = new PRMModelFitter().setThreads(3)
+				.fit(new BufferedReader(new StringReader(lines.toString())),
+						calculator.getModel(), "test");
+
+		double expected = 0;
+		for (HCHRiskStratificationPRMData patient : patients) {
+			expected += model.calculateProbability(patient);
+		}
+		assertEquals("test", model.getVersion());
+		assertEquals(admissions, expected, 1e-3);
+	}
+
+	private static String writeModel(PRMModel model) {
+		StringWriter writer = new StringWriter();
+		model.write(writer);
+		return writer.toString();
+	}
+}
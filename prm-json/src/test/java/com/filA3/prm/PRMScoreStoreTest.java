@@ -0,0 +1,118 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PRMScoreStoreTest {
+
+	@TempDir
+	Path directory;
+
+	private static double probability(long patientId) {
+		return (patientId % 1000) / 1000.0;
+	}
+
+	@Test
+	void snapshotRoundTrips() throws Exception {
+		Random random = new Random(1);
+		PRMScoreStore store = new PRMScoreStore();
+		long[] ids = new long[100000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = random.nextLong() >>> 1;
+			store.put(ids[i], probability(ids[i]), i % 2 == 0 ? "v1" : "v2", 1500000000123L + i * 1000L);
+		}
+		// Later scores replace earlier ones
+		for (int i = 0; i < ids.length; i += 10) {
+			store.put(ids[i], 0.5, "v3", 1600000000000L);
+		}
+		assertTrue(store.put(" 42 ", 0.25, "v1", 1000));
+		assertFalse(store.put("P42", 0.25, "v1", 1000));
+		assertEquals(ids.length + 1, store.size());
+
+		Path file = directory.resolve("scores.prms");
+		store.snapshot(file);
+		PRMScoreStore read = PRMScoreStore.read(file);
+
+		assertFalse(Files.exists(directory.resolve("scores.prms.tmp")));
+		assertEquals(store.size(), read.size());
+		for (int i = 0; i < ids.length; i++) {
+			PRMScoreStore.Entry entry = read.get(ids[i]);
+			boolean replaced = i % 10 == 0;
+			assertEquals(replaced ? 0.5 : probability(ids[i]), entry.getProbability(), 4e-9);
+			assertEquals(replaced ? "v3" : i % 2 == 0 ? "v1" : "v2", entry.getModelVersion());
+			assertEquals(replaced ? 1600000000000L : 1500000000000L + i * 1000L, entry.getTimestamp());
+			assertEquals(entry.getProbability(), store.getProbability(ids[i]), 0);
+		}
+		assertEquals(0.25, read.getProbability(42), 4e-9);
+		assertNull(read.get(-1));
+		assertTrue(Double.isNaN(read.getProbability(-1)));
+	}
+
+	@Test
+	void readsSeeWritesWhileSegmentsGrow() throws Exception {
+		PRMScoreStore store = new PRMScoreStore();
+		int writers = 4;
+		int perWriter = 50000;
+		// The number of patients each writer has stored so far
+		AtomicLongArray written = new AtomicLongArray(writers);
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<String> failure = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int w = 0; w < writers; w++) {
+			int writer = w;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < perWriter; i++) {
+					long id = (long) i * writers + writer;
+					store.put(id, probability(id), "v" + writer, 1000);
+					written.lazySet(writer, i + 1);
+				}
+			}));
+		}
+		Thread reader = new Thread(() -> {
+			Random random = new Random(2);
+			while (!done.get() && failure.get() == null) {
+				int writer = random.nextInt(writers);
+				long count = written.get(writer);
+				if (count == 0) {
+					continue;
+				}
+				long id = random.nextInt((int) count) * (long) writers + writer;
+				double probability = store.getProbability(id);
+				if (Math.abs(probability - probability(id)) > 4e-9) {
+					failure.set("Patient " + id + " read " + probability);
+				}
+			}
+		});
+		reader.start();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		done.set(true);
+		reader.join();
+
+		assertNull(failure.get());
+		assertEquals(writers * perWriter, store.size());
+		for (long id = 0; id < writers * perWriter; id++) {
+			PRMScoreStore.Entry entry = store.get(id);
+			assertEquals(probability(id), entry.getProbability(), 4e-9);
+			assertEquals("v" + (id % writers), entry.getModelVersion());
+		}
+	}
+}
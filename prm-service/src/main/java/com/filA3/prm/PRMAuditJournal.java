@@ -0,0 +1,835 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+
+/**
+  * An append-only journal of the scores produced, with their profile and
+  * model version, for audit.
+  * <p>
+  * Request threads hand records to a ring buffer, preallocated so that an
+  * append allocates nothing: a thread claims a slot with a single atomic
+  * increment, copies the record into it, the profile encoded with
+  * {@link PRMDataCodec}, and publishes it. Only when the ring is full
+  * does an append wait for the writer. A single writer thread takes the
+  * published records in order and copies them into memory-mapped segment
+  * files of a directory, starting a new segment when one is full or when
+  * the journal is opened again.
+  * <p>
+  * The writer takes all the records available at once, so that under
+  * load a batch of records is made durable together, a group commit. How
+  * often the segment is forced to disk is given by {@link Sync}; records
+  * reach the operating system when they are written whatever the policy,
+  * so only a crash of the host, not of the JVM, may lose them.
+  * <p>
+  * Appending never fails the caller: records appended once the journal
+  * is closed, or once the writer has failed, are dropped and counted,
+  * with the records claimed but not written when the writer failed. The
+  * failure is reported to the log, and the count by {@link #getDropped}.
+  * Closing writes every record claimed before it.
+  * <p>
+  * A segment, named "segment-N.prj", starts with the magic number "PRMJ"
+  * and the format version, as big-endian ints, followed by records: an
+  * int length of the content, the CRC-32 of the content as an int, and
+  * the content, a type byte then the fields. A model version record
+  * holds the version as a short length and UTF-8 bytes, and applies to
+  * the score records after it in the segment. A score record holds the
+  * time in milliseconds since the epoch as a long, the probability as a
+  * double, the encoded profile, and the patient identifier as a short
+  * length and UTF-8 bytes, empty if there is none. A zero length, or a
+  * record whose CRC does not match, ends the segment. {@link #read}
+  * reads journals.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMAuditJournal implements Closeable
+{
+    /** The default number of records the ring buffer holds */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    /** The default size of a segment */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    /** The suffix of segment files */
+    public static final String SUFFIX = ".prj";
+
+    /** The prefix of segment files */
+    private static final String PREFIX = "segment-";
+    /** The file magic number, "PRMJ" */
+    private static final int MAGIC = 0x50524d4a;
+    /** The format version */
+    private static final int FORMAT = 1;
+    /** The size of the segment header */
+    private static final int HEADER = 8;
+    /** The type of model version records */
+    private static final byte VERSION = 1;
+    /** The type of score records */
+    private static final byte SCORE = 2;
+    /** The size of record lengths and CRCs */
+    private static final int FRAMING = 8;
+    /** The longest identifier or version, in bytes */
+    private static final int MAX_STRING = 1024;
+    /** The longest wait of the writer for records, in nanoseconds */
+    private static final long MAX_IDLE_NANOS = 1000000;
+    /**
+      * The bit of the claimed sequence number set when the journal stops
+      * accepting records, so that a claim and the check that the journal
+      * accepts it are a single atomic increment
+      */
+    private static final long STOPPED = 1L << 62;
+
+    /**
+      * When segments are forced to disk.
+      */
+    public enum Sync
+    {
+	/** Only when a segment is complete, or the journal closed */
+	NONE,
+	/** After each batch of records, a group commit */
+	BATCH,
+	/** At most every given interval, while records are written */
+	INTERVAL
+    }
+
+    /**
+      * A record read from a journal.
+      */
+    public static class Record
+    {
+	/** The time, in milliseconds since the epoch */
+	private final long time;
+	/** The patient identifier, null if none */
+	private final String patientId;
+	/** The model version */
+	private final String modelVersion;
+	/** The probability */
+	private final double probability;
+	/** The encoded profile */
+	private final byte[] profile;
+
+	/**
+	  * Constructor.
+	  */
+	private Record(long time, String patientId, String modelVersion,
+		double probability, byte[] profile)
+	{
+	    this.time = time;
+	    this.patientId = patientId;
+	    this.modelVersion = modelVersion;
+	    this.probability = probability;
+	    this.profile = profile;
+	}
+
+	/**
+	  * Returns the time the score was produced.
+	  *
+	  * @return the time in milliseconds since the epoch
+	  */
+	public long getTime()
+	{
+	    return time;
+	}
+
+	/**
+	  * Returns the patient identifier.
+	  *
+	  * @return the identifier, null if none
+	  */
+	public String getPatientId()
+	{
+	    return patientId;
+	}
+
+	/**
+	  * Returns the version of the model that produced the score.
+	  *
+	  * @return the version
+	  */
+	public String getModelVersion()
+	{
+	    return modelVersion;
+	}
+
+	/**
+	  * Returns the probability.
+	  *
+	  * @return the probability
+	  */
+	public double getProbability()
+	{
+	    return probability;
+	}
+
+	/**
+	  * Returns the profile.
+	  *
+	  * @return the profile encoded with {@link PRMDataCodec}
+	  */
+	public byte[] getProfile()
+	{
+	    return profile.clone();
+	}
+
+	/**
+	  * Returns the profile, decoded.
+	  *
+	  * @return the data
+	  *
+	  * @throws IllegalArgumentException if the profile does not decode
+	  */
+	public HCHRiskStratificationPRMData getData()
+	{
+	    return PRMDataCodec.decode(ByteBuffer.wrap(profile),
+		    new HCHRiskStratificationPRMData());
+	}
+
+	@Override
+	public String toString()
+	{
+	    StringBuilder sb = new StringBuilder();
+	    sb.append(time).append(',')
+		.append(patientId == null ? "" : patientId).append(',')
+		.append(modelVersion).append(',').append(probability)
+		.append(',');
+	    for (byte b : profile) {
+		sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+		    .append(Character.forDigit(b & 0xf, 16));
+	    }
+	    return sb.toString();
+	}
+    }
+
+    /** The directory of the segments */
+    private final Path directory;
+    /** The number of records the ring buffer holds, a power of two */
+    private int capacity = DEFAULT_CAPACITY;
+    /** The size of a segment */
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    /** When segments are forced to disk */
+    private Sync sync = Sync.BATCH;
+    /** The interval of {@link Sync#INTERVAL}, in milliseconds */
+    private long syncMillis = 1000;
+
+    /** The times of the records in the ring */
+    private long[] times;
+    /** The patient identifiers of the records in the ring */
+    private String[] patientIds;
+    /** The model versions of the records in the ring */
+    private String[] modelVersions;
+    /** The probabilities of the records in the ring */
+    private double[] probabilities;
+    /** The encoded profiles of the records in the ring */
+    private ByteBuffer[] profiles;
+    /** The sequence number published in each slot of the ring */
+    private AtomicLongArray published;
+    /**
+      * The next sequence number to claim, with {@link #STOPPED} set once
+      * the journal no longer accepts records
+      */
+    private final AtomicLong claimed = new AtomicLong();
+    /** The number of records claimed before the journal stopped */
+    private volatile long end = Long.MAX_VALUE;
+    /** The next sequence number to write */
+    private volatile long consumed;
+    /** The number of appends that waited for the writer */
+    private final AtomicLong stalls = new AtomicLong();
+    /** The number of records dropped */
+    private final AtomicLong dropped = new AtomicLong();
+    /** The writer thread */
+    private Thread writer;
+    /** The failure that stopped the writer, if any */
+    private volatile IOException failure;
+    /** Where a failure of the writer and drops are reported, or null */
+    private volatile PrintStream log;
+
+    /** The number of the current segment */
+    private long segmentNumber;
+    /** The file of the current segment */
+    private RandomAccessFile file;
+    /** The mapping of the current segment */
+    private MappedByteBuffer segment;
+    /** The model version of the last record of the current segment */
+    private String segmentVersion;
+    /** If the current segment has records not forced to disk */
+    private boolean dirty;
+    /** The last time the current segment was forced, in milliseconds */
+    private long lastSync;
+    /** The record being written */
+    private final ByteBuffer record
+	= ByteBuffer.allocate(FRAMING + 1 + 16 + PRMDataCodec.SIZE + 2
+		+ MAX_STRING);
+    /** The checksum of records */
+    private final CRC32 crc = new CRC32();
+
+    /**
+      * Constructor.
+      *
+      * @param directory the directory of the segments, created if needed
+      */
+    public PRMAuditJournal(@Nonnull Path directory)
+    {
+	this.directory = directory;
+    }
+
+    /**
+      * Sets the number of records the ring buffer holds.
+      *
+      * @param capacity the number of records, rounded up to a power of
+      *                 two, &gt;= 1
+      *
+      * @return this journal
+      */
+    public PRMAuditJournal setCapacity(int capacity)
+    {
+	if (capacity < 1 || capacity > 1 << 30) {
+	    throw new IllegalArgumentException("Invalid capacity");
+	}
+	this.capacity = capacity == 1 ? 1
+	    : Integer.highestOneBit(capacity - 1) << 1;
+	return this;
+    }
+
+    /**
+      * Sets the size of the segment files.
+      *
+      * @param segmentSize the size in bytes, &gt;= 64KB
+      *
+      * @return this journal
+      */
+    public PRMAuditJournal setSegmentSize(int segmentSize)
+    {
+	if (segmentSize < 64 * 1024) {
+	    throw new IllegalArgumentException("segmentSize must be >= 64KB");
+	}
+	this.segmentSize = segmentSize;
+	return this;
+    }
+
+    /**
+      * Sets when segments are forced to disk.
+      *
+      * @param sync the policy
+      * @param millis the interval of {@link Sync#INTERVAL}, in
+      *               milliseconds
+      *
+      * @return this journal
+      */
+    public PRMAuditJournal setSync(@Nonnull Sync sync, long millis)
+    {
+	if (millis < 0) {
+	    throw new IllegalArgumentException("millis must be >= 0");
+	}
+	this.sync = sync;
+	this.syncMillis = millis;
+	return this;
+    }
+
+    /**
+      * Sets where a failure of the writer, which stops the journal, and
+      * the records dropped when it is closed, are reported.
+      *
+      * @param log the log, or null for none
+      *
+      * @return this journal
+      */
+    public PRMAuditJournal setLog(PrintStream log)
+    {
+	this.log = log;
+	return this;
+    }
+
+    /**
+      * Opens a new segment and starts the writer thread.
+      *
+      * @return this journal
+      *
+      * @throws IOException if the segment can not be created
+      */
+    public PRMAuditJournal start() throws IOException
+    {
+	Files.createDirectories(directory);
+	for (Path path : segments(directory)) {
+	    segmentNumber = Math.max(segmentNumber, number(path) + 1);
+	}
+	times = new long[capacity];
+	patientIds = new String[capacity];
+	modelVersions = new String[capacity];
+	probabilities = new double[capacity];
+	profiles = new ByteBuffer[capacity];
+	published = new AtomicLongArray(capacity);
+	for (int i = 0; i < capacity; i++) {
+	    profiles[i] = ByteBuffer.allocate(PRMDataCodec.SIZE);
+	    published.set(i, -1);
+	}
+	openSegment();
+	writer = new Thread(this::write, "prm-audit-journal");
+	writer.setDaemon(true);
+	writer.start();
+	return this;
+    }
+
+    /**
+      * Appends a score. The record is copied, and written by the writer
+      * thread; the call only waits if the ring buffer is full. If the
+      * journal is not started, is closed or has failed, the record is
+      * dropped.
+      *
+      * @param patientId the patient identifier, or null
+      * @param data the profile
+      * @param probability the probability
+      * @param modelVersion the version of the model
+      */
+    public void append(String patientId,
+	    @Nonnull HCHRiskStratificationPRMData data, double probability,
+	    @Nonnull String modelVersion)
+    {
+	long sequence = writer == null ? STOPPED : claimed.getAndIncrement();
+	if (sequence >= STOPPED) {
+	    dropped.incrementAndGet();
+	    return;
+	}
+	if (sequence - consumed >= capacity) {
+	    stalls.incrementAndGet();
+	    while (sequence - consumed >= capacity) {
+		if (failure != null) { // Counted as dropped by the writer
+		    return;
+		}
+		LockSupport.parkNanos(1000);
+	    }
+	}
+	int slot = (int) sequence & (capacity - 1);
+	times[slot] = System.currentTimeMillis();
+	patientIds[slot] = patientId;
+	modelVersions[slot] = modelVersion;
+	probabilities[slot] = probability;
+	ByteBuffer profile = profiles[slot];
+	((Buffer) profile).clear();
+	PRMDataCodec.encode(data, profile);
+	published.lazySet(slot, sequence);
+    }
+
+    /**
+      * Returns the number of records accepted, which are written unless
+      * the writer fails.
+      *
+      * @return the number of records
+      */
+    public long getAppended()
+    {
+	long sequence = claimed.get();
+	return sequence < STOPPED ? sequence : stopped();
+    }
+
+    /**
+      * Returns the number of records written.
+      *
+      * @return the number of records
+      */
+    public long getWritten()
+    {
+	return consumed;
+    }
+
+    /**
+      * Returns the number of records dropped, because they were appended
+      * once the journal was closed or had failed, or were not written
+      * when it failed.
+      *
+      * @return the number of records
+      */
+    public long getDropped()
+    {
+	return dropped.get();
+    }
+
+    /**
+      * Returns the failure that stopped the writer.
+      *
+      * @return the failure, or null if the writer has not failed
+      */
+    public IOException getFailure()
+    {
+	return failure;
+    }
+
+    /**
+      * Returns the number of appends that waited for the writer.
+      *
+      * @return the number of appends
+      */
+    public long getStalls()
+    {
+	return stalls.get();
+    }
+
+    /**
+      * Stops accepting records, writes all those appended before, and
+      * closes the segment, forcing it to disk.
+      */
+    @Override
+    public void close()
+    {
+	if (writer == null) {
+	    return;
+	}
+	stop();
+	LockSupport.unpark(writer);
+	try {
+	    writer.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	PrintStream out = log;
+	if (out != null && dropped.get() > 0) {
+	    out.println("Audit journal dropped " + dropped.get()
+		    + " records");
+	}
+    }
+
+    /**
+      * Stops accepting records, if not stopped yet.
+      *
+      * @return the number of records claimed before
+      */
+    private long stop()
+    {
+	long sequence;
+	do {
+	    sequence = claimed.get();
+	    if (sequence >= STOPPED) {
+		return stopped();
+	    }
+	} while (!claimed.compareAndSet(sequence, sequence | STOPPED));
+	end = sequence;
+	return sequence;
+    }
+
+    /**
+      * Returns the number of records claimed before the journal stopped,
+      * once it has.
+      */
+    private long stopped()
+    {
+	long count;
+	while ((count = end) == Long.MAX_VALUE) { // Being set by stop
+	    Thread.yield();
+	}
+	return count;
+    }
+
+    /**
+      * Reads all the records of a journal, its segments in order.
+      *
+      * @param path the directory of the journal, or a single segment
+      * @param consumer receives the records
+      *
+      * @return the number of records
+      *
+      * @throws IOException if reading fails, or a file is not a segment
+      */
+    public static long read(@Nonnull Path path,
+	    @Nonnull Consumer<Record> consumer)
+	throws IOException
+    {
+	List<Path> paths = Files.isDirectory(path) ? segments(path)
+	    : Collections.singletonList(path);
+	long count = 0;
+	for (Path segmentPath : paths) {
+	    count += readSegment(segmentPath, consumer);
+	}
+	return count;
+    }
+
+    /**
+      * Returns the segments of a directory, in order.
+      */
+    private static List<Path> segments(Path directory) throws IOException
+    {
+	List<Path> paths = new ArrayList<>();
+	try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+		    directory, PREFIX + "*" + SUFFIX)) {
+	    for (Path path : stream) {
+		paths.add(path);
+	    }
+	}
+	paths.sort((a, b) -> Long.compare(number(a), number(b)));
+	return paths;
+    }
+
+    /**
+      * Returns the number of a segment.
+      */
+    private static long number(Path path)
+    {
+	String name = path.getFileName().toString();
+	try {
+	    return Long.parseLong(name.substring(PREFIX.length(),
+			name.length() - SUFFIX.length()));
+	} catch (NumberFormatException | IndexOutOfBoundsException e) {
+	    return -1;
+	}
+    }
+
+    /**
+      * Reads the records of a segment.
+      */
+    private static long readSegment(Path path, Consumer<Record> consumer)
+	throws IOException
+    {
+	ByteBuffer buffer;
+	try (FileChannel channel = FileChannel.open(path)) {
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+		    channel.size());
+	}
+	if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC) {
+	    throw new IOException("Not a journal segment: " + path);
+	}
+	if (buffer.getInt() != FORMAT) {
+	    throw new IOException("Unsupported journal format: " + path);
+	}
+	CRC32 checksum = new CRC32();
+	String version = null;
+	long count = 0;
+	while (buffer.remaining() >= FRAMING) {
+	    int length = buffer.getInt();
+	    int expected = buffer.getInt();
+	    if (length <= 0 || length > buffer.remaining()) {
+		break;
+	    }
+	    ByteBuffer content = buffer.slice();
+	    ((Buffer) content).limit(length);
+	    checksum.reset();
+	    checksum.update(content.duplicate());
+	    if ((int) checksum.getValue() != expected) {
+		break;
+	    }
+	    ((Buffer) buffer).position(buffer.position() + length);
+	    byte type = content.get();
+	    if (type == VERSION) {
+		version = string(content);
+	    } else if (type == SCORE) {
+		long time = content.getLong();
+		double probability = content.getDouble();
+		byte[] profile = new byte[PRMDataCodec.SIZE];
+		content.get(profile);
+		String patientId = string(content);
+		consumer.accept(new Record(time,
+			    patientId.isEmpty() ? null : patientId, version,
+			    probability, profile));
+		count++;
+	    }
+	}
+	return count;
+    }
+
+    /**
+      * Reads a short length and UTF-8 string.
+      */
+    private static String string(ByteBuffer buffer)
+    {
+	byte[] bytes = new byte[buffer.getShort() & 0xffff];
+	buffer.get(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+      * Writes the published records until the journal is closed, on the
+      * writer thread.
+      */
+    private void write()
+    {
+	long idle = 0;
+	try {
+	    while (true) {
+		long next = consumed;
+		long limit = next + capacity;
+		while (next < limit
+			&& published.get((int) next & (capacity - 1)) == next) {
+		    writeRecord((int) next & (capacity - 1));
+		    next++;
+		}
+		if (next > consumed) {
+		    consumed = next;
+		    if (sync == Sync.BATCH) {
+			force();
+		    }
+		    idle = 0;
+		} else if (next == end) { // Every record claimed is written
+		    break;
+		} else {
+		    idle = Math.min(MAX_IDLE_NANOS, 2 * idle + 10000);
+		    LockSupport.parkNanos(idle);
+		}
+		if (sync == Sync.INTERVAL && dirty
+			&& System.currentTimeMillis() - lastSync
+			>= syncMillis) {
+		    force();
+		}
+	    }
+	    closeSegment();
+	} catch (IOException | RuntimeException e) {
+	    failure = e instanceof IOException ? (IOException) e
+		: new IOException(e);
+	    dropped.addAndGet(stop() - consumed);
+	    try {
+		closeSegment();
+	    } catch (IOException | RuntimeException ignored) {
+		// Failed already
+	    }
+	    PrintStream out = log;
+	    if (out != null) {
+		out.println("Audit journal failed, dropping records: " + e);
+	    }
+	}
+    }
+
+    /**
+      * Writes the record of a slot into the segment.
+      */
+    private void writeRecord(int slot) throws IOException
+    {
+	String version = modelVersions[slot];
+	if (!version.equals(segmentVersion)) {
+	    ((Buffer) record).clear();
+	    ((Buffer) record).position(FRAMING);
+	    record.put(VERSION);
+	    putString(version);
+	    if (!append()) {
+		openSegment();
+		writeRecord(slot);
+		return;
+	    }
+	    segmentVersion = version;
+	}
+	((Buffer) record).clear();
+	((Buffer) record).position(FRAMING);
+	record.put(SCORE);
+	record.putLong(times[slot]);
+	record.putDouble(probabilities[slot]);
+	record.put(profiles[slot].array());
+	String patientId = patientIds[slot];
+	putString(patientId == null ? "" : patientId);
+	if (!append()) {
+	    openSegment();
+	    writeRecord(slot);
+	}
+	patientIds[slot] = null;
+    }
+
+    /**
+      * Puts a short length and UTF-8 string into the record, truncated to
+      * {@link #MAX_STRING} bytes.
+      */
+    private void putString(String value)
+    {
+	byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+	int length = Math.min(bytes.length, MAX_STRING);
+	record.putShort((short) length);
+	record.put(bytes, 0, length);
+    }
+
+    /**
+      * Appends the record to the segment, framed, if it fits.
+      *
+      * @return false if the segment is full
+      */
+    private boolean append()
+    {
+	int length = record.position() - FRAMING;
+	if (segment.remaining() < record.position() + FRAMING) {
+	    return false;
+	}
+	crc.reset();
+	crc.update(record.array(), FRAMING, length);
+	record.putInt(0, length);
+	record.putInt(4, (int) crc.getValue());
+	((Buffer) record).flip();
+	segment.put(record);
+	dirty = true;
+	return true;
+    }
+
+    /**
+      * Forces the segment to disk.
+      */
+    private void force()
+    {
+	if (dirty) {
+	    segment.force();
+	    dirty = false;
+	}
+	lastSync = System.currentTimeMillis();
+    }
+
+    /**
+      * Closes the current segment, if any, and opens the next one.
+      */
+    private void openSegment() throws IOException
+    {
+	closeSegment();
+	Path path = directory.resolve(String.format("%s%020d%s", PREFIX,
+		    segmentNumber++, SUFFIX));
+	file = new RandomAccessFile(path.toFile(), "rw");
+	segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+		segmentSize);
+	segment.putInt(MAGIC);
+	segment.putInt(FORMAT);
+	segmentVersion = null;
+	dirty = true;
+	force();
+    }
+
+    /**
+      * Forces and closes the current segment, if any, cutting the file to
+      * its records.
+      */
+    private void closeSegment() throws IOException
+    {
+	if (segment == null) {
+	    return;
+	}
+	force();
+	try {
+	    file.setLength(segment.position());
+	} catch (IOException e) {
+	    // The zero length after the records ends the segment anyway
+	}
+	file.close();
+	segment = null;
+	file = null;
+    }
+}
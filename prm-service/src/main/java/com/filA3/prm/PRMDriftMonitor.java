@@ -0,0 +1,754 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Monitors the distribution of the profiles scored, and of their
+  * probabilities, for drift away from a reference distribution, such as
+  * when an upstream system starts sending every patient with an unknown
+  * smoking status and the scores silently shift.
+  * <p>
+  * The dimensions monitored are each {@link PRMField}, by value, the
+  * sex, the age in five year bands, the number of diseases and the
+  * probability in twentieths. Their counters are striped in the manner
+  * of {@link java.util.concurrent.atomic.LongAdder}, and summed when
+  * read, but each recording thread has a stripe of its own: as only that
+  * thread writes it, an increment is a plain addition published with
+  * {@link AtomicLongArray#lazySet}, without the compare-and-swap of a
+  * shared counter, so that recording a profile costs a few dozen
+  * nanoseconds on the request thread. Every window a daemon
+  * thread takes the counts of the window that ended, which are compared
+  * dimension by dimension with the reference through the population
+  * stability index (PSI) and the Kullback-Leibler divergence of the
+  * window from the reference. The reference is either a distribution
+  * read from a file, such as that of the cohort the model was validated
+  * on, or by default all the profiles recorded before the window.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMDriftMonitor implements Closeable
+{
+    /** The default length of a window, in milliseconds */
+    public static final long DEFAULT_WINDOW_MILLIS = 300000;
+    /** The default PSI above which a dimension has drifted */
+    public static final double DEFAULT_THRESHOLD = 0.25;
+
+    /** The file magic number, "PRMD" */
+    private static final int MAGIC = 0x50524d44;
+    /** The file format version */
+    private static final int FORMAT = 1;
+
+    /** The fields */
+    private static final PRMField[] FIELDS = PRMField.values();
+    /** The dimension of the sex */
+    private static final int IS_FEMALE = FIELDS.length;
+    /** The dimension of the age */
+    private static final int AGE = FIELDS.length + 1;
+    /** The dimension of the number of diseases */
+    private static final int DISEASE_COUNT = FIELDS.length + 2;
+    /** The dimension of the probability */
+    private static final int PROBABILITY = FIELDS.length + 3;
+
+    /** The width of an age band, in years */
+    private static final int AGE_BAND = 5;
+    /** The number of age bands, the last open ended */
+    private static final int AGE_BANDS = 21;
+    /** The number of disease counts, the last open ended */
+    private static final int DISEASE_COUNTS = 11;
+    /** The number of probability bins */
+    private static final int PROBABILITY_BINS = 20;
+    /**
+      * The count added to every bin when distributions are compared, so
+      * that an empty bin has a finite share
+      */
+    private static final double SMOOTHING = 0.5;
+
+    /** The names of the dimensions */
+    private static final String[] NAMES = new String[PROBABILITY + 1];
+    /** The labels of the bins of each dimension */
+    private static final String[][] LABELS = new String[PROBABILITY + 1][];
+    /**
+      * The first counter of each dimension, followed by the number of
+      * counters
+      */
+    private static final int[] OFFSETS = new int[PROBABILITY + 2];
+
+    static {
+	for (PRMField field : FIELDS) {
+	    NAMES[field.ordinal()] = field.getJsonName();
+	    Enum<?>[] values = field.getValues();
+	    LABELS[field.ordinal()] = new String[values.length];
+	    for (Enum<?> value : values) {
+		LABELS[field.ordinal()][value.ordinal()] = value.name();
+	    }
+	}
+	NAMES[IS_FEMALE] = "IsFemale";
+	LABELS[IS_FEMALE] = new String[] {"false", "true"};
+	NAMES[AGE] = "Age";
+	LABELS[AGE] = new String[AGE_BANDS];
+	for (int i = 0; i < AGE_BANDS - 1; i++) {
+	    LABELS[AGE][i] = i * AGE_BAND + "-" + ((i + 1) * AGE_BAND - 1);
+	}
+	LABELS[AGE][AGE_BANDS - 1] = (AGE_BANDS - 1) * AGE_BAND + "+";
+	NAMES[DISEASE_COUNT] = "DiseaseCount";
+	LABELS[DISEASE_COUNT] = new String[DISEASE_COUNTS];
+	for (int i = 0; i < DISEASE_COUNTS - 1; i++) {
+	    LABELS[DISEASE_COUNT][i] = Integer.toString(i);
+	}
+	LABELS[DISEASE_COUNT][DISEASE_COUNTS - 1] = (DISEASE_COUNTS - 1) + "+";
+	NAMES[PROBABILITY] = "Probability";
+	LABELS[PROBABILITY] = new String[PROBABILITY_BINS];
+	for (int i = 0; i < PROBABILITY_BINS; i++) {
+	    LABELS[PROBABILITY][i] = String.format(Locale.ROOT, "%.2f-%.2f",
+		    (double) i / PROBABILITY_BINS,
+		    (double) (i + 1) / PROBABILITY_BINS);
+	}
+	for (int i = 0; i < NAMES.length; i++) {
+	    OFFSETS[i + 1] = OFFSETS[i] + LABELS[i].length;
+	}
+    }
+
+    /**
+      * The counts of each dimension over a period.
+      */
+    public static final class Distribution
+    {
+	/** The start of the period, in milliseconds since the epoch */
+	private final long start;
+	/** The end of the period, in milliseconds since the epoch */
+	private final long end;
+	/** The counts of all dimensions, one after the other */
+	private final long[] counts;
+
+	/**
+	  * Constructor.
+	  */
+	private Distribution(long start, long end, long[] counts)
+	{
+	    this.start = start;
+	    this.end = end;
+	    this.counts = counts;
+	}
+
+	/**
+	  * Returns the start of the period.
+	  *
+	  * @return the start, in milliseconds since the epoch
+	  */
+	public long getStart()
+	{
+	    return start;
+	}
+
+	/**
+	  * Returns the end of the period.
+	  *
+	  * @return the end, in milliseconds since the epoch
+	  */
+	public long getEnd()
+	{
+	    return end;
+	}
+
+	/**
+	  * Returns the number of profiles.
+	  *
+	  * @return the number of profiles
+	  */
+	public long getProfiles()
+	{
+	    return total(PROBABILITY);
+	}
+
+	/**
+	  * Returns the counts of the bins of a dimension.
+	  *
+	  * @param dimension the name of the dimension, see
+	  *                  {@link PRMDriftMonitor#getDimensions}
+	  *
+	  * @return the counts, in the order of the labels, or null if there
+	  *         is no such dimension
+	  */
+	public long[] getCounts(@Nonnull String dimension)
+	{
+	    int d = Arrays.asList(NAMES).indexOf(dimension);
+	    return d < 0 ? null
+		: Arrays.copyOfRange(counts, OFFSETS[d], OFFSETS[d + 1]);
+	}
+
+	/**
+	  * Returns the sum of this distribution and another, e.g. of the
+	  * parts of a batch scored separately.
+	  *
+	  * @param other the other distribution
+	  *
+	  * @return the sum, over the period covering both
+	  */
+	public Distribution merge(@Nonnull Distribution other)
+	{
+	    long[] sum = counts.clone();
+	    for (int i = 0; i < sum.length; i++) {
+		sum[i] += other.counts[i];
+	    }
+	    return new Distribution(Math.min(start, other.start),
+		    Math.max(end, other.end), sum);
+	}
+
+	/**
+	  * Returns the number of profiles counted in a dimension.
+	  */
+	private long total(int dimension)
+	{
+	    long total = 0;
+	    for (int i = OFFSETS[dimension]; i < OFFSETS[dimension + 1]; i++) {
+		total += counts[i];
+	    }
+	    return total;
+	}
+
+	/**
+	  * Compares this distribution with a reference, dimension by
+	  * dimension. Dimensions without profiles in either distribution
+	  * are left out.
+	  *
+	  * @param reference the reference
+	  * @param threshold the PSI above which a dimension has drifted
+	  *
+	  * @return the comparison of each dimension
+	  */
+	public List<Drift> compare(@Nonnull Distribution reference,
+		double threshold)
+	{
+	    List<Drift> drifts = new ArrayList<>();
+	    for (int d = 0; d < NAMES.length; d++) {
+		long observed = total(d);
+		long expected = reference.total(d);
+		if (observed == 0 || expected == 0) {
+		    continue;
+		}
+		int bins = LABELS[d].length;
+		double observedTotal = observed + SMOOTHING * bins;
+		double expectedTotal = expected + SMOOTHING * bins;
+		double psi = 0;
+		double kl = 0;
+		int largest = 0;
+		double largestShift = -1;
+		for (int i = 0; i < bins; i++) {
+		    long o = counts[OFFSETS[d] + i];
+		    long e = reference.counts[OFFSETS[d] + i];
+		    double p = (o + SMOOTHING) / observedTotal;
+		    double q = (e + SMOOTHING) / expectedTotal;
+		    double log = Math.log(p / q);
+		    psi += (p - q) * log;
+		    kl += p * log;
+		    double shift = Math.abs((double) o / observed
+			    - (double) e / expected);
+		    if (shift > largestShift) {
+			largest = i;
+			largestShift = shift;
+		    }
+		}
+		drifts.add(new Drift(NAMES[d], psi, kl, psi > threshold,
+			LABELS[d][largest],
+			(double) counts[OFFSETS[d] + largest] / observed,
+			(double) reference.counts[OFFSETS[d] + largest]
+			/ expected));
+	    }
+	    return drifts;
+	}
+
+	/**
+	  * Writes the distribution, for use as a reference.
+	  *
+	  * @param out where to write
+	  *
+	  * @throws IOException if writing fails
+	  */
+	public void write(@Nonnull OutputStream out) throws IOException
+	{
+	    DataOutputStream data = new DataOutputStream(out);
+	    data.writeInt(MAGIC);
+	    data.writeInt(FORMAT);
+	    data.writeLong(start);
+	    data.writeLong(end);
+	    data.writeInt(NAMES.length);
+	    for (int d = 0; d < NAMES.length; d++) {
+		data.writeUTF(NAMES[d]);
+		data.writeInt(LABELS[d].length);
+		for (int i = 0; i < LABELS[d].length; i++) {
+		    data.writeUTF(LABELS[d][i]);
+		    data.writeLong(counts[OFFSETS[d] + i]);
+		}
+	    }
+	    data.flush();
+	}
+
+	/**
+	  * Reads a distribution written by {@link #write}. Bins are matched
+	  * by dimension name and label, so that a distribution written
+	  * before a field gained or lost a value can still be read: bins
+	  * that no longer exist are ignored, and new ones are empty.
+	  *
+	  * @param in where to read from
+	  *
+	  * @return the distribution
+	  *
+	  * @throws IOException if reading fails or the format is invalid
+	  */
+	public static Distribution read(@Nonnull InputStream in)
+	    throws IOException
+	{
+	    DataInputStream data = new DataInputStream(in);
+	    if (data.readInt() != MAGIC) {
+		throw new IOException("Not a drift reference");
+	    }
+	    int format = data.readInt();
+	    if (format != FORMAT) {
+		throw new IOException(
+			"Unsupported drift reference format " + format);
+	    }
+	    long start = data.readLong();
+	    long end = data.readLong();
+	    long[] counts = new long[OFFSETS[NAMES.length]];
+	    int dimensions = data.readInt();
+	    for (int n = 0; n < dimensions; n++) {
+		int d = Arrays.asList(NAMES).indexOf(data.readUTF());
+		int bins = data.readInt();
+		for (int i = 0; i < bins; i++) {
+		    String label = data.readUTF();
+		    long count = data.readLong();
+		    int bin = d < 0 ? -1
+			: Arrays.asList(LABELS[d]).indexOf(label);
+		    if (bin >= 0) {
+			counts[OFFSETS[d] + bin] = count;
+		    }
+		}
+	    }
+	    return new Distribution(start, end, counts);
+	}
+    }
+
+    /**
+      * The comparison of a dimension of a window with the reference.
+      */
+    public static final class Drift
+    {
+	/** The name of the dimension */
+	private final String dimension;
+	/** The population stability index */
+	private final double psi;
+	/** The Kullback-Leibler divergence from the reference */
+	private final double kl;
+	/** If the PSI is above the threshold */
+	private final boolean drifted;
+	/** The label of the bin whose share moved most */
+	private final String value;
+	/** The share of that bin in the window */
+	private final double share;
+	/** The share of that bin in the reference */
+	private final double referenceShare;
+
+	/**
+	  * Constructor.
+	  */
+	private Drift(String dimension, double psi, double kl,
+		boolean drifted, String value, double share,
+		double referenceShare)
+	{
+	    this.dimension = dimension;
+	    this.psi = psi;
+	    this.kl = kl;
+	    this.drifted = drifted;
+	    this.value = value;
+	    this.share = share;
+	    this.referenceShare = referenceShare;
+	}
+
+	/**
+	  * Returns the name of the dimension.
+	  *
+	  * @return the name
+	  */
+	public String getDimension()
+	{
+	    return dimension;
+	}
+
+	/**
+	  * Returns the population stability index, the sum over the bins
+	  * of (p - q) ln(p / q) where p is the share of the window and q
+	  * that of the reference. Under 0.1 is usually taken as stable,
+	  * above 0.25 as a significant shift.
+	  *
+	  * @return the PSI
+	  */
+	public double getPsi()
+	{
+	    return psi;
+	}
+
+	/**
+	  * Returns the Kullback-Leibler divergence of the window from the
+	  * reference, the sum over the bins of p ln(p / q).
+	  *
+	  * @return the divergence, in nats
+	  */
+	public double getKl()
+	{
+	    return kl;
+	}
+
+	/**
+	  * Returns if the PSI is above the threshold of the monitor.
+	  *
+	  * @return if the dimension has drifted
+	  */
+	public boolean isDrifted()
+	{
+	    return drifted;
+	}
+
+	/**
+	  * Returns the label of the bin whose share moved most.
+	  *
+	  * @return the label, e.g. a field value name
+	  */
+	public String getValue()
+	{
+	    return value;
+	}
+
+	/**
+	  * Returns the share of the bin whose share moved most, in the
+	  * window.
+	  *
+	  * @return the share, in [0, 1]
+	  */
+	public double getShare()
+	{
+	    return share;
+	}
+
+	/**
+	  * Returns the share of the bin whose share moved most, in the
+	  * reference.
+	  *
+	  * @return the share, in [0, 1]
+	  */
+	public double getReferenceShare()
+	{
+	    return referenceShare;
+	}
+    }
+
+    /** The stripes of counters, one per recording thread */
+    private final List<AtomicLongArray> stripes
+	= new CopyOnWriteArrayList<>();
+    /** The stripe of the current thread */
+    private final ThreadLocal<AtomicLongArray> stripe
+	= ThreadLocal.withInitial(() -> {
+		AtomicLongArray counters
+		    = new AtomicLongArray(OFFSETS[NAMES.length]);
+		stripes.add(counters);
+		return counters;
+	    });
+    /** The length of a window, in milliseconds */
+    private final long windowMillis;
+    /** The PSI above which a dimension has drifted */
+    private double threshold = DEFAULT_THRESHOLD;
+    /** The reference, or null to compare with the previous profiles */
+    private volatile Distribution reference;
+    /** The time the monitor was created */
+    private final long created = System.currentTimeMillis();
+    /** The start of the current window */
+    private long windowStart = created;
+    /** The counts at the start of the current window */
+    private long[] windowBase = new long[OFFSETS[NAMES.length]];
+    /** The last complete window, or null */
+    private volatile Distribution lastWindow;
+    /** The profiles recorded before the last complete window, or null */
+    private volatile Distribution history;
+    /** The thread that ends windows, or null if not started */
+    private ScheduledExecutorService windows;
+
+    /**
+      * Constructor.
+      *
+      * @param windowMillis the length of a window, in milliseconds
+      */
+    public PRMDriftMonitor(long windowMillis)
+    {
+	if (windowMillis <= 0) {
+	    throw new IllegalArgumentException(
+		    "The window must be positive: " + windowMillis);
+	}
+	this.windowMillis = windowMillis;
+    }
+
+    /**
+      * Sets the PSI above which a dimension has drifted.
+      *
+      * @param threshold the threshold, default {@link #DEFAULT_THRESHOLD}
+      *
+      * @return this monitor
+      */
+    public PRMDriftMonitor setThreshold(double threshold)
+    {
+	this.threshold = threshold;
+	return this;
+    }
+
+    /**
+      * Sets the reference distribution.
+      *
+      * @param reference the reference, or null to compare each window
+      *                  with the profiles recorded before it
+      *
+      * @return this monitor
+      */
+    public PRMDriftMonitor setReference(Distribution reference)
+    {
+	this.reference = reference;
+	return this;
+    }
+
+    /**
+      * Starts the thread that ends each window. Without it, only the
+      * totals are kept.
+      *
+      * @return this monitor
+      */
+    public synchronized PRMDriftMonitor start()
+    {
+	if (windows == null) {
+	    windows = Executors.newSingleThreadScheduledExecutor(r -> {
+		    Thread thread = new Thread(r, "prm-drift");
+		    thread.setDaemon(true);
+		    return thread;
+		});
+	    windows.scheduleAtFixedRate(this::endWindow, windowMillis,
+		    windowMillis, TimeUnit.MILLISECONDS);
+	}
+	return this;
+    }
+
+    /**
+      * Stops the thread that ends each window.
+      */
+    @Override
+    public synchronized void close()
+    {
+	if (windows != null) {
+	    windows.shutdownNow();
+	    windows = null;
+	}
+    }
+
+    /**
+      * Records a scored profile. This is safe to call from any number of
+      * threads at once.
+      *
+      * @param data the profile
+      * @param probability its probability
+      */
+    public void record(@Nonnull HCHRiskStratificationPRMData data,
+	    double probability)
+    {
+	AtomicLongArray counters = stripe.get();
+	for (PRMField field : FIELDS) {
+	    increment(counters,
+		    OFFSETS[field.ordinal()] + field.get(data).ordinal());
+	}
+	increment(counters, OFFSETS[IS_FEMALE] + (data.getIsFemale() ? 1 : 0));
+	increment(counters,
+		OFFSETS[AGE] + bin(data.getAge() / AGE_BAND, AGE_BANDS));
+	increment(counters, OFFSETS[DISEASE_COUNT]
+		+ bin(data.getDiseases().size(), DISEASE_COUNTS));
+	increment(counters, OFFSETS[PROBABILITY]
+		+ bin(probability * PROBABILITY_BINS, PROBABILITY_BINS));
+    }
+
+    /**
+      * Increments a counter of the stripe of the current thread.
+      */
+    private static void increment(AtomicLongArray counters, int counter)
+    {
+	counters.lazySet(counter, counters.get(counter) + 1);
+    }
+
+    /**
+      * Returns the bin of a value, clamped to the bins.
+      */
+    private static int bin(double value, int bins)
+    {
+	// NaN falls in the first bin
+	return (int) Math.max(0, Math.min(bins - 1, value));
+    }
+
+    /**
+      * Returns the current value of the counters. Profiles being recorded
+      * meanwhile may be counted in some dimensions and not others.
+      */
+    private long[] sum()
+    {
+	long[] sums = new long[OFFSETS[NAMES.length]];
+	for (AtomicLongArray counters : stripes) {
+	    for (int i = 0; i < sums.length; i++) {
+		sums[i] += counters.get(i);
+	    }
+	}
+	return sums;
+    }
+
+    /**
+      * Ends the current window.
+      */
+    private synchronized void endWindow()
+    {
+	long now = System.currentTimeMillis();
+	long[] sums = sum();
+	long[] window = new long[sums.length];
+	for (int i = 0; i < sums.length; i++) {
+	    window[i] = sums[i] - windowBase[i];
+	}
+	history = new Distribution(created, windowStart, windowBase);
+	lastWindow = new Distribution(windowStart, now, window);
+	windowBase = sums;
+	windowStart = now;
+    }
+
+    /**
+      * Returns the names of the dimensions: the JSON name of each field,
+      * then "IsFemale", "Age", "DiseaseCount" and "Probability".
+      *
+      * @return the names
+      */
+    public static List<String> getDimensions()
+    {
+	return Collections.unmodifiableList(Arrays.asList(NAMES));
+    }
+
+    /**
+      * Returns the labels of the bins of a dimension.
+      *
+      * @param dimension the name of the dimension
+      *
+      * @return the labels, or null if there is no such dimension
+      */
+    public static List<String> getLabels(@Nonnull String dimension)
+    {
+	int d = Arrays.asList(NAMES).indexOf(dimension);
+	return d < 0 ? null
+	    : Collections.unmodifiableList(Arrays.asList(LABELS[d]));
+    }
+
+    /**
+      * Returns the length of a window.
+      *
+      * @return the length, in milliseconds
+      */
+    public long getWindowMillis()
+    {
+	return windowMillis;
+    }
+
+    /**
+      * Returns the PSI above which a dimension has drifted.
+      *
+      * @return the threshold
+      */
+    public double getThreshold()
+    {
+	return threshold;
+    }
+
+    /**
+      * Returns if the reference is a distribution that was set, rather
+      * than the profiles recorded before the last window.
+      *
+      * @return if a reference distribution was set
+      */
+    public boolean hasReference()
+    {
+	return reference != null;
+    }
+
+    /**
+      * Returns the distribution of all the profiles recorded.
+      *
+      * @return the distribution
+      */
+    public Distribution getTotal()
+    {
+	return new Distribution(created, System.currentTimeMillis(), sum());
+    }
+
+    /**
+      * Returns the last complete window.
+      *
+      * @return the window, or null if none has ended
+      */
+    public Distribution getLastWindow()
+    {
+	return lastWindow;
+    }
+
+    /**
+      * Returns the distribution the last window is compared with: the
+      * reference set, else the profiles recorded before the last window.
+      *
+      * @return the distribution, or null if none
+      */
+    public Distribution getReference()
+    {
+	Distribution set = reference;
+	return set != null ? set : history;
+    }
+
+    /**
+      * Compares the last complete window with the reference.
+      *
+      * @return the comparison of each dimension, empty until a window
+      *         with profiles can be compared
+      */
+    public List<Drift> getDrifts()
+    {
+	Distribution window = lastWindow;
+	Distribution compared = getReference();
+	return window == null || compared == null ? Collections.emptyList()
+	    : window.compare(compared, threshold);
+    }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import javax.annotation.Nonnull;
+
+/**
+  * A histogram of latencies, or other non negative longs, with a constant
+  * relative precision over their whole range, in the manner of an HDR
+  * histogram.
+  * <p>
+  * Values below {@link #SUB_BUCKETS} have a bucket each; above, each
+  * power of two is split into {@link #SUB_BUCKETS} buckets, so a value is
+  * known to within 1/128th, under 1%, whatever its magnitude, in less
+  * than 64KB. Unlike {@link PRMHistogram} no range needs to be chosen, so
+  * that the tail of a latency distribution is kept as precisely as its
+  * median. As with {@link PRMHistogram}, histograms can be merged, so
+  * that each thread can fill its own, and the class is not thread safe.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMLatencyHistogram
+{
+    /** The number of bits of precision of a value */
+    private static final int SUB_BITS = 7;
+    /** The number of buckets of each power of two */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** The counts of each bucket */
+    private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+    /** The number of values */
+    private long count;
+    /** The sum of the values */
+    private double sum;
+    /** The smallest value */
+    private long min = Long.MAX_VALUE;
+    /** The largest value */
+    private long max;
+
+    /**
+      * Adds a value.
+      *
+      * @param value the value, negative values counting as zero
+      */
+    public void add(long value)
+    {
+	value = Math.max(0, value);
+	counts[bucket(value)]++;
+	count++;
+	sum += value;
+	min = Math.min(min, value);
+	max = Math.max(max, value);
+    }
+
+    /**
+      * Adds all the values of another histogram.
+      *
+      * @param other the other histogram
+      */
+    public void merge(@Nonnull PRMLatencyHistogram other)
+    {
+	for (int i = 0; i < counts.length; i++) {
+	    counts[i] += other.counts[i];
+	}
+	count += other.count;
+	sum += other.sum;
+	min = Math.min(min, other.min);
+	max = Math.max(max, other.max);
+    }
+
+    /**
+      * Returns the number of values.
+      *
+      * @return the number of values
+      */
+    public long getCount()
+    {
+	return count;
+    }
+
+    /**
+      * Returns the mean of the values.
+      *
+      * @return the mean, or NaN without values
+      */
+    public double getMean()
+    {
+	return sum / count;
+    }
+
+    /**
+      * Returns the smallest value.
+      *
+      * @return the smallest value, or 0 without values
+      */
+    public long getMin()
+    {
+	return count == 0 ? 0 : min;
+    }
+
+    /**
+      * Returns the largest value.
+      *
+      * @return the largest value, or 0 without values
+      */
+    public long getMax()
+    {
+	return max;
+    }
+
+    /**
+      * Returns an estimate of a quantile: the middle of the bucket it
+      * falls in, within the smallest and largest values.
+      *
+      * @param level the level, in [0, 1]
+      *
+      * @return the quantile, or NaN without values
+      */
+    public double getQuantile(double level)
+    {
+	if (count == 0) {
+	    return Double.NaN;
+	}
+	long rank = Math.max(1, (long) Math.ceil(level * count));
+	long seen = 0;
+	for (int i = 0; i < counts.length; i++) {
+	    seen += counts[i];
+	    if (seen >= rank) {
+		long start = bucketStart(i);
+		long middle = start + (bucketStart(i + 1) - start - 1) / 2;
+		return Math.max(min, Math.min(max, middle));
+	    }
+	}
+	return max;
+    }
+
+    /**
+      * Returns the bucket of a non negative value.
+      */
+    private static int bucket(long value)
+    {
+	if (value < SUB_BUCKETS) {
+	    return (int) value;
+	}
+	int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+	return (shift + 1) * SUB_BUCKETS
+	    + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+      * Returns the smallest value of a bucket.
+      */
+    private static long bucketStart(int bucket)
+    {
+	if (bucket < SUB_BUCKETS) {
+	    return bucket;
+	}
+	int shift = bucket / SUB_BUCKETS - 1;
+	return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+}
@@ -0,0 +1,435 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+  * A binary scoring protocol for callers on the same host, without the
+  * HTTP, JSON and loopback TCP costs of /calculate.
+  * <p>
+  * The server listens on a Unix domain socket, given as a file path,
+  * which needs Java 16 or later; on older JVMs an address "tcp:PORT"
+  * listens on the loopback interface instead, with the same protocol.
+  * <p>
+  * A request frame is a big-endian int length followed by that many
+  * bytes: one or more profiles encoded with {@link PRMDataCodec}, so
+  * the length is a multiple of {@link PRMDataCodec#SIZE}, at most
+  * {@link #MAX_PROFILES} of them. The response frame is an int length
+  * followed by the probability of each profile as a big-endian double,
+  * in order, NaN for a profile that does not decode. A frame with an
+  * invalid length closes the connection.
+  * <p>
+  * Requests may be pipelined: responses come back in request order, and
+  * all the complete frames received are answered with a single write.
+  * Each connection is served by its own thread, from a fixed number, with
+  * buffers allocated when it is accepted. {@link Client} is a client.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMLocalServer implements Closeable
+{
+    /** The maximum number of profiles in a frame */
+    public static final int MAX_PROFILES = 16384;
+    /** The default maximum number of connections */
+    public static final int DEFAULT_CONNECTIONS = 16;
+
+    /** The prefix of loopback TCP addresses */
+    private static final String TCP = "tcp:";
+
+    /**
+      * A client of the protocol, which is not thread safe.
+      */
+    public static class Client implements Closeable
+    {
+	/** The channel */
+	private final SocketChannel channel;
+	/** The request buffer */
+	private final ByteBuffer request
+	    = ByteBuffer.allocate(4 + MAX_PROFILES * PRMDataCodec.SIZE);
+	/** The response buffer */
+	private final ByteBuffer response
+	    = ByteBuffer.allocate(4 + MAX_PROFILES * 8);
+
+	/**
+	  * Connects to a server.
+	  *
+	  * @param address the socket path, or "tcp:PORT"
+	  *
+	  * @throws IOException if the connection fails
+	  */
+	public Client(@Nonnull String address) throws IOException
+	{
+	    channel = address.startsWith(TCP)
+		? SocketChannel.open(new InetSocketAddress(
+			    InetAddress.getLoopbackAddress(),
+			    Integer.parseInt(address.substring(TCP.length()))))
+		: PRMUnixSockets.connect(Paths.get(address));
+	    ((Buffer) response).limit(0);
+	}
+
+	/**
+	  * Sends a request, without waiting for its response, so that
+	  * several may be pipelined.
+	  *
+	  * @param profiles the profiles, at most {@link #MAX_PROFILES}
+	  *
+	  * @throws IOException if writing fails
+	  */
+	public void send(@Nonnull HCHRiskStratificationPRMData... profiles)
+	    throws IOException
+	{
+	    if (profiles.length == 0 || profiles.length > MAX_PROFILES) {
+		throw new IllegalArgumentException("Invalid number of"
+			+ " profiles: " + profiles.length);
+	    }
+	    ((Buffer) request).clear();
+	    request.putInt(profiles.length * PRMDataCodec.SIZE);
+	    for (HCHRiskStratificationPRMData profile : profiles) {
+		PRMDataCodec.encode(profile, request);
+	    }
+	    ((Buffer) request).flip();
+	    while (request.hasRemaining()) {
+		channel.write(request);
+	    }
+	}
+
+	/**
+	  * Receives the response to the oldest request sent.
+	  *
+	  * @return the probabilities, in request order
+	  *
+	  * @throws IOException if reading fails
+	  */
+	public double[] receive() throws IOException
+	{
+	    fill(4);
+	    int length = response.getInt();
+	    if (length < 0 || length % 8 != 0
+		    || length > response.capacity() - 4) {
+		throw new IOException("Invalid response length: " + length);
+	    }
+	    fill(length);
+	    double[] probabilities = new double[length / 8];
+	    for (int i = 0; i < probabilities.length; i++) {
+		probabilities[i] = response.getDouble();
+	    }
+	    return probabilities;
+	}
+
+	/**
+	  * Scores profiles.
+	  *
+	  * @param profiles the profiles, at most {@link #MAX_PROFILES}
+	  *
+	  * @return the probabilities, in order
+	  *
+	  * @throws IOException if the request fails
+	  */
+	public double[] score(@Nonnull HCHRiskStratificationPRMData... profiles)
+	    throws IOException
+	{
+	    send(profiles);
+	    return receive();
+	}
+
+	/**
+	  * Reads until the response buffer holds a number of bytes.
+	  */
+	private void fill(int count) throws IOException
+	{
+	    if (response.remaining() >= count) {
+		return;
+	    }
+	    response.compact();
+	    while (response.position() < count) {
+		if (channel.read(response) < 0) {
+		    throw new EOFException("Connection closed");
+		}
+	    }
+	    ((Buffer) response).flip();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+	    channel.close();
+	}
+    }
+
+    /** The calculator */
+    private final HCHRiskStratificationPRMScoreCalculator scorer;
+    /** The address */
+    private final String address;
+    /** The maximum number of connections */
+    private int connections = DEFAULT_CONNECTIONS;
+    /** The listening channel */
+    private ServerSocketChannel server;
+    /** The connection threads */
+    private ExecutorService handlers;
+    /** The open connections */
+    private final Set<SocketChannel> open = ConcurrentHashMap.newKeySet();
+    /** The accepting thread */
+    private Thread thread;
+    /** Where a failure to accept is reported, or null */
+    private volatile PrintStream log;
+
+    /**
+      * Constructor.
+      *
+      * @param scorer the calculator
+      * @param address the socket path, or "tcp:PORT"
+      */
+    public PRMLocalServer(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator scorer,
+	    @Nonnull String address)
+    {
+	this.scorer = scorer;
+	this.address = address;
+    }
+
+    /**
+      * Sets the maximum number of open connections; further connections
+      * are closed as soon as they are accepted.
+      *
+      * @param connections the number of connections, &gt;= 1
+      *
+      * @return this server
+      */
+    public PRMLocalServer setConnections(int connections)
+    {
+	if (connections < 1) {
+	    throw new IllegalArgumentException("connections must be >= 1");
+	}
+	this.connections = connections;
+	return this;
+    }
+
+    /**
+      * Sets where a failure to accept connections, which stops the
+      * server, is reported.
+      *
+      * @param log the log, or null for none
+      *
+      * @return this server
+      */
+    public PRMLocalServer setLog(PrintStream log)
+    {
+	this.log = log;
+	return this;
+    }
+
+    /**
+      * Starts listening. A stale socket file is replaced.
+      *
+      * @return this server
+      *
+      * @throws IOException if the address can not be bound
+      */
+    public PRMLocalServer start() throws IOException
+    {
+	if (address.startsWith(TCP)) {
+	    server = ServerSocketChannel.open();
+	    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+			Integer.parseInt(address.substring(TCP.length()))),
+		    connections);
+	} else {
+	    Path path = Paths.get(address);
+	    Files.deleteIfExists(path);
+	    server = PRMUnixSockets.listen(path, connections);
+	}
+	handlers = new ThreadPoolExecutor(connections, connections, 0,
+		TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+		    Thread handler = new Thread(r, "prm-local-connection");
+		    handler.setDaemon(true);
+		    return handler;
+		});
+	thread = new Thread(this::accept, "prm-local");
+	thread.setDaemon(true);
+	thread.start();
+	return this;
+    }
+
+    /**
+      * Returns the address listened on, with the port bound for
+      * "tcp:0" once started.
+      *
+      * @return the socket path, or "tcp:PORT"
+      *
+      * @throws IOException if the bound address can not be read
+      */
+    public String getAddress() throws IOException
+    {
+	if (server == null || !address.startsWith(TCP)) {
+	    return address;
+	}
+	return TCP + ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+      * Stops listening, closing all connections and removing the socket
+      * file.
+      */
+    @Override
+    public void close()
+    {
+	if (server == null) { // Never started
+	    return;
+	}
+	try {
+	    server.close();
+	    thread.join();
+	} catch (IOException e) {
+	    // Closing anyway
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	for (SocketChannel channel : open) {
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		// Closing anyway
+	    }
+	}
+	handlers.shutdownNow();
+	if (!address.startsWith(TCP)) {
+	    try {
+		Files.deleteIfExists(Paths.get(address));
+	    } catch (IOException e) {
+		// Left behind, replaced on the next start
+	    }
+	}
+    }
+
+    /**
+      * Accepts connections until closed.
+      */
+    private void accept()
+    {
+	while (server.isOpen()) {
+	    SocketChannel channel;
+	    try {
+		channel = server.accept();
+	    } catch (IOException e) {
+		PrintStream out = log;
+		if (server.isOpen() && out != null) {
+		    out.println("Local server stopped: " + e);
+		}
+		return;
+	    }
+	    try {
+		handlers.execute(() -> serve(channel));
+	    } catch (RejectedExecutionException e) {
+		try {
+		    channel.close();
+		} catch (IOException ignored) {
+		    // Refused anyway
+		}
+	    }
+	}
+    }
+
+    /**
+      * Answers the requests of a connection until it is closed.
+      */
+    private void serve(SocketChannel channel)
+    {
+	open.add(channel);
+	ByteBuffer in = ByteBuffer.allocate(4 + MAX_PROFILES
+		* PRMDataCodec.SIZE);
+	ByteBuffer out = ByteBuffer.allocate(4 + MAX_PROFILES * 8);
+	HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+	try {
+	    while (channel.read(in) >= 0) {
+		((Buffer) in).flip();
+		while (in.remaining() >= 4) {
+		    int length = in.getInt(in.position());
+		    if (length <= 0 || length % PRMDataCodec.SIZE != 0
+			    || length / PRMDataCodec.SIZE > MAX_PROFILES) {
+			return;
+		    }
+		    if (in.remaining() < 4 + length) {
+			break;
+		    }
+		    int count = length / PRMDataCodec.SIZE;
+		    if (out.remaining() < 4 + count * 8) {
+			flush(channel, out);
+		    }
+		    in.getInt();
+		    out.putInt(count * 8);
+		    for (int i = 0; i < count; i++) {
+			int end = in.position() + PRMDataCodec.SIZE;
+			double probability;
+			try {
+			    probability = scorer.calculatePRMScore(
+				    PRMDataCodec.decode(in, data));
+			} catch (IllegalArgumentException e) {
+			    probability = Double.NaN;
+			}
+			((Buffer) in).position(end);
+			out.putDouble(probability);
+		    }
+		}
+		in.compact();
+		flush(channel, out);
+	    }
+	} catch (IOException e) {
+	    // The caller went away
+	} finally {
+	    open.remove(channel);
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		// Closed anyway
+	    }
+	}
+    }
+
+    /**
+      * Writes the pending responses.
+      */
+    private static void flush(SocketChannel channel, ByteBuffer out)
+	throws IOException
+    {
+	((Buffer) out).flip();
+	while (out.hasRemaining()) {
+	    channel.write(out);
+	}
+	((Buffer) out).clear();
+    }
+}
@@ -0,0 +1,370 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+  * Scores a sample of live profiles again with a candidate calculator, in
+  * shadow, to validate it against the calculator that answers requests.
+  * <p>
+  * A sampled profile is encoded with {@link PRMDataCodec} on the request
+  * thread, which costs well under a microsecond, and handed to a single
+  * minimum priority thread that decodes and scores it with the candidate.
+  * The hand-off never blocks: when the queue is full the sample is
+  * dropped and counted. A divergence is a candidate probability further
+  * than the tolerance from the primary one; the most recent divergences
+  * are kept with the encoding of their profile, so that they can be
+  * replayed. The latencies of both calculators on the sampled profiles
+  * are kept as histograms in microseconds.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+public class PRMShadowScorer implements Closeable
+{
+    /** The number of samples that may wait for the shadow thread */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    /** The number of recent divergences kept */
+    public static final int MAX_DIVERGENCES = 100;
+
+    /** The upper end of the latency histograms, in microseconds */
+    private static final double MAX_MICROS = 10000;
+    /** The number of buckets of the latency histograms */
+    private static final int LATENCY_BUCKETS = 10000;
+
+    /**
+      * A candidate probability that diverges from the primary one.
+      */
+    public static class Divergence
+    {
+	/** The time it was found, in milliseconds since the epoch */
+	private final long time;
+	/** The encoded profile */
+	private final byte[] profile;
+	/** The primary probability */
+	private final double primary;
+	/** The candidate probability, NaN if it failed */
+	private final double candidate;
+
+	/**
+	  * Constructor.
+	  */
+	private Divergence(long time, byte[] profile, double primary,
+		double candidate)
+	{
+	    this.time = time;
+	    this.profile = profile;
+	    this.primary = primary;
+	    this.candidate = candidate;
+	}
+
+	/**
+	  * Returns the time the divergence was found.
+	  *
+	  * @return the time in milliseconds since the epoch
+	  */
+	public long getTime()
+	{
+	    return time;
+	}
+
+	/**
+	  * Returns the profile.
+	  *
+	  * @return the profile encoded with {@link PRMDataCodec}
+	  */
+	public byte[] getProfile()
+	{
+	    return profile.clone();
+	}
+
+	/**
+	  * Returns the profile in hexadecimal.
+	  *
+	  * @return the encoded profile in hexadecimal
+	  */
+	public String getProfileHex()
+	{
+	    StringBuilder sb = new StringBuilder(2 * profile.length);
+	    for (byte b : profile) {
+		sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+		    .append(Character.forDigit(b & 0xf, 16));
+	    }
+	    return sb.toString();
+	}
+
+	/**
+	  * Returns the probability of the primary calculator.
+	  *
+	  * @return the probability
+	  */
+	public double getPrimary()
+	{
+	    return primary;
+	}
+
+	/**
+	  * Returns the probability of the candidate calculator.
+	  *
+	  * @return the probability, NaN if the candidate failed
+	  */
+	public double getCandidate()
+	{
+	    return candidate;
+	}
+
+	@Override
+	public String toString()
+	{
+	    return time + "," + getProfileHex() + "," + primary + ","
+		+ candidate;
+	}
+    }
+
+    /** The candidate calculator */
+    private final HCHRiskStratificationPRMScoreCalculator candidate;
+    /** The fraction of profiles sampled */
+    private final double fraction;
+    /** The largest difference in probability that is not a divergence */
+    private final double tolerance;
+    /** The shadow thread */
+    private final ThreadPoolExecutor executor;
+    /** The number of samples dropped because the queue was full */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** The latencies of the primary calculator, in microseconds */
+    private final PRMHistogram primaryLatency
+	= new PRMHistogram(0, MAX_MICROS, LATENCY_BUCKETS);
+    /** The latencies of the candidate calculator, in microseconds */
+    private final PRMHistogram candidateLatency
+	= new PRMHistogram(0, MAX_MICROS, LATENCY_BUCKETS);
+    /** The recent divergences, oldest first */
+    private final Deque<Divergence> recent = new ArrayDeque<>();
+    /** The number of profiles compared */
+    private long compared;
+    /** The number of divergences */
+    private long divergences;
+
+    /**
+      * Constructor.
+      *
+      * @param candidate the candidate calculator
+      * @param fraction the fraction of profiles sampled, in [0, 1]
+      * @param tolerance the largest difference in probability that is
+      *                  not a divergence
+      */
+    public PRMShadowScorer(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator candidate,
+	    double fraction, double tolerance)
+    {
+	this(candidate, fraction, tolerance, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+      * Constructor.
+      *
+      * @param candidate the candidate calculator
+      * @param fraction the fraction of profiles sampled, in [0, 1]
+      * @param tolerance the largest difference in probability that is
+      *                  not a divergence
+      * @param queueSize the number of samples that may wait
+      */
+    public PRMShadowScorer(
+	    @Nonnull HCHRiskStratificationPRMScoreCalculator candidate,
+	    double fraction, double tolerance, int queueSize)
+    {
+	if (!(fraction >= 0 && fraction <= 1) || !(tolerance >= 0)
+		|| queueSize < 1) {
+	    throw new IllegalArgumentException("Invalid shadow settings");
+	}
+	this.candidate = candidate;
+	this.fraction = fraction;
+	this.tolerance = tolerance;
+	executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+		new ArrayBlockingQueue<>(queueSize),
+		runnable -> {
+		    Thread thread = new Thread(runnable, "prm-shadow");
+		    thread.setDaemon(true);
+		    thread.setPriority(Thread.MIN_PRIORITY);
+		    return thread;
+		},
+		(runnable, pool) -> dropped.incrementAndGet());
+    }
+
+    /**
+      * Offers a scored profile, which is compared in shadow if it is
+      * sampled. The call never blocks.
+      *
+      * @param data the profile
+      * @param probability the probability of the primary calculator
+      * @param nanos the time the primary calculator took, in nanoseconds
+      *
+      * @return true if the profile was sampled
+      */
+    public boolean offer(@Nonnull HCHRiskStratificationPRMData data,
+	    double probability, long nanos)
+    {
+	if (fraction == 0 || executor.isShutdown()
+		|| ThreadLocalRandom.current().nextDouble() >= fraction) {
+	    return false;
+	}
+	byte[] profile = new byte[PRMDataCodec.SIZE];
+	PRMDataCodec.encode(data, ByteBuffer.wrap(profile));
+	executor.execute(() -> compare(profile, probability, nanos));
+	return true;
+    }
+
+    /**
+      * Returns the fraction of profiles sampled.
+      *
+      * @return the fraction
+      */
+    public double getFraction()
+    {
+	return fraction;
+    }
+
+    /**
+      * Returns the tolerance.
+      *
+      * @return the largest difference in probability that is not a
+      *         divergence
+      */
+    public double getTolerance()
+    {
+	return tolerance;
+    }
+
+    /**
+      * Returns the number of profiles compared.
+      *
+      * @return the number of profiles
+      */
+    public synchronized long getCompared()
+    {
+	return compared;
+    }
+
+    /**
+      * Returns the number of divergences.
+      *
+      * @return the number of divergences
+      */
+    public synchronized long getDivergences()
+    {
+	return divergences;
+    }
+
+    /**
+      * Returns the number of samples dropped because the shadow thread
+      * was behind.
+      *
+      * @return the number of samples
+      */
+    public long getDropped()
+    {
+	return dropped.get();
+    }
+
+    /**
+      * Returns the most recent divergences.
+      *
+      * @return at most {@link #MAX_DIVERGENCES} divergences, oldest first
+      */
+    public synchronized List<Divergence> getRecentDivergences()
+    {
+	return new ArrayList<>(recent);
+    }
+
+    /**
+      * Returns a quantile of the latency of the primary calculator on the
+      * sampled profiles.
+      *
+      * @param level the level, in [0, 1]
+      *
+      * @return the latency in microseconds, NaN before any comparison
+      */
+    public synchronized double getPrimaryLatency(double level)
+    {
+	return primaryLatency.getQuantile(level);
+    }
+
+    /**
+      * Returns a quantile of the latency of the candidate calculator on
+      * the sampled profiles.
+      *
+      * @param level the level, in [0, 1]
+      *
+      * @return the latency in microseconds, NaN before any comparison
+      */
+    public synchronized double getCandidateLatency(double level)
+    {
+	return candidateLatency.getQuantile(level);
+    }
+
+    /**
+      * Stops the shadow thread, discarding waiting samples.
+      */
+    @Override
+    public void close()
+    {
+	executor.shutdownNow();
+    }
+
+    /**
+      * Scores a sampled profile with the candidate, on the shadow thread.
+      */
+    private void compare(byte[] profile, double probability, long nanos)
+    {
+	double result;
+	long start = 0;
+	try {
+	    HCHRiskStratificationPRMData data = PRMDataCodec.decode(
+		    ByteBuffer.wrap(profile), new HCHRiskStratificationPRMData());
+	    start = System.nanoTime();
+	    result = candidate.calculatePRMScore(data);
+	} catch (RuntimeException e) {
+	    result = Double.NaN;
+	}
+	long candidateNanos = start == 0 ? 0 : System.nanoTime() - start;
+	synchronized (this) {
+	    compared++;
+	    primaryLatency.add(Math.min(nanos / 1000.0, MAX_MICROS));
+	    candidateLatency.add(Math.min(candidateNanos / 1000.0, MAX_MICROS));
+	    if (!(Math.abs(result - probability) <= tolerance)) {
+		divergences++;
+		if (recent.size() == MAX_DIVERGENCES) {
+		    recent.removeFirst();
+		}
+		recent.addLast(new Divergence(System.currentTimeMillis(),
+			    profile, probability, result));
+	    }
+	}
+    }
+}
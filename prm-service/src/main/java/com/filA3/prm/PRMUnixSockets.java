@@ -0,0 +1,149 @@
+// Copyright (C) 2017-2018
+// Precedence Health Care Pty Ltd
+// Melbourne, Victoria, 3000, AUSTRALIA
+//
+// Licensed under the Apache License, Version 2.0 (the "License"); you may not
+// use this file except in compliance with the License. You may obtain a copy of
+// the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+// WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+// License for the specific language governing permissions and limitations
+// under the License.
+
+package com.filA3.prm;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+  * Opens Unix domain sockets for {@link PRMLocalServer}, which needs Java
+  * 16 or later. The Java 16 API is called by reflection, so that the
+  * server compiles and runs, over TCP, on Java 8.
+  *
+  * @author Precedence Health Care Pty Ltd
+  */
+final class PRMUnixSockets
+{
+    /**
+      * Private constructor, to prevent construction of this class.
+      */
+    private PRMUnixSockets()
+    {
+    }
+
+    /**
+      * Opens a listening socket.
+      *
+      * @param path the socket file, which must not exist
+      * @param backlog the connection backlog
+      *
+      * @return the bound channel
+      *
+      * @throws IOException if the socket can not be bound
+      * @throws UnsupportedOperationException before Java 16
+      */
+    static ServerSocketChannel listen(Path path, int backlog)
+	throws IOException
+    {
+	ServerSocketChannel server = (ServerSocketChannel) invoke(
+		ServerSocketChannel.class, "open", ProtocolFamily.class,
+		unix());
+	try {
+	    server.bind(address(path), backlog);
+	} catch (IOException | RuntimeException e) {
+	    server.close();
+	    throw e;
+	}
+	return server;
+    }
+
+    /**
+      * Connects to a listening socket.
+      *
+      * @param path the socket file
+      *
+      * @return the connected channel
+      *
+      * @throws IOException if the connection fails
+      * @throws UnsupportedOperationException before Java 16
+      */
+    static SocketChannel connect(Path path) throws IOException
+    {
+	return SocketChannel.open(address(path));
+    }
+
+    /**
+      * Returns the Unix protocol family.
+      */
+    private static ProtocolFamily unix()
+    {
+	try {
+	    return StandardProtocolFamily.valueOf("UNIX");
+	} catch (IllegalArgumentException e) {
+	    throw unsupported(e);
+	}
+    }
+
+    /**
+      * Returns the address of a socket file.
+      */
+    private static SocketAddress address(Path path) throws IOException
+    {
+	Class<?> type;
+	try {
+	    type = Class.forName("java.net.UnixDomainSocketAddress");
+	} catch (ClassNotFoundException e) {
+	    throw unsupported(e);
+	}
+	return (SocketAddress) invoke(type, "of", Path.class, path);
+    }
+
+    /**
+      * Calls a static method of one parameter.
+      */
+    private static Object invoke(Class<?> type, String name,
+	    Class<?> parameter, Object argument)
+	throws IOException
+    {
+	Method method;
+	try {
+	    method = type.getMethod(name, parameter);
+	} catch (NoSuchMethodException e) {
+	    throw unsupported(e);
+	}
+	try {
+	    return method.invoke(null, argument);
+	} catch (InvocationTargetException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException) cause;
+	    }
+	    if (cause instanceof RuntimeException) {
+		throw (RuntimeException) cause;
+	    }
+	    throw new IOException(cause);
+	} catch (IllegalAccessException e) {
+	    throw unsupported(e);
+	}
+    }
+
+    /**
+      * Returns the exception of a JVM without Unix domain sockets.
+      */
+    private static UnsupportedOperationException unsupported(Exception e)
+    {
+	return new UnsupportedOperationException("Unix domain sockets need"
+		+ " Java 16 or later; use tcp:PORT", e);
+    }
+}
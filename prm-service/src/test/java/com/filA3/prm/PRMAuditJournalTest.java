@@ -0,0 +1,135 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PRMAuditJournalTest {
+
+	@TempDir
+	Path directory;
+
+	static HCHRiskStratificationPRMData patient(int i) {
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setAge(18 + i % 80).setIsFemale(i % 2 == 0);
+		int f = 0;
+		for (PRMField field : PRMField.values()) {
+			Enum<?>[] values = field.getValues();
+			field.set(data, values[(i + f++) % values.length]);
+		}
+		return data;
+	}
+
+	private static byte[] encode(HCHRiskStratificationPRMData data) {
+		ByteBuffer buffer = ByteBuffer.allocate(PRMDataCodec.SIZE);
+		PRMDataCodec.encode(data, buffer);
+		return buffer.array();
+	}
+
+	private List<PRMAuditJournal.Record> read() throws IOException {
+		List<PRMAuditJournal.Record> records = new ArrayList<>();
+		PRMAuditJournal.read(directory, records::add);
+		return records;
+	}
+
+	@Test
+	void recordsReadBackInOrderAcrossSegments() throws IOException {
+		PRMAuditJournal journal = new PRMAuditJournal(directory).setCapacity(64)
+				.setSegmentSize(64 * 1024).start();
+		for (int i = 0; i < 5000; i++) {
+			journal.append(i % 3 == 0 ? null : "patient-" + i, patient(i), i / 5000.0, i < 2500 ? "v1" : "v2");
+		}
+		journal.close();
+		// Opened again, the journal goes on in a new segment
+		journal = new PRMAuditJournal(directory).start();
+		journal.append("last", patient(0), 1, "v3");
+		journal.close();
+
+		List<PRMAuditJournal.Record> records = read();
+		try (Stream<Path> segments = Files.list(directory)) {
+			assertTrue(segments.count() > 2);
+		}
+		assertEquals(5001, records.size());
+		assertEquals(0, journal.getDropped());
+		for (int i = 0; i < 5000; i++) {
+			PRMAuditJournal.Record record = records.get(i);
+			assertEquals(i % 3 == 0 ? null : "patient-" + i, record.getPatientId());
+			assertEquals(i / 5000.0, record.getProbability(), 0);
+			assertEquals(i < 2500 ? "v1" : "v2", record.getModelVersion());
+			assertArrayEquals(encode(patient(i)), record.getProfile());
+			assertArrayEquals(encode(patient(i)), encode(record.getData()));
+		}
+		assertEquals("v3", records.get(5000).getModelVersion());
+	}
+
+	@Test
+	void closeWritesEveryRecordAcceptedAndDropsTheRest() throws Exception {
+		PRMAuditJournal journal = new PRMAuditJournal(directory).setCapacity(16).start();
+		AtomicBoolean closed = new AtomicBoolean();
+		AtomicLong attempts = new AtomicLong();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int thread = t;
+			threads.add(new Thread(() -> {
+				// Keep appending for a while after the journal is closed
+				for (int i = 0; !closed.get() || i % 1000 != 0; i++) {
+					journal.append(thread + "-" + i, patient(i), 0.5, "v1");
+					attempts.incrementAndGet();
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(200);
+		journal.close();
+		closed.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long count = read().size();
+		assertTrue(count > 0);
+		assertTrue(journal.getDropped() > 0);
+		assertEquals(journal.getAppended(), count);
+		assertEquals(journal.getWritten(), count);
+		assertEquals(attempts.get(), count + journal.getDropped());
+		assertNull(journal.getFailure());
+	}
+
+	@Test
+	void failedWriterDropsRecordsWithoutFailingAppends() throws Exception {
+		PRMAuditJournal journal = new PRMAuditJournal(directory).setCapacity(16)
+				.setSegmentSize(64 * 1024).start();
+		// The next segment can not be created
+		try (Stream<Path> segments = Files.list(directory)) {
+			for (Path segment : (Iterable<Path>) segments::iterator) {
+				Files.delete(segment);
+			}
+		}
+		Files.delete(directory);
+		for (int i = 0; i < 5000; i++) {
+			journal.append(null, patient(i), 0.5, "v1");
+		}
+		journal.close();
+
+		assertNotNull(journal.getFailure());
+		assertTrue(journal.getDropped() > 0);
+		assertEquals(5000, journal.getWritten() + journal.getDropped());
+	}
+}
@@ -0,0 +1,141 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class PRMDriftMonitorTest {
+
+	private static final PRMField FIELD = PRMField.values()[0];
+
+	private static HCHRiskStratificationPRMData profile(double age, boolean isFemale, int value) {
+		HCHRiskStratificationPRMData data = new HCHRiskStratificationPRMData();
+		data.setAge(age);
+		data.setIsFemale(isFemale);
+		FIELD.set(data, FIELD.getValues()[value]);
+		return data;
+	}
+
+	private static long[] counts(PRMDriftMonitor monitor, String dimension) {
+		return monitor.getTotal().getCounts(dimension);
+	}
+
+	private static PRMDriftMonitor.Drift drift(List<PRMDriftMonitor.Drift> drifts, String dimension) {
+		for (PRMDriftMonitor.Drift drift : drifts) {
+			if (drift.getDimension().equals(dimension)) {
+				return drift;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	void binsAgesProbabilitiesAndDiseaseCounts() {
+		PRMDriftMonitor monitor = new PRMDriftMonitor(1000);
+		double[] ages = {0, 4.99, 5, 99, 100, 130, Double.NaN};
+		double[] probabilities = {0, 0.049, 0.05, 0.5, 0.999, 1, Double.NaN};
+		for (int i = 0; i < ages.length; i++) {
+			monitor.record(profile(ages[i], i % 2 == 0, 0), probabilities[i]);
+		}
+		HCHRiskStratificationPRMData sick = profile(50, true, 1);
+		sick.setDiseases(EnumSet.allOf(HCHRiskStratificationPRMData.Disease.class));
+		monitor.record(sick, 0.3);
+
+		List<String> ageLabels = PRMDriftMonitor.getLabels("Age");
+		assertEquals("0-4", ageLabels.get(0));
+		assertEquals("100+", ageLabels.get(ageLabels.size() - 1));
+		long[] age = counts(monitor, "Age");
+		assertEquals(3, age[0]); // 0, 4.99 and NaN
+		assertEquals(1, age[1]);
+		assertEquals(1, age[10]); // The sick profile
+		assertEquals(1, age[19]);
+		assertEquals(2, age[20]);
+
+		long[] probability = counts(monitor, "Probability");
+		assertEquals(3, probability[0]); // 0, 0.049 and NaN
+		assertEquals(1, probability[1]);
+		assertEquals(1, probability[6]); // 0.3
+		assertEquals(1, probability[10]);
+		assertEquals(2, probability[19]);
+
+		long[] diseases = counts(monitor, "DiseaseCount");
+		assertEquals(7, diseases[0]);
+		assertEquals(1, diseases[diseases.length - 1]);
+		assertArrayEquals(new long[] {3, 5}, counts(monitor, "IsFemale"));
+		long[] field = counts(monitor, FIELD.getJsonName());
+		assertEquals(FIELD.getValues().length, field.length);
+		assertEquals(7, field[0]);
+		assertEquals(1, field[1]);
+		assertEquals(8, monitor.getTotal().getProfiles());
+	}
+
+	@Test
+	void countsEveryThread() throws Exception {
+		PRMDriftMonitor monitor = new PRMDriftMonitor(1000);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					monitor.record(profile(40, i % 2 == 0, 0), 0.2);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, monitor.getTotal().getProfiles());
+		assertArrayEquals(new long[] {20000, 20000}, counts(monitor, "IsFemale"));
+	}
+
+	@Test
+	void psiAndKlOfAShift() throws Exception {
+		PRMDriftMonitor reference = new PRMDriftMonitor(1000);
+		PRMDriftMonitor same = new PRMDriftMonitor(1000);
+		PRMDriftMonitor shifted = new PRMDriftMonitor(1000);
+		for (int i = 0; i < 1000; i++) {
+			reference.record(profile(40, i % 2 == 0, 0), 0.2);
+			same.record(profile(40, i % 2 == 1, 0), 0.2);
+			shifted.record(profile(40, i % 10 != 0, 0), 0.2);
+		}
+		PRMDriftMonitor.Distribution expected = reference.getTotal();
+		for (PRMDriftMonitor.Drift drift : same.getTotal().compare(expected, 0.25)) {
+			assertEquals(0, drift.getPsi(), 1e-12, drift.getDimension());
+			assertEquals(0, drift.getKl(), 1e-12, drift.getDimension());
+			assertFalse(drift.isDrifted());
+		}
+
+		PRMDriftMonitor.Drift sex = drift(shifted.getTotal().compare(expected, 0.25), "IsFemale");
+		// Shares smoothed with half a count per bin
+		double p = (900 + 0.5) / 1001, q = 500.5 / 1001;
+		double psi = (p - q) * Math.log(p / q) + (q - p) * Math.log((1 - p) / (1 - q));
+		double kl = p * Math.log(p / q) + (1 - p) * Math.log((1 - p) / (1 - q));
+		assertEquals(psi, sex.getPsi(), 1e-12);
+		assertEquals(kl, sex.getKl(), 1e-12);
+		assertTrue(sex.isDrifted());
+		// Both bins moved as much, the first is reported
+		assertEquals("false", sex.getValue());
+		assertEquals(0.1, sex.getShare(), 1e-12);
+		assertEquals(0.5, sex.getReferenceShare(), 1e-12);
+		assertFalse(drift(shifted.getTotal().compare(expected, 1), "IsFemale").isDrifted());
+		assertEquals(0, drift(shifted.getTotal().compare(expected, 0.25), "Age").getPsi(), 1e-12);
+
+		// The reference survives a round trip through its file
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		expected.write(file);
+		PRMDriftMonitor.Distribution read
+			= PRMDriftMonitor.Distribution.read(new ByteArrayInputStream(file.toByteArray()));
+		assertEquals(psi, drift(shifted.getTotal().compare(read, 0.25), "IsFemale").getPsi(), 1e-12);
+		for (String dimension : PRMDriftMonitor.getDimensions()) {
+			assertArrayEquals(expected.getCounts(dimension), read.getCounts(dimension), dimension);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PRMLatencyHistogramTest {
+
+	@Test
+	void emptyHistogramHasNoQuantile() {
+		PRMLatencyHistogram histogram = new PRMLatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertTrue(Double.isNaN(histogram.getQuantile(0.5)));
+		assertTrue(Double.isNaN(histogram.getMean()));
+	}
+
+	@Test
+	void smallValuesAreExact() {
+		PRMLatencyHistogram histogram = new PRMLatencyHistogram();
+		for (int value = 0; value < PRMLatencyHistogram.SUB_BUCKETS; value++) {
+			histogram.add(value);
+		}
+		for (int value = 0; value < PRMLatencyHistogram.SUB_BUCKETS; value++) {
+			assertEquals(value, histogram.getQuantile((value + 1.0) / PRMLatencyHistogram.SUB_BUCKETS));
+		}
+		histogram.add(-5);
+		assertEquals(0, histogram.getMin());
+	}
+
+	@Test
+	void largeValuesAreWithinTheBucketPrecision() {
+		Random random = new Random(7);
+		for (int i = 0; i < 10000; i++) {
+			long value = PRMLatencyHistogram.SUB_BUCKETS + (random.nextLong() >>> (1 + random.nextInt(56)));
+			PRMLatencyHistogram histogram = new PRMLatencyHistogram();
+			histogram.add(0);
+			histogram.add(value);
+			histogram.add(Long.MAX_VALUE);
+			double quantile = histogram.getQuantile(0.5);
+			assertTrue(Math.abs(quantile - value) <= value / (double) PRMLatencyHistogram.SUB_BUCKETS,
+					value + " estimated as " + quantile);
+		}
+	}
+
+	@Test
+	void quantilesOfMergedHistograms() {
+		PRMLatencyHistogram odd = new PRMLatencyHistogram();
+		PRMLatencyHistogram even = new PRMLatencyHistogram();
+		for (int value = 1; value <= 100000; value++) {
+			(value % 2 == 0 ? even : odd).add(value);
+		}
+		PRMLatencyHistogram merged = new PRMLatencyHistogram();
+		merged.merge(odd);
+		merged.merge(new PRMLatencyHistogram());
+		merged.merge(even);
+		assertEquals(100000, merged.getCount());
+		assertEquals(50000.5, merged.getMean(), 1e-9);
+		assertEquals(1, merged.getMin());
+		assertEquals(100000, merged.getMax());
+		assertEquals(50000, merged.getQuantile(0.5), 50000 / 128.0);
+		assertEquals(99000, merged.getQuantile(0.99), 99000 / 128.0);
+		assertEquals(100000, merged.getQuantile(1), 0);
+		assertEquals(1, merged.getQuantile(0), 0);
+	}
+}
@@ -0,0 +1,155 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PRMLocalServerTest {
+
+	private static final HCHRiskStratificationPRMScoreCalculator SCORER
+		= HCHRiskStratificationPRMScoreCalculator.getInstance();
+
+	private PRMLocalServer server;
+
+	private String address;
+
+	@BeforeEach
+	void start() throws IOException {
+		server = new PRMLocalServer(SCORER, "tcp:0").start();
+		address = server.getAddress();
+	}
+
+	@AfterEach
+	void stop() {
+		server.close();
+	}
+
+	private static HCHRiskStratificationPRMData[] profiles(int from, int count) {
+		HCHRiskStratificationPRMData[] profiles = new HCHRiskStratificationPRMData[count];
+		for (int i = 0; i < count; i++) {
+			profiles[i] = PRMTestPatients.random(from + i);
+		}
+		return profiles;
+	}
+
+	private static double[] expected(HCHRiskStratificationPRMData... profiles) {
+		double[] probabilities = new double[profiles.length];
+		for (int i = 0; i < profiles.length; i++) {
+			probabilities[i] = SCORER.calculatePRMScore(profiles[i]);
+		}
+		return probabilities;
+	}
+
+	/** A raw request frame of encoded profiles */
+	private static byte[] frame(HCHRiskStratificationPRMData... profiles) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + profiles.length * PRMDataCodec.SIZE);
+		buffer.putInt(profiles.length * PRMDataCodec.SIZE);
+		for (HCHRiskStratificationPRMData profile : profiles) {
+			PRMDataCodec.encode(profile, buffer);
+		}
+		return buffer.array();
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				Integer.parseInt(address.substring("tcp:".length())));
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	private static double[] response(DataInputStream in) throws IOException {
+		double[] probabilities = new double[in.readInt() / 8];
+		for (int i = 0; i < probabilities.length; i++) {
+			probabilities[i] = in.readDouble();
+		}
+		return probabilities;
+	}
+
+	@Test
+	void scoresOverLoopbackTcp() throws IOException {
+		assertTrue(address.matches("tcp:[1-9][0-9]*"));
+		HCHRiskStratificationPRMData[] profiles = profiles(0, 20);
+		try (PRMLocalServer.Client client = new PRMLocalServer.Client(address)) {
+			assertArrayEquals(expected(profiles), client.score(profiles));
+			assertArrayEquals(expected(profiles[3]), client.score(profiles[3]));
+		}
+	}
+
+	@Test
+	void answersPipelinedFramesInOrder() throws IOException {
+		try (PRMLocalServer.Client client = new PRMLocalServer.Client(address)) {
+			for (int i = 0; i < 10; i++) {
+				client.send(profiles(i * 7, i + 1));
+			}
+			for (int i = 0; i < 10; i++) {
+				assertArrayEquals(expected(profiles(i * 7, i + 1)), client.receive());
+			}
+		}
+	}
+
+	@Test
+	void reassemblesFramesSplitAcrossReads() throws Exception {
+		HCHRiskStratificationPRMData[] profiles = profiles(5, 3);
+		byte[] frame = frame(profiles);
+		try (Socket socket = connect()) {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			// Within the length, then within a profile
+			int[] cuts = {2, 4 + PRMDataCodec.SIZE + 5, frame.length};
+			int from = 0;
+			for (int cut : cuts) {
+				out.write(frame, from, cut - from);
+				out.flush();
+				from = cut;
+				Thread.sleep(50);
+			}
+			assertArrayEquals(expected(profiles), response(new DataInputStream(socket.getInputStream())));
+		}
+	}
+
+	@Test
+	void decodesOutOfRangeOrdinalsToNaN() throws IOException {
+		HCHRiskStratificationPRMData[] profiles = profiles(1, 3);
+		byte[] frame = frame(profiles);
+		// The first demographic ordinal of the second profile, after its age and flags
+		frame[4 + PRMDataCodec.SIZE + 8 + 1] = Byte.MAX_VALUE;
+		try (Socket socket = connect()) {
+			socket.getOutputStream().write(frame);
+			double[] probabilities = response(new DataInputStream(socket.getInputStream()));
+			assertEquals(3, probabilities.length);
+			assertEquals(SCORER.calculatePRMScore(profiles[0]), probabilities[0]);
+			assertTrue(Double.isNaN(probabilities[1]));
+			assertEquals(SCORER.calculatePRMScore(profiles[2]), probabilities[2]);
+		}
+	}
+
+	@Test
+	void closesConnectionOnInvalidLength() throws IOException {
+		int[] lengths = {0, -1, PRMDataCodec.SIZE + 1,
+			(PRMLocalServer.MAX_PROFILES + 1) * PRMDataCodec.SIZE};
+		for (int length : lengths) {
+			try (Socket socket = connect()) {
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeInt(length);
+				out.flush();
+				assertEquals(-1, socket.getInputStream().read());
+			}
+		}
+		// The server still serves new connections
+		try (PRMLocalServer.Client client = new PRMLocalServer.Client(address)) {
+			assertArrayEquals(expected(PRMTestPatients.random(2)), client.score(PRMTestPatients.random(2)));
+		}
+	}
+}
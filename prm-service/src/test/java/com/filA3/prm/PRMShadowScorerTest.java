@@ -0,0 +1,126 @@
+package com.filA3.prm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class PRMShadowScorerTest {
+
+	private static final HCHRiskStratificationPRMScoreCalculator PRIMARY
+		= HCHRiskStratificationPRMScoreCalculator.getInstance();
+
+	/** The national model with its intercept moved */
+	private static PRMModelCalculator shifted(double shift) {
+		double[] coefficients = PRIMARY.getModel().getCoefficients();
+		coefficients[PRMDesign.INTERCEPT] += shift;
+		return new PRMModelCalculator(new PRMModel("shifted", coefficients));
+	}
+
+	private static void offer(PRMShadowScorer shadow, int from, int count) {
+		for (int i = from; i < from + count; i++) {
+			HCHRiskStratificationPRMData data = PRMTestPatients.random(i);
+			assertTrue(shadow.offer(data, PRIMARY.calculatePRMScore(data), 1000));
+		}
+	}
+
+	private static void awaitCompared(PRMShadowScorer shadow, long compared) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (shadow.getCompared() < compared && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(compared, shadow.getCompared());
+	}
+
+	@Test
+	void countsDivergencesOfAPerturbedModel() throws InterruptedException {
+		try (PRMShadowScorer shadow = new PRMShadowScorer(shifted(1), 1, 1e-6)) {
+			offer(shadow, 0, 50);
+			awaitCompared(shadow, 50);
+			assertEquals(50, shadow.getDivergences());
+			assertEquals(0, shadow.getDropped());
+			// Within the bucket of a microsecond
+			assertEquals(1, shadow.getPrimaryLatency(0.5), 1);
+			assertFalse(Double.isNaN(shadow.getCandidateLatency(0.99)));
+		}
+		// The same model, under another name, never diverges
+		try (PRMShadowScorer shadow = new PRMShadowScorer(shifted(0), 1, 0)) {
+			offer(shadow, 0, 50);
+			awaitCompared(shadow, 50);
+			assertEquals(0, shadow.getDivergences());
+			assertTrue(shadow.getRecentDivergences().isEmpty());
+		}
+	}
+
+	@Test
+	void keepsTheMostRecentReplayableDivergences() throws InterruptedException {
+		PRMModelCalculator candidate = shifted(-0.5);
+		int count = PRMShadowScorer.MAX_DIVERGENCES + 50;
+		try (PRMShadowScorer shadow = new PRMShadowScorer(candidate, 1, 1e-6, count)) {
+			offer(shadow, 0, count);
+			awaitCompared(shadow, count);
+			assertEquals(count, shadow.getDivergences());
+			List<PRMShadowScorer.Divergence> recent = shadow.getRecentDivergences();
+			assertEquals(PRMShadowScorer.MAX_DIVERGENCES, recent.size());
+			for (int i = 0; i < recent.size(); i++) {
+				PRMShadowScorer.Divergence divergence = recent.get(i);
+				byte[] expected = new byte[PRMDataCodec.SIZE];
+				PRMDataCodec.encode(PRMTestPatients.random(50 + i), ByteBuffer.wrap(expected));
+				assertArrayEquals(expected, divergence.getProfile());
+				HCHRiskStratificationPRMData replayed = PRMDataCodec.decode(
+						ByteBuffer.wrap(divergence.getProfile()), new HCHRiskStratificationPRMData());
+				assertEquals(PRIMARY.calculatePRMScore(replayed), divergence.getPrimary());
+				assertEquals(candidate.calculatePRMScore(replayed), divergence.getCandidate());
+				assertEquals(2 * PRMDataCodec.SIZE, divergence.getProfileHex().length());
+			}
+		}
+	}
+
+	@Test
+	void dropsSamplesWhenTheQueueIsFull() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		PRMModelCalculator blocked = new PRMModelCalculator(PRIMARY.getModel()) {
+			@Override
+			public double calculatePRMScore(HCHRiskStratificationPRMData data) {
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.calculatePRMScore(data);
+			}
+		};
+		try (PRMShadowScorer shadow = new PRMShadowScorer(blocked, 1, 0, 1)) {
+			offer(shadow, 0, 1);
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			// One waits in the queue while the first is scored, the others are dropped
+			offer(shadow, 1, 4);
+			assertEquals(3, shadow.getDropped());
+			release.countDown();
+			awaitCompared(shadow, 2);
+			assertEquals(0, shadow.getDivergences());
+		}
+	}
+
+	@Test
+	void neverSamplesWithFractionZero() throws InterruptedException {
+		try (PRMShadowScorer shadow = new PRMShadowScorer(shifted(1), 0, 0)) {
+			for (int i = 0; i < 1000; i++) {
+				assertFalse(shadow.offer(PRMTestPatients.random(i), 0.5, 1000));
+			}
+			Thread.sleep(50);
+			assertEquals(0, shadow.getCompared());
+			assertEquals(0, shadow.getDropped());
+			assertTrue(Double.isNaN(shadow.getPrimaryLatency(0.5)));
+		}
+	}
+}